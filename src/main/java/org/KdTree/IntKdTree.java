@@ -0,0 +1,964 @@
+package org.KdTree;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * <p>
+ * The IntKdTree class is a k-d tree like KdTree, and built and searched the same way, for the common case of
+ * int values such as the indices of the points in some other array.  A KdTree keeps each point in a KdNode
+ * with its own tuple and an ArrayList of boxed values, which costs about a hundred bytes per point beyond the
+ * coordinates and a boxed Integer for every value found, and a search follows references from node to node
+ * across the heap.  An IntKdTree keeps the values in one int[] grouped by point, so the points that are
+ * duplicates of each other have their values next to each other, and searches hand the values to an
+ * IntConsumer or a PointConsumer and so allocate nothing.
+ * </p>
+ *
+ * <p>
+ * The built tree is kept in flat arrays rather than in node objects.  The nodes are numbered in the order a
+ * search visits them, each node before its < subtree and its < subtree before its > subtree, so the < child
+ * of a node is the next node and a search mostly reads forward through the arrays.  The coordinates of node n
+ * are at coordinates[n * numDimensions] and the offsets of its values and the numbers of its children at
+ * nodes[n * NODE_SIZE].
+ * </p>
+ *
+ * <p>
+ * The tree has the same shape as a KdTree of the same points and the searches visit the nodes in the same
+ * order as a single threaded KdTree search, so the points are found in the same order.  The values of
+ * duplicate points come in the order they were added.
+ * </p>
+ *
+ * @author John Robinson
+ */
+public class IntKdTree {
+
+    // returned by pickValue when the tree is empty
+    public static final int NO_VALUE = Integer.MIN_VALUE;
+
+    // the fields of a node in nodes.  The node's values are values[START] to values[END - 1].
+    static final int START = 0;
+    static final int END = 1;
+    static final int LT_CHILD = 2;
+    static final int GT_CHILD = 3;
+    static final int NODE_SIZE = 4;
+    // the number of a child that is not there
+    static final int NONE = -1;
+
+    /**
+     * <p>
+     * The {@code PointConsumer} interface receives the points found by a search.  The point is an index for
+     * {@link IntKdTree#getPoint getPoint}.
+     * </p>
+     */
+    public interface PointConsumer {
+        void accept(int point, int value);
+    }
+
+    private final int numDimensions;
+    private final int numPointsAllocated;
+    private int numPointsInTree = 0;
+    // numDimensions coordinates per point, in the order the points were added until the tree is built and then
+    // in the order of the nodes, one for each distinct point
+    long[] coordinates;
+    private int[] pointValues;  // the value of each point in the order they were added, until the tree is built
+    int[] values;               // the values grouped by node once the tree is built
+    int[] nodes;                // NODE_SIZE ints per node once the tree is built.  Node 0 is the root.
+    private int numNodes = 0;
+    int[] permutation;
+    private int maximumSubmitDepth = -1;
+    private ForkJoinPool executor = null;
+
+    /**
+     * <p>
+     * The {@code IntKdTree} constructor allocates room for the points.
+     * </p>
+     *
+     * @param numPoints - the most points that will be added
+     * @param numDimensions - the dimensionality of each point
+     */
+    public IntKdTree(final int numPoints, final int numDimensions) {
+        this.numPointsAllocated = numPoints;
+        this.numDimensions = numDimensions;
+        coordinates = new long[numPoints * numDimensions];
+        pointValues = new int[numPoints];
+    }
+
+    public int getNumDimensions() {
+        return numDimensions;
+    }
+
+    public int size() {
+        return numPointsInTree;
+    }
+
+    // setNumThreads has the tree built with numThreads threads of the shared pool, as KdTree.setNumThreads()
+    // does.
+    public void setNumThreads(final int numThreads) {
+        maximumSubmitDepth = KdTree.submitDepth(numThreads);
+        executor = maximumSubmitDepth < 0 ? null : KdTree.getSharedPool();
+    }
+
+    // setPool has the tree built with the threads of a pool the caller owns, or none if it is null.
+    public void setPool(final ForkJoinPool pool) {
+        maximumSubmitDepth = pool == null ? -1 : KdTree.submitDepth(pool.getParallelism());
+        executor = maximumSubmitDepth < 0 ? null : pool;
+    }
+
+    // shutdown stops the tree using threads.  It leaves the pool running for other trees.
+    public void shutdown() {
+        executor = null;
+        maximumSubmitDepth = -1;
+    }
+
+    /**
+     * <p>
+     * The {@code add} method adds a point and its value.
+     * </p>
+     *
+     * @param point - the coordinates of the point, numDimensions long
+     * @param value - the value of the point
+     * @returns the number of points after this add or -1 if the tree is full or the point the wrong size
+     */
+    public int add(final long[] point, final int value) {
+        if (point.length != numDimensions) return -1;
+        if (nodes != null) unpack();
+        if (numPointsInTree == numPointsAllocated) return -1;
+        System.arraycopy(point, 0, coordinates, numPointsInTree * numDimensions, numDimensions);
+        pointValues[numPointsInTree] = value;
+        return ++numPointsInTree;
+    }
+
+    // getPoint copies the coordinates of a point passed to a PointConsumer into tuple.
+    public void getPoint(final int point, final long[] tuple) {
+        System.arraycopy(coordinates, point * numDimensions, tuple, 0, numDimensions);
+    }
+
+    // getCoordinate returns one coordinate of a point passed to a PointConsumer.
+    public long getCoordinate(final int point, final int dimension) {
+        return coordinates[point * numDimensions + dimension];
+    }
+
+    // unpack puts the points of a built tree back into the order they are added in so that more can be added
+    // and the tree built again.  Values that were removed are gone, as they are from a KdTree.
+    private void unpack() {
+        long[] points = new long[numPointsAllocated * numDimensions];
+        int[] pointValues = new int[numPointsAllocated];
+        int numPoints = 0;
+        for (int node = 0; node < numNodes; node++) {
+            for (int v = nodes[node * NODE_SIZE + START]; v < nodes[node * NODE_SIZE + END]; v++) {
+                System.arraycopy(coordinates, node * numDimensions, points, numPoints * numDimensions, numDimensions);
+                pointValues[numPoints++] = values[v];
+            }
+        }
+        coordinates = points;
+        this.pointValues = pointValues;
+        numPointsInTree = numPoints;
+        values = null;
+        nodes = null;
+        numNodes = 0;
+    }
+
+    /**
+     * <p>
+     * The {@code buildTree} method builds the tree.  The searches build it if it has not been.  The points are
+     * sorted on the super key of the first dimension and the duplicates grouped, then each level of the tree
+     * takes the median of its points on the super key of its partition dimension, as KdTree does.
+     * </p>
+     */
+    public void buildTree() {
+        if (nodes != null) unpack();
+        int size = numPointsInTree;
+        int maxDepth = 1;
+        while (size > 0) {
+            maxDepth++;
+            size >>= 1;
+        }
+        permutation = new int[maxDepth];
+        for (int i = 0; i < permutation.length; ++i) {
+            permutation[i] = i % numDimensions;
+        }
+
+        // sort the points, which keeps duplicates in the order they were added, and group the duplicates.  The
+        // first point of each group is moved to the front of order and the offset of its first value put in
+        // groupStarts, so the values of group g are values[groupStarts[g]] to values[groupStarts[g + 1] - 1].
+        int[] order = new int[numPointsInTree];
+        int[] groupStarts = new int[numPointsInTree + 1];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        mergeSort(order, groupStarts, 0, order.length, 0);
+        values = new int[numPointsInTree];
+        int numGroups = 0;
+        for (int i = 0; i < order.length; i++) {
+            values[i] = pointValues[order[i]];
+            if (numGroups == 0 || superKeyCompare(order[i], order[numGroups - 1], 0) != 0) {
+                order[numGroups] = order[i];
+                groupStarts[numGroups++] = i;
+            }
+        }
+        groupStarts[numGroups] = numPointsInTree;
+
+        int[] groups = new int[numGroups];
+        for (int g = 0; g < numGroups; g++) groups[g] = g;
+        long[] treeCoordinates = new long[numGroups * numDimensions];
+        nodes = new int[numGroups * NODE_SIZE];
+        numNodes = numGroups;
+        if (numGroups > 0) build(groups, order, groupStarts, treeCoordinates, 0, numGroups - 1, 0, 0);
+        coordinates = treeCoordinates;
+        pointValues = null;
+    }
+
+    /**
+     * <p>
+     * The {@code save} method writes the tree to a snapshot file that OffHeapKdTree.load() maps, so the tree
+     * can be searched again without being built.  The tree is built first if it has not been.
+     * </p>
+     *
+     * @param file - the file, which is replaced
+     * @throws IOException if the file cannot be written
+     */
+    public void save(final File file) throws IOException {
+        ready();
+        try (KdTreeSnapshot out = KdTreeSnapshot.create(file, numDimensions, values.length, numNodes,
+                permutation)) {
+            for (int i = 0; i < numNodes * numDimensions; i++) out.putLong(coordinates[i]);
+            for (int value : values) out.putInt(value);
+            for (int i = 0; i < numNodes * NODE_SIZE; i++) out.putInt(nodes[i]);
+        }
+    }
+
+    // superKeyCompare compares two added points on the super key that starts with dimension p
+    private long superKeyCompare(final int a, final int b, final int p) {
+        final int aOffset = a * numDimensions;
+        final int bOffset = b * numDimensions;
+        long diff = coordinates[aOffset + p] - coordinates[bOffset + p];
+        for (int i = 1; diff == 0 && i < numDimensions; i++) {
+            int r = i + p;
+            r = (r < numDimensions) ? r : r - numDimensions;
+            diff = coordinates[aOffset + r] - coordinates[bOffset + r];
+        }
+        return diff;
+    }
+
+    // mergeSort sorts points from to to - 1 on the super key of dimension p.  It is stable.
+    private void mergeSort(final int[] points, final int[] temporary, final int from, final int to, final int p) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                int point = points[i];
+                int j = i - 1;
+                while (j >= from && superKeyCompare(points[j], point, p) > 0) {
+                    points[j + 1] = points[j];
+                    j--;
+                }
+                points[j + 1] = point;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(points, temporary, from, middle, p);
+        mergeSort(points, temporary, middle, to, p);
+        if (superKeyCompare(points[middle - 1], points[middle], p) <= 0) return;
+        System.arraycopy(points, from, temporary, from, to - from);
+        int i = from, j = middle, k = from;
+        while (i < middle && j < to) {
+            points[k++] = superKeyCompare(temporary[j], temporary[i], p) < 0 ? temporary[j++] : temporary[i++];
+        }
+        while (i < middle) points[k++] = temporary[i++];
+        while (j < to) points[k++] = temporary[j++];
+    }
+
+    /**
+     * <p>
+     * The {@code build} method builds the subtree of the groups from start to end as the nodes numbered from
+     * node on.  It selects the median of the groups on the super key of the partition dimension, which leaves
+     * the groups below it before it and the groups above it after it, makes it the node, and builds the groups
+     * below it as the < subtree starting at node + 1 and the groups above it as the > subtree after that.
+     * </p>
+     *
+     * @param groups - the numbers of the groups of duplicate points
+     * @param groupPoints - the first added point of each group
+     * @param groupStarts - the offset in values of the first value of each group
+     * @param treeCoordinates - receives the coordinates of the nodes
+     * @param start - the first group of the subtree
+     * @param end - the last group of the subtree
+     * @param node - the number of the root of the subtree
+     * @param depth - the depth in the tree
+     */
+    private void build(final int[] groups, final int[] groupPoints, final int[] groupStarts,
+                       final long[] treeCoordinates, final int start, final int end, final int node,
+                       final int depth) {
+        final int p = permutation[depth];
+        final int median = start + ((end - start) >> 1);
+        select(groups, groupPoints, start, end, median, p);
+        final int group = groups[median];
+        System.arraycopy(coordinates, groupPoints[group] * numDimensions, treeCoordinates, node * numDimensions,
+                numDimensions);
+        final int ltChild = median > start ? node + 1 : NONE;
+        final int gtChild = end > median ? node + 1 + median - start : NONE;
+        final int n = node * NODE_SIZE;
+        nodes[n + START] = groupStarts[group];
+        nodes[n + END] = groupStarts[group + 1];
+        nodes[n + LT_CHILD] = ltChild;
+        nodes[n + GT_CHILD] = gtChild;
+        if (maximumSubmitDepth < 0 || depth > maximumSubmitDepth || median - start < 2) {
+            if (ltChild != NONE) build(groups, groupPoints, groupStarts, treeCoordinates, start, median - 1,
+                    ltChild, depth + 1);
+            if (gtChild != NONE) build(groups, groupPoints, groupStarts, treeCoordinates, median + 1, end,
+                    gtChild, depth + 1);
+        } else {
+            ForkJoinTask<Void> future = executor.submit(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    build(groups, groupPoints, groupStarts, treeCoordinates, start, median - 1, ltChild,
+                            depth + 1);
+                }
+            });
+            if (gtChild != NONE) build(groups, groupPoints, groupStarts, treeCoordinates, median + 1, end,
+                    gtChild, depth + 1);
+            try {
+                future.get();
+            } catch (Exception e) {
+                throw new RuntimeException("recursive future exception: " + e.getMessage());
+            }
+        }
+    }
+
+    // select moves the group that belongs at k on the super key of dimension p to k, the groups below it
+    // before it and the groups above it after it.  The points are distinct so no two groups compare equal.
+    private void select(final int[] groups, final int[] groupPoints, int left, int right, final int k,
+                        final int p) {
+        while (right > left) {
+            // the median of three for the pivot, which also handles points already in order
+            int middle = (left + right) >>> 1;
+            if (compare(groups, groupPoints, middle, left, p) < 0) swap(groups, middle, left);
+            if (compare(groups, groupPoints, right, left, p) < 0) swap(groups, right, left);
+            if (compare(groups, groupPoints, right, middle, p) < 0) swap(groups, right, middle);
+            if (right - left < 3) return;
+            final int pivot = groupPoints[groups[middle]];
+            swap(groups, middle, right - 1);
+            int i = left;
+            int j = right - 1;
+            while (true) {
+                while (superKeyCompare(groupPoints[groups[++i]], pivot, p) < 0) { }
+                while (superKeyCompare(groupPoints[groups[--j]], pivot, p) > 0) { }
+                if (i >= j) break;
+                swap(groups, i, j);
+            }
+            swap(groups, i, right - 1);
+            if (i == k) return;
+            if (k < i) right = i - 1;
+            else left = i + 1;
+        }
+    }
+
+    private long compare(final int[] groups, final int[] groupPoints, final int a, final int b, final int p) {
+        return superKeyCompare(groupPoints[groups[a]], groupPoints[groups[b]], p);
+    }
+
+    private static void swap(final int[] groups, final int i, final int j) {
+        int t = groups[i];
+        groups[i] = groups[j];
+        groups[j] = t;
+    }
+
+    /**
+     * <p>
+     * The {@code searchTree} method finds the values of the points with queryMinus <= t < queryPlus in every
+     * dimension.  The bounds may be given in either order.
+     * </p>
+     *
+     * @param queryPlus - Array containing the larger search bound for each dimension
+     * @param queryMinus - Array containing the smaller search bound for each dimension
+     * @param found - receives each value found
+     */
+    public void searchTree(final long[] queryPlus, final long[] queryMinus, final IntConsumer found) {
+        if (!ready()) return;
+        if (inOrder(queryPlus, queryMinus)) search(0, queryPlus, queryMinus, found, null, false, 0);
+        else search(0, max(queryPlus, queryMinus), min(queryPlus, queryMinus), found, null, false, 0);
+    }
+
+    // searchTree finds the points and values in a box and passes them to a PointConsumer.
+    public void searchTree(final long[] queryPlus, final long[] queryMinus, final PointConsumer found) {
+        if (!ready()) return;
+        if (inOrder(queryPlus, queryMinus)) search(0, queryPlus, queryMinus, null, found, false, 0);
+        else search(0, max(queryPlus, queryMinus), min(queryPlus, queryMinus), null, found, false, 0);
+    }
+
+    // searchTree returns the values in a box in a list, for callers that want one.
+    public List<Integer> searchTree(final long[] queryPlus, final long[] queryMinus) {
+        final ArrayList<Integer> result = new ArrayList<>();
+        searchTree(queryPlus, queryMinus, new IntConsumer() {
+            @Override
+            public void accept(int value) {
+                result.add(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * <p>
+     * The {@code searchAndRemove} method finds the points and values in a box, passes them to a PointConsumer
+     * and removes them from the tree.  Subtrees that are left empty are cut off.
+     * </p>
+     *
+     * @param queryPlus - Array containing the larger search bound for each dimension
+     * @param queryMinus - Array containing the smaller search bound for each dimension
+     * @param found - receives each point and value found
+     */
+    public void searchAndRemove(final long[] queryPlus, final long[] queryMinus, final PointConsumer found) {
+        if (!ready()) return;
+        if (inOrder(queryPlus, queryMinus)) search(0, queryPlus, queryMinus, null, found, true, 0);
+        else search(0, max(queryPlus, queryMinus), min(queryPlus, queryMinus), null, found, true, 0);
+    }
+
+    // ready builds the tree if it has not been built and returns true if it has a root.
+    boolean ready() {
+        if (nodes == null) buildTree();
+        return numNodes > 0;
+    }
+
+    // inOrder returns true if the plus bound is the larger in every dimension, so a search can use the
+    // caller's arrays as they are and allocate nothing.
+    private static boolean inOrder(final long[] queryPlus, final long[] queryMinus) {
+        for (int i = 0; i < queryMinus.length; i++) {
+            if (queryMinus[i] > queryPlus[i]) return false;
+        }
+        return true;
+    }
+
+    // max returns a new array of the larger of two bounds in each dimension.
+    private static long[] max(final long[] a, final long[] b) {
+        long[] bound = new long[a.length];
+        for (int i = 0; i < bound.length; i++) bound[i] = Math.max(a[i], b[i]);
+        return bound;
+    }
+
+    // min returns a new array of the smaller of two bounds in each dimension.
+    private static long[] min(final long[] a, final long[] b) {
+        long[] bound = new long[a.length];
+        for (int i = 0; i < bound.length; i++) bound[i] = Math.min(a[i], b[i]);
+        return bound;
+    }
+
+    /**
+     * <p>
+     * The {@code search} method searches a subtree with the pruning of KdTree.searchTree(): the < branch is
+     * searched if the partition coordinate of queryMinus is <= that of the node and the > branch if the one
+     * of queryPlus is >= it, since the super key may put points equal to the node's on either side.
+     * </p>
+     *
+     * @param node - the root of the subtree
+     * @param queryPlus - the larger search bound for each dimension
+     * @param queryMinus - the smaller search bound for each dimension
+     * @param values - receives the values found, or null
+     * @param points - receives the points and values found, or null
+     * @param remove - if true the values found are removed
+     * @param depth - the depth in the tree
+     * @returns true if remove is true and the subtree is now empty, so its parent can cut it off
+     */
+    private boolean search(final int node, final long[] queryPlus, final long[] queryMinus,
+                           final IntConsumer values, final PointConsumer points, final boolean remove,
+                           final int depth) {
+        final int p = permutation[depth];
+        final int offset = node * numDimensions;
+        final int n = node * NODE_SIZE;
+        final long partition = coordinates[offset + p];
+        final int start = nodes[n + START];
+        final int end = nodes[n + END];
+        if (end > start) {
+            boolean inside = true;
+            for (int i = 0; i < numDimensions; i++) {
+                final long t = coordinates[offset + i];
+                if (queryPlus[i] <= t || queryMinus[i] > t) {
+                    inside = false;
+                    break;
+                }
+            }
+            if (inside) {
+                for (int v = start; v < end; v++) {
+                    if (values != null) values.accept(this.values[v]);
+                    else points.accept(node, this.values[v]);
+                }
+                if (remove) nodes[n + END] = start;
+            }
+        }
+        final int ltChild = nodes[n + LT_CHILD];
+        if (ltChild != NONE && queryMinus[p] <= partition) {
+            if (search(ltChild, queryPlus, queryMinus, values, points, remove, depth + 1)) {
+                nodes[n + LT_CHILD] = NONE;
+            }
+        }
+        final int gtChild = nodes[n + GT_CHILD];
+        if (gtChild != NONE && queryPlus[p] >= partition) {
+            if (search(gtChild, queryPlus, queryMinus, values, points, remove, depth + 1)) {
+                nodes[n + GT_CHILD] = NONE;
+            }
+        }
+        return remove && isDead(node);
+    }
+
+    // isDead returns true if a node has no values and no children left.
+    private boolean isDead(final int node) {
+        final int n = node * NODE_SIZE;
+        return nodes[n + END] == nodes[n + START] && nodes[n + LT_CHILD] == NONE && nodes[n + GT_CHILD] == NONE;
+    }
+
+    /**
+     * <p>
+     * The {@code nearestNeighborSearch} method finds the numNeighbors points nearest to query and passes
+     * their values to a PointConsumer, the nearest point first.  As for KdTree.nearestNeighborSearch() there may
+     * be more values than numNeighbors since the duplicates of a point are one node with several values.
+     * </p>
+     *
+     * @param query - the point whose nearest neighbors are found
+     * @param numNeighbors - the number of distinct points to find
+     * @param enable - which dimensions are part of the distance, or null for all of them
+     * @param found - receives each point and value found
+     */
+    public void nearestNeighborSearch(final long[] query, final int numNeighbors, final boolean[] enable,
+                                      final PointConsumer found) {
+        if (!ready() || numNeighbors < 1) return;
+        NearestNeighborHeap heap = new NearestNeighborHeap(query, numNeighbors, enable);
+        nearestNeighbor(heap, 0, 0);
+        // the farthest is on top of the heap, so the nearest come off last
+        int[] nearest = new int[heap.size];
+        for (int i = nearest.length - 1; i >= 0; i--) nearest[i] = heap.removeTop();
+        for (int node : nearest) {
+            for (int v = nodes[node * NODE_SIZE + START]; v < nodes[node * NODE_SIZE + END]; v++) {
+                found.accept(node, values[v]);
+            }
+        }
+    }
+
+    // nearestNeighborSearch returns the values of the nearest points in a list, the nearest first.
+    public List<Integer> nearestNeighborSearch(final long[] query, final int numNeighbors) {
+        final ArrayList<Integer> result = new ArrayList<>();
+        nearestNeighborSearch(query, numNeighbors, null, new PointConsumer() {
+            @Override
+            public void accept(int point, int value) {
+                result.add(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * <p>
+     * The {@code nearestNeighbor} method searches a subtree as KdNode.nearestNeighbor() does.  It descends the
+     * side of the node the query is on first, then the other side and the node itself only if they can be
+     * nearer than the farthest point found so far.
+     * </p>
+     *
+     * @param heap - the nearest points found so far
+     * @param node - the root of the subtree
+     * @param depth - the depth in the tree
+     */
+    private void nearestNeighbor(final NearestNeighborHeap heap, final int node, final int depth) {
+        final int p = permutation[depth];
+        final long partition = coordinates[node * numDimensions + p];
+        final long q = heap.query[p];
+        final int ltChild = nodes[node * NODE_SIZE + LT_CHILD];
+        final int gtChild = nodes[node * NODE_SIZE + GT_CHILD];
+        if (q < partition) {
+            if (ltChild != NONE) nearestNeighbor(heap, ltChild, depth + 1);
+            if (heap.mayBeNearer(p, partition - q)) {
+                if (gtChild != NONE) nearestNeighbor(heap, gtChild, depth + 1);
+                heap.add(node);
+            }
+        } else if (q > partition) {
+            if (gtChild != NONE) nearestNeighbor(heap, gtChild, depth + 1);
+            if (heap.mayBeNearer(p, q - partition)) {
+                if (ltChild != NONE) nearestNeighbor(heap, ltChild, depth + 1);
+                heap.add(node);
+            }
+        } else {
+            if (ltChild != NONE) nearestNeighbor(heap, ltChild, depth + 1);
+            if (gtChild != NONE) nearestNeighbor(heap, gtChild, depth + 1);
+            heap.add(node);
+        }
+    }
+
+    /**
+     * <p>
+     * The NearestNeighborHeap class keeps the nodes nearest to a query in a heap with the farthest on top, as
+     * KdTree.NearestNeighborHeap does, but of node numbers and the squares of the distances, which keeps
+     * points whose distances differ by less than one apart.
+     * </p>
+     */
+    private final class NearestNeighborHeap {
+        private final long[] query;
+        private final boolean[] enable;
+        private final int[] heapNodes;  // address 0 is unused
+        private final double[] dists;
+        private int size = 0;
+
+        private NearestNeighborHeap(final long[] query, final int numNeighbors, final boolean[] enable) {
+            this.query = query;
+            this.enable = enable;
+            heapNodes = new int[numNeighbors + 1];
+            dists = new double[numNeighbors + 1];
+        }
+
+        // mayBeNearer returns true if a point that far from the query in dimension p may be nearer than the
+        // farthest on the heap.
+        private boolean mayBeNearer(final int p, final long distance) {
+            return size < heapNodes.length - 1 || (enable != null && !enable[p]) ||
+                    (double) distance * (double) distance <= dists[1];
+        }
+
+        // add puts a node on the heap if it has values and is nearer than the farthest or the heap is not full.
+        private void add(final int node) {
+            if (nodes[node * NODE_SIZE + END] == nodes[node * NODE_SIZE + START]) return;
+            final int offset = node * numDimensions;
+            double dist = 0.0;
+            for (int i = 0; i < numDimensions; i++) {
+                if (enable == null || enable[i]) {
+                    double d = (double) (coordinates[offset + i] - query[i]);
+                    dist += d * d;
+                }
+            }
+            if (size < heapNodes.length - 1) {
+                size++;
+                dists[size] = dist;
+                heapNodes[size] = node;
+                rise(size);
+            } else if (dist < dists[1]) {
+                dists[1] = dist;
+                heapNodes[1] = node;
+                fall(1);
+            }
+        }
+
+        private int removeTop() {
+            int node = heapNodes[1];
+            swap(1, size--);
+            fall(1);
+            return node;
+        }
+
+        private void rise(int k) {
+            while (k > 1 && dists[k / 2] < dists[k]) {
+                swap(k / 2, k);
+                k = k / 2;
+            }
+        }
+
+        private void fall(int k) {
+            while (2 * k <= size) {
+                int j = 2 * k;
+                if (j < size && dists[j] < dists[j + 1]) j++;
+                if (dists[k] >= dists[j]) break;
+                swap(k, j);
+                k = j;
+            }
+        }
+
+        private void swap(final int i, final int j) {
+            double dist = dists[i];
+            dists[i] = dists[j];
+            dists[j] = dist;
+            int node = heapNodes[i];
+            heapNodes[i] = heapNodes[j];
+            heapNodes[j] = node;
+        }
+    }
+
+    /**
+     * <p>
+     * The {@code remove} method removes one value of a point.
+     * </p>
+     *
+     * @param query - the point
+     * @param valueToRemove - the value to remove
+     * @returns true if the value was found and removed
+     */
+    public boolean remove(final long[] query, final int valueToRemove) {
+        if (!ready()) return false;
+        return removeValue(0, query, valueToRemove, 0) != 0;
+    }
+
+    // removeValue returns 0 if nothing was removed, 1 if a value was removed or -1 if a value was removed and
+    // the subtree is now empty, as KdTree's removeValue() does.
+    private int removeValue(final int node, final long[] query, final int valueToRemove, final int depth) {
+        final int p = permutation[depth];
+        final int offset = node * numDimensions;
+        final int n = node * NODE_SIZE;
+        long compare = query[p] - coordinates[offset + p];
+        for (int i = 1; compare == 0 && i < numDimensions; i++) {
+            int r = i + p;
+            r = (r < numDimensions) ? r : r - numDimensions;
+            compare = query[r] - coordinates[offset + r];
+        }
+        int result = 0;
+        if (compare < 0) {
+            if (nodes[n + LT_CHILD] != NONE) {
+                result = removeValue(nodes[n + LT_CHILD], query, valueToRemove, depth + 1);
+                if (result == -1) nodes[n + LT_CHILD] = NONE;
+            }
+        } else if (compare > 0) {
+            if (nodes[n + GT_CHILD] != NONE) {
+                result = removeValue(nodes[n + GT_CHILD], query, valueToRemove, depth + 1);
+                if (result == -1) nodes[n + GT_CHILD] = NONE;
+            }
+        } else {
+            final int end = nodes[n + END];
+            for (int v = nodes[n + START]; v < end; v++) {
+                if (values[v] == valueToRemove) {
+                    // keep the order of the others, as a List does
+                    System.arraycopy(values, v + 1, values, v, end - v - 1);
+                    nodes[n + END] = end - 1;
+                    result = -1;
+                    break;
+                }
+            }
+        }
+        if (result == -1 && !isDead(node)) result = 1;
+        return result;
+    }
+
+    /**
+     * <p>
+     * The {@code pickValue} method picks a value from a leaf of the tree as KdTreeEx.pickValue() does.
+     * </p>
+     *
+     * @param key - where the point of the value is put
+     * @param selectionBias - 0 for the < side of the tree, 1 for the > side, 2 for the middle or 3 for random
+     * @param remove - if true the value is removed
+     * @returns the value or NO_VALUE if the tree is empty
+     */
+    public int pickValue(final long[] key, final int selectionBias, final boolean remove) {
+        if (!ready()) return NO_VALUE;
+        long selector;
+        switch (selectionBias) {
+            case 0:
+                selector = 0L;
+                break;
+            case 1:
+                selector = 0x7FFFFFFFFFFFFFFFL;
+                break;
+            case 2:
+                selector = 0x2AAAAAAAAAAAAAAAL;
+                break;
+            case 3:
+                selector = new Random().nextLong();
+                break;
+            default:
+                throw new IllegalArgumentException("Selection Bias " + selectionBias + " not available");
+        }
+        int node = 0;
+        int[] path = new int[permutation.length];
+        int depth = 0;
+        while (true) {
+            boolean goGt = (selector & 0x1) == 1;
+            selector >>= 1;
+            path[depth] = node;
+            final int ltChild = nodes[node * NODE_SIZE + LT_CHILD];
+            final int gtChild = nodes[node * NODE_SIZE + GT_CHILD];
+            if ((!goGt || gtChild == NONE) && ltChild != NONE) {
+                node = ltChild;
+            } else if ((goGt || ltChild == NONE) && gtChild != NONE) {
+                node = gtChild;
+            } else {
+                break;
+            }
+            depth++;
+        }
+        final int n = node * NODE_SIZE;
+        if (nodes[n + END] == nodes[n + START]) return NO_VALUE;
+        int value = values[nodes[n + END] - 1];
+        getPoint(node, key);
+        if (remove) {
+            nodes[n + END]--;
+            // cut off the nodes on the path that are now empty
+            for (int d = depth; d > 0 && isDead(path[d]); d--) {
+                final int parent = path[d - 1] * NODE_SIZE;
+                if (nodes[parent + LT_CHILD] == path[d]) nodes[parent + LT_CHILD] = NONE;
+                else nodes[parent + GT_CHILD] = NONE;
+            }
+        }
+        return value;
+    }
+
+    // this main() function compares the memory, build time and search times of an IntKdTree and a KdTree of
+    // Integers on random points, checks that they find the same points in the same order, and checks the
+    // nearest neighbors against a scan of all of the points.  A third argument of false leaves out the KdTree,
+    // for sizes it has no room for.  It is not necessary.
+    public static void main(String[] args) {
+        int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        boolean compare = args.length <= 2 || Boolean.parseBoolean(args[2]);
+        final int numNeighbors = 8;
+        Random random = new Random(1);
+        long[][] points = new long[numPoints][];
+        boolean[] duplicate = new boolean[numPoints];
+        for (int i = 0; i < numPoints; i++) {
+            // some duplicates
+            duplicate[i] = i > 0 && random.nextInt(10) == 0;
+            points[i] = duplicate[i] ? points[random.nextInt(i)] :
+                    new long[]{random.nextInt(1000000), random.nextInt(1000000), random.nextInt(1000000)};
+        }
+        long[][] queries = new long[numQueries][];
+        for (int q = 0; q < numQueries; q++) {
+            queries[q] = new long[]{random.nextInt(1000000), random.nextInt(1000000), random.nextInt(1000000)};
+        }
+        Runtime runtime = Runtime.getRuntime();
+
+        System.gc();
+        long memory = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        IntKdTree intTree = new IntKdTree(numPoints, 3);
+        for (int i = 0; i < numPoints; i++) intTree.add(points[i], i);
+        intTree.buildTree();
+        long intBuild = System.nanoTime() - start;
+        System.gc();
+        long intMemory = runtime.totalMemory() - runtime.freeMemory() - memory;
+
+        KdTree<Integer> kdTree = null;
+        long kdBuild = 0;
+        long kdMemory = 0;
+        if (compare) {
+            memory = runtime.totalMemory() - runtime.freeMemory();
+            start = System.nanoTime();
+            kdTree = new KdTree<Integer>(numPoints, 3);
+            for (int i = 0; i < numPoints; i++) kdTree.add(points[i], i);
+            kdTree.buildTree();
+            kdBuild = System.nanoTime() - start;
+            System.gc();
+            kdMemory = runtime.totalMemory() - runtime.freeMemory() - memory;
+        }
+
+        long intSearch = 0;
+        long kdSearch = 0;
+        long numFound = 0;
+        final int[] found = new int[numPoints];
+        final int[] numIntFound = new int[1];
+        IntConsumer collect = new IntConsumer() {
+            @Override
+            public void accept(int value) {
+                found[numIntFound[0]++] = value;
+            }
+        };
+        for (int q = 0; q < numQueries; q++) {
+            long[] qm = queries[q];
+            long[] qp = new long[]{qm[0] + 20000, qm[1] + 20000, qm[2] + 200000};
+            numIntFound[0] = 0;
+            start = System.nanoTime();
+            intTree.searchTree(qp, qm, collect);
+            intSearch += System.nanoTime() - start;
+            numFound += numIntFound[0];
+            if (!compare) continue;
+            start = System.nanoTime();
+            List<Integer> fromKdTree = kdTree.searchTree(qp, qm);
+            kdSearch += System.nanoTime() - start;
+            // the values of duplicate points may be in another order since KdTree's sort does not keep the
+            // order they were added in, so the points are compared
+            boolean same = fromKdTree.size() == numIntFound[0];
+            for (int i = 0; same && i < numIntFound[0]; i++) same = points[fromKdTree.get(i)] == points[found[i]];
+            if (!same) System.out.println("Query " + q + " found different points");
+        }
+
+        long intNearest = 0;
+        long kdNearest = 0;
+        final IntKdTree tree = intTree;
+        final double[] nearest = new double[numNeighbors];
+        final int[] numNearest = new int[1];
+        final long[][] query = new long[1][];
+        PointConsumer collectNearest = new PointConsumer() {
+            int previous = -1;
+
+            @Override
+            public void accept(int point, int value) {
+                // the values of one point come together and the point counts once
+                if (numNearest[0] > 0 && point == previous) return;
+                previous = point;
+                double dist = 0.0;
+                for (int i = 0; i < 3; i++) {
+                    double d = (double) (tree.getCoordinate(point, i) - query[0][i]);
+                    dist += d * d;
+                }
+                nearest[numNearest[0]++] = dist;
+            }
+        };
+        for (int q = 0; q < numQueries; q++) {
+            numNearest[0] = 0;
+            query[0] = queries[q];
+            start = System.nanoTime();
+            intTree.nearestNeighborSearch(queries[q], numNeighbors, null, collectNearest);
+            intNearest += System.nanoTime() - start;
+            if (compare) {
+                start = System.nanoTime();
+                kdTree.nearestNeighborSearch(queries[q], numNeighbors);
+                kdNearest += System.nanoTime() - start;
+            }
+            if (q < 100) {
+                // the distances of the nearest distinct points from a look at all of them
+                double[] scan = new double[numNeighbors];
+                Arrays.fill(scan, Double.MAX_VALUE);
+                for (int i = 0; i < numPoints; i++) {
+                    if (duplicate[i]) continue;
+                    double dist = 0.0;
+                    for (int j = 0; j < 3; j++) {
+                        double d = (double) (points[i][j] - queries[q][j]);
+                        dist += d * d;
+                    }
+                    for (int k = 0; k < numNeighbors; k++) {
+                        if (dist < scan[k]) {
+                            double t = scan[k];
+                            scan[k] = dist;
+                            dist = t;
+                        }
+                    }
+                }
+                if (numNearest[0] != numNeighbors || !Arrays.equals(scan, nearest)) {
+                    System.out.println("Query " + q + " found different nearest neighbors");
+                }
+            }
+        }
+        System.out.printf("%d points: IntKdTree %d bytes per point, build %.1f ms, %d searches %.1f ms, " +
+                        "nearest neighbors %.1f ms", numPoints, intMemory / numPoints, intBuild / 1.0e6, numQueries,
+                intSearch / 1.0e6, intNearest / 1.0e6);
+        if (compare) {
+            System.out.printf("; KdTree %d bytes per point, build %.1f ms, searches %.1f ms, " +
+                            "nearest neighbors %.1f ms", kdMemory / numPoints, kdBuild / 1.0e6, kdSearch / 1.0e6,
+                    kdNearest / 1.0e6);
+        }
+        System.out.printf("; %d found%n", numFound);
+        System.exit(0);
+    }
+}
@@ -33,10 +33,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * <p>
@@ -56,6 +55,17 @@ public class KdTree<VALUE_TYPE> {
     // enables printing the time stats.
     private final static boolean printstats = false;
 
+    /**
+     * <p>
+     * The {@code Visitor} interface receives the tuples and values found by
+     * {@link KdTree#searchTree(long[], long[], Visitor) searchTree}.  The tuple is the tree's own array so it
+     * must not be changed or kept.
+     * </p>
+     */
+    public interface Visitor<VALUE_TYPE> {
+        void visit(long[] tuple, VALUE_TYPE value);
+    }
+
     /**
      * <p>
      * The {@code KdNode} class stores a point of any number of dimensions
@@ -69,7 +79,7 @@ public class KdTree<VALUE_TYPE> {
         // Change to whatever value type desired; NOTE that a List requires a lot of memory.
         List<VALUE_TYPE> value;
         long[] tuple;
-        KdNode ltChild, gtChild;
+        KdNode<VALUE_TYPE> ltChild, gtChild;
         static KdNode[] KdNodes;
 
         /**
@@ -92,8 +102,8 @@ public class KdTree<VALUE_TYPE> {
          * @param coordinates - a KdNode[]
          * @param reference - a KdNode[]
          */
-        private static void initializeReference(final KdNode[] coordinates,
-                                                final KdNode[] reference) {
+        private static <V> void initializeReference(final KdNode<V>[] coordinates,
+                                                final KdNode<V>[] reference) {
             for (int i = 0; i < reference.length; i++) {
                 reference[i] = coordinates[i];
             }
@@ -102,19 +112,19 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code initializeReferenceWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#initializeReference initializeReference} method.
          * </p>
          *
          * @param coordinates - a KdNode[]
          * @param reference - a KdNode[]
          */
-        private static Callable<Void> initializeReferenceWithThread(final KdNode[] coordinates,
-                                                                    final KdNode[] reference) {
+        private static <V> RecursiveTask<Void> initializeReferenceWithThread(final KdNode<V>[] coordinates,
+                                                                    final KdNode<V>[] reference) {
 
-            return new Callable<Void>() {
+            return new RecursiveTask<Void>() {
                 @Override
-                public Void call() {
+                protected Void compute() {
                     initializeReference(coordinates, reference);
                     return null;
                 }
@@ -156,7 +166,7 @@ public class KdTree<VALUE_TYPE> {
          * @param kEnd - the final value of the k-index
          * @param p - the sorting partition (x, y, z, w...)
          */
-        private static void mergeResultsAscending(final KdNode[] destination, final KdNode[] source,
+        private static <V> void mergeResultsAscending(final KdNode<V>[] destination, final KdNode<V>[] source,
                                                   final int iStart, final int jStart, final int kStart,
                                                   final int kEnd, final int p) {
 
@@ -178,7 +188,7 @@ public class KdTree<VALUE_TYPE> {
          * @param kEnd - the final value of the k-index
          * @param p - the sorting partition (x, y, z, w...)
          */
-        private static void mergeResultsDescending(final KdNode[] destination, final KdNode[] source,
+        private static <V> void mergeResultsDescending(final KdNode<V>[] destination, final KdNode<V>[] source,
                                                    final int iStart, final int jStart, final int kStart,
                                                    final int kEnd, final int p) {
 
@@ -190,7 +200,7 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code mergeResultsAscendingWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#mergeResultsAscending mergeResultsAscending} method.
          * </p>
          *
@@ -202,13 +212,13 @@ public class KdTree<VALUE_TYPE> {
          * @param kEnd - the final value of the k-index
          * @param p - the sorting partition (x, y, z, w...)
          */
-        private static Callable<Void> mergeResultsAscendingWithThread(final KdNode[] destination, final KdNode[] source,
+        private static <V> RecursiveTask<Void> mergeResultsAscendingWithThread(final KdNode<V>[] destination, final KdNode<V>[] source,
                                                                       final int iStart, final int jStart, final int kStart,
                                                                       final int kEnd, final int p) {
 
-            return new Callable<Void>() {
+            return new RecursiveTask<Void>() {
                 @Override
-                public Void call() {
+                protected Void compute() {
                     mergeResultsAscending(destination, source, iStart, jStart, kStart, kEnd, p);
                     return null;
                 }
@@ -218,7 +228,7 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code mergeResultsDescendingWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#mergeResultsDescending mergeResultsDescending} method.
          * </p>
          *
@@ -230,13 +240,13 @@ public class KdTree<VALUE_TYPE> {
          * @param kEnd - the final value of the k-index
          * @param p - the sorting partition (x, y, z, w...)
          */
-        private static Callable<Void> mergeResultsDescendingWithThread(final KdNode[] destination, final KdNode[] source,
+        private static <V> RecursiveTask<Void> mergeResultsDescendingWithThread(final KdNode<V>[] destination, final KdNode<V>[] source,
                                                                        final int iStart, final int jStart, final int kStart,
                                                                        final int kEnd, final int p) {
 
-            return new Callable<Void>() {
+            return new RecursiveTask<Void>() {
                 @Override
-                public Void call() {
+                protected Void compute() {
                     mergeResultsDescending(destination, source, iStart, jStart, kStart, kEnd, p);
                     return null;
                 }
@@ -292,12 +302,12 @@ public class KdTree<VALUE_TYPE> {
          * @param high - the high index of the region of the reference array
          * @param p - the sorting partition (x, y, z, w...)
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param depth - the depth of subdivision
          */
-        private static void mergeSortReferenceAscending(final KdNode[] reference, final KdNode[] temporary,
+        private static <V> void mergeSortReferenceAscending(final KdNode<V>[] reference, final KdNode<V>[] temporary,
                                                         final int low, final int high,
-                                                        final int p, final ExecutorService executor,
+                                                        final int p, final ForkJoinPool executor,
                                                         final int maximumSubmitDepth, int depth) {
 
             if (high - low > INSERTION_SORT_CUTOFF) {
@@ -330,7 +340,7 @@ public class KdTree<VALUE_TYPE> {
 
                     // Yes, a child thread is available, so recursively subdivide the lower half of the reference
                     // array with a child thread and return the result in the temporary array in ascending order.
-                    final Future<Void> sortFuture =
+                    final ForkJoinTask<Void> sortFuture =
                             executor.submit( mergeSortTemporaryAscendingWithThread(reference, temporary,
                                     low, mid, p, executor, maximumSubmitDepth, depth + 1) );
 
@@ -347,7 +357,7 @@ public class KdTree<VALUE_TYPE> {
 
                     // Compare the results in the temporary array in ascending order with a child thread
                     // and merge them into the lower half of the reference array in ascending order.
-                    final Future<Void> mergeFuture =
+                    final ForkJoinTask<Void> mergeFuture =
                             executor.submit( mergeResultsAscendingWithThread(reference, temporary, low, high, low, mid, p) );
 
                     // And simultaneously compare the results in the temporary array in descending order with the
@@ -370,7 +380,7 @@ public class KdTree<VALUE_TYPE> {
                 // Here is Jon Benley's implementation of insertion sort from "Programming Pearls", pp. 115-116,
                 // Addison-Wesley, 1999, that sorts in ascending order and leaves the result in the reference array.
                 for (int i = low + 1; i <= high; i++) {
-                    KdNode tmp = reference[i];
+                    KdNode<V> tmp = reference[i];
                     int j;
                     for (j = i; j > low && superKeyCompare(reference[j-1].tuple, tmp.tuple, p) > 0; j--) {
                         reference[j] = reference[j-1];
@@ -393,12 +403,12 @@ public class KdTree<VALUE_TYPE> {
          * @param high - the high index of the region of the reference array
          * @param p - the sorting partition (x, y, z, w...)
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param depth - the depth of subdivision
          */
-        private static void mergeSortReferenceDescending(final KdNode[] reference, final KdNode[] temporary,
+        private static <V> void mergeSortReferenceDescending(final KdNode<V>[] reference, final KdNode<V>[] temporary,
                                                          final int low, final int high,
-                                                         final int p, final ExecutorService executor,
+                                                         final int p, final ForkJoinPool executor,
                                                          final int maximumSubmitDepth, int depth) {
 
             if (high - low > INSERTION_SORT_CUTOFF) {
@@ -431,7 +441,7 @@ public class KdTree<VALUE_TYPE> {
 
                     // Yes, a child thread is available, so recursively subdivide the lower half of the reference
                     // array with a child thread and return the result in the temporary array in descending order.
-                    final Future<Void> sortFuture =
+                    final ForkJoinTask<Void> sortFuture =
                             executor.submit( mergeSortTemporaryDescendingWithThread(reference, temporary,
                                     low, mid, p, executor, maximumSubmitDepth, depth + 1) );
 
@@ -448,7 +458,7 @@ public class KdTree<VALUE_TYPE> {
 
                     // Compare the results in the temporary array in ascending order with a child thread
                     // and merge them into the lower half of the reference array in descending order.
-                    final Future<Void> mergeFuture =
+                    final ForkJoinTask<Void> mergeFuture =
                             executor.submit( mergeResultsDescendingWithThread(reference, temporary, low, high, low, mid, p) );
 
                     // And simultaneously compare the results in the temporary array in descending order with the
@@ -471,7 +481,7 @@ public class KdTree<VALUE_TYPE> {
                 // Here is Jon Benley's implementation of insertion sort from "Programming Pearls", pp. 115-116,
                 // Addison-Wesley, 1999, that sorts in descending order and leaves the result in the reference array.
                 for (int i = low + 1; i <= high; i++) {
-                    KdNode tmp = reference[i];
+                    KdNode<V> tmp = reference[i];
                     int j;
                     for (j = i; j > low && superKeyCompare(reference[j-1].tuple, tmp.tuple, p) < 0; j--) {
                         reference[j] = reference[j-1];
@@ -494,12 +504,12 @@ public class KdTree<VALUE_TYPE> {
          * @param high - the high index of the region of the reference array
          * @param p - the sorting partition (x, y, z, w...)
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param depth - the depth of subdivision
          */
-        private static void mergeSortTemporaryAscending(final KdNode[] reference, final KdNode[] temporary,
+        private static <V> void mergeSortTemporaryAscending(final KdNode<V>[] reference, final KdNode<V>[] temporary,
                                                         final int low, final int high,
-                                                        final int p, final ExecutorService executor,
+                                                        final int p, final ForkJoinPool executor,
                                                         final int maximumSubmitDepth, int depth) {
 
             if (high - low > INSERTION_SORT_CUTOFF) {
@@ -533,7 +543,7 @@ public class KdTree<VALUE_TYPE> {
 
                     // Yes, a child thread is available, so recursively subdivide the lower half of the reference
                     // array with a child thread and return the result in the reference array in ascending order.
-                    final Future<Void> sortFuture =
+                    final ForkJoinTask<Void> sortFuture =
                             executor.submit( mergeSortReferenceAscendingWithThread(reference, temporary,
                                     low, mid, p, executor, maximumSubmitDepth, depth + 1) );
 
@@ -550,7 +560,7 @@ public class KdTree<VALUE_TYPE> {
 
                     // Compare the results in the reference array in ascending order with a child thread
                     // and merge them into the lower half of the temporary array in ascending order.
-                    final Future<Void> mergeFuture =
+                    final ForkJoinTask<Void> mergeFuture =
                             executor.submit( mergeResultsAscendingWithThread(temporary, reference, low, high, low, mid, p) );
 
                     // And simultaneously compare the results in the reference array in descending order with the
@@ -599,12 +609,12 @@ public class KdTree<VALUE_TYPE> {
          * @param high - the high index of the region of the reference array
          * @param p - the sorting partition (x, y, z, w...)
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param depth - the depth of subdivision
          */
-        private static void mergeSortTemporaryDescending(final KdNode[] reference, final KdNode[] temporary,
+        private static <V> void mergeSortTemporaryDescending(final KdNode<V>[] reference, final KdNode<V>[] temporary,
                                                          final int low, final int high,
-                                                         final int p, final ExecutorService executor,
+                                                         final int p, final ForkJoinPool executor,
                                                          final int maximumSubmitDepth, int depth) {
 
             if (high - low > INSERTION_SORT_CUTOFF) {
@@ -638,7 +648,7 @@ public class KdTree<VALUE_TYPE> {
 
                     // Yes, a child thread is available, so recursively subdivide the lower half of the reference
                     // array with a child thread and return the result in the reference array in descending order.
-                    final Future<Void> sortFuture =
+                    final ForkJoinTask<Void> sortFuture =
                             executor.submit( mergeSortReferenceDescendingWithThread(reference, temporary,
                                     low, mid, p, executor, maximumSubmitDepth, depth + 1) );
 
@@ -655,7 +665,7 @@ public class KdTree<VALUE_TYPE> {
 
                     // Compare the results in the reference array in ascending order with a child thread
                     // and merge them into the lower half of the temporary array in descending order.
-                    final Future<Void> mergeFuture =
+                    final ForkJoinTask<Void> mergeFuture =
                             executor.submit( mergeResultsDescendingWithThread(temporary, reference, low, high, low, mid, p) );
 
                     // And simultaneously compare the results in the reference array in descending order with the
@@ -694,7 +704,7 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code mergeSortReferenceAscendingWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#mergeSortReferenceAscending mergeSortReferenceAscending} method.
          * </p>
          *
@@ -705,17 +715,17 @@ public class KdTree<VALUE_TYPE> {
          * @param high - the high index of the region of the reference array
          * @param p - the sorting partition (x, y, z, w...)
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param depth - the depth of subdivision
          */
-        private static Callable<Void> mergeSortReferenceAscendingWithThread(final KdNode[] reference, final KdNode[] temporary,
+        private static <V> RecursiveTask<Void> mergeSortReferenceAscendingWithThread(final KdNode<V>[] reference, final KdNode<V>[] temporary,
                                                                             final int low, final int high, final int p,
-                                                                            final ExecutorService executor,
+                                                                            final ForkJoinPool executor,
                                                                             final int maximumSubmitDepth, final int depth) {
 
-            return new Callable<Void>() {
+            return new RecursiveTask<Void>() {
                 @Override
-                public Void call() {
+                protected Void compute() {
                     mergeSortReferenceAscending(reference, temporary, low, high, p, executor, maximumSubmitDepth, depth);
                     return null;
                 }
@@ -725,7 +735,7 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code mergeSortReferenceDescendingWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#mergeSortReferenceDescending mergeSortReferenceDescending} method.
          * </p>
          *
@@ -736,17 +746,17 @@ public class KdTree<VALUE_TYPE> {
          * @param high - the high index of the region of the reference array
          * @param p - the sorting partition (x, y, z, w...)
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param depth - the depth of subdivision
          */
-        private static Callable<Void> mergeSortReferenceDescendingWithThread(final KdNode[] reference, final KdNode[] temporary,
+        private static <V> RecursiveTask<Void> mergeSortReferenceDescendingWithThread(final KdNode<V>[] reference, final KdNode<V>[] temporary,
                                                                              final int low, final int high, final int p,
-                                                                             final ExecutorService executor,
+                                                                             final ForkJoinPool executor,
                                                                              final int maximumSubmitDepth, final int depth) {
 
-            return new Callable<Void>() {
+            return new RecursiveTask<Void>() {
                 @Override
-                public Void call() {
+                protected Void compute() {
                     mergeSortReferenceDescending(reference, temporary, low, high, p, executor, maximumSubmitDepth, depth);
                     return null;
                 }
@@ -756,7 +766,7 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code mergeSortTemporaryAscendingWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#mergeSortTemporaryAscending mergeSortTemporaryAscending} method.
          * </p>
          *
@@ -767,17 +777,17 @@ public class KdTree<VALUE_TYPE> {
          * @param high - the high index of the region of the reference array
          * @param p - the sorting partition (x, y, z, w...)
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param depth - the depth of subdivision
          */
-        private static Callable<Void> mergeSortTemporaryAscendingWithThread(final KdNode[] reference, final KdNode[] temporary,
+        private static <V> RecursiveTask<Void> mergeSortTemporaryAscendingWithThread(final KdNode<V>[] reference, final KdNode<V>[] temporary,
                                                                             final int low, final int high, final int p,
-                                                                            final ExecutorService executor,
+                                                                            final ForkJoinPool executor,
                                                                             final int maximumSubmitDepth, final int depth) {
 
-            return new Callable<Void>() {
+            return new RecursiveTask<Void>() {
                 @Override
-                public Void call() {
+                protected Void compute() {
                     mergeSortTemporaryAscending(reference, temporary, low, high, p, executor, maximumSubmitDepth, depth);
                     return null;
                 }
@@ -787,7 +797,7 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code mergeSortTemporaryDescendingWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#mergeSortTemporaryDescending mergeSortTemporaryDescending} method.
          * </p>
          *
@@ -798,17 +808,17 @@ public class KdTree<VALUE_TYPE> {
          * @param high - the high index of the region of the reference
          * @param p - the sorting partition (x, y, z, w...)
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param depth - the depth of subdivision
          */
-        private static Callable<Void> mergeSortTemporaryDescendingWithThread(final KdNode[] reference, final KdNode[] temporary,
+        private static <V> RecursiveTask<Void> mergeSortTemporaryDescendingWithThread(final KdNode<V>[] reference, final KdNode<V>[] temporary,
                                                                              final int low, final int high, final int p,
-                                                                             final ExecutorService executor,
+                                                                             final ForkJoinPool executor,
                                                                              final int maximumSubmitDepth, final int depth) {
 
-            return new Callable<Void>() {
+            return new RecursiveTask<Void>() {
                 @Override
-                public Void call() {
+                protected Void compute() {
                     mergeSortTemporaryDescending(reference, temporary, low, high, p, executor, maximumSubmitDepth, depth);
                     return null;
                 }
@@ -826,7 +836,7 @@ public class KdTree<VALUE_TYPE> {
          * @param p - the index of the most significant coordinate in the super key
          * @return the address of the last element of the references array following duplicate removal
          */
-        private static int removeDuplicates(final KdNode[] reference, final int p) {
+        private static <V> int removeDuplicates(final KdNode<V>[] reference, final int p) {
             int end = 0;
             for (int i = 1; i < reference.length; i++) {
                 long compare = superKeyCompare(reference[i].tuple, reference[i-1].tuple, p);
@@ -859,17 +869,17 @@ public class KdTree<VALUE_TYPE> {
          * @param permutation - an array that indicates permutation of the reference arrays
          * @param start - the first element of the reference array
          * @param end - the last element of the reference array
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @param depth - the depth in the k-d tree
          * @returns the root of the k-d tree
          */
-        private static KdNode buildKdTree(final KdNode[][] references, final KdNode[] temporary,
+        private static <V> KdNode<V> buildKdTree(final KdNode<V>[][] references, final KdNode<V>[] temporary,
                                           final int[] permutation, final int start, final int end,
-                                          final ExecutorService executor, final int maximumSubmitDepth,
+                                          final ForkJoinPool executor, final int maximumSubmitDepth,
                                           final int depth) {
 
-            final KdNode node;
+            final KdNode<V> node;
 
             // The partition cycles as x, y, z, etc.
             final int p = permutation[depth];
@@ -932,7 +942,7 @@ public class KdTree<VALUE_TYPE> {
 
                         // Yes, a child thread is available, so partition the lower half
                         // of the reference array with a child thread.
-                        final Future<Void> future =
+                        final ForkJoinTask<Void> future =
                                 executor.submit( scanAndPartitionLowerWithThread(references, node, p, i,
                                         start, median) );
                         // And simultaneously partition the upper half of the reference
@@ -978,7 +988,7 @@ public class KdTree<VALUE_TYPE> {
                 } else {
 
                     // Yes, a child thread is available, so recursively build the < branch with a child thread.
-                    final Future<KdNode> future =
+                    final ForkJoinTask<KdNode<V>> future =
                             executor.submit( buildKdTreeWithThread(references, temporary, permutation,
                                     start, median - 1, executor, maximumSubmitDepth,
                                     depth + 1) );
@@ -1011,7 +1021,7 @@ public class KdTree<VALUE_TYPE> {
 
         /**
          * <p>
-         * Return a {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * Return a {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#buildKdTree buildKdTree} method.
          * </p>
          *
@@ -1020,19 +1030,19 @@ public class KdTree<VALUE_TYPE> {
          * @param permutation - an array that indicates permutation of the reference arrays
          * @param start - the first element of the reference array
          * @param end - the last element of the reference array
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @param depth - the depth in the k-d tree
          * @return a {@link KdNode}
          */
-        private static Callable<KdNode> buildKdTreeWithThread(final KdNode[][] references, final KdNode[] temporary,
+        private static <V> RecursiveTask<KdNode<V>> buildKdTreeWithThread(final KdNode<V>[][] references, final KdNode<V>[] temporary,
                                                               final int[] permutation, final int start, final int end,
-                                                              final ExecutorService executor,
+                                                              final ForkJoinPool executor,
                                                               final int maximumSubmitDepth, final int depth) {
 
-            return new Callable<KdNode>() {
+            return new RecursiveTask<KdNode<V>>() {
                 @Override
-                public KdNode call() {
+                protected KdNode<V> compute() {
                     return buildKdTree(references, temporary, permutation,
                             start, end, executor, maximumSubmitDepth, depth);
                 }
@@ -1051,10 +1061,10 @@ public class KdTree<VALUE_TYPE> {
          * @param median - the median element of the reference array
          * @param p  - the partition that cycles as x, y, z, etc.
          */
-        private static void scanAndPartitionLower(final KdNode references[][], final KdNode node, final int p,
+        private static <V> void scanAndPartitionLower(final KdNode<V> references[][], final KdNode<V> node, final int p,
                                                   final int i, final int start, final int median) {
-            KdNode src[] = references[i];
-            KdNode dst[] = references[i - 1];
+            KdNode<V> src[] = references[i];
+            KdNode<V> dst[] = references[i - 1];
             for (int lower = start - 1, upper = median, j = start; j <= median; ++j) {
                 final long compare = superKeyCompare(src[j].tuple, node.tuple, p);
                 if (compare < 0) {
@@ -1067,7 +1077,7 @@ public class KdTree<VALUE_TYPE> {
 
         /**
          * <p>
-         * Return a {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * Return a {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#buildKdTree scanAndPartitionLower} method.
          * </p>
          *
@@ -1078,13 +1088,13 @@ public class KdTree<VALUE_TYPE> {
          * @param median - the median element of the reference array
          * @param p  - the partition that cycles as x, y, z, etc.
          */
-        private static Callable<Void> scanAndPartitionLowerWithThread(final KdNode references[][],
-                                                                      final KdNode node,
+        private static <V> RecursiveTask<Void> scanAndPartitionLowerWithThread(final KdNode<V> references[][],
+                                                                      final KdNode<V> node,
                                                                       final int p, final int i,
                                                                       final int start, final int median) {
-            return new Callable<Void>() {
+            return new RecursiveTask<Void>() {
                 @Override
-                public Void call() {
+                protected Void compute() {
                     scanAndPartitionLower(references, node, p, i, start, median);
                     return null;
                 }
@@ -1103,10 +1113,10 @@ public class KdTree<VALUE_TYPE> {
          * @param end - the last element of the reference array
          * @param p  - the partition that cycles as x, y, z, etc.
          */
-        private static void scanAndPartitionUpper(final KdNode references[][], final KdNode node, final int p,
+        private static <V> void scanAndPartitionUpper(final KdNode<V> references[][], final KdNode<V> node, final int p,
                                                   final int i, final int median, final int end) {
-            KdNode src[] = references[i];
-            KdNode dst[] = references[i - 1];
+            KdNode<V> src[] = references[i];
+            KdNode<V> dst[] = references[i - 1];
             for (int lower = median, upper = end + 1, k = end; k > median; --k) {
                 final long compare = superKeyCompare(src[k].tuple, node.tuple, p);
                 if (compare < 0) {
@@ -1124,12 +1134,12 @@ public class KdTree<VALUE_TYPE> {
          * </p>
          *
          * @param permutation - an array that indicates permutation of the reference arrays
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @param depth - the depth in the k-d tree
          * @return the number of nodes in the k-d tree
          */
-        private int verifyKdTree(final int[] permutation, final ExecutorService executor,
+        private int verifyKdTree(final int[] permutation, final ForkJoinPool executor,
                                  final int maximumSubmitDepth, final int depth) {
 
             if (tuple == null) {
@@ -1177,7 +1187,7 @@ public class KdTree<VALUE_TYPE> {
             } else {
 
                 // Yes, so launch a child thread to search the < branch.
-                Future<Integer> future = null;
+                ForkJoinTask<Integer> future = null;
                 if (ltChild != null) {
                     future = executor.submit( ltChild.verifyKdTreeWithThread(permutation, executor,
                             maximumSubmitDepth, depth + 1) );
@@ -1204,22 +1214,22 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code verifyKdTreeWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#verifyKdTree verifyKdTree} method.
          * </p>
          *
          * @param permutation - an array that indicates permutation of the reference arrays
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @param depth - the depth in the k-d tree
          * @return the number of nodes in the k-d tree
          */
-        private Callable<Integer> verifyKdTreeWithThread(final int[] permutation, final ExecutorService executor,
+        private RecursiveTask<Integer> verifyKdTreeWithThread(final int[] permutation, final ForkJoinPool executor,
                                                          final int maximumSubmitDepth, final int depth) {
 
-            return new Callable<Integer>() {
+            return new RecursiveTask<Integer>() {
                 @Override
-                public Integer call() {
+                protected Integer compute() {
                     return verifyKdTree(permutation, executor, maximumSubmitDepth, depth);
                 }
             };
@@ -1248,25 +1258,25 @@ public class KdTree<VALUE_TYPE> {
          *
          * @param coordinates - a KdNode[]
          * @param permutation - an array that indicates permutation of the reference arrays
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @returns the root of the k-d tree
          */
-        public static KdNode createKdTree(KdNode[] coordinates, final int numPoints, final int[] permutation,
-                                          final ExecutorService executor, final int maximumSubmitDepth) {
+        public static <V> KdNode<V> createKdTree(KdNode<V>[] coordinates, final int numPoints, final int[] permutation,
+                                          final ForkJoinPool executor, final int maximumSubmitDepth) {
 
             // Declare all reference arrays and initialize one of them. The number of dimensions
             // may be obtained from either coordinates[0].length or references.length.  The number
             // of points may be obtained from either coordinates.length or references[0].length.
             long initTime;
             if (KdTree.printstats) initTime = System.currentTimeMillis();
-            final KdNode[][] references = new KdNode[coordinates[0].tuple.length][numPoints];
+            final KdNode<V>[][] references = new KdNode[coordinates[0].tuple.length][numPoints];
             initializeReference(coordinates, references[0]);
             if (KdTree.printstats) initTime = System.currentTimeMillis() - initTime;
 
             // Sort one of the reference arrays using the first dimension (0) as the most significant
             // key of the super key.
-            final KdNode[] temporary = new KdNode[numPoints];
+            final KdNode<V>[] temporary = new KdNode[numPoints];
             final int key = 0;
             long sortTime;
             if (KdTree.printstats) sortTime = System.currentTimeMillis();
@@ -1282,7 +1292,7 @@ public class KdTree<VALUE_TYPE> {
             if (KdTree.printstats) removeTime = System.currentTimeMillis() - removeTime;
 
             // Copy the de-duplicated reference array to the other reference arrays.
-            final List<Future<Void>> initializeFutures = new ArrayList<Future<Void>>();
+            final List<ForkJoinTask<Void>> initializeFutures = new ArrayList<ForkJoinTask<Void>>();
             long initTime2;
             if (KdTree.printstats) initTime2 = System.currentTimeMillis();
             for (int i = 1; i < references.length; i++) {
@@ -1290,12 +1300,12 @@ public class KdTree<VALUE_TYPE> {
                 if (executor == null) {
                     initializeReference(references[0], references[i]);
                 } else {
-                    Future<Void> future =
+                    ForkJoinTask<Void> future =
                             executor.submit( initializeReferenceWithThread(references[0], references[i]) );
                     initializeFutures.add(future);
                 }
             }
-            for (Future<Void> future : initializeFutures) {
+            for (ForkJoinTask<Void> future : initializeFutures) {
                 try {
                     future.get();
                 } catch (Exception e) {
@@ -1323,7 +1333,7 @@ public class KdTree<VALUE_TYPE> {
             // Build the k-d tree via heirarchical multi-threading if possible.
             long kdTime;
             if (KdTree.printstats) kdTime = System.currentTimeMillis();
-            final KdNode root = buildKdTree(references, temporary, permutation, 0,
+            final KdNode<V> root = buildKdTree(references, temporary, permutation, 0,
                     end, executor, maximumSubmitDepth, 0);
             if (KdTree.printstats) kdTime = System.currentTimeMillis() - kdTime;
 
@@ -1359,14 +1369,14 @@ public class KdTree<VALUE_TYPE> {
          * @param query - the query point
          * @param cut - the cutoff distance
          * @param permutation - an array that indicates permutation of the reference arrays
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @param depth - the depth in the k-d tree
          * @return a {@link java.util.List List}{@code <}{@link KdNode}{@code >}
          * that contains the k-d nodes that lie within the cutoff distance of the query node
          */
-        private List<KdNode> searchKdTree(final long[] query, final long cut, final int[] permutation,
-                                          final ExecutorService executor, final int maximumSubmitDepth,
+        private List<KdNode<VALUE_TYPE>> searchKdTree(final long[] query, final long cut, final int[] permutation,
+                                          final ForkJoinPool executor, final int maximumSubmitDepth,
                                           final int depth) {
 
             // Look up the partition.
@@ -1374,7 +1384,7 @@ public class KdTree<VALUE_TYPE> {
 
             // If the distance from the query node to the k-d node is within the cutoff distance
             // in all k dimensions, add the k-d node to a list.
-            final List<KdNode> result = new ArrayList<KdNode>();
+            final List<KdNode<VALUE_TYPE>> result = new ArrayList<KdNode<VALUE_TYPE>>();
             boolean inside = true;
             for (int i = 0; i < tuple.length; i++) {
                 if (Math.abs(query[i] - tuple[i]) > cut) {
@@ -1392,7 +1402,7 @@ public class KdTree<VALUE_TYPE> {
             // must be searched when the cutoff distance equals the partition coordinate because the super
             // key may assign a point to either branch of the tree if the sorting or partition coordinate,
             // which forms the most significant portion of the super key, shows equality.
-            Future<List<KdNode>> future = null;
+            ForkJoinTask<List<KdNode<VALUE_TYPE>>> future = null;
             if (ltChild != null) {
                 if (query[p] - tuple[p] <= cut) {
 
@@ -1436,26 +1446,26 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code searchKdTreeWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#searchKdTree searchKdTree} method.
          * </p>
          *
          * @param query - the query point
          * @param cut - the cutoff distance
          * @param permutation - an array that indicates permutation of the reference arrays
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @param depth - the depth in the k-d tree
          * @return a {@link java.util.List List}{@code <}{@link KdNode}{@code >}
          * that contains the k-d nodes that lie within the cutoff distance of the query node
          */
-        private Callable<List<KdNode>> searchKdTreeWithThread(final long[] query, final long cut, final int[] permutation,
-                                                              final ExecutorService executor, final int maximumSubmitDepth,
+        private RecursiveTask<List<KdNode<VALUE_TYPE>>> searchKdTreeWithThread(final long[] query, final long cut, final int[] permutation,
+                                                              final ForkJoinPool executor, final int maximumSubmitDepth,
                                                               final int depth) {
 
-            return new Callable<List<KdNode>>() {
+            return new RecursiveTask<List<KdNode<VALUE_TYPE>>>() {
                 @Override
-                public List<KdNode> call() {
+                protected List<KdNode<VALUE_TYPE>> compute() {
                     return searchKdTree(query, cut, permutation, executor, maximumSubmitDepth, depth);
                 }
             };
@@ -1477,13 +1487,13 @@ public class KdTree<VALUE_TYPE> {
          * @param queryPlus - Array containing the lager search bound for each dimension
          * @param queryMinus - Array containing the smaller search bound for each dimension
          * @param permutation - an array that indicates permutation of the reference arrays
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @param depth - the depth in the k-d tree
          * @return void
          */
         void searchKdTree(final ArrayList<KdNode<VALUE_TYPE>> result, final long[] queryPlus, final long[] queryMinus,
-                          final int[] permutation, final ExecutorService executor,
+                          final int[] permutation, final ForkJoinPool executor,
                           final int maximumSubmitDepth, final int depth) {
 
             // Look up the partition.
@@ -1542,7 +1552,7 @@ public class KdTree<VALUE_TYPE> {
                     return;
                 case 3: // go down both branches
                     // get a future and another list ready in case a child thread is spawned
-                    Future<List<VALUE_TYPE>> future = null;
+                    ForkJoinTask<Object> future = null;
                     ArrayList<KdNode<VALUE_TYPE>> threadResult = null;
                     // check to see if there is a thread available and descend the less than branch with that thread.
                     if (maximumSubmitDepth > -1 && depth <= maximumSubmitDepth) {
@@ -1573,7 +1583,7 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code searchKdTreeWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#searchKdTree searchKdTree} method.
          * </p>
          *
@@ -1581,24 +1591,70 @@ public class KdTree<VALUE_TYPE> {
          * @param queryPlus - Array containing the lager search bound for each dimension
          * @param queryMinus - Array containing the smaller search bound for each dimension
          * @param permutation - an array that indicates permutation of the reference arrays
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @param depth - the depth in the k-d tree
-         * @return a {@link java.util.List List}{@code <}{@link KdNode}{@code >}
-         * that contains the k-d nodes that lie within the cutoff distance of the query node
+         * @return a {@link java.util.concurrent.RecursiveTask RecursiveTask} that adds the k-d nodes it finds to
+         * result and returns null
          */
-        private Callable searchKdTreeWithThread(final ArrayList<KdNode<VALUE_TYPE>> result, final long[] queryPlus, final long[] queryMinus, final int[] permutation,
-                                                final ExecutorService executor, final int maximumSubmitDepth,
+        private RecursiveTask<Object> searchKdTreeWithThread(final ArrayList<KdNode<VALUE_TYPE>> result, final long[] queryPlus, final long[] queryMinus, final int[] permutation,
+                                                final ForkJoinPool executor, final int maximumSubmitDepth,
                                                 final int depth) {
-            return new Callable() {
+            return new RecursiveTask<Object>() {
                 @Override
-                public Object call() {
+                protected Object compute() {
                     searchKdTree(result, queryPlus, queryMinus, permutation, executor, maximumSubmitDepth, depth);
                     return null;
                 }
             };
         }
 
+        /**
+         * <p>
+         * The {@code visitKdTree} method searches the k-d tree with the same pruning as
+         * {@link KdNode#searchKdTree searchKdTree} but hands each tuple and value found to a
+         * {@link KdTree.Visitor Visitor} instead of adding the node to a list.  It runs on the calling thread
+         * so that nothing is allocated per search.
+         * </p>
+         *
+         * @param visitor - receives each tuple and value that lie within the hypercube
+         * @param queryPlus - Array containing the lager search bound for each dimension
+         * @param queryMinus - Array containing the smaller search bound for each dimension
+         * @param permutation - an array that indicates permutation of the reference arrays
+         * @param depth - the depth in the k-d tree
+         * @return void
+         */
+        void visitKdTree(final Visitor<VALUE_TYPE> visitor, final long[] queryPlus, final long[] queryMinus,
+                         final int[] permutation, final int depth) {
+
+            // Look up the partition.
+            final int p = permutation[depth];
+
+            // Visit the values of this node if the query hypercube holds its tuple.
+            if (value != null && queryMinus[p] <= tuple[p] && queryPlus[p] >= tuple[p]) {
+                boolean inside = true;
+                for (int i = 0; i < tuple.length; i++) {
+                    if ((queryPlus[i]  <= tuple[i]) ||
+                            (queryMinus[i] > tuple[i]) ) {
+                        inside = false;
+                        break;
+                    }
+                }
+                if (inside) {
+                    for (int i = 0; i < value.size(); i++) {
+                        visitor.visit(tuple, value.get(i));
+                    }
+                }
+            }
+            // Search the < branch, then the > branch, as searchKdTree does when it has no thread.
+            if (ltChild != null && queryMinus[p] <= tuple[p]) {
+                ltChild.visitKdTree(visitor, queryPlus, queryMinus, permutation, depth + 1);
+            }
+            if (gtChild != null && queryPlus[p] >= tuple[p]) {
+                gtChild.visitKdTree(visitor, queryPlus, queryMinus, permutation, depth + 1);
+            }
+        }
+
         /**
          * <p>
          * The {@code searchKdTree} method searches the k-d tree and finds the KdNodes
@@ -1610,7 +1666,7 @@ public class KdTree<VALUE_TYPE> {
          * @param queryPlus - Array containing the lager search bound for each dimension
          * @param queryMinus - Array containing the smaller search bound for each dimension
          * @param permutation - an array that indicates permutation of the reference arrays
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @param depth - the depth in the k-d tree
          * @return a code that indicates something about the search below.
@@ -1619,7 +1675,7 @@ public class KdTree<VALUE_TYPE> {
          *          -1 - something found and removed the node below is dead so can be pruned.
          */
         private int searchAndRemoveKdTree(final List<VALUE_TYPE> result, final long[] queryPlus, final long[] queryMinus, final int[] permutation,
-                                          final ExecutorService executor, final int maximumSubmitDepth,
+                                          final ForkJoinPool executor, final int maximumSubmitDepth,
                                           final int depth) {
 
             // Look up the partition.
@@ -1659,7 +1715,7 @@ public class KdTree<VALUE_TYPE> {
             // key may assign a point to either branch of the tree
             // if the sorting or partition coordinate,
             // which forms the most significant portion of the super key, shows equality.
-            Future<Integer> future = null;
+            ForkJoinTask<Integer> future = null;
             if (ltChild != null) {
                 if (queryMinus[p] <= tuple[p]) {
 
@@ -1727,7 +1783,7 @@ public class KdTree<VALUE_TYPE> {
         /**
          * <p>
          * The {@code searchKdTreeWithThread} method returns a
-         * {@link java.util.concurrent.Callable Callable} whose call() method executes the
+         * {@link java.util.concurrent.RecursiveTask RecursiveTask} whose compute() method executes the
          * {@link KdNode#searchKdTree searchKdTree} method.
          * </p>
          *
@@ -1736,7 +1792,7 @@ public class KdTree<VALUE_TYPE> {
          * @param queryPlus - Array containing the lager search bound for each dimension
          * @param queryMinus - Array containing the smaller search bound for each dimension
          * @param permutation - an array that indicates permutation of the reference arrays
-         * @param executor - a {@link java.util.concurrent.ExecutorService ExecutorService}
+         * @param executor - a {@link java.util.concurrent.ForkJoinPool ForkJoinPool}
          * @param maximumSubmitDepth - the maximum tree depth at which a thread may be launched
          * @param depth - the depth in the k-d tree
          * @return a code that indicates somthing about the search below.
@@ -1744,14 +1800,14 @@ public class KdTree<VALUE_TYPE> {
          *           1 - somthing found and removed but the node returned from is still needed
          *          -1 - sonthing found and removed the node below is dead so can be pruned.
          */
-        private Callable<Integer>
+        private RecursiveTask<Integer>
         searchAndRemoveKdTreeWithThread(final List<VALUE_TYPE> result, final long[] queryPlus, final long[] queryMinus,
-                                        final int[] permutation, final ExecutorService executor,
+                                        final int[] permutation, final ForkJoinPool executor,
                                         final int maximumSubmitDepth, final int depth) {
 
-            return new Callable<Integer>() {
+            return new RecursiveTask<Integer>() {
                 @Override
-                public Integer call() {
+                protected Integer compute() {
                     return searchAndRemoveKdTree(result, queryPlus, queryMinus, permutation,
                             executor, maximumSubmitDepth, depth);
                 }
@@ -1770,7 +1826,7 @@ public class KdTree<VALUE_TYPE> {
          * @param permutation - an array that indicates permutation of the reference arrays
          * @param depth - the depth in the k-d tree
          */
-        private void nearestNeighbor(final NearestNeighborHeap nnHeap, final int[] permutation, int depth) {
+        private void nearestNeighbor(final NearestNeighborHeap<VALUE_TYPE> nnHeap, final int[] permutation, int depth) {
 
             final int p = permutation[depth];
 
@@ -1906,18 +1962,18 @@ public class KdTree<VALUE_TYPE> {
             }
             System.out.print(")");
         }
-    } // Class KdNode
+    } // Class KdNode<VALUE_TYPE>
 
     /**
      * <p>
      * The HeapPair Class holds return values from the NearestNeighborHeap.removeTop method.
      * </p>
      */
-    static class HeapPair {
+    static class HeapPair<V> {
         private long dist;
-        private KdNode node;
+        private KdNode<V> node;
 
-        private HeapPair(long dist, KdNode node) {
+        private HeapPair(long dist, KdNode<V> node) {
             this.dist = dist;
             this.node = node;
         }
@@ -1943,13 +1999,13 @@ public class KdTree<VALUE_TYPE> {
      * in the heap to which distance comparisons are made.
      * <p>
      */
-    static class NearestNeighborHeap {
+    static class NearestNeighborHeap<V> {
         private long query[]; // point for the which the nearest neighbors will be found
         private int reqDepth; // requested number of nearest neighbors and therefore size of the above arrays
-        private KdNode nodes[];  // set of nodes that are the nearest neighbors
+        private KdNode<V> nodes[];  // set of nodes that are the nearest neighbors
         private long dists[]; // set of distances from the query point to the above nodes
         private int curDepth; // number of nearest nodes/distances on the heap
-        private long curMaxDist; // distance to the last (and farthest) KdNode on the heap
+        private long curMaxDist; // distance to the last (and farthest) KdNode<V> on the heap
         private boolean enable[];  // per component enable for distance calculation
 
         /**
@@ -1998,7 +2054,7 @@ public class KdTree<VALUE_TYPE> {
          */
         private void swap(final int i, final int j) {
             long tempDist = dists[i];
-            KdNode tempNode = nodes[i];
+            KdNode<V> tempNode = nodes[i];
             dists[i] = dists[j];
             nodes[i] = nodes[j];
             dists[j] = tempDist;
@@ -2045,8 +2101,8 @@ public class KdTree<VALUE_TYPE> {
          *
          * @return the distance of the removed top element
          */
-        private HeapPair removeTop() {
-            HeapPair max = new HeapPair(dists[1], nodes[1]);
+        private HeapPair<V> removeTop() {
+            HeapPair<V> max = new HeapPair<V>(dists[1], nodes[1]);
             swap(1, curDepth--);
             nodes[curDepth+1] = null; // permit garbage collection
             fall(1);
@@ -2061,7 +2117,7 @@ public class KdTree<VALUE_TYPE> {
          *
          * @param newNode - KdNode to potentially be added to the heap
          */
-        private void add(final KdNode newNode) {
+        private void add(final KdNode<V> newNode) {
             // if the number of values associated with this node is 0, don't add it to the nn list.
             if (newNode.value.size() == 0) return;
             // find the distance by subtracting the query from the tuple and
@@ -2120,10 +2176,10 @@ public class KdTree<VALUE_TYPE> {
     private int numPointsInTree; // this variable stores the number of points to be mapped
     int numDimensions; // this variable holds the number of dimensions of each point
     private KdNode<VALUE_TYPE>[] kdNodes; // The array of KdNodes
-    KdNode root = null; // the root of the KdTree
+    KdNode<VALUE_TYPE> root = null; // the root of the KdTree
     int[] permutation;
     protected int maximumSubmitDepth;  // number of threads to used in executing
-    protected ExecutorService executor = null;
+    protected ForkJoinPool executor = null;
 
     /**
      * <p>
@@ -2148,7 +2204,7 @@ public class KdTree<VALUE_TYPE> {
      *
      * @param from - kdTree to be copied.
      */
-    public KdTree(KdTree from){
+    public KdTree(KdTree<VALUE_TYPE> from){
         if (from == null || from.root == null) {
             // TODO throw an error
         }
@@ -2162,9 +2218,9 @@ public class KdTree<VALUE_TYPE> {
         root = copyTree(from.root);
     }
 
-    private KdNode copyTree(KdNode copyFromNode){
+    private KdNode<VALUE_TYPE> copyTree(KdNode<VALUE_TYPE> copyFromNode){
         // allocate a new node
-        KdNode copyToNode = new KdNode(copyFromNode.tuple.length);
+        KdNode<VALUE_TYPE> copyToNode = new KdNode<VALUE_TYPE>(copyFromNode.tuple.length);
         // if there is a less than pointer in the copyFrom node, copy the less than branch
         if (copyFromNode.ltChild != null) {
             copyToNode.ltChild = copyTree(copyFromNode.ltChild);
@@ -2205,61 +2261,85 @@ public class KdTree<VALUE_TYPE> {
     public int size() { return numPointsInTree; }
 
 
+    // the pool that the trees share unless they are given one of their own
+    private static ForkJoinPool sharedPool = null;
+
+    /**
+     * <p>
+     * The {@code getSharedPool} method returns the ForkJoinPool that the trees share, with a thread for each
+     * core, and creates it on first use or if it has been shut down.  Its threads are daemon threads that end
+     * when they have been idle for a while, so it need not be shut down.
+     * </p>
+     *
+     * @returns the shared pool
+     */
+    public static synchronized ForkJoinPool getSharedPool() {
+        if (sharedPool == null || sharedPool.isShutdown()) {
+            sharedPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sharedPool;
+    }
+
+    // shutdownSharedPool shuts down the shared pool once the tasks in it finish.  It is made again if needed.
+    public static synchronized void shutdownSharedPool() {
+        if (sharedPool != null) sharedPool.shutdown();
+        sharedPool = null;
+    }
+
+    /**
+     * <p>
+     * The {@code submitDepth} method returns the deepest level of a tree at which work is split off as a
+     * task for a number of threads, or -1 for none.  The levels down to it make at least twice as many tasks
+     * as threads, so that the pool can balance tasks of different sizes.
+     * </p>
+     *
+     * @param numThreads - the number of threads
+     * @returns the maximum submit depth
+     */
+    static int submitDepth(final int numThreads) {
+        return numThreads < 2 ? -1 : 32 - Integer.numberOfLeadingZeros(numThreads - 1);
+    }
+
     /**
      * <p>
      * The {@code setNumThreads} sets the number of threads used to build
-     * and search the KdTree.
+     * and search the KdTree.  They are the threads of the shared pool.
      * </p>
      *
      * @param numThreads - the total number of threads.  0 or negative
      * indicate no multithreading
      */
     public void setNumThreads(int numThreads) {
-        // Calculate the number of child threads to be the number of threads minus 1, then
-        // calculate the maximum tree depth at which to launch a child thread.  Truncate
-        // this depth such that the total number of threads, including the master thread, is
-        // an integer power of 2, hence simplifying the launching of child threads by restricting
-        // them to only the < branch of the tree for some number of levels of the tree.
-        int n = 0;
-        if (numThreads > 0) {
-            while (numThreads > 0) {
-                n++;
-                numThreads >>= 1;
-            }
-            numThreads = 1 << (n - 1);
-        } else {
-            numThreads = 0;
-        }
-
-        final int childThreads = numThreads - 1;
-        maximumSubmitDepth = -1;
-        if (numThreads < 2) {
-            maximumSubmitDepth = -1; // The sentinel value -1 specifies no child threads.
-        } else if (numThreads == 2) {
-            maximumSubmitDepth = 0;
-        } else {
-            maximumSubmitDepth = (int) Math.floor( Math.log( (double) childThreads ) / Math.log(2.) );
-        }
-        if (KdTree.printstats) System.out.println("\nNumber of child threads = " + childThreads + "  maximum submit depth = " + maximumSubmitDepth + "\n");
+        // Calculate the maximum tree depth at which to launch a task; the pool's threads take the tasks as
+        // they come free, so the number of threads need not be a power of 2.
+        maximumSubmitDepth = submitDepth(numThreads);
+        executor = maximumSubmitDepth < 0 ? null : getSharedPool();
+        if (KdTree.printstats) System.out.println("\nNumber of threads = " + numThreads + "  maximum submit depth = " + maximumSubmitDepth + "\n");
+    }
 
-        // Create a fixed thread pool ExecutorService.
-        if (childThreads > 0) {
-            try {
-                executor = Executors.newFixedThreadPool(childThreads);
-            } catch (IllegalArgumentException e) {
-                throw new IllegalArgumentException("executor exception " + e.getMessage());
-            }
-        }
+    /**
+     * <p>
+     * The {@code setPool} method has the KdTree build and search with the threads of a pool that the caller
+     * owns, and shuts down, instead of the shared pool.
+     * </p>
+     *
+     * @param pool - the pool, or null for no multithreading
+     */
+    public void setPool(final ForkJoinPool pool) {
+        maximumSubmitDepth = pool == null ? -1 : submitDepth(pool.getParallelism());
+        executor = maximumSubmitDepth < 0 ? null : pool;
     }
 
     /**
      * <p>
-     * The {@code shutdown} Shuts down the executor used for multithreading.
+     * The {@code shutdown} method stops the KdTree using threads.  It leaves the pool running since other
+     * trees may be using it.
      * </p>
      *
      */
-    private void shutdown() {
-        if (executor != null) executor.shutdown();
+    public void shutdown() {
+        executor = null;
+        maximumSubmitDepth = -1;
     }
 
     /**
@@ -2280,7 +2360,7 @@ public class KdTree<VALUE_TYPE> {
         // check that the length of the submitted point mathes the lenth of the KdNode tuple
         if (point.length != numDimensions) return -1;
         // allocated the node
-        kdNodes[numPointsInTree] = new KdNode(numDimensions);
+        kdNodes[numPointsInTree] = new KdNode<VALUE_TYPE>(numDimensions);
         // store the point
         for (int i = 0; i< numDimensions; i++)
             kdNodes[numPointsInTree].tuple[i] = point[i];
@@ -2332,7 +2412,7 @@ public class KdTree<VALUE_TYPE> {
      * @param searchDistance - the distance from the query point to be searched.
      * @returns list of KdNodes found in the search region
      */
-    private List<KdNode> searchTreeForKdNodesIn(long query[], long searchDistance) {
+    private List<KdNode<VALUE_TYPE>> searchTreeForKdNodesIn(long query[], long searchDistance) {
         // if the tree is not built yet, build it
         if (root == null) {
             buildTree();
@@ -2389,7 +2469,7 @@ public class KdTree<VALUE_TYPE> {
         ArrayList<KdNode<VALUE_TYPE>> results = new ArrayList<KdNode<VALUE_TYPE>>();
         root.searchKdTree(results, queryPlus, queryMinus, permutation, executor, maximumSubmitDepth, 0);
         ArrayList<VALUE_TYPE> values = new ArrayList<>();
-        for(KdNode kn : results){
+        for(KdNode<VALUE_TYPE> kn : results){
             values.addAll(kn.value);
         }
         return values;
@@ -2425,7 +2505,7 @@ public class KdTree<VALUE_TYPE> {
         ArrayList<KdNode<VALUE_TYPE>> results = new ArrayList<KdNode<VALUE_TYPE>>();
         root.searchKdTree(results, queryPlus, queryMinus, permutation, executor, maximumSubmitDepth, 0);
         ArrayList<VALUE_TYPE> values = new ArrayList<>();
-        for(KdNode kn : results){
+        for(KdNode<VALUE_TYPE> kn : results){
             values.addAll(kn.value);
         }
         return values;
@@ -2488,12 +2568,42 @@ public class KdTree<VALUE_TYPE> {
         }
         ArrayList<KdNode<VALUE_TYPE>> results = new ArrayList<KdNode<VALUE_TYPE>>();
         root.searchKdTree(results, queryPlus, queryMinus, permutation, executor, maximumSubmitDepth, 0);
-        for(KdNode kn : results){
-            for(Object val : kn.value) {
+        for(KdNode<VALUE_TYPE> kn : results){
+            for(VALUE_TYPE val : kn.value) {
                 tuples.add(kn.tuple);
-                values.add((VALUE_TYPE) val);
+                values.add(val);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * The {@code searchTree} search the tree for all nodes contained within the bounds
+     * set by queryPlus and queryMinus and hands the tuple and value of each to a visitor.  Unlike the
+     * searches that return lists it builds no result lists and launches no threads, so a caller that
+     * reuses its visitor and bounds arrays can search many times without allocating.
+     * </p>
+     *
+     * @param queryPlus - Array containing the lager search bound for each dimension
+     * @param queryMinus - Array containing the smaller search bound for each dimension
+     * @param visitor - receives each tuple and value found within the query BB
+     */
+    public void searchTree(final long[] queryPlus, final long[] queryMinus, final Visitor<VALUE_TYPE> visitor) {
+        // if the tree is not built yet, build it
+        if (root == null) {
+            buildTree();
+            // if root is still null there is nothing to visit
+            if (root == null) return;
+        }
+        // check that the values in Plus are > than the values in Minus
+        for(int i = 0;  i < queryMinus.length; i++) {
+            if (queryMinus[i] > queryPlus[i]) {
+                long T = queryMinus[i];
+                queryMinus[i] = queryPlus[i];
+                queryPlus[i] = T;
             }
         }
+        root.visitKdTree(visitor, queryPlus, queryMinus, permutation, 0);
     }
 
     /**
@@ -2574,7 +2684,7 @@ public class KdTree<VALUE_TYPE> {
      * @param numNeighbors - number of neighbors to return.
      * @returns a NearestNeighborHeap that contains the KdNodes found in the nearest neighbors.
      */
-    public NearestNeighborHeap nearestNeighborSearch(final long[] query, final int numNeighbors) {
+    public NearestNeighborHeap<VALUE_TYPE> nearestNeighborSearch(final long[] query, final int numNeighbors) {
         // if the tree is not built yet, build it
         if (root == null) {
             buildTree();
@@ -2582,7 +2692,7 @@ public class KdTree<VALUE_TYPE> {
             if (root == null) return null;
         }
         // search the tree to get the heap of KdNodes
-        NearestNeighborHeap nnHeap = new NearestNeighborHeap(query, numNeighbors);
+        NearestNeighborHeap<VALUE_TYPE> nnHeap = new NearestNeighborHeap<VALUE_TYPE>(query, numNeighbors);
         root.nearestNeighbor(nnHeap, permutation, 0);
         return nnHeap;
     }
@@ -2608,7 +2718,7 @@ public class KdTree<VALUE_TYPE> {
             if (root == null) return null;
         }
         // search the tree to get the list of KdNodes
-        NearestNeighborHeap nnHeap = new NearestNeighborHeap(query, numNeighbors, enable);
+        NearestNeighborHeap<VALUE_TYPE> nnHeap = new NearestNeighborHeap<VALUE_TYPE>(query, numNeighbors, enable);
         root.nearestNeighbor(nnHeap, permutation, 0);
         // copy the list values in each KdNode to a single list for return but note
         // that heap stores nothing in nodes[0] and that copying the elements of nodes
@@ -2786,13 +2896,30 @@ public class KdTree<VALUE_TYPE> {
         if (kdNodeValues.size() != kdNodeValuesAlt.size() || !kdNodeValues.containsAll(kdNodeValuesAlt))
             System.out.println("tuple + value search != value only search");
 
+        // check that the visitor search finds the same values.
+        final List<Integer> visited = new ArrayList<Integer>();
+        long[] queryPlus = new long[numDimensions];
+        long[] queryMinus = new long[numDimensions];
+        for (int i = 0; i < numDimensions; i++) {
+            queryPlus[i] = query[i] + searchDistance;
+            queryMinus[i] = query[i] - searchDistance;
+        }
+        myKdTree.searchTree(queryPlus, queryMinus, new Visitor<Integer>() {
+            @Override
+            public void visit(long[] tuple, Integer value) {
+                visited.add(value);
+            }
+        });
+        if (kdNodeValues.size() != visited.size() || !kdNodeValues.containsAll(visited))
+            System.out.println("visitor search != value only search");
+
 
         /*****************************
          // copy constructor test
          *****************************/
         int numKdTreeNodes = myKdTree.root.verifyKdTree(myKdTree.permutation, myKdTree.executor, myKdTree.maximumSubmitDepth, 0);
         long copyTime = System.currentTimeMillis();
-        KdTree copiedTree = new KdTree(myKdTree);
+        KdTree<Integer> copiedTree = new KdTree<Integer>(myKdTree);
         copyTime = System.currentTimeMillis() - copyTime;
         final double sC = (double) copyTime / 1000.;
         System.out.printf("copy KdTree time = %.3f\n", sC);
@@ -2827,7 +2954,7 @@ public class KdTree<VALUE_TYPE> {
         // Search the k-d tree for the numNearestNeighbors nearest neighbors to the first point.
         long nnTime = System.currentTimeMillis();
         // search the tree to get the heap of KdNodes
-        NearestNeighborHeap nns = myKdTree.nearestNeighborSearch(query, numNearestNeighbors);
+        NearestNeighborHeap<Integer> nns = myKdTree.nearestNeighborSearch(query, numNearestNeighbors);
         nnTime = System.currentTimeMillis() - nnTime;
         final double nT = (double) nnTime / 1000.;
         System.out.print("searchTime for " + numNearestNeighbors + " nearest neighbors = ");
@@ -2837,15 +2964,15 @@ public class KdTree<VALUE_TYPE> {
         // start by creating a list of KdNodes still in the tree.
         List<KdNode<Integer>> allKdNodes = myKdTree.root.searchKdTree(myKdTree.root.tuple, (long)Integer.MAX_VALUE,
                 myKdTree.permutation, myKdTree.executor, myKdTree.maximumSubmitDepth, 0);
-        NearestNeighborHeap nnl = new NearestNeighborHeap(query, numNearestNeighbors);
+        NearestNeighborHeap<Integer> nnl = new NearestNeighborHeap<Integer>(query, numNearestNeighbors);
         for (int i = 0; i < allKdNodes.size(); i++) {
             nnl.add(allKdNodes.get(i));
         }
 
         // Unload the heaps and verify that they are ordered correctly and are in the same sorted order,
         // and that corresponding KdNodes from the two heaps have identical value lists.
-        HeapPair s1 = nns.removeTop();
-        HeapPair l1 = nnl.removeTop();
+        HeapPair<Integer> s1 = nns.removeTop();
+        HeapPair<Integer> l1 = nnl.removeTop();
         if (s1.dist != l1.dist) {
             System.out.println("nns dist1 = " + s1.dist + " != nnl dist1 = " + l1.dist);
         }
@@ -2855,8 +2982,8 @@ public class KdTree<VALUE_TYPE> {
             }
         }
         for (int i = 1; i < numNearestNeighbors; i++) {
-            HeapPair s2 = nns.removeTop();
-            HeapPair l2 = nnl.removeTop();
+            HeapPair<Integer> s2 = nns.removeTop();
+            HeapPair<Integer> l2 = nnl.removeTop();
             if (s1.dist < s2.dist) {
                 System.out.println("at index = " + i + " nns dist1 = " + s1.dist + " < dist2 = " + s2.dist);
             }
@@ -2894,7 +3021,7 @@ public class KdTree<VALUE_TYPE> {
         myKdTree.root.verifyKdTree(myKdTree.permutation, myKdTree.executor, myKdTree.maximumSubmitDepth, 0);
 
 
-        // Shut down the ExecutorService.
+        // Stop using the shared pool.
         myKdTree.shutdown();
 
         System.exit(0);
@@ -55,7 +55,7 @@ public class KdTreeEx<VALUE_TYPE_EX> extends KdTree<VALUE_TYPE_EX> {
     } // ValueReference
 
 
-    private int pickValue(final KdNode myThis, final NodeReference valuePtr, final long selector,
+    private int pickValue(final KdNode<VALUE_TYPE_EX> myThis, final NodeReference valuePtr, final long selector,
                           boolean removePick, final int[] permutation, final int depth){
 
         // Look up the partition.
@@ -76,7 +76,7 @@ public class KdTreeEx<VALUE_TYPE_EX> extends KdTree<VALUE_TYPE_EX> {
             if (removePick && returnResult == -1) myThis.gtChild = null;
         } else {// both child pointers must be null to get here so this is a leaf node
             if (myThis.value.size() > 0) {
-                valuePtr.value = (VALUE_TYPE_EX) myThis.value.get(myThis.value.size()-1);  // assuming that taking the last value is the fastest
+                valuePtr.value = myThis.value.get(myThis.value.size()-1);  // assuming that taking the last value is the fastest
                 valuePtr.key = myThis.tuple;
                 if (removePick) {
                     myThis.value.remove(myThis.value.size() - 1);
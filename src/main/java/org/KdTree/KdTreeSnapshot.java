@@ -0,0 +1,195 @@
+package org.KdTree;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>
+ * KdTreeSnapshot writes and reads the file that a built IntKdTree or OffHeapKdTree is saved in.  The file
+ * holds the arrays of the tree as they are in memory, so OffHeapKdTree.load() maps it and searches it
+ * without reading or sorting anything.  Everything is little endian and the long[] starts at a multiple of 8
+ * bytes.  The file has this layout:
+ * <pre>
+ *   int    MAGIC
+ *   int    VERSION
+ *   int    numDimensions
+ *   int    numValues
+ *   int    numNodes
+ *   int    length of the permutation
+ *   int[]  permutation, then an int of 0 if needed to end on a multiple of 8 bytes
+ *   long[] coordinates, numDimensions per node
+ *   int[]  values, numValues
+ *   int[]  nodes, IntKdTree.NODE_SIZE per node
+ * </pre>
+ * </p>
+ */
+final class KdTreeSnapshot implements Closeable {
+
+    private static final int MAGIC = 0x4B645472; // "KdTr"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    final int numDimensions;
+    final int numValues;
+    final int numNodes;
+    final int[] permutation;
+    // where the arrays start in the file and where it ends
+    final long coordinatesOffset;
+    final long valuesOffset;
+    final long nodesOffset;
+    final long length;
+
+    private FileChannel channel;   // the file being written, or null
+    private ByteBuffer buffer;
+
+    private KdTreeSnapshot(final int numDimensions, final int numValues, final int numNodes,
+                           final int[] permutation) {
+        this.numDimensions = numDimensions;
+        this.numValues = numValues;
+        this.numNodes = numNodes;
+        this.permutation = permutation;
+        coordinatesOffset = (HEADER_SIZE + 4L * permutation.length + 7) & ~7L;
+        valuesOffset = coordinatesOffset + 8L * numNodes * numDimensions;
+        nodesOffset = valuesOffset + 4L * numValues;
+        length = nodesOffset + 4L * numNodes * IntKdTree.NODE_SIZE;
+    }
+
+    /*
+     * <p>
+     * The {@code create} method starts a snapshot file and writes its header.  The caller then puts the
+     * coordinates, the values and the nodes, in that order, and closes it.
+     * </p>
+     *
+     * @param file - the file, which is replaced
+     * @param numDimensions - the dimensionality of the points
+     * @param numValues - the length of the values array
+     * @param numNodes - the number of nodes
+     * @param permutation - the partition dimension of each level of the tree
+     * @returns the snapshot to put the arrays in
+     */
+    static KdTreeSnapshot create(final File file, final int numDimensions, final int numValues, final int numNodes,
+                                 final int[] permutation) throws IOException {
+        KdTreeSnapshot snapshot = new KdTreeSnapshot(numDimensions, numValues, numNodes, permutation);
+        snapshot.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        snapshot.buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        snapshot.putInt(MAGIC);
+        snapshot.putInt(VERSION);
+        snapshot.putInt(numDimensions);
+        snapshot.putInt(numValues);
+        snapshot.putInt(numNodes);
+        snapshot.putInt(permutation.length);
+        for (int p : permutation) snapshot.putInt(p);
+        if ((permutation.length & 1) != 0) snapshot.putInt(0);
+        return snapshot;
+    }
+
+    void putLong(final long value) throws IOException {
+        if (buffer.remaining() < 8) flush();
+        buffer.putLong(value);
+    }
+
+    void putInt(final int value) throws IOException {
+        if (buffer.remaining() < 4) flush();
+        buffer.putInt(value);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    // close writes what is left and closes the file.  A file that did not get all of its arrays is an error.
+    @Override
+    public void close() throws IOException {
+        if (channel == null) return;
+        try {
+            flush();
+            if (channel.position() != length) {
+                throw new IOException("snapshot is " + channel.position() + " bytes, not " + length);
+            }
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code readHeader} method reads the header of a snapshot file and checks that the file is as long as
+     * the header says.
+     * </p>
+     *
+     * @param channel - the open file
+     * @returns the snapshot's sizes and the offsets of its arrays
+     * @throws IOException if the file is not a snapshot of this version or is cut short
+     */
+    static KdTreeSnapshot readHeader(final FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        read(channel, header, 0);
+        if (header.getInt() != MAGIC) throw new IOException("not a KdTree snapshot");
+        int version = header.getInt();
+        if (version != VERSION) throw new IOException("KdTree snapshot version " + version + " is not " + VERSION);
+        int numDimensions = header.getInt();
+        int numValues = header.getInt();
+        int numNodes = header.getInt();
+        int permutationLength = header.getInt();
+        if (numDimensions < 1 || numValues < 0 || numNodes < 0 || permutationLength < 0 || permutationLength > 64) {
+            throw new IOException("bad KdTree snapshot header");
+        }
+        ByteBuffer permutationBytes = ByteBuffer.allocate(4 * permutationLength).order(ByteOrder.LITTLE_ENDIAN);
+        read(channel, permutationBytes, HEADER_SIZE);
+        int[] permutation = new int[permutationLength];
+        for (int i = 0; i < permutationLength; i++) permutation[i] = permutationBytes.getInt();
+        KdTreeSnapshot snapshot = new KdTreeSnapshot(numDimensions, numValues, numNodes, permutation);
+        if (channel.size() != snapshot.length) {
+            throw new IOException("KdTree snapshot is " + channel.size() + " bytes, not " + snapshot.length);
+        }
+        return snapshot;
+    }
+
+    // read fills buffer from the file at position and flips it for reading.
+    private static void read(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new IOException("KdTree snapshot is cut short");
+            position += n;
+        }
+        buffer.flip();
+    }
+}
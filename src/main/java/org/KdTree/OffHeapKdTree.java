@@ -0,0 +1,873 @@
+package org.KdTree;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * <p>
+ * The OffHeapKdTree class is an IntKdTree whose arrays are outside the Java heap, in direct ByteBuffers, for
+ * trees of a hundred million points and more.  It is built the same way into the same flat layout, with the
+ * nodes numbered in the order a search visits them, and finds the same points in the same order.  The heap
+ * holds only the few objects that manage the buffers, so neither the heap nor the work of the garbage
+ * collector grows with the number of points.
+ * </p>
+ *
+ * <p>
+ * The direct memory a JVM may use is limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap
+ * size, so a big tree needs it set: the tree takes about 80 bytes per point while it is built and then 40
+ * bytes per distinct point and 4 per value.  The memory is given back when the tree is garbage collected.
+ * Points cannot be added once the tree is built.
+ * </p>
+ *
+ * <p>
+ * A built tree, or a built IntKdTree, can be saved to a snapshot file with save() and opened again with
+ * load(), which maps the file instead of reading it, so a tree of any size is ready to search in
+ * milliseconds.  See KdTreeSnapshot for the layout of the file.
+ * </p>
+ *
+ * @author John Robinson
+ */
+public class OffHeapKdTree {
+
+    // the fields of a node in nodes, as in IntKdTree
+    private static final int START = IntKdTree.START;
+    private static final int END = IntKdTree.END;
+    private static final int LT_CHILD = IntKdTree.LT_CHILD;
+    private static final int GT_CHILD = IntKdTree.GT_CHILD;
+    private static final int NODE_SIZE = IntKdTree.NODE_SIZE;
+    private static final int NONE = IntKdTree.NONE;
+
+    // LongStore is a long[] of any length kept in direct ByteBuffers of at most 2^27 longs each.
+    static final class LongStore {
+        private static final int SHIFT = 27;
+        private static final long MASK = (1L << SHIFT) - 1;
+        private final LongBuffer[] chunks;
+
+        LongStore(final long length) {
+            chunks = new LongBuffer[(int) ((length + MASK) >>> SHIFT)];
+            for (int c = 0; c < chunks.length; c++) {
+                int size = (int) Math.min(MASK + 1, length - ((long) c << SHIFT));
+                chunks[c] = ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+            }
+        }
+
+        // this constructor maps length little endian longs of a file from position on, read only.
+        LongStore(final FileChannel channel, final long position, final long length) throws IOException {
+            chunks = new LongBuffer[(int) ((length + MASK) >>> SHIFT)];
+            for (int c = 0; c < chunks.length; c++) {
+                int size = (int) Math.min(MASK + 1, length - ((long) c << SHIFT));
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, position + ((long) c << SHIFT) * 8,
+                        size * 8L).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            }
+        }
+
+        long get(final long i) {
+            return chunks[(int) (i >>> SHIFT)].get((int) (i & MASK));
+        }
+
+        void set(final long i, final long value) {
+            chunks[(int) (i >>> SHIFT)].put((int) (i & MASK), value);
+        }
+    }
+
+    // IntStore is an int[] of any length kept in direct ByteBuffers of at most 2^28 ints each.
+    static final class IntStore {
+        private static final int SHIFT = 28;
+        private static final long MASK = (1L << SHIFT) - 1;
+        private final IntBuffer[] chunks;
+
+        IntStore(final long length) {
+            chunks = new IntBuffer[(int) ((length + MASK) >>> SHIFT)];
+            for (int c = 0; c < chunks.length; c++) {
+                int size = (int) Math.min(MASK + 1, length - ((long) c << SHIFT));
+                chunks[c] = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        }
+
+        // this constructor maps length little endian ints of a file from position on, read only.
+        IntStore(final FileChannel channel, final long position, final long length) throws IOException {
+            chunks = new IntBuffer[(int) ((length + MASK) >>> SHIFT)];
+            for (int c = 0; c < chunks.length; c++) {
+                int size = (int) Math.min(MASK + 1, length - ((long) c << SHIFT));
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, position + ((long) c << SHIFT) * 4,
+                        size * 4L).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+        }
+
+        int get(final long i) {
+            return chunks[(int) (i >>> SHIFT)].get((int) (i & MASK));
+        }
+
+        void set(final long i, final int value) {
+            chunks[(int) (i >>> SHIFT)].put((int) (i & MASK), value);
+        }
+    }
+
+    private final int numDimensions;
+    private final int numPointsAllocated;
+    private int numPointsInTree = 0;
+    // numDimensions coordinates per point, in the order the points were added until the tree is built and then
+    // in the order of the nodes, one for each distinct point
+    private LongStore coordinates;
+    private IntStore pointValues;  // the value of each point in the order they were added, until the tree is built
+    private IntStore values;       // the values grouped by node once the tree is built
+    private IntStore nodes;        // NODE_SIZE ints per node once the tree is built.  Node 0 is the root.
+    private int numNodes = 0;
+    private int[] permutation;
+    private boolean mapped = false;  // true if the tree was loaded from a snapshot, which is read only
+    private int maximumSubmitDepth = -1;
+    private ForkJoinPool executor = null;
+
+    /**
+     * <p>
+     * The {@code OffHeapKdTree} constructor allocates room for the points outside the heap.
+     * </p>
+     *
+     * @param numPoints - the most points that will be added
+     * @param numDimensions - the dimensionality of each point
+     */
+    public OffHeapKdTree(final int numPoints, final int numDimensions) {
+        this(numPoints, numDimensions, true);
+    }
+
+    /**
+     * <p>
+     * The {@code load} method opens a tree saved by {@link #save save} or IntKdTree.save() by mapping the file
+     * into memory.  Nothing is read until a search touches it, so the tree can be searched at once however
+     * big it is, and the pages of the file are shared with other processes that map it.  The tree is read
+     * only: points cannot be added or removed.
+     * </p>
+     *
+     * @param file - the snapshot file
+     * @returns the tree
+     * @throws IOException if the file cannot be read or is not a snapshot of this version
+     */
+    public static OffHeapKdTree load(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            KdTreeSnapshot snapshot = KdTreeSnapshot.readHeader(channel);
+            OffHeapKdTree tree = new OffHeapKdTree(snapshot.numValues, snapshot.numDimensions, false);
+            tree.numPointsInTree = snapshot.numValues;
+            tree.permutation = snapshot.permutation;
+            tree.coordinates = new LongStore(channel, snapshot.coordinatesOffset,
+                    (long) snapshot.numNodes * snapshot.numDimensions);
+            tree.values = new IntStore(channel, snapshot.valuesOffset, snapshot.numValues);
+            tree.nodes = new IntStore(channel, snapshot.nodesOffset, (long) snapshot.numNodes * NODE_SIZE);
+            tree.numNodes = snapshot.numNodes;
+            tree.mapped = true;
+            return tree;
+        }
+    }
+
+    // this constructor leaves the stores to the caller if allocate is false
+    private OffHeapKdTree(final int numPoints, final int numDimensions, final boolean allocate) {
+        this.numPointsAllocated = numPoints;
+        this.numDimensions = numDimensions;
+        if (allocate) {
+            coordinates = new LongStore((long) numPoints * numDimensions);
+            pointValues = new IntStore(numPoints);
+        }
+    }
+
+    /**
+     * <p>
+     * The {@code save} method writes the tree to a snapshot file that {@link #load load} maps.  The tree is
+     * built first if it has not been.
+     * </p>
+     *
+     * @param file - the file, which is replaced
+     * @throws IOException if the file cannot be written
+     */
+    public void save(final File file) throws IOException {
+        buildTree();
+        try (KdTreeSnapshot out = KdTreeSnapshot.create(file, numDimensions, numPointsInTree, numNodes,
+                permutation)) {
+            for (long i = 0; i < (long) numNodes * numDimensions; i++) out.putLong(coordinates.get(i));
+            for (long i = 0; i < numPointsInTree; i++) out.putInt(values.get(i));
+            for (long i = 0; i < (long) numNodes * NODE_SIZE; i++) out.putInt(nodes.get(i));
+        }
+    }
+
+    public int getNumDimensions() {
+        return numDimensions;
+    }
+
+    public int size() {
+        return numPointsInTree;
+    }
+
+    // setNumThreads has the tree built with numThreads threads of the shared pool, as KdTree.setNumThreads()
+    // does.
+    public void setNumThreads(final int numThreads) {
+        maximumSubmitDepth = KdTree.submitDepth(numThreads);
+        executor = maximumSubmitDepth < 0 ? null : KdTree.getSharedPool();
+    }
+
+    // setPool has the tree built with the threads of a pool the caller owns, or none if it is null.
+    public void setPool(final ForkJoinPool pool) {
+        maximumSubmitDepth = pool == null ? -1 : KdTree.submitDepth(pool.getParallelism());
+        executor = maximumSubmitDepth < 0 ? null : pool;
+    }
+
+    // shutdown stops the tree using threads.  It leaves the pool running for other trees.
+    public void shutdown() {
+        executor = null;
+        maximumSubmitDepth = -1;
+    }
+
+    /**
+     * <p>
+     * The {@code add} method adds a point and its value.
+     * </p>
+     *
+     * @param point - the coordinates of the point, numDimensions long
+     * @param value - the value of the point
+     * @returns the number of points after this add or -1 if the tree is full or built or the point the wrong size
+     */
+    public int add(final long[] point, final int value) {
+        if (numPointsInTree == numPointsAllocated || point.length != numDimensions || nodes != null) return -1;
+        final long offset = (long) numPointsInTree * numDimensions;
+        for (int i = 0; i < numDimensions; i++) coordinates.set(offset + i, point[i]);
+        pointValues.set(numPointsInTree, value);
+        return ++numPointsInTree;
+    }
+
+    // getPoint copies the coordinates of a point passed to a PointConsumer into tuple.
+    public void getPoint(final int point, final long[] tuple) {
+        final long offset = (long) point * numDimensions;
+        for (int i = 0; i < numDimensions; i++) tuple[i] = coordinates.get(offset + i);
+    }
+
+    // getCoordinate returns one coordinate of a point passed to a PointConsumer.
+    public long getCoordinate(final int point, final int dimension) {
+        return coordinates.get((long) point * numDimensions + dimension);
+    }
+
+    /**
+     * <p>
+     * The {@code buildTree} method builds the tree as IntKdTree.buildTree() does, with every array it needs
+     * outside the heap.  The searches build it if it has not been.
+     * </p>
+     */
+    public void buildTree() {
+        if (nodes != null) return;
+        int size = numPointsInTree;
+        int maxDepth = 1;
+        while (size > 0) {
+            maxDepth++;
+            size >>= 1;
+        }
+        permutation = new int[maxDepth];
+        for (int i = 0; i < permutation.length; ++i) {
+            permutation[i] = i % numDimensions;
+        }
+
+        // sort the points, which keeps duplicates in the order they were added, and group the duplicates.  The
+        // first point of each group is moved to the front of order and the offset of its first value put in
+        // groupStarts, so the values of group g are values[groupStarts[g]] to values[groupStarts[g + 1] - 1].
+        IntStore order = new IntStore(numPointsInTree);
+        IntStore groupStarts = new IntStore(numPointsInTree + 1L);
+        for (int i = 0; i < numPointsInTree; i++) order.set(i, i);
+        mergeSort(order, groupStarts, 0, numPointsInTree, 0);
+        values = new IntStore(numPointsInTree);
+        int numGroups = 0;
+        for (int i = 0; i < numPointsInTree; i++) {
+            final int point = order.get(i);
+            values.set(i, pointValues.get(point));
+            if (numGroups == 0 || superKeyCompare(point, order.get(numGroups - 1), 0) != 0) {
+                order.set(numGroups, point);
+                groupStarts.set(numGroups++, i);
+            }
+        }
+        groupStarts.set(numGroups, numPointsInTree);
+
+        // the values are copied, so their store holds the numbers of the groups for the selection
+        IntStore groups = pointValues;
+        pointValues = null;
+        for (int g = 0; g < numGroups; g++) groups.set(g, g);
+        LongStore treeCoordinates = new LongStore((long) numGroups * numDimensions);
+        nodes = new IntStore((long) numGroups * NODE_SIZE);
+        numNodes = numGroups;
+        if (numGroups > 0) build(groups, order, groupStarts, treeCoordinates, 0, numGroups - 1, 0, 0);
+        coordinates = treeCoordinates;
+    }
+
+    // superKeyCompare compares two added points on the super key that starts with dimension p
+    private long superKeyCompare(final int a, final int b, final int p) {
+        final long aOffset = (long) a * numDimensions;
+        final long bOffset = (long) b * numDimensions;
+        long diff = coordinates.get(aOffset + p) - coordinates.get(bOffset + p);
+        for (int i = 1; diff == 0 && i < numDimensions; i++) {
+            int r = i + p;
+            r = (r < numDimensions) ? r : r - numDimensions;
+            diff = coordinates.get(aOffset + r) - coordinates.get(bOffset + r);
+        }
+        return diff;
+    }
+
+    // mergeSort sorts points from to to - 1 on the super key of dimension p.  It is stable.
+    private void mergeSort(final IntStore points, final IntStore temporary, final int from, final int to,
+                           final int p) {
+        if (to - from < 16) {
+            for (int i = from + 1; i < to; i++) {
+                int point = points.get(i);
+                int j = i - 1;
+                while (j >= from && superKeyCompare(points.get(j), point, p) > 0) {
+                    points.set(j + 1, points.get(j));
+                    j--;
+                }
+                points.set(j + 1, point);
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(points, temporary, from, middle, p);
+        mergeSort(points, temporary, middle, to, p);
+        if (superKeyCompare(points.get(middle - 1), points.get(middle), p) <= 0) return;
+        for (int i = from; i < to; i++) temporary.set(i, points.get(i));
+        int i = from, j = middle, k = from;
+        while (i < middle && j < to) {
+            if (superKeyCompare(temporary.get(j), temporary.get(i), p) < 0) points.set(k++, temporary.get(j++));
+            else points.set(k++, temporary.get(i++));
+        }
+        while (i < middle) points.set(k++, temporary.get(i++));
+        while (j < to) points.set(k++, temporary.get(j++));
+    }
+
+    // build builds the subtree of the groups from start to end as the nodes numbered from node on, as
+    // IntKdTree.build() does.
+    private void build(final IntStore groups, final IntStore groupPoints, final IntStore groupStarts,
+                       final LongStore treeCoordinates, final int start, final int end, final int node,
+                       final int depth) {
+        final int p = permutation[depth];
+        final int median = start + ((end - start) >> 1);
+        select(groups, groupPoints, start, end, median, p);
+        final int group = groups.get(median);
+        final long from = (long) groupPoints.get(group) * numDimensions;
+        final long to = (long) node * numDimensions;
+        for (int i = 0; i < numDimensions; i++) treeCoordinates.set(to + i, coordinates.get(from + i));
+        final int ltChild = median > start ? node + 1 : NONE;
+        final int gtChild = end > median ? node + 1 + median - start : NONE;
+        final long n = (long) node * NODE_SIZE;
+        nodes.set(n + START, groupStarts.get(group));
+        nodes.set(n + END, groupStarts.get(group + 1L));
+        nodes.set(n + LT_CHILD, ltChild);
+        nodes.set(n + GT_CHILD, gtChild);
+        if (maximumSubmitDepth < 0 || depth > maximumSubmitDepth || median - start < 2) {
+            if (ltChild != NONE) build(groups, groupPoints, groupStarts, treeCoordinates, start, median - 1,
+                    ltChild, depth + 1);
+            if (gtChild != NONE) build(groups, groupPoints, groupStarts, treeCoordinates, median + 1, end,
+                    gtChild, depth + 1);
+        } else {
+            ForkJoinTask<Void> future = executor.submit(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    build(groups, groupPoints, groupStarts, treeCoordinates, start, median - 1, ltChild,
+                            depth + 1);
+                }
+            });
+            if (gtChild != NONE) build(groups, groupPoints, groupStarts, treeCoordinates, median + 1, end,
+                    gtChild, depth + 1);
+            try {
+                future.get();
+            } catch (Exception e) {
+                throw new RuntimeException("recursive future exception: " + e.getMessage());
+            }
+        }
+    }
+
+    // select moves the group that belongs at k on the super key of dimension p to k, the groups below it
+    // before it and the groups above it after it, as IntKdTree.select() does.
+    private void select(final IntStore groups, final IntStore groupPoints, int left, int right, final int k,
+                        final int p) {
+        while (right > left) {
+            int middle = (left + right) >>> 1;
+            if (compare(groups, groupPoints, middle, left, p) < 0) swap(groups, middle, left);
+            if (compare(groups, groupPoints, right, left, p) < 0) swap(groups, right, left);
+            if (compare(groups, groupPoints, right, middle, p) < 0) swap(groups, right, middle);
+            if (right - left < 3) return;
+            final int pivot = groupPoints.get(groups.get(middle));
+            swap(groups, middle, right - 1);
+            int i = left;
+            int j = right - 1;
+            while (true) {
+                while (superKeyCompare(groupPoints.get(groups.get(++i)), pivot, p) < 0) { }
+                while (superKeyCompare(groupPoints.get(groups.get(--j)), pivot, p) > 0) { }
+                if (i >= j) break;
+                swap(groups, i, j);
+            }
+            swap(groups, i, right - 1);
+            if (i == k) return;
+            if (k < i) right = i - 1;
+            else left = i + 1;
+        }
+    }
+
+    private long compare(final IntStore groups, final IntStore groupPoints, final int a, final int b,
+                         final int p) {
+        return superKeyCompare(groupPoints.get(groups.get(a)), groupPoints.get(groups.get(b)), p);
+    }
+
+    private static void swap(final IntStore groups, final int i, final int j) {
+        int t = groups.get(i);
+        groups.set(i, groups.get(j));
+        groups.set(j, t);
+    }
+
+    // ready builds the tree if it has not been built and returns true if it has a root.
+    private boolean ready() {
+        buildTree();
+        return numNodes > 0;
+    }
+
+    /**
+     * <p>
+     * The {@code searchTree} method finds the values of the points with queryMinus <= t < queryPlus in every
+     * dimension.  The bounds may be given in either order.
+     * </p>
+     *
+     * @param queryPlus - Array containing the larger search bound for each dimension
+     * @param queryMinus - Array containing the smaller search bound for each dimension
+     * @param found - receives each value found
+     */
+    public void searchTree(final long[] queryPlus, final long[] queryMinus, final IntConsumer found) {
+        if (!ready()) return;
+        long[] plus = new long[numDimensions];
+        long[] minus = new long[numDimensions];
+        order(queryPlus, queryMinus, plus, minus);
+        search(0, plus, minus, found, null, 0);
+    }
+
+    // searchTree finds the points and values in a box and passes them to a PointConsumer.
+    public void searchTree(final long[] queryPlus, final long[] queryMinus, final IntKdTree.PointConsumer found) {
+        if (!ready()) return;
+        long[] plus = new long[numDimensions];
+        long[] minus = new long[numDimensions];
+        order(queryPlus, queryMinus, plus, minus);
+        search(0, plus, minus, null, found, 0);
+    }
+
+    // order puts the larger of the bounds of each dimension in plus and the smaller in minus.
+    private static void order(final long[] queryPlus, final long[] queryMinus, final long[] plus,
+                              final long[] minus) {
+        for (int i = 0; i < plus.length; i++) {
+            plus[i] = Math.max(queryPlus[i], queryMinus[i]);
+            minus[i] = Math.min(queryPlus[i], queryMinus[i]);
+        }
+    }
+
+    // search searches a subtree with the pruning of IntKdTree.search().
+    private void search(final int node, final long[] queryPlus, final long[] queryMinus, final IntConsumer values,
+                        final IntKdTree.PointConsumer points, final int depth) {
+        final int p = permutation[depth];
+        final long offset = (long) node * numDimensions;
+        final long n = (long) node * NODE_SIZE;
+        final long partition = coordinates.get(offset + p);
+        final int start = nodes.get(n + START);
+        final int end = nodes.get(n + END);
+        if (end > start) {
+            boolean inside = true;
+            for (int i = 0; i < numDimensions; i++) {
+                final long t = coordinates.get(offset + i);
+                if (queryPlus[i] <= t || queryMinus[i] > t) {
+                    inside = false;
+                    break;
+                }
+            }
+            if (inside) {
+                for (int v = start; v < end; v++) {
+                    if (values != null) values.accept(this.values.get(v));
+                    else points.accept(node, this.values.get(v));
+                }
+            }
+        }
+        final int ltChild = nodes.get(n + LT_CHILD);
+        if (ltChild != NONE && queryMinus[p] <= partition) {
+            search(ltChild, queryPlus, queryMinus, values, points, depth + 1);
+        }
+        final int gtChild = nodes.get(n + GT_CHILD);
+        if (gtChild != NONE && queryPlus[p] >= partition) {
+            search(gtChild, queryPlus, queryMinus, values, points, depth + 1);
+        }
+    }
+
+    // isDead returns true if a node has no values and no children left.
+    private boolean isDead(final int node) {
+        final long n = (long) node * NODE_SIZE;
+        return nodes.get(n + END) == nodes.get(n + START) && nodes.get(n + LT_CHILD) == NONE &&
+                nodes.get(n + GT_CHILD) == NONE;
+    }
+
+    /**
+     * <p>
+     * The {@code nearestNeighborSearch} method finds the numNeighbors points nearest to query and passes
+     * their values to a PointConsumer, the nearest point first, as IntKdTree.nearestNeighborSearch() does.
+     * </p>
+     *
+     * @param query - the point whose nearest neighbors are found
+     * @param numNeighbors - the number of distinct points to find
+     * @param enable - which dimensions are part of the distance, or null for all of them
+     * @param found - receives each point and value found
+     */
+    public void nearestNeighborSearch(final long[] query, final int numNeighbors, final boolean[] enable,
+                                      final IntKdTree.PointConsumer found) {
+        if (!ready() || numNeighbors < 1) return;
+        NearestNeighborHeap heap = new NearestNeighborHeap(query, numNeighbors, enable);
+        nearestNeighbor(heap, 0, 0);
+        // the farthest is on top of the heap, so the nearest come off last
+        int[] nearest = new int[heap.size];
+        for (int i = nearest.length - 1; i >= 0; i--) nearest[i] = heap.removeTop();
+        for (int node : nearest) {
+            final long n = (long) node * NODE_SIZE;
+            for (int v = nodes.get(n + START); v < nodes.get(n + END); v++) found.accept(node, values.get(v));
+        }
+    }
+
+    // nearestNeighbor searches a subtree as IntKdTree.nearestNeighbor() does.
+    private void nearestNeighbor(final NearestNeighborHeap heap, final int node, final int depth) {
+        final int p = permutation[depth];
+        final long partition = coordinates.get((long) node * numDimensions + p);
+        final long q = heap.query[p];
+        final int ltChild = nodes.get((long) node * NODE_SIZE + LT_CHILD);
+        final int gtChild = nodes.get((long) node * NODE_SIZE + GT_CHILD);
+        if (q < partition) {
+            if (ltChild != NONE) nearestNeighbor(heap, ltChild, depth + 1);
+            if (heap.mayBeNearer(p, partition - q)) {
+                if (gtChild != NONE) nearestNeighbor(heap, gtChild, depth + 1);
+                heap.add(node);
+            }
+        } else if (q > partition) {
+            if (gtChild != NONE) nearestNeighbor(heap, gtChild, depth + 1);
+            if (heap.mayBeNearer(p, q - partition)) {
+                if (ltChild != NONE) nearestNeighbor(heap, ltChild, depth + 1);
+                heap.add(node);
+            }
+        } else {
+            if (ltChild != NONE) nearestNeighbor(heap, ltChild, depth + 1);
+            if (gtChild != NONE) nearestNeighbor(heap, gtChild, depth + 1);
+            heap.add(node);
+        }
+    }
+
+    // NearestNeighborHeap is IntKdTree's heap of the nearest nodes, with the farthest on top.
+    private final class NearestNeighborHeap {
+        private final long[] query;
+        private final boolean[] enable;
+        private final int[] heapNodes;  // address 0 is unused
+        private final double[] dists;
+        private int size = 0;
+
+        private NearestNeighborHeap(final long[] query, final int numNeighbors, final boolean[] enable) {
+            this.query = query;
+            this.enable = enable;
+            heapNodes = new int[numNeighbors + 1];
+            dists = new double[numNeighbors + 1];
+        }
+
+        private boolean mayBeNearer(final int p, final long distance) {
+            return size < heapNodes.length - 1 || (enable != null && !enable[p]) ||
+                    (double) distance * (double) distance <= dists[1];
+        }
+
+        private void add(final int node) {
+            final long n = (long) node * NODE_SIZE;
+            if (nodes.get(n + END) == nodes.get(n + START)) return;
+            final long offset = (long) node * numDimensions;
+            double dist = 0.0;
+            for (int i = 0; i < numDimensions; i++) {
+                if (enable == null || enable[i]) {
+                    double d = (double) (coordinates.get(offset + i) - query[i]);
+                    dist += d * d;
+                }
+            }
+            if (size < heapNodes.length - 1) {
+                size++;
+                dists[size] = dist;
+                heapNodes[size] = node;
+                rise(size);
+            } else if (dist < dists[1]) {
+                dists[1] = dist;
+                heapNodes[1] = node;
+                fall(1);
+            }
+        }
+
+        private int removeTop() {
+            int node = heapNodes[1];
+            swap(1, size--);
+            fall(1);
+            return node;
+        }
+
+        private void rise(int k) {
+            while (k > 1 && dists[k / 2] < dists[k]) {
+                swap(k / 2, k);
+                k = k / 2;
+            }
+        }
+
+        private void fall(int k) {
+            while (2 * k <= size) {
+                int j = 2 * k;
+                if (j < size && dists[j] < dists[j + 1]) j++;
+                if (dists[k] >= dists[j]) break;
+                swap(k, j);
+                k = j;
+            }
+        }
+
+        private void swap(final int i, final int j) {
+            double dist = dists[i];
+            dists[i] = dists[j];
+            dists[j] = dist;
+            int node = heapNodes[i];
+            heapNodes[i] = heapNodes[j];
+            heapNodes[j] = node;
+        }
+    }
+
+    /**
+     * <p>
+     * The {@code remove} method removes one value of a point.
+     * </p>
+     *
+     * @param query - the point
+     * @param valueToRemove - the value to remove
+     * @returns true if the value was found and removed
+     */
+    public boolean remove(final long[] query, final int valueToRemove) {
+        if (mapped) throw new UnsupportedOperationException("a loaded OffHeapKdTree is read only");
+        if (!ready()) return false;
+        return removeValue(0, query, valueToRemove, 0) != 0;
+    }
+
+    // removeValue returns 0 if nothing was removed, 1 if a value was removed or -1 if a value was removed and
+    // the subtree is now empty, as IntKdTree.removeValue() does.
+    private int removeValue(final int node, final long[] query, final int valueToRemove, final int depth) {
+        final int p = permutation[depth];
+        final long offset = (long) node * numDimensions;
+        final long n = (long) node * NODE_SIZE;
+        long compare = query[p] - coordinates.get(offset + p);
+        for (int i = 1; compare == 0 && i < numDimensions; i++) {
+            int r = i + p;
+            r = (r < numDimensions) ? r : r - numDimensions;
+            compare = query[r] - coordinates.get(offset + r);
+        }
+        int result = 0;
+        if (compare < 0) {
+            if (nodes.get(n + LT_CHILD) != NONE) {
+                result = removeValue(nodes.get(n + LT_CHILD), query, valueToRemove, depth + 1);
+                if (result == -1) nodes.set(n + LT_CHILD, NONE);
+            }
+        } else if (compare > 0) {
+            if (nodes.get(n + GT_CHILD) != NONE) {
+                result = removeValue(nodes.get(n + GT_CHILD), query, valueToRemove, depth + 1);
+                if (result == -1) nodes.set(n + GT_CHILD, NONE);
+            }
+        } else {
+            final int end = nodes.get(n + END);
+            for (int v = nodes.get(n + START); v < end; v++) {
+                if (values.get(v) == valueToRemove) {
+                    // keep the order of the others, as a List does
+                    for (int w = v + 1; w < end; w++) values.set(w - 1, values.get(w));
+                    nodes.set(n + END, end - 1);
+                    result = -1;
+                    break;
+                }
+            }
+        }
+        if (result == -1 && !isDead(node)) result = 1;
+        return result;
+    }
+
+    // directMemory returns the bytes of direct buffers the JVM has allocated.
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+
+    // Digest hashes the values that a search finds in the order it finds them.
+    private static final class Digest implements IntConsumer, IntKdTree.PointConsumer {
+        long hash;
+        long count;
+
+        @Override
+        public void accept(int value) {
+            hash = hash * 31 + value;
+            count++;
+        }
+
+        @Override
+        public void accept(int point, int value) {
+            accept(value);
+        }
+    }
+
+    // differences searches an OffHeapKdTree as main() does and returns how many searches find other values.
+    private static int differences(final OffHeapKdTree tree, final long[][] queries, final long[] boxHashes,
+                                   final long[] nearestHashes) {
+        Digest digest = new Digest();
+        int numDifferent = 0;
+        for (int q = 0; q < queries.length; q++) {
+            digest.hash = 0;
+            tree.searchTree(queries[q], box(queries[q]), (IntConsumer) digest);
+            if (digest.hash != boxHashes[q]) numDifferent++;
+            digest.hash = 0;
+            tree.nearestNeighborSearch(queries[q], 8, null, digest);
+            if (digest.hash != nearestHashes[q]) numDifferent++;
+        }
+        return numDifferent;
+    }
+
+    // differences searches an IntKdTree as main() does and returns how many searches find other values.
+    private static int differences(final IntKdTree tree, final long[][] queries, final long[] boxHashes,
+                                   final long[] nearestHashes) {
+        Digest digest = new Digest();
+        int numDifferent = 0;
+        for (int q = 0; q < queries.length; q++) {
+            digest.hash = 0;
+            tree.searchTree(queries[q], box(queries[q]), (IntConsumer) digest);
+            if (digest.hash != boxHashes[q]) numDifferent++;
+            digest.hash = 0;
+            tree.nearestNeighborSearch(queries[q], 8, null, digest);
+            if (digest.hash != nearestHashes[q]) numDifferent++;
+        }
+        return numDifferent;
+    }
+
+    // box returns the far corner of the box that main() searches from a query point.
+    private static long[] box(final long[] query) {
+        return new long[]{query[0] + 20000, query[1] + 20000, query[2] + 200000};
+    }
+
+    // this main() function builds an OffHeapKdTree of random points, some of them duplicates, and reports the
+    // heap and direct memory it uses and its build and search times.  It then saves the tree, maps the
+    // snapshot with load() and checks that the mapped tree finds the same values in the same order.  Up to 2M
+    // points it also builds an IntKdTree of the same points and checks it and its snapshot the same way.  Run
+    // it with a small -Xmx, such as -Xmx64m, and a large enough -XX:MaxDirectMemorySize to see that the heap
+    // does not grow with the tree.  It is not necessary.
+    public static void main(String[] args) throws IOException {
+        final int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        final boolean check = numPoints <= 2000000;
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+
+        long start = System.nanoTime();
+        OffHeapKdTree tree = new OffHeapKdTree(numPoints, 3);
+        IntKdTree intTree = check ? new IntKdTree(numPoints, 3) : null;
+        Random random = new Random(1);
+        long[] point = new long[3];
+        for (int i = 0; i < numPoints; i++) {
+            // every tenth point a duplicate of the one before
+            if (i % 10 != 9) {
+                for (int j = 0; j < 3; j++) point[j] = random.nextInt(1000000);
+            }
+            tree.add(point, i);
+            if (check) intTree.add(point, i);
+        }
+        tree.buildTree();
+        long build = System.nanoTime() - start;
+        System.gc();
+        long treeHeap = runtime.totalMemory() - runtime.freeMemory() - heap;
+        long treeDirect = directMemory();
+
+        long[][] queries = new long[numQueries][];
+        for (int q = 0; q < numQueries; q++) {
+            queries[q] = new long[]{random.nextInt(1000000), random.nextInt(1000000), random.nextInt(1000000)};
+        }
+        long[] boxHashes = new long[numQueries];
+        long[] nearestHashes = new long[numQueries];
+        Digest digest = new Digest();
+        long search = 0;
+        long nearest = 0;
+        long numFound = 0;
+        for (int q = 0; q < numQueries; q++) {
+            long[] qp = box(queries[q]);
+            digest.hash = 0;
+            start = System.nanoTime();
+            tree.searchTree(qp, queries[q], (IntConsumer) digest);
+            search += System.nanoTime() - start;
+            boxHashes[q] = digest.hash;
+            digest.hash = 0;
+            start = System.nanoTime();
+            tree.nearestNeighborSearch(queries[q], 8, null, digest);
+            nearest += System.nanoTime() - start;
+            nearestHashes[q] = digest.hash;
+        }
+        numFound = digest.count;
+        System.out.printf("%d points: heap %d KB, direct %d MB (%d bytes per point), build %.1f ms, " +
+                        "%d searches %.1f ms, nearest neighbors %.1f ms; %d values found%n", numPoints,
+                treeHeap / 1024, treeDirect >> 20, treeDirect / Math.max(1, numPoints), build / 1.0e6, numQueries,
+                search / 1.0e6, nearest / 1.0e6, numFound);
+
+        File file = File.createTempFile("OffHeapKdTree", ".snapshot");
+        file.deleteOnExit();
+        start = System.nanoTime();
+        tree.save(file);
+        long save = System.nanoTime() - start;
+        start = System.nanoTime();
+        OffHeapKdTree mapped = load(file);
+        long load = System.nanoTime() - start;
+        start = System.nanoTime();
+        mapped.searchTree(box(queries[0]), queries[0], (IntConsumer) digest);
+        long firstSearch = System.nanoTime() - start;
+        int numDifferent = differences(mapped, queries, boxHashes, nearestHashes);
+        System.out.printf("snapshot %d MB: save %.1f ms, load %.3f ms, first search %.3f ms; " +
+                        "%d searches of the mapped tree differ%n", file.length() >> 20, save / 1.0e6, load / 1.0e6,
+                firstSearch / 1.0e6, numDifferent);
+        if (check) {
+            File intFile = File.createTempFile("IntKdTree", ".snapshot");
+            intFile.deleteOnExit();
+            intTree.save(intFile);
+            System.out.println(differences(intTree, queries, boxHashes, nearestHashes) +
+                    " searches of the IntKdTree and " + differences(load(intFile), queries, boxHashes, nearestHashes) +
+                    " of its snapshot differ");
+        }
+        System.exit(0);
+    }
+}
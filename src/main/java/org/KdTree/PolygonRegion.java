@@ -0,0 +1,338 @@
+package org.KdTree;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * The PolygonRegion class is a polygon in the first two dimensions of a KdTree, which a RegionFilter uses
+ * as an include or exclude region.  The polygon is one or more rings of vertices and a point is inside it if
+ * a ray from the point crosses its edges an odd number of times, so a ring inside another is a hole.
+ * </p>
+ *
+ * <p>
+ * The RegionFilter needs to know whether a box of the tree is all inside, all outside or on the boundary
+ * of the polygon and, for boxes on the boundary, whether each point is inside.  A grid over the bounding box
+ * of the polygon answers the first.  Each grid cell that an edge passes through is a boundary cell and every
+ * other cell is all inside or all outside, as its center is.  Sums of the inside and outside cells over the
+ * rectangles from the corner of the grid then count the cells of either kind under a box in constant time.
+ * The second is the usual ray test, but the ray is cast along the second dimension from the point and only
+ * the edges that reach the point's row of the grid are tested, so a polygon of thousands of vertices costs
+ * a few dozen edge tests per point, and none for a point in an inside or outside cell.
+ * </p>
+ *
+ * @author John Robinson
+ */
+public class PolygonRegion {
+    private static final byte OUTSIDE = 0;
+    private static final byte INSIDE = 1;
+    private static final byte BOUNDARY = 2;
+
+    // the edges from (u1, v1) to (u2, v2), where u is the first dimension and v the second
+    private final long[] u1;
+    private final long[] v1;
+    private final long[] u2;
+    private final long[] v2;
+
+    // the bounding box of the polygon, inclusive at both ends
+    final long minU, maxU, minV, maxV;
+
+    // the grid has numRows rows across u and numCols columns across v, each cellU by cellV
+    private final int numRows, numCols;
+    private final long cellU, cellV;
+    private final byte[] cells;
+    private final int[] insideSums;  // the inside cells in rows < r and columns < c at r * (numCols + 1) + c
+    private final int[] outsideSums;
+    private final int[][] rowEdges;  // the edges that reach each row
+
+    /*
+     * <p>
+     * The {@code PolygonRegion} constructor builds the grid and the row index of a polygon.
+     * </p>
+     *
+     * @param rings - the rings of the polygon, each an array of {u, v} vertices.  A ring may or may not
+     *              repeat its first vertex at the end.
+     */
+    public PolygonRegion(final List<long[][]> rings) {
+        int numEdges = 0;
+        for (long[][] ring : rings) numEdges += ring.length;
+        long[] eu1 = new long[numEdges], ev1 = new long[numEdges], eu2 = new long[numEdges], ev2 = new long[numEdges];
+        long lowU = Long.MAX_VALUE, highU = Long.MIN_VALUE, lowV = Long.MAX_VALUE, highV = Long.MIN_VALUE;
+        int n = 0;
+        for (long[][] ring : rings) {
+            for (int i = 0; i < ring.length; i++) {
+                long[] a = ring[i];
+                long[] b = ring[(i + 1) % ring.length];
+                lowU = Math.min(lowU, a[0]);
+                highU = Math.max(highU, a[0]);
+                lowV = Math.min(lowV, a[1]);
+                highV = Math.max(highV, a[1]);
+                if (a[0] == b[0] && a[1] == b[1]) continue;
+                eu1[n] = a[0];
+                ev1[n] = a[1];
+                eu2[n] = b[0];
+                ev2[n] = b[1];
+                n++;
+            }
+        }
+        if (n < 3) {
+            throw new IllegalArgumentException("a polygon needs at least three vertices");
+        }
+        u1 = Arrays.copyOf(eu1, n);
+        v1 = Arrays.copyOf(ev1, n);
+        u2 = Arrays.copyOf(eu2, n);
+        v2 = Arrays.copyOf(ev2, n);
+        minU = lowU;
+        maxU = highU;
+        minV = lowV;
+        maxV = highV;
+
+        // about two cells per edge along each side, which keeps the edges per row and the boundary cells few
+        int size = (int) Math.max(8, Math.min(256, 2 * Math.sqrt(n)));
+        numRows = size;
+        numCols = size;
+        cellU = (maxU - minU) / numRows + 1;
+        cellV = (maxV - minV) / numCols + 1;
+
+        // the edges that reach each row and the boundary cells
+        cells = new byte[numRows * numCols];
+        int[] rowCounts = new int[numRows];
+        for (int e = 0; e < n; e++) {
+            for (int r = row(Math.min(u1[e], u2[e])); r <= row(Math.max(u1[e], u2[e])); r++) rowCounts[r]++;
+        }
+        rowEdges = new int[numRows][];
+        for (int r = 0; r < numRows; r++) rowEdges[r] = new int[rowCounts[r]];
+        Arrays.fill(rowCounts, 0);
+        for (int e = 0; e < n; e++) {
+            for (int r = row(Math.min(u1[e], u2[e])); r <= row(Math.max(u1[e], u2[e])); r++) {
+                rowEdges[r][rowCounts[r]++] = e;
+                markBoundary(e, r);
+            }
+        }
+
+        // every other cell is on the side of its center
+        for (int r = 0; r < numRows; r++) {
+            for (int c = 0; c < numCols; c++) {
+                if (cells[r * numCols + c] != BOUNDARY) {
+                    long u = Math.min(maxU, minU + r * cellU + cellU / 2);
+                    long v = Math.min(maxV, minV + c * cellV + cellV / 2);
+                    cells[r * numCols + c] = crossings(u, v, r) ? INSIDE : OUTSIDE;
+                }
+            }
+        }
+        insideSums = new int[(numRows + 1) * (numCols + 1)];
+        outsideSums = new int[(numRows + 1) * (numCols + 1)];
+        for (int r = 0; r < numRows; r++) {
+            for (int c = 0; c < numCols; c++) {
+                int at = (r + 1) * (numCols + 1) + c + 1;
+                byte cell = cells[r * numCols + c];
+                insideSums[at] = insideSums[at - 1] + insideSums[at - numCols - 1] - insideSums[at - numCols - 2] +
+                        (cell == INSIDE ? 1 : 0);
+                outsideSums[at] = outsideSums[at - 1] + outsideSums[at - numCols - 1] -
+                        outsideSums[at - numCols - 2] + (cell == OUTSIDE ? 1 : 0);
+            }
+        }
+    }
+
+    // markBoundary marks the cells of a row that an edge passes through, widened by a cell's worth of
+    // rounding at each end.  An edge along v lies in one row and passes through every cell of it between
+    // its ends.
+    private void markBoundary(final int e, final int r) {
+        if (u1[e] == u2[e]) {
+            int c1 = col(Math.min(v1[e], v2[e]) - 1);
+            int c2 = col(Math.max(v1[e], v2[e]) + 1);
+            for (int c = c1; c <= c2; c++) cells[r * numCols + c] = BOUNDARY;
+            return;
+        }
+        long rowLow = Math.max(minU + r * cellU, Math.min(u1[e], u2[e]));
+        long rowHigh = Math.min(minU + (r + 1) * cellU - 1, Math.max(u1[e], u2[e]));
+        double va = vAt(e, rowLow);
+        double vb = vAt(e, rowHigh);
+        int c1 = col((long) Math.floor(Math.min(va, vb)) - 1);
+        int c2 = col((long) Math.ceil(Math.max(va, vb)) + 1);
+        for (int c = c1; c <= c2; c++) cells[r * numCols + c] = BOUNDARY;
+    }
+
+    // vAt returns v where an edge is at u, or the v of its ends if the edge is along v
+    private double vAt(final int e, final long u) {
+        if (u1[e] == u2[e]) return u == u1[e] ? Math.min(v1[e], v2[e]) : v1[e];
+        return v1[e] + (double) (u - u1[e]) * (v2[e] - v1[e]) / (u2[e] - u1[e]);
+    }
+
+    private int row(final long u) {
+        if (u <= minU) return 0;
+        if (u >= maxU) return numRows - 1;
+        return (int) ((u - minU) / cellU);
+    }
+
+    private int col(final long v) {
+        if (v <= minV) return 0;
+        if (v >= maxV) return numCols - 1;
+        return (int) ((v - minV) / cellV);
+    }
+
+    // crossings returns true if a ray from (u, v) toward larger v crosses the edges an odd number of times.
+    // An edge counts if u is in [its smaller u, its larger u), so a ray through a vertex counts it once.
+    private boolean crossings(final long u, final long v, final int r) {
+        boolean inside = false;
+        for (int e : rowEdges[r]) {
+            if ((u1[e] <= u) != (u2[e] <= u) && vAt(e, u) > v) inside = !inside;
+        }
+        return inside;
+    }
+
+    /*
+     * <p>
+     * The {@code contains} method tests a point against the polygon.
+     * </p>
+     *
+     * @param u - the first coordinate of the point
+     * @param v - the second coordinate
+     * @returns true if the point is inside
+     */
+    public boolean contains(final long u, final long v) {
+        if (u < minU || u > maxU || v < minV || v > maxV) return false;
+        int r = row(u);
+        byte cell = cells[r * numCols + col(v)];
+        if (cell != BOUNDARY) return cell == INSIDE;
+        return crossings(u, v, r);
+    }
+
+    /*
+     * <p>
+     * The {@code covers} method returns true if every point of a box is inside the polygon.  It may return
+     * false for a box that the boundary only comes near.
+     * </p>
+     *
+     * @param lowU, highU, lowV, highV - the box, inclusive at both ends
+     */
+    boolean covers(final long lowU, final long highU, final long lowV, final long highV) {
+        if (lowU < minU || highU > maxU || lowV < minV || highV > maxV) return false;
+        int r1 = row(lowU), r2 = row(highU), c1 = col(lowV), c2 = col(highV);
+        return sum(insideSums, r1, r2, c1, c2) == (r2 - r1 + 1) * (c2 - c1 + 1);
+    }
+
+    /*
+     * <p>
+     * The {@code misses} method returns true if no point of a box is inside the polygon.  It may return
+     * false for a box that the boundary only comes near.
+     * </p>
+     *
+     * @param lowU, highU, lowV, highV - the box, inclusive at both ends
+     */
+    boolean misses(final long lowU, final long highU, final long lowV, final long highV) {
+        if (highU < minU || lowU > maxU || highV < minV || lowV > maxV) return true;
+        int r1 = row(lowU), r2 = row(highU), c1 = col(lowV), c2 = col(highV);
+        return sum(outsideSums, r1, r2, c1, c2) == (r2 - r1 + 1) * (c2 - c1 + 1);
+    }
+
+    // sum returns the count of the cells in rows r1 to r2 and columns c1 to c2
+    private int sum(final int[] sums, final int r1, final int r2, final int c1, final int c2) {
+        int w = numCols + 1;
+        return sums[(r2 + 1) * w + c2 + 1] - sums[r1 * w + c2 + 1] - sums[(r2 + 1) * w + c1] + sums[r1 * w + c1];
+    }
+
+    // numEdges returns the number of edges of the polygon
+    public int numEdges() {
+        return u1.length;
+    }
+
+    // this main() function compares contains() with a ray test of every edge on random points of a random
+    // star shaped polygon with a hole and on a lattice over an L shaped one.  It is not necessary.
+    public static void main(String[] args) {
+        int numVertices = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int numPoints = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        java.util.Random random = new java.util.Random(1);
+        ArrayList<long[][]> rings = new ArrayList<>();
+        rings.add(star(random, numVertices, 100000000L, 2000000L));
+        rings.add(star(random, numVertices / 10 + 3, 20000000L, 400000L));
+        long start = System.nanoTime();
+        PolygonRegion polygon = new PolygonRegion(rings);
+        long buildTime = System.nanoTime() - start;
+        long[][] points = new long[numPoints][];
+        for (int i = 0; i < numPoints; i++) {
+            points[i] = new long[]{random.nextInt(240000000) - 120000000, random.nextInt(240000000) - 120000000};
+        }
+        start = System.nanoTime();
+        int numInside = 0;
+        for (long[] point : points) if (polygon.contains(point[0], point[1])) numInside++;
+        long gridTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        int numDifferent = 0;
+        for (long[] point : points) {
+            if (polygon.everyEdge(point[0], point[1]) != polygon.contains(point[0], point[1])) numDifferent++;
+        }
+        long rayTime = System.nanoTime() - start;
+        System.out.printf("%d edges: build %.1f ms, %d points %d inside, indexed %.1f ms, every edge %.1f ms, " +
+                        "%d different%n", polygon.numEdges(), buildTime / 1.0e6, numPoints, numInside, gridTime / 1.0e6,
+                rayTime / 1.0e6, numDifferent);
+
+        // an L shaped polygon has edges along u and along v, such as a border along a parallel or a rectangle
+        // drawn in Google Earth, so check it at every point of a lattice over it.
+        ArrayList<long[][]> lShape = new ArrayList<>();
+        lShape.add(new long[][]{{0, 0}, {0, 1000}, {450, 1000}, {450, 500}, {1000, 500}, {1000, 0}});
+        polygon = new PolygonRegion(lShape);
+        numInside = 0;
+        numDifferent = 0;
+        for (long u = -1; u <= 1001; u++) {
+            for (long v = -1; v <= 1001; v++) {
+                boolean inside = polygon.everyEdge(u, v);
+                if (inside) numInside++;
+                if (inside != polygon.contains(u, v)) numDifferent++;
+            }
+        }
+        System.out.printf("L shape: %d lattice points %d inside, %d different%n", 1003 * 1003, numInside,
+                numDifferent);
+    }
+
+    // everyEdge is the ray test of crossings() against every edge rather than only those of a row.
+    private boolean everyEdge(final long u, final long v) {
+        boolean inside = false;
+        for (int e = 0; e < u1.length; e++) {
+            if ((u1[e] <= u) != (u2[e] <= u) && vAt(e, u) > v) inside = !inside;
+        }
+        return inside;
+    }
+
+    // star returns a ring of vertices at random radii from rMean - rRange to rMean + rRange around the origin
+    static long[][] star(final java.util.Random random, final int numVertices, final long rMean,
+                                 final long rRange) {
+        long[][] ring = new long[numVertices][];
+        for (int i = 0; i < numVertices; i++) {
+            double angle = 2 * Math.PI * i / numVertices;
+            double r = rMean + (2 * random.nextDouble() - 1) * rRange;
+            ring[i] = new long[]{(long) (r * Math.cos(angle)), (long) (r * Math.sin(angle))};
+        }
+        return ring;
+    }
+}
@@ -0,0 +1,441 @@
+package org.KdTree;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+/**
+ * <p>
+ * The RegionFilter class finds the values of an IntKdTree that lie in any of a set of include regions and in
+ * none of a set of exclude regions.  Each region is a box given, as for KdTree.searchTree(), by a queryPlus
+ * and a queryMinus bound in every dimension, and holds the points with queryMinus <= t < queryPlus.  A bound
+ * of Long.MAX_VALUE or Long.MIN_VALUE leaves that side of the box open.  A region may also be limited to a
+ * PolygonRegion in the first two dimensions, in which case its box is cut down to the polygon's bounding box.
+ * </p>
+ *
+ * <p>
+ * All of the regions are tested in one walk of the tree instead of one search per region.  The walk keeps
+ * the box that holds every point below the current node, which the partition coordinates of the nodes
+ * above narrow, and the regions that cut that box.  A region that misses the box is dropped from the walk
+ * below it.  A subtree is skipped when an exclude region covers its box or no include region touches it,
+ * and its values are taken without any test when an include region covers its box and no exclude region
+ * touches it.  So the work grows with the number of regions that cross each part of the tree rather than
+ * with the number of regions.  The grid of a PolygonRegion says whether a box is inside, outside or on the
+ * boundary of the polygon, so only the points of the subtrees on its boundary are tested against its edges.
+ * </p>
+ *
+ * @author John Robinson
+ */
+public class RegionFilter {
+    private final ArrayList<Region> includes = new ArrayList<>();
+    private final ArrayList<Region> excludes = new ArrayList<>();
+
+    // a box with its plus bound the larger in every dimension and, or null, a polygon that limits it
+    private static class Region {
+        final long[] plus;
+        final long[] minus;
+        final PolygonRegion polygon;
+
+        Region(final long[] queryPlus, final long[] queryMinus, final PolygonRegion polygon) {
+            plus = new long[queryPlus.length];
+            minus = new long[queryMinus.length];
+            for (int i = 0; i < plus.length; i++) {
+                plus[i] = Math.max(queryPlus[i], queryMinus[i]);
+                minus[i] = Math.min(queryPlus[i], queryMinus[i]);
+            }
+            this.polygon = polygon;
+            if (polygon != null) {
+                if (plus.length < 2) {
+                    throw new IllegalArgumentException("a polygon region needs two dimensions");
+                }
+                minus[0] = Math.max(minus[0], polygon.minU);
+                minus[1] = Math.max(minus[1], polygon.minV);
+                plus[0] = Math.min(plus[0], polygon.maxU + 1);
+                plus[1] = Math.min(plus[1], polygon.maxV + 1);
+            }
+        }
+    }
+
+    // the walk's state.  lo and hi bound the current box, inclusive at both ends, and the lists at each level
+    // hold the regions that cut the box of a node at that depth, so the walk allocates nothing per node.
+    private long[] lo;
+    private long[] hi;
+    private int[][] activeIncludes;
+    private int[][] activeExcludes;
+    private int[] permutation;
+    private long[] coordinates;
+    private int[] nodes;
+    private int[] values;
+    private BitSet accepted;
+
+    /*
+     * <p>
+     * The {@code addInclude} method adds a region whose points are kept.  The bounds may be given in either
+     * order in each dimension.
+     * </p>
+     *
+     * @param queryPlus - Array containing the larger search bound for each dimension
+     * @param queryMinus - Array containing the smaller search bound for each dimension
+     */
+    public void addInclude(final long[] queryPlus, final long[] queryMinus) {
+        includes.add(new Region(queryPlus, queryMinus, null));
+    }
+
+    // addExclude adds a region whose points are left out even when they are in an include region.
+    public void addExclude(final long[] queryPlus, final long[] queryMinus) {
+        excludes.add(new Region(queryPlus, queryMinus, null));
+    }
+
+    /*
+     * <p>
+     * The {@code addInclude} method adds a region whose points are kept, which is the part of a box inside a
+     * polygon in the first two dimensions.
+     * </p>
+     *
+     * @param polygon - the polygon
+     * @param queryPlus - Array containing the larger search bound for each dimension
+     * @param queryMinus - Array containing the smaller search bound for each dimension
+     */
+    public void addInclude(final PolygonRegion polygon, final long[] queryPlus, final long[] queryMinus) {
+        includes.add(new Region(queryPlus, queryMinus, polygon));
+    }
+
+    // addExclude adds a region of a polygon and a box whose points are left out.
+    public void addExclude(final PolygonRegion polygon, final long[] queryPlus, final long[] queryMinus) {
+        excludes.add(new Region(queryPlus, queryMinus, polygon));
+    }
+
+    public int numIncludes() {
+        return includes.size();
+    }
+
+    public int numExcludes() {
+        return excludes.size();
+    }
+
+    /*
+     * <p>
+     * The {@code accepts} method tests one point against the regions.
+     * </p>
+     *
+     * @param tuple - the point
+     * @returns true if the point is in an include region and in no exclude region
+     */
+    public boolean accepts(final long[] tuple) {
+        for (Region region : excludes) {
+            if (inside(region, tuple, 0)) return false;
+        }
+        for (Region region : includes) {
+            if (inside(region, tuple, 0)) return true;
+        }
+        return false;
+    }
+
+    /*
+     * <p>
+     * The {@code search} method walks an IntKdTree once and sets the bits of the values that the regions
+     * accept.  The values must be the indices of the points.  Other bits are left as they are.
+     * </p>
+     *
+     * @param tree - the IntKdTree, which is built if it is not yet
+     * @param accepted - the BitSet in which the accepted values are set
+     */
+    public void search(final IntKdTree tree, final BitSet accepted) {
+        if (!tree.ready() || includes.isEmpty()) return;
+        int numDimensions = tree.getNumDimensions();
+        for (Region region : includes) checkDimensions(region, numDimensions);
+        for (Region region : excludes) checkDimensions(region, numDimensions);
+
+        // level 0 holds every region, and a node at depth d reads the regions at level d + 1.
+        permutation = tree.permutation;
+        coordinates = tree.coordinates;
+        nodes = tree.nodes;
+        values = tree.values;
+        activeIncludes = new int[permutation.length + 1][includes.size()];
+        activeExcludes = new int[permutation.length + 1][excludes.size()];
+        for (int i = 0; i < includes.size(); i++) activeIncludes[0][i] = i;
+        for (int i = 0; i < excludes.size(); i++) activeExcludes[0][i] = i;
+        lo = new long[numDimensions];
+        hi = new long[numDimensions];
+        for (int i = 0; i < numDimensions; i++) {
+            lo[i] = Long.MIN_VALUE;
+            hi[i] = Long.MAX_VALUE;
+        }
+        this.accepted = accepted;
+        try {
+            descend(0, 0, includes.size(), excludes.size(), false);
+        } finally {
+            this.accepted = null;
+            coordinates = null;
+            nodes = null;
+            values = null;
+            activeIncludes = null;
+            activeExcludes = null;
+        }
+    }
+
+    private static void checkDimensions(final Region region, final int numDimensions) {
+        if (region.plus.length != numDimensions) {
+            throw new IllegalArgumentException("a region has " + region.plus.length + " dimensions but the tree has " +
+                    numDimensions);
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code descend} method sorts the regions that cut the box of a parent node into those that cut
+     * the box of a child, now in lo and hi, and then searches the child unless the regions decide the whole
+     * subtree.
+     * </p>
+     *
+     * @param node - the child node
+     * @param level - the level of the parent's regions; the child's are written to the next level
+     * @param numIncludes - the number of include regions at the parent's level
+     * @param numExcludes - the number of exclude regions at the parent's level
+     * @param included - true if an include region covers the parent's box
+     */
+    private void descend(final int node, final int level, final int numIncludes, final int numExcludes,
+                         boolean included) {
+        int[] parentExcludes = activeExcludes[level];
+        int[] childExcludes = activeExcludes[level + 1];
+        int numChildExcludes = 0;
+        for (int i = 0; i < numExcludes; i++) {
+            Region region = excludes.get(parentExcludes[i]);
+            if (covers(region)) return;
+            if (cuts(region)) childExcludes[numChildExcludes++] = parentExcludes[i];
+        }
+        int numChildIncludes = 0;
+        if (!included) {
+            int[] parentIncludes = activeIncludes[level];
+            int[] childIncludes = activeIncludes[level + 1];
+            for (int i = 0; i < numIncludes; i++) {
+                Region region = includes.get(parentIncludes[i]);
+                if (covers(region)) {
+                    included = true;
+                    break;
+                }
+                if (cuts(region)) childIncludes[numChildIncludes++] = parentIncludes[i];
+            }
+            if (!included && numChildIncludes == 0) return;
+        }
+        if (included && numChildExcludes == 0) {
+            acceptAll(node);
+        } else {
+            search(node, level + 1, numChildIncludes, numChildExcludes, included);
+        }
+    }
+
+    // search tests the point of a node against the regions at its level and descends to its children.
+    private void search(final int node, final int level, final int numIncludes, final int numExcludes,
+                        final boolean included) {
+        final int offset = node * lo.length;
+        final int n = node * IntKdTree.NODE_SIZE;
+        if (nodes[n + IntKdTree.END] > nodes[n + IntKdTree.START] && (included || insideAny(includes, activeIncludes[level], numIncludes,
+                coordinates, offset)) && !insideAny(excludes, activeExcludes[level], numExcludes, coordinates,
+                offset)) {
+            accept(node);
+        }
+        // the super key may put a point equal to the partition coordinate in either subtree, so the
+        // boxes of the children share the partition coordinate.
+        final int p = permutation[level - 1];
+        if (nodes[n + IntKdTree.LT_CHILD] != IntKdTree.NONE) {
+            long saved = hi[p];
+            hi[p] = Math.min(saved, coordinates[offset + p]);
+            descend(nodes[n + IntKdTree.LT_CHILD], level, numIncludes, numExcludes, included);
+            hi[p] = saved;
+        }
+        if (nodes[n + IntKdTree.GT_CHILD] != IntKdTree.NONE) {
+            long saved = lo[p];
+            lo[p] = Math.max(saved, coordinates[offset + p]);
+            descend(nodes[n + IntKdTree.GT_CHILD], level, numIncludes, numExcludes, included);
+            lo[p] = saved;
+        }
+    }
+
+    // acceptAll sets the bits of every value in a subtree.
+    private void acceptAll(final int node) {
+        accept(node);
+        final int n = node * IntKdTree.NODE_SIZE;
+        if (nodes[n + IntKdTree.LT_CHILD] != IntKdTree.NONE) acceptAll(nodes[n + IntKdTree.LT_CHILD]);
+        if (nodes[n + IntKdTree.GT_CHILD] != IntKdTree.NONE) acceptAll(nodes[n + IntKdTree.GT_CHILD]);
+    }
+
+    private void accept(final int node) {
+        final int n = node * IntKdTree.NODE_SIZE;
+        for (int v = nodes[n + IntKdTree.START]; v < nodes[n + IntKdTree.END]; v++) {
+            accepted.set(values[v]);
+        }
+    }
+
+    // covers returns true if every point of the current box is in the region.  An open side covers all.
+    private boolean covers(final Region region) {
+        final long[] plus = region.plus;
+        final long[] minus = region.minus;
+        for (int i = 0; i < lo.length; i++) {
+            if (lo[i] < minus[i] || (hi[i] >= plus[i] && plus[i] != Long.MAX_VALUE)) return false;
+        }
+        return region.polygon == null || region.polygon.covers(lo[0], hi[0], lo[1], hi[1]);
+    }
+
+    // cuts returns true if some point of the current box may be in the region.
+    private boolean cuts(final Region region) {
+        final long[] plus = region.plus;
+        final long[] minus = region.minus;
+        for (int i = 0; i < lo.length; i++) {
+            if (hi[i] < minus[i] || lo[i] >= plus[i]) return false;
+        }
+        return region.polygon == null || !region.polygon.misses(lo[0], hi[0], lo[1], hi[1]);
+    }
+
+    private static boolean insideAny(final ArrayList<Region> regions, final int[] active, final int numActive,
+                                     final long[] coordinates, final int offset) {
+        for (int i = 0; i < numActive; i++) {
+            if (inside(regions.get(active[i]), coordinates, offset)) return true;
+        }
+        return false;
+    }
+
+    // inside is the test of KdTree.searchTree(): queryMinus <= t < queryPlus in every dimension, and then
+    // the polygon's.  The point is at offset in coordinates.
+    private static boolean inside(final Region region, final long[] coordinates, final int offset) {
+        final long[] plus = region.plus;
+        final long[] minus = region.minus;
+        for (int i = 0; i < plus.length; i++) {
+            final long t = coordinates[offset + i];
+            if (plus[i] <= t || minus[i] > t) return false;
+        }
+        return region.polygon == null || region.polygon.contains(coordinates[offset], coordinates[offset + 1]);
+    }
+
+    // this main() function compares one walk of a RegionFilter with a search of the tree for every region
+    // and, for polygons, with a test of every point on random points and checks that they keep the same
+    // points.  It is not necessary.
+    public static void main(String[] args) {
+        int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int numRegions = args.length > 1 ? Integer.parseInt(args[1]) : 48;
+        Random random = new Random(1);
+        IntKdTree kdTree = new IntKdTree(numPoints, 3);
+        kdTree.setNumThreads(Runtime.getRuntime().availableProcessors());
+        long[][] points = new long[numPoints][];
+        for (int i = 0; i < numPoints; i++) {
+            points[i] = new long[]{random.nextInt(1800000000) - 900000000, random.nextInt(2000000000) - 1000000000,
+                    random.nextInt(1000000)};
+            kdTree.add(points[i], i);
+        }
+        kdTree.buildTree();
+
+        for (int numIncludes = 1; numIncludes <= numRegions; numIncludes *= 2) {
+            int numExcludes = numIncludes;
+            RegionFilter filter = new RegionFilter();
+            List<long[][]> includeRegions = randomRegions(random, numIncludes, 400000000L);
+            List<long[][]> excludeRegions = randomRegions(random, numExcludes, 100000000L);
+            for (long[][] region : includeRegions) filter.addInclude(region[0], region[1]);
+            for (long[][] region : excludeRegions) filter.addExclude(region[0], region[1]);
+
+            long start = System.nanoTime();
+            BitSet fromFilter = new BitSet(numPoints);
+            filter.search(kdTree, fromFilter);
+            long filterTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final BitSet fromSearches = new BitSet(numPoints);
+            for (long[][] region : includeRegions) {
+                kdTree.searchTree(region[0], region[1], new IntConsumer() {
+                    @Override
+                    public void accept(int idx) {
+                        fromSearches.set(idx);
+                    }
+                });
+            }
+            for (long[][] region : excludeRegions) {
+                kdTree.searchTree(region[0], region[1], new IntConsumer() {
+                    @Override
+                    public void accept(int idx) {
+                        fromSearches.clear(idx);
+                    }
+                });
+            }
+            long searchesTime = System.nanoTime() - start;
+
+            System.out.printf("%d + %d regions: %d points, one walk %.1f ms, %d searches %.1f ms%s%n",
+                    numIncludes, numExcludes, fromFilter.cardinality(), filterTime / 1.0e6,
+                    numIncludes + numExcludes, searchesTime / 1.0e6,
+                    fromFilter.equals(fromSearches) ? "" : ", DIFFERENT POINTS");
+        }
+
+        // polygons of many vertices with holes, which are checked point by point
+        for (int numVertices = 100; numVertices <= 10000; numVertices *= 10) {
+            ArrayList<long[][]> rings = new ArrayList<>();
+            rings.add(PolygonRegion.star(random, numVertices, 500000000L, 10000000L));
+            rings.add(PolygonRegion.star(random, numVertices, 200000000L, 10000000L));
+            PolygonRegion polygon = new PolygonRegion(rings);
+            RegionFilter filter = new RegionFilter();
+            long[] open = new long[]{Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+            long[] openMinus = new long[]{Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+            filter.addInclude(polygon, open, openMinus);
+            filter.addExclude(new long[]{100000000L, 100000000L, Long.MAX_VALUE},
+                    new long[]{-400000000L, -400000000L, Long.MIN_VALUE});
+
+            long start = System.nanoTime();
+            BitSet fromFilter = new BitSet(numPoints);
+            filter.search(kdTree, fromFilter);
+            long filterTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            BitSet fromPoints = new BitSet(numPoints);
+            for (int i = 0; i < numPoints; i++) {
+                if (filter.accepts(points[i])) fromPoints.set(i);
+            }
+            long pointsTime = System.nanoTime() - start;
+
+            System.out.printf("polygon of %d edges: %d points, one walk %.1f ms, point by point %.1f ms%s%n",
+                    polygon.numEdges(), fromFilter.cardinality(), filterTime / 1.0e6, pointsTime / 1.0e6,
+                    fromFilter.equals(fromPoints) ? "" : ", DIFFERENT POINTS");
+        }
+        System.exit(0);
+    }
+
+    // randomRegions makes boxes of latitude and longitude up to size wide that are open in the third dimension.
+    private static List<long[][]> randomRegions(final Random random, final int numRegions, final long size) {
+        ArrayList<long[][]> regions = new ArrayList<>();
+        for (int i = 0; i < numRegions; i++) {
+            long lat = random.nextInt(1800000000) - 900000000L;
+            long lon = random.nextInt(2000000000) - 1000000000L;
+            regions.add(new long[][]{
+                    {lat + (long) (random.nextDouble() * size), lon + (long) (random.nextDouble() * size), Long.MAX_VALUE},
+                    {lat, lon, Long.MIN_VALUE}});
+        }
+        return regions;
+    }
+}
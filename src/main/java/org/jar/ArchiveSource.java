@@ -0,0 +1,530 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * <p>
+ * ArchiveSource lets the pictures inside ZIP and TAR archives be mapped without extracting them.  It
+ * wraps the Iterator of picture file names from a DirectoryScanner and, in place of each .zip or .tar
+ * file, returns the names of the entries in the archive as "archive!/entry".  readHead() reads the
+ * first bytes of an entry, enough for the EXIF data of a jpeg file, for the metadata readers to decode.
+ * A TIFF based entry may have its IFDs anywhere in the entry so up to MAX_TIFF_HEAD of it is read, enough
+ * for the IFDs near the start of a camera raw file.  If the metadata lies past that the readers fail and
+ * the entry is reported as a read error, as a file with bad metadata is.  The heads are read when a worker
+ * needs them, not when the entries are listed, so nothing is held for entries that are found in the cache
+ * or skipped.
+ * </p>
+ * <p>
+ * A ZIP archive is listed from its central directory and a TAR archive by stepping from one entry header
+ * to the next, seeking over the entry data.  Either way only the headers are read to list the archive,
+ * not the whole archive.  The entries are listed in the order they are stored so the head reads move
+ * through the archive in one direction.  Compressed TAR files can't be read this way and are skipped.
+ * </p>
+ * <p>
+ * The size, time and position of every entry are kept so that the metadata cache, the incremental KML
+ * manifest, the thumbnails and the copy step can use entries later in the run much as they use files.
+ * </p>
+ */
+class ArchiveSource implements Iterator<String> {
+
+    static final String SEPARATOR = "!/";   // between the archive path and the entry name
+    static final int HEAD_BYTES = AsyncHeaderReader.HEADER_BYTES;
+    static final int MAX_TIFF_HEAD = 4 * 1024 * 1024; // most of a TIFF based entry that is read for the IFDs
+
+    private static final int TAR_BLOCK = 512;
+
+    // what is known about one entry
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final long dataOffset; // position of a TAR entry's data in the archive or -1 for a ZIP entry
+
+        Entry(long size, long lastModified, long dataOffset) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.dataOffset = dataOffset;
+        }
+    }
+
+    // An EntryLister lists the picture entries of one archive.
+    private interface EntryLister {
+        // returns the full name of the next picture entry or null at the end of the archive
+        String nextEntry() throws IOException;
+    }
+
+    private final Iterator<String> files;
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final HashMap<String, ZipFile> zipFiles;   // open ZIP archives for reading entries later
+    private final HashMap<String, FileChannel> tarFiles; // open TAR archives for reading entries later
+    private final ArrayList<String> failures;          // archives that could not be read
+    private EntryLister lister;
+    private String next;
+    int numArchives;
+    int numEntries;
+
+    /*
+     * <p>
+     * The {@code ArchiveSource} constructor.
+     * </p>
+     *
+     * @param files - the picture files, which may include archives
+     */
+    ArchiveSource(Iterator<String> files) {
+        this.files = files;
+        this.entries = new ConcurrentHashMap<>();
+        this.zipFiles = new HashMap<>();
+        this.tarFiles = new HashMap<>();
+        this.failures = new ArrayList<>();
+        this.lister = null;
+        this.next = null;
+    }
+
+    // isArchive returns true if a file name ends in .zip or .tar in any case.
+    static boolean isArchive(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) return false;
+        String ext = fileName.substring(dot + 1);
+        return ext.equalsIgnoreCase("zip") || ext.equalsIgnoreCase("tar");
+    }
+
+    // isEntry returns true if a name is the name of an archive entry returned by this source.
+    boolean isEntry(String name) {
+        return entries.containsKey(name);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (lister != null) {
+                try {
+                    next = lister.nextEntry();
+                } catch (IOException e) {
+                    failures.add(e.getMessage());
+                    next = null;
+                }
+                if (next == null) {
+                    // the archive stays open for readHead() until close()
+                    lister = null;
+                }
+                continue;
+            }
+            if (!files.hasNext()) return false;
+            String fileName = files.next();
+            if (!isArchive(fileName)) {
+                next = fileName;
+                continue;
+            }
+            try {
+                lister = fileName.regionMatches(true, fileName.length() - 4, ".zip", 0, 4) ?
+                        new ZipLister(fileName) : new TarLister(fileName);
+                numArchives++;
+            } catch (IOException e) {
+                failures.add(fileName + " : " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        String name = next;
+        next = null;
+        return name;
+    }
+
+    // getFailures returns the archives, or entries, that could not be read.
+    ArrayList<String> getFailures() {
+        return failures;
+    }
+
+    /*
+     * <p>
+     * The {@code readHead} method reads the start of an entry for the metadata readers.  It may be called
+     * from several threads at once.
+     * </p>
+     *
+     * @param name - the name of the entry as returned by next()
+     * @returns the first HEAD_BYTES of the entry, or the first MAX_TIFF_HEAD of a TIFF based entry
+     */
+    ByteBuffer readHead(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) throw new IOException("No archive entry " + name);
+        int split = name.indexOf(SEPARATOR);
+        String archiveName = name.substring(0, split);
+        if (entry.dataOffset < 0) {
+            ZipEntry zipEntry = zipFile(archiveName).getEntry(name.substring(split + SEPARATOR.length()));
+            if (zipEntry == null) throw new IOException("No archive entry " + name);
+            try (InputStream in = zipFile(archiveName).getInputStream(zipEntry)) {
+                byte[] bytes = new byte[(int) Math.min(HEAD_BYTES, Math.max(entry.size, 0))];
+                ByteBuffer head = ByteBuffer.wrap(bytes, 0, readFully(in, bytes, 0, bytes.length));
+                if (isTiff(head) && entry.size > bytes.length) {
+                    byte[] tiff = new byte[(int) Math.min(entry.size, MAX_TIFF_HEAD)];
+                    System.arraycopy(bytes, 0, tiff, 0, head.limit());
+                    int n = head.limit() + readFully(in, tiff, head.limit(), tiff.length - head.limit());
+                    head = ByteBuffer.wrap(tiff, 0, n);
+                }
+                return head.slice();
+            }
+        }
+        FileChannel channel = tarFile(archiveName);
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(entry.size, HEAD_BYTES));
+        readAt(channel, head, entry.dataOffset, archiveName);
+        head.flip();
+        if (isTiff(head) && entry.size > head.limit()) {
+            head = ByteBuffer.allocate((int) Math.min(entry.size, MAX_TIFF_HEAD));
+            readAt(channel, head, entry.dataOffset, archiveName);
+            head.flip();
+        }
+        return head;
+    }
+
+    // version returns the size and last modified time of an entry, as XmpSidecar.fileVersion does for a file.
+    long[] version(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) throw new IOException("No archive entry " + name);
+        return new long[] {entry.size, entry.lastModified};
+    }
+
+    /*
+     * <p>
+     * The {@code readAll} method reads a whole entry, for copying or making a thumbnail.
+     * </p>
+     *
+     * @param name - the name of the entry as returned by next()
+     * @returns the contents of the entry
+     */
+    byte[] readAll(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) throw new IOException("No archive entry " + name);
+        if (entry.size > Integer.MAX_VALUE - 8) throw new IOException("Archive entry too large " + name);
+        int split = name.indexOf(SEPARATOR);
+        String archiveName = name.substring(0, split);
+        String entryName = name.substring(split + SEPARATOR.length());
+        byte[] bytes = new byte[(int) entry.size];
+        if (entry.dataOffset < 0) {
+            ZipFile zipFile = zipFile(archiveName);
+            ZipEntry zipEntry = zipFile.getEntry(entryName);
+            if (zipEntry == null) throw new IOException("No archive entry " + name);
+            try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                readFully(in, bytes, 0, bytes.length);
+            }
+        } else {
+            readAt(tarFile(archiveName), ByteBuffer.wrap(bytes), entry.dataOffset, archiveName);
+        }
+        return bytes;
+    }
+
+    // zipFile returns the open ZIP archive of that name, opening it the first time.
+    private ZipFile zipFile(String archiveName) throws IOException {
+        synchronized (zipFiles) {
+            ZipFile zipFile = zipFiles.get(archiveName);
+            if (zipFile == null) {
+                zipFile = new ZipFile(archiveName);
+                zipFiles.put(archiveName, zipFile);
+            }
+            return zipFile;
+        }
+    }
+
+    // tarFile returns the open TAR archive of that name, opening it the first time.  Reads of it are
+    // positional so threads can share it.
+    private FileChannel tarFile(String archiveName) throws IOException {
+        synchronized (tarFiles) {
+            FileChannel channel = tarFiles.get(archiveName);
+            if (channel == null) {
+                channel = FileChannel.open(Paths.get(archiveName), StandardOpenOption.READ);
+                tarFiles.put(archiveName, channel);
+            }
+            return channel;
+        }
+    }
+
+    // readAt fills buffer from the channel starting at position at.
+    private static void readAt(FileChannel channel, ByteBuffer buffer, long at, String archiveName)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, at + buffer.position()) < 0) {
+                throw new IOException(archiveName + " : unexpected end of archive");
+            }
+        }
+    }
+
+    // close closes the archives kept open for readHead() and readAll().
+    void close() {
+        synchronized (zipFiles) {
+            for (ZipFile zipFile : zipFiles.values()) {
+                try {
+                    zipFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+            zipFiles.clear();
+        }
+        synchronized (tarFiles) {
+            for (FileChannel channel : tarFiles.values()) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            tarFiles.clear();
+        }
+    }
+
+    // isCandidate returns true if an entry may be a picture, as DirectoryScanner.isCandidate does for files.
+    private static boolean isCandidate(String entryName) {
+        String baseName = entryName.substring(entryName.lastIndexOf('/') + 1);
+        return !baseName.isEmpty() && DirectoryScanner.isCandidate(baseName);
+    }
+
+    // isTiff returns true if the bytes start with a TIFF header.
+    private static boolean isTiff(ByteBuffer head) {
+        return head.limit() >= 4 && head.get(0) == head.get(1) && (head.get(0) == 'I' || head.get(0) == 'M');
+    }
+
+    // readFully reads length bytes from in into bytes at offset, or fewer at the end of the stream, and
+    // returns the number read.
+    private static int readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            int r = in.read(bytes, offset + n, length - n);
+            if (r < 0) break;
+            n += r;
+        }
+        return n;
+    }
+
+    // The ZipLister lists the entries of a ZIP archive from its central directory.
+    private class ZipLister implements EntryLister {
+        private final String archiveName;
+        private final ZipFile zipFile;
+        private final Enumeration<? extends ZipEntry> zipEntries;
+
+        ZipLister(String archiveName) throws IOException {
+            this.archiveName = archiveName;
+            this.zipFile = zipFile(archiveName);
+            this.zipEntries = zipFile.entries();
+        }
+
+        @Override
+        public String nextEntry() throws IOException {
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                if (zipEntry.isDirectory() || !isCandidate(zipEntry.getName())) continue;
+                String name = archiveName + SEPARATOR + zipEntry.getName();
+                entries.put(name, new Entry(zipEntry.getSize(), zipEntry.getTime(), -1));
+                numEntries++;
+                return name;
+            }
+            return null;
+        }
+    }
+
+    // The TarLister steps through the headers of a TAR archive.
+    private class TarLister implements EntryLister {
+        private final String archiveName;
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(TAR_BLOCK);
+        private long position = 0;
+
+        TarLister(String archiveName) throws IOException {
+            this.archiveName = archiveName;
+            this.channel = tarFile(archiveName);
+        }
+
+        @Override
+        public String nextEntry() throws IOException {
+            String longName = null; // name from a GNU long name or pax header for the entry that follows
+            while (true) {
+                if (!readBlock(header, position)) return null;
+                if (isZeroBlock(header)) return null; // end of archive
+                if (!checksumOk(header)) {
+                    throw new IOException(archiveName + " : not a TAR archive or corrupt at " + position);
+                }
+                long size = octal(header, 124, 12);
+                long mtime = octal(header, 136, 12);
+                byte type = header.get(156);
+                long dataOffset = position + TAR_BLOCK;
+                position = dataOffset + (size + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+                if (type == 'L' || type == 'x') {
+                    // GNU long name or pax extended header for the next entry
+                    byte[] data = new byte[(int) Math.min(size, 1 << 20)];
+                    readAt(channel, ByteBuffer.wrap(data), dataOffset, archiveName);
+                    try {
+                        longName = type == 'L' ? cString(data, 0, data.length) : paxPath(data);
+                    } catch (IOException e) {
+                        throw new IOException(archiveName + " : " + e.getMessage() + " at " + dataOffset);
+                    }
+                    continue;
+                }
+                String entryName = longName != null ? longName : ustarName(header);
+                longName = null;
+                if ((type != '0' && type != 0) || !isCandidate(entryName)) continue;
+                String name = archiveName + SEPARATOR + entryName;
+                entries.put(name, new Entry(size, mtime * 1000L, dataOffset));
+                numEntries++;
+                return name;
+            }
+        }
+
+        // read one block, returning false at the end of the file
+        private boolean readBlock(ByteBuffer block, long at) throws IOException {
+            block.clear();
+            while (block.hasRemaining()) {
+                if (channel.read(block, at + block.position()) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static boolean isZeroBlock(ByteBuffer block) {
+        for (int i = 0; i < TAR_BLOCK; i++) {
+            if (block.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+    // the header checksum is the sum of the header bytes with the checksum field taken as spaces
+    private static boolean checksumOk(ByteBuffer block) {
+        long sum = 0;
+        for (int i = 0; i < TAR_BLOCK; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : (block.get(i) & 0xFF);
+        }
+        return sum == octal(block, 148, 8);
+    }
+
+    // octal reads a TAR number field, which is octal text or, for large values, base 256 with the top bit set.
+    private static long octal(ByteBuffer block, int start, int length) {
+        long value = 0;
+        if ((block.get(start) & 0x80) != 0) {
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (block.get(start + i) & 0xFF);
+            }
+            return value;
+        }
+        for (int i = start; i < start + length; i++) {
+            byte b = block.get(i);
+            if (b == 0 || b == ' ') {
+                if (value == 0 && b == ' ') continue; // leading spaces
+                break;
+            }
+            if (b < '0' || b > '7') break;
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    // ustarName returns the entry name from a header, with the ustar prefix if there is one.
+    private static String ustarName(ByteBuffer block) {
+        byte[] bytes = new byte[TAR_BLOCK];
+        block.position(0);
+        block.get(bytes);
+        String name = cString(bytes, 0, 100);
+        if (bytes[257] == 'u' && bytes[258] == 's' && bytes[259] == 't' && bytes[260] == 'a' && bytes[261] == 'r') {
+            String prefix = cString(bytes, 345, 155);
+            if (!prefix.isEmpty()) name = prefix + "/" + name;
+        }
+        return name;
+    }
+
+    // paxPath returns the path record of a pax extended header or null.  Records are "length key=value\n"
+    // where the length counts the whole record.  A record that does not fit that is an IOException.
+    private static String paxPath(byte[] data) throws IOException {
+        int i = 0;
+        while (i < data.length) {
+            int space = i;
+            long length = 0;
+            while (space < data.length && data[space] != ' ') {
+                if (data[space] < '0' || data[space] > '9' || length > data.length) {
+                    throw new IOException("bad pax header record length");
+                }
+                length = length * 10 + (data[space] - '0');
+                space++;
+            }
+            if (space >= data.length) return null;
+            // the length must cover at least the digits, the space and the newline
+            if (length <= space - i + 1 || i + length > data.length) {
+                throw new IOException("bad pax header record length " + length);
+            }
+            int end = i + (int) length;
+            String record = new String(data, space + 1, end - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith("path=")) return record.substring(5);
+            i = end;
+        }
+        return null;
+    }
+
+    private static String cString(byte[] bytes, int start, int length) {
+        int end = start;
+        while (end < start + length && end < bytes.length && bytes[end] != 0) end++;
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // this main() function lists the picture entries of archives and the time taken.  It is not necessary.
+    public static void main(String[] args) {
+        ArrayList<String> archives = new ArrayList<>();
+        for (String arg : args) archives.add(new File(arg).getPath());
+        long start = System.currentTimeMillis();
+        ArchiveSource source = new ArchiveSource(archives.iterator());
+        long bytes = 0;
+        while (source.hasNext()) {
+            String name = source.next();
+            try {
+                bytes += source.readHead(name).limit();
+            } catch (IOException e) {
+                System.out.println(name + " : " + e.getMessage());
+            }
+        }
+        source.close();
+        System.out.println(source.numEntries + " entries in " + source.numArchives + " archives, " + bytes +
+                " bytes read in " + (System.currentTimeMillis() - start) + " ms");
+        for (String failure : source.getFailures()) System.out.println(failure);
+    }
+}
@@ -0,0 +1,192 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * AsyncHeaderReader reads the first bytes of picture files with AsynchronousFileChannel so that many
+ * reads are outstanding at once.  On a spinning disk the time to open and seek to a file is much larger
+ * than the time to read the few KB of metadata at its start, and with many requests queued the disk can
+ * serve them in the order that needs the least head movement rather than one at a time.  A Semaphore
+ * bounds the number of reads in flight, which is the queue depth, and the bytes read are handed back
+ * through a CompletableFuture so the decoding can be done by other threads.
+ * </p>
+ * <p>
+ * The reader also counts the reads and bytes and the time they took so the IOPS and MB/s reached at a
+ * given queue depth can be reported.
+ * </p>
+ */
+class AsyncHeaderReader {
+
+    static final int HEADER_BYTES = 64 * 1024; // bytes read from each file, enough for a jpeg APP1 segment
+
+    private final int queueDepth;
+    private final Semaphore inFlight;
+    private final ExecutorService ioExecutor; // runs the channel i/o and completion handlers
+    private final AtomicLong numReads = new AtomicLong();
+    private final AtomicLong numBytes = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong(); // sum of the time from open to completion
+    private long startNanos;
+    private long endNanos;
+
+    /*
+     * <p>
+     * The {@code AsyncHeaderReader} constructor.
+     * </p>
+     *
+     * @param queueDepth - maximum number of reads in flight.  Values less than 1 are treated as 1.
+     */
+    AsyncHeaderReader(int queueDepth) {
+        this.queueDepth = queueDepth < 1 ? 1 : queueDepth;
+        this.inFlight = new Semaphore(this.queueDepth);
+        // where the platform has no native asynchronous file i/o the channels do their reads on this pool,
+        // so it has a thread for every read that may be in flight.
+        this.ioExecutor = Executors.newFixedThreadPool(this.queueDepth, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AsyncHeaderReader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.startNanos = 0;
+        this.endNanos = 0;
+    }
+
+    /*
+     * <p>
+     * The {@code read} method starts reading the first HEADER_BYTES of a file.  It waits if queueDepth
+     * reads are already in flight.
+     * </p>
+     *
+     * @param fileName - name of the file
+     * @returns a future that completes with a buffer holding the bytes read from position 0 to its limit
+     *          or exceptionally with the IOException
+     */
+    CompletableFuture<ByteBuffer> read(final String fileName) throws InterruptedException {
+        final CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        inFlight.acquire();
+        final long openNanos = System.nanoTime();
+        synchronized (this) {
+            if (startNanos == 0) startNanos = openNanos;
+        }
+        final AsynchronousFileChannel channel;
+        try {
+            channel = AsynchronousFileChannel.open(Paths.get(fileName),
+                    Collections.singleton(StandardOpenOption.READ), ioExecutor);
+        } catch (IOException | RuntimeException e) {
+            inFlight.release();
+            future.completeExceptionally(e);
+            return future;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES);
+        channel.read(buffer, 0, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer result, Void attachment) {
+                // a short read before the end of the file is continued
+                if (result >= 0 && buffer.hasRemaining()) {
+                    channel.read(buffer, buffer.position(), null, this);
+                    return;
+                }
+                buffer.flip();
+                finish(null);
+                future.complete(buffer);
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                finish(e);
+                future.completeExceptionally(e);
+            }
+
+            // close the channel, count the read and let another read start
+            private void finish(Throwable e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                long now = System.nanoTime();
+                if (e == null) {
+                    numReads.incrementAndGet();
+                    numBytes.addAndGet(buffer.limit());
+                    readNanos.addAndGet(now - openNanos);
+                }
+                synchronized (AsyncHeaderReader.this) {
+                    if (now > endNanos) endNanos = now;
+                }
+                inFlight.release();
+            }
+        });
+        return future;
+    }
+
+    // shutdown stops the i/o threads once the reads in flight have completed.
+    void shutdown() {
+        ioExecutor.shutdown();
+        try {
+            ioExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code getReport} method describes the reads done so far.
+     * </p>
+     *
+     * @returns the number of reads, reads per second, MB per second, average latency and queue depth
+     */
+    synchronized String getReport() {
+        long reads = numReads.get();
+        double seconds = (endNanos - startNanos) / 1.0E9;
+        if (reads == 0 || seconds <= 0) {
+            return "No asynchronous header reads";
+        }
+        return String.format("%d header reads at queue depth %d: %.0f IOPS, %.2f MB/s, %.2f ms average latency",
+                reads, queueDepth, reads / seconds, numBytes.get() / seconds / 1.0E6,
+                readNanos.get() / 1.0E6 / reads);
+    }
+}
@@ -0,0 +1,154 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * ColumnarLocations stores a list of timestamped locations like Locations does but keeps each field in
+ * its own primitive array instead of in a Location object per point.  A point costs 16 bytes, the
+ * latitude and longitude are read without going through an object and the time is stored as a long so
+ * it is not parsed from a String every time it is used.  Points are referred to by their index, which
+ * is the order they were added in.
+ * </p>
+ * <p>
+ * Latitude and longitude are stored as degrees * 10^7 in ints, which covers -214.7 to 214.7 degrees.
+ * </p>
+ *
+ * @author John A Robinson
+ */
+public class ColumnarLocations {
+
+    private int[] latitudeE7;
+    private int[] longitudeE7;
+    private long[] timestampMs;
+    private int size;
+
+    /* main constructor */
+    public ColumnarLocations() {
+        this(16);
+    }
+
+    public ColumnarLocations(int initialCapacity) {
+        if (initialCapacity < 1) initialCapacity = 1;
+        latitudeE7 = new int[initialCapacity];
+        longitudeE7 = new int[initialCapacity];
+        timestampMs = new long[initialCapacity];
+        size = 0;
+    }
+
+    /*
+     * <p>
+     * The {@code add} method appends a location.
+     * </p>
+     *
+     * @param timestampMs - time in ms since the epoch
+     * @param latitudeE7 - latitude in degrees * 10^7
+     * @param longitudeE7 - longitude in degrees * 10^7
+     * @returns the index of the new location
+     */
+    public int add(long timestampMs, long latitudeE7, long longitudeE7) {
+        if (size == this.timestampMs.length) {
+            int capacity = size + (size >> 1) + 1;
+            this.latitudeE7 = Arrays.copyOf(this.latitudeE7, capacity);
+            this.longitudeE7 = Arrays.copyOf(this.longitudeE7, capacity);
+            this.timestampMs = Arrays.copyOf(this.timestampMs, capacity);
+        }
+        this.latitudeE7[size] = toE7Int(latitudeE7);
+        this.longitudeE7[size] = toE7Int(longitudeE7);
+        this.timestampMs[size] = timestampMs;
+        return size++;
+    }
+
+    private static int toE7Int(long e7) {
+        if (e7 < Integer.MIN_VALUE || e7 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("coordinate out of range: " + e7);
+        }
+        return (int) e7;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* Accessor functions.  The index is not checked against size beyond the array bounds check. */
+
+    // time in ms since the epoch
+    public long getTimestampMs(int i) {
+        return timestampMs[i];
+    }
+    public Timestamp getTimestampMsTs(int i) {
+        return new Timestamp(timestampMs[i]);
+    }
+    public void setTimestampMs(int i, long timestampMs) {
+        this.timestampMs[i] = timestampMs;
+    }
+
+    // set and get latitude in E7 long and double format
+    public long getLatitudeE7(int i) {
+        return latitudeE7[i];
+    }
+    public void setLatitudeE7(int i, long latitudeE7) {
+        this.latitudeE7[i] = toE7Int(latitudeE7);
+    }
+    public double getLatitude(int i) {
+        return (double)latitudeE7[i] * 1.0E-7;
+    }
+
+    // set and get longitude in E7 long and double format
+    public long getLongitudeE7(int i) {
+        return longitudeE7[i];
+    }
+    public void setLongitudeE7(int i, long longitudeE7) {
+        this.longitudeE7[i] = toE7Int(longitudeE7);
+    }
+    public double getLongitude(int i) {
+        return (double)longitudeE7[i] * 1.0E-7;
+    }
+
+    // getLatLonTime copies latitude, longitude and time into a caller supplied array so a KdTree can
+    // be fed without allocating a tuple per point.  Only as many fields as fit in the array are copied.
+    public void getLatLonTime(int i, long[] latLonTime) {
+        latLonTime[0] = latitudeE7[i];
+        if (latLonTime.length > 1) latLonTime[1] = longitudeE7[i];
+        if (latLonTime.length > 2) latLonTime[2] = timestampMs[i];
+    }
+
+    // trimToSize releases the unused capacity
+    public void trimToSize() {
+        if (size < timestampMs.length) {
+            latitudeE7 = Arrays.copyOf(latitudeE7, size);
+            longitudeE7 = Arrays.copyOf(longitudeE7, size);
+            timestampMs = Arrays.copyOf(timestampMs, size);
+        }
+    }
+}
@@ -29,17 +29,20 @@ package org.jar;
  * OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import org.KdTree.KdTreeEx;
+import org.KdTree.IntKdTree;
 
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 
 /**
  * <p>
  * DBSCAN_Clusters implements a version of the popular DBSCAN clustering algorithm.  It depends upon the existence of
- * the KdTreeEx class implemented elsewhere to provide a mechanism for fast searches.
+ * the IntKdTree class implemented elsewhere to provide a mechanism for fast searches.
  * </p>
  *
  * @author John A. Robinson
@@ -55,7 +58,7 @@ class DBSCAN_Clusters {
      * The {@code DBSCAN_Clusters} is the primary constructor.  It needs to know the number of dimensions.
      * </p>
      *
-     * @param numDimensions - number of dimension each cluster point will have.  Needs to match the KdTreeEx dimensions
+     * @param numDimensions - number of dimension each cluster point will have.  Needs to match the IntKdTree dimensions
      */
     DBSCAN_Clusters(int numDimensions) {
         clusters = new ArrayList<>();
@@ -67,7 +70,6 @@ class DBSCAN_Clusters {
      */
     class Cluster {
         private ArrayList<Integer> clusterIdxs; // array of indices in the cluster
-        private ArrayList<long[]> clusterPoints; // temp array to old point associated with the above idxs.
         private long[] upperBounds; // upper point of the hypercube bounding the cluster.
         private long[] lowerBounds; // lower point of the hypercube bounding the cluster.
         private String tag;  // arbitrary tag string
@@ -75,7 +77,6 @@ class DBSCAN_Clusters {
         // Cluster constructor
         Cluster() {
             clusterIdxs = new ArrayList<>();
-            clusterPoints = new ArrayList<>();
             upperBounds = new long[numDimensions];
             lowerBounds = new long[numDimensions];
             for (int i = 0; i < numDimensions; i++) {
@@ -87,13 +88,18 @@ class DBSCAN_Clusters {
 
         /* adds a point to the current Cluster. */
         boolean add(long[] point, Integer locIdx) {
+            return add(point, 0, locIdx);
+        }
+
+        /* adds the point that starts at offset in an array of points to the current Cluster. */
+        boolean add(long[] points, int offset, int locIdx) {
             // get maintain the min and max.  Add an epsilon to the max to make sure its > all points.
             for (int i = 0; i < numDimensions; i++) {
-                if (point[i]+1 > upperBounds[i]) upperBounds[i] = point[i]+1;
-                if (point[i]   < lowerBounds[i]) lowerBounds[i] = point[i];
+                long t = points[offset + i];
+                if (t+1 > upperBounds[i]) upperBounds[i] = t+1;
+                if (t   < lowerBounds[i]) lowerBounds[i] = t;
             }
             clusterIdxs.add(locIdx);
-            clusterPoints.add(point);
             return true;
         }
 
@@ -159,6 +165,54 @@ class DBSCAN_Clusters {
         }
     } //Cluster
 
+    /* The ClusterBuilder receives the points found by each search of buildCluster.  One is made for each
+     * buildCluster call and reused for every search, and it keeps the points of the cluster being built in one
+     * growing array, numDimensions longs a point, so a search allocates nothing.
+     */
+    private class ClusterBuilder implements IntKdTree.PointConsumer {
+        private final IntKdTree kdTree; // the tree being searched
+        private Cluster cluster; // the cluster being built
+        private long[] points = new long[numDimensions * 1024]; // the points of the cluster in the order found
+        private int size; // the number of points in the points array
+
+        ClusterBuilder(IntKdTree kdTree) {
+            this.kdTree = kdTree;
+        }
+
+        // starts a new cluster at a seed point.
+        void start(long[] seed, int locIdx) {
+            cluster = new Cluster();
+            size = 0;
+            add(seed, locIdx);
+        }
+
+        @Override
+        public void accept(int treePoint, int value) {
+            long[] point = grow();
+            int offset = size * numDimensions;
+            for (int i = 0; i < numDimensions; i++) {
+                point[offset + i] = kdTree.getCoordinate(treePoint, i);
+            }
+            cluster.add(point, offset, value);
+            size++;
+        }
+
+        void add(long[] point, int locIdx) {
+            long[] points = grow();
+            System.arraycopy(point, 0, points, size * numDimensions, numDimensions);
+            cluster.add(points, size * numDimensions, locIdx);
+            size++;
+        }
+
+        // grow makes room for one more point.
+        private long[] grow() {
+            if ((size + 1) * numDimensions > points.length) {
+                points = Arrays.copyOf(points, points.length * 2);
+            }
+            return points;
+        }
+    }
+
     // external Cluster construction.
     public Cluster getNewCluster() {
         return new Cluster();
@@ -169,11 +223,11 @@ class DBSCAN_Clusters {
      * The {@code buildCluster} method builds the clusters
      * </p>
      *
-     * @param KdTreeEx - THe KdTree holding the data that is to be clustered.
+     * @param kdTree - THe KdTree holding the data that is to be clustered.
      * @param searchRadius - Array holding the cluster window size +/- from the center point.
      * @returns void
      */
-    void buildCluster(final KdTreeEx<Integer> kdTree, final long[] searchRadius) {
+    void buildCluster(final IntKdTree kdTree, final long[] searchRadius) {
 
         if(kdTree.getNumDimensions() != numDimensions) {
             System.out.println("KdTreee and DBSCAN_Cluster number of dimentions do not match");
@@ -182,46 +236,29 @@ class DBSCAN_Clusters {
         long[] qm = new long[numDimensions];
         // Start by picking an arbitrary point from the KdTree.  If none returned, the the KdTree is empty so
         // its done.
-        Integer nextIdx;
+        int nextIdx;
         long[] picPoint = new long[numDimensions];
-        while (null != (nextIdx = kdTree.pickValue(picPoint,1, true))) {
-            // add a new cluster
-            Cluster cluster = new Cluster();
-            // and add the seed point to it.
-            cluster.add(picPoint, nextIdx);
+        ClusterBuilder builder = new ClusterBuilder(kdTree);
+        while (IntKdTree.NO_VALUE != (nextIdx = kdTree.pickValue(picPoint,1, true))) {
+            // add a new cluster with the seed point in it.
+            builder.start(picPoint, nextIdx);
             // Step through each element in the cluster list and add to the cluster list all locations that are
             // within searchRad of the current element of the list.  The list will only contain 1 reference to
             // each item.  So the list will stop growing when there are no items closer searchRadius from any point
             // in the list
             int n = 0;
-            long[] point;
-            while (n < cluster.size()) {
+            while (n < builder.size) {
                 // get the search window for the k-d tree
-                point = cluster.clusterPoints.get(n);
-
+                int offset = n * numDimensions;
                 for (int i = 0; i < numDimensions; i++) {
-                    qp[i] = point[i] + searchRadius[i];
-                    qm[i] = point[i] - searchRadius[i];
-                }
-                // get the array of indices to the points in that search window
-                ArrayList<long[]> keys = new ArrayList<long[]>();
-                ArrayList<Integer> values = new ArrayList<Integer>();
-                kdTree.searchTree(keys, values, qp, qm);
-                // add each point to the cluster and remove it from the kdtree.
-                for (int m = 0; m < values.size(); m++) {
-                    // get the point
-                    point = keys.get(m);
-                    // add location index to the cluster
-                    cluster.add(point, values.get(m));
-                    // remove the index from the KdTree
-                    if (!kdTree.remove(point, values.get(m))) {
-                        System.out.println("KdTree Removal Value Error.");
-                    }
+                    qp[i] = builder.points[offset + i] + searchRadius[i];
+                    qm[i] = builder.points[offset + i] - searchRadius[i];
                 }
+                // add each point in that search window to the cluster and remove it from the kdtree.
+                kdTree.searchAndRemove(qp, qm, builder);
                 n++;
             }
-            cluster.clusterPoints = null;  // save space
-            clusters.add(cluster);
+            clusters.add(builder.cluster);
         }
     }
 
@@ -324,14 +361,24 @@ class DBSCAN_Clusters {
         return min + (long) ( Math.random() * (max - min) );
     }
 
+    // collections returns the number of garbage collections so far and the milliseconds they took.
+    private static long[] collections() {
+        long[] total = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total[0] += Math.max(0, collector.getCollectionCount());
+            total[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
     // this main() function provides a test simple case and usage examples and is not necessary.
     public static void main(String[] args) {
-        final Locations locations = new Locations();
         final int numClusters = 1600;
         final int numPointsPer = 1600;
         final int clusterSpan = 3;
         final int numDimensions = 3;
         final long searchRad = 1000;
+        final ColumnarLocations locations = new ColumnarLocations(numClusters * numPointsPer);
 
         // The test case provided here generates <numClusters> clusters where each cluster has <numPointsPer> points
         // in them.  The test is a pass if checkClusters() prints <numClusters> number of clusters and the average
@@ -349,26 +396,23 @@ class DBSCAN_Clusters {
         // around each cluster center point.  Make sure the cluster points are not adjacent in the Locations list.
         for (int i = 0; i < numClusters; i++) {
             for (int j = 0;  j < numPointsPer; j++) {
-                Locations.Location loc = locations.add();
-                loc.setLatitudeE7(clusterCenters[i][0] +
-                        randomIntegerInInterval(searchRad * -clusterSpan, searchRad * clusterSpan));
-                loc.setLongitudeE7(clusterCenters[i][1] +
-                        randomIntegerInInterval(searchRad * -clusterSpan, searchRad * clusterSpan));
-                loc.setTimestampMs (Long.toString(clusterCenters[i][2] +
-                        randomIntegerInInterval(0, searchRad * clusterSpan)));
+                locations.add(clusterCenters[i][2] +
+                                randomIntegerInInterval(0, searchRad * clusterSpan),
+                        clusterCenters[i][0] +
+                                randomIntegerInInterval(searchRad * -clusterSpan, searchRad * clusterSpan),
+                        clusterCenters[i][1] +
+                                randomIntegerInInterval(searchRad * -clusterSpan, searchRad * clusterSpan));
             }
         }
 
         // create, fill and build the KdTree
         long[] latLonTime = new long[3];
-        KdTreeEx<Integer> fKdTree = new KdTreeEx<Integer>((int)locations.size(), 3);
+        IntKdTree fKdTree = new IntKdTree(locations.size(), 3);
         fKdTree.setNumThreads(Runtime.getRuntime().availableProcessors());
 
         for (int idx = 0;  idx < locations.size(); idx++){
             // feed the kdTree
-            latLonTime[0] = locations.get(idx).getLatitudeE7();
-            latLonTime[1] = locations.get(idx).getLongitudeE7();
-            latLonTime[2] = locations.get(idx).getTimeStampLong();
+            locations.getLatLonTime(idx, latLonTime);
             if (0 > fKdTree.add(latLonTime, idx)) {
                 System.out.println("fKdTree data input error at " + idx);
             }
@@ -379,6 +423,17 @@ class DBSCAN_Clusters {
         // create a DBSCAN_Clusters object.
         DBSCAN_Clusters visitCluster = new DBSCAN_Clusters(numDimensions);
 
+        // count the bytes allocated and the collections while clustering, where the JVM can count
+        // them per thread.  It is not necessary.
+        final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final com.sun.management.ThreadMXBean threads =
+                threadBean instanceof com.sun.management.ThreadMXBean
+                        && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()
+                        ? (com.sun.management.ThreadMXBean) threadBean : null;
+        final long thread = Thread.currentThread().getId();
+        long allocated = threads != null ? threads.getThreadAllocatedBytes(thread) : 0;
+        long[] collections = collections();
+
         long clusterTime = System.currentTimeMillis();
 
         // get the search range to about cluster distance window, and build clusters
@@ -386,13 +441,24 @@ class DBSCAN_Clusters {
         visitCluster.buildCluster(fKdTree, window);
 
         long currentTime =  System.currentTimeMillis();
+        if (threads != null) allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        long[] after = collections();
         final double sC = (double) (currentTime - clusterTime) / 1000.;
         final double sO = (double) (currentTime - overallTime) / 1000;
         System.out.printf("Cluster time = %.3f\n", sC);
         System.out.printf("Overall time = %.3f\n", sO);
+        // there is one search for every point
+        if (threads != null) {
+            System.out.printf("Cluster allocated = %.1f MB (%.1f bytes per search), %d collections taking %d ms\n",
+                    allocated / 1048576., (double) allocated / locations.size(),
+                    after[0] - collections[0], after[1] - collections[1]);
+        } else {
+            System.out.printf("Cluster %d collections taking %d ms\n",
+                    after[0] - collections[0], after[1] - collections[1]);
+        }
 
         // check for errors in the clusters and print stats
-        if (!visitCluster.checkClusters((int)locations.size())) {
+        if (!visitCluster.checkClusters(locations.size())) {
             System.exit(1);
         }
         System.exit(0);
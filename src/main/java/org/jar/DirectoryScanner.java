@@ -0,0 +1,236 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <p>
+ * DirectoryScanner finds the picture files in a directory tree on its own thread and hands their paths out
+ * through an Iterator while the scan is still going, so that reading the metadata of the first files
+ * can start before the whole tree has been listed.  The paths are passed through a bounded queue so a
+ * scan that runs ahead of the readers waits instead of holding the names of every file in the tree.
+ * </p>
+ * <p>
+ * Every regular file other than hidden files and XMP sidecars is returned, since the picture format is
+ * decided from the file signature by MdataExtractors rather than from the name.  Files are returned in
+ * the order the directories list them, descending into a subdirectory when it is reached.
+ * </p>
+ */
+class DirectoryScanner implements Iterator<String> {
+
+    // marks the end of the scan in the queue.  Compared by reference.
+    private static final String END_OF_SCAN = new String("");
+
+    private final Path root;
+    private final int maxDepth;
+    private final BlockingQueue<String> queue;
+    private final ArrayList<String> failures; // directories or files that could not be read
+    private Thread scanThread;
+    private String next;
+    private int count;
+
+    /*
+     * <p>
+     * The {@code DirectoryScanner} constructor.
+     * </p>
+     *
+     * @param root - directory to be scanned
+     * @param recursions - number of levels of subdirectories to scan.  0 scans only the root directory.
+     * @param queueCapacity - maximum number of paths found but not yet taken by the Iterator
+     */
+    DirectoryScanner(File root, int recursions, int queueCapacity) {
+        this.root = root.toPath();
+        this.maxDepth = recursions < 0 ? Integer.MAX_VALUE : recursions + 1;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity < 1 ? 1 : queueCapacity);
+        this.failures = new ArrayList<>();
+        this.scanThread = null;
+        this.next = null;
+        this.count = 0;
+    }
+
+    // isCandidate returns true if a file may be a picture.  The format is decided later from the file
+    // signature so only hidden files and XMP sidecars, which are read along with their picture, are left out.
+    static boolean isCandidate(String fileName) {
+        return !fileName.startsWith(".") && !XmpSidecar.isSidecar(fileName);
+    }
+
+    /*
+     * <p>
+     * The {@code start} method starts the scan thread.  It returns this DirectoryScanner so the
+     * scanner can be created and started in one expression.
+     * </p>
+     */
+    DirectoryScanner start() {
+        scanThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), maxDepth,
+                            new SimpleFileVisitor<Path>() {
+                                @Override
+                                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                                    recordSidecars(dir);
+                                    return FileVisitResult.CONTINUE;
+                                }
+
+                                @Override
+                                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                                        throws IOException {
+                                    if (attrs.isRegularFile() && isCandidate(file.getFileName().toString())) {
+                                        put(file.toString());
+                                    }
+                                    return FileVisitResult.CONTINUE;
+                                }
+
+                                @Override
+                                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                                    addFailure(file + " : " + e.getMessage());
+                                    return FileVisitResult.CONTINUE;
+                                }
+                            });
+                } catch (IOException e) {
+                    addFailure(root + " : " + e.getMessage());
+                } catch (ScanStoppedException e) {
+                    // the scan was stopped
+                    return;
+                }
+                try {
+                    queue.put(END_OF_SCAN);
+                } catch (InterruptedException e) {
+                    // the scan was stopped
+                }
+            }
+        }, "DirectoryScanner");
+        scanThread.setDaemon(true);
+        scanThread.start();
+        return this;
+    }
+
+    // recordSidecars gives XmpSidecar the names of the sidecars in a directory before any of its pictures
+    // are handed out.  The pictures of a directory may be listed before their sidecars, so the names are
+    // read here rather than as walkFileTree reaches them.  Only the names are read, not the attributes, and
+    // a directory that can't be listed is left for walkFileTree to report.
+    private static void recordSidecars(Path dir) {
+        HashSet<String> sidecarNames = new HashSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (XmpSidecar.isSidecar(name)) sidecarNames.add(name);
+            }
+        } catch (IOException | RuntimeException e) {
+            return;
+        }
+        XmpSidecar.addDirectory(dir.toString(), sidecarNames);
+    }
+
+    // put waits for room in the queue.  Being interrupted while waiting means the scan was stopped and
+    // is passed up through walkFileTree as an unchecked exception.
+    private void put(String fileName) {
+        try {
+            queue.put(fileName);
+        } catch (InterruptedException e) {
+            throw new ScanStoppedException();
+        }
+    }
+
+    private static class ScanStoppedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private void addFailure(String failure) {
+        synchronized (failures) {
+            failures.add(failure);
+        }
+        System.out.println("Scan Error on " + failure);
+    }
+
+    /*
+     * <p>
+     * The {@code stop} method stops the scan thread if it is still running.  It is used when the
+     * consumer does not want the rest of the files.
+     * </p>
+     */
+    void stop() {
+        if (scanThread != null) scanThread.interrupt();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("directory scan interrupted: " + e.getMessage());
+            }
+            if (next != END_OF_SCAN) count++;
+        }
+        if (next == END_OF_SCAN) {
+            // leave the marker in place so later calls also return false.
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        String fileName = next;
+        next = null;
+        return fileName;
+    }
+
+    // returns the number of files handed out so far.
+    int getCount() {
+        return count;
+    }
+
+    // returns the directories and files that could not be read.
+    ArrayList<String> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+}
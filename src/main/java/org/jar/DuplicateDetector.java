@@ -0,0 +1,296 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.jar.EarthPicsViewer.PicturesMdata.PictureMdata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>
+ * DuplicateDetector finds copies of the same picture among the files read by MdataIngest so each
+ * picture is mapped once however many folders it is in.  Two files are taken to be the same picture if
+ * they have the same size, the same hash of their header, which for a jpeg file is the EXIF segment,
+ * and the same hash of their whole content.  The header hash is made from bytes the ingest has already
+ * read, so it costs no i/o.  The content hash needs the whole file to be read, so it is only made for
+ * files whose size and header hash match another file's.
+ * </p>
+ * <p>
+ * The work is split in two.  The ingest workers call seen() for every picture they read, which is where
+ * the content hashes of files that share a header hash are made, so they are made in parallel.  The
+ * thread that stores the pictures then calls findOriginal() for each picture, in file list order, and a
+ * picture that is a copy of one already stored is added to that one's alternate paths instead of being
+ * stored itself.  The first copy in file list order is the one that is kept.
+ * </p>
+ * <p>
+ * The content hashes are kept in the MdataCache with the rest of what is known about each file, so a
+ * file that has not changed since the last run is not read again to compare it with its copies.
+ * </p>
+ */
+class DuplicateDetector {
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    // A Stored picture is one that was stored, which later copies are compared with.
+    private static class Stored {
+        final PictureMdata pictureMdata;
+        final long size;
+        final ImageMdata imageMdata;
+
+        Stored(PictureMdata pictureMdata, long size, ImageMdata imageMdata) {
+            this.pictureMdata = pictureMdata;
+            this.size = size;
+            this.imageMdata = imageMdata;
+        }
+    }
+
+    private final ArchiveSource archives; // the source of pictures that are archive entries or null
+    private final ConcurrentHashMap<Long, String> firstSeen; // first file seen by the workers for each key
+    private final ConcurrentHashMap<String, FutureTask<byte[]>> contentHashes; // made at most once per file
+    private final HashMap<Long, ArrayList<Stored>> stored; // stored pictures by key.  Storing thread only.
+    int numDuplicates;   // pictures that were added as alternate paths
+    int numContentHashes; // files whose whole content was hashed
+
+    /*
+     * <p>
+     * The {@code DuplicateDetector} constructor.
+     * </p>
+     *
+     * @param archives - the ArchiveSource the pictures that are archive entries came from or null
+     */
+    DuplicateDetector(ArchiveSource archives) {
+        this.archives = archives;
+        this.firstSeen = new ConcurrentHashMap<>();
+        this.contentHashes = new ConcurrentHashMap<>();
+        this.stored = new HashMap<>();
+        this.numDuplicates = 0;
+        this.numContentHashes = 0;
+    }
+
+    /*
+     * <p>
+     * The {@code headerHash} method returns the hash of the EXIF segment of a jpeg file, or of the first
+     * AsyncHeaderReader.HEADER_BYTES of other files.  The bytes are taken 8 at a time, so this is fast enough to run on
+     * every file.
+     * </p>
+     *
+     * @param head - the start of the file from position 0 to its limit
+     * @returns the hash, which is never 0 so 0 can mean no hash
+     */
+    static long headerHash(ByteBuffer head) {
+        ByteBuffer bytes;
+        try {
+            bytes = JpegExifReader.findExif(head).duplicate();
+        } catch (JpegExifReader.UnsupportedException e) {
+            // the same number of bytes however much of the file the caller happened to read
+            bytes = head.duplicate();
+            bytes.position(0);
+            bytes.limit(Math.min(head.limit(), AsyncHeaderReader.HEADER_BYTES));
+        }
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+        long hash = 0x9E3779B97F4A7C15L ^ bytes.remaining();
+        while (bytes.remaining() >= 8) {
+            hash = mix(hash ^ bytes.getLong());
+        }
+        while (bytes.hasRemaining()) {
+            hash = mix(hash ^ (bytes.get() & 0xFF));
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    // mix is the 64 bit finalizer of MurmurHash3, which spreads every input bit across the result.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // key combines the size and header hash of a file.  Files with the same key are compared by content.
+    private static long key(long size, long headerHash) {
+        return mix(headerHash ^ size);
+    }
+
+    /*
+     * <p>
+     * The {@code seen} method is called by an ingest worker for each picture it has read.  If another
+     * picture with the same size and header hash has been seen the content hashes of both are made now,
+     * on the worker, so that findOriginal() finds them ready.  It may be called from several threads.
+     * </p>
+     *
+     * @param fileName - name of the picture
+     * @param size - size of the picture file
+     * @param headerHash - the headerHash() of the picture
+     */
+    void seen(String fileName, long size, long headerHash) {
+        String first = firstSeen.putIfAbsent(key(size, headerHash), fileName);
+        if (first != null && !first.equals(fileName)) {
+            contentHash(first);
+            contentHash(fileName);
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code findOriginal} method checks whether a picture is a copy of one already stored.  Only the
+     * thread that stores the pictures may call it.
+     * </p>
+     *
+     * @param fileName - name of the picture
+     * @param size - size of the picture file
+     * @param headerHash - the headerHash() of the picture
+     * @param imageMdata - the time and location of the picture
+     * @returns the stored picture it is a copy of, or null if it is not a copy
+     */
+    PictureMdata findOriginal(String fileName, long size, long headerHash, ImageMdata imageMdata) {
+        ArrayList<Stored> candidates = stored.get(key(size, headerHash));
+        if (candidates == null) return null;
+        for (Stored candidate : candidates) {
+            // copies with a different time or location, say from their sidecars, are mapped separately
+            if (candidate.size != size || candidate.imageMdata.timestampMs != imageMdata.timestampMs ||
+                    candidate.imageMdata.latitudeE7 != imageMdata.latitudeE7 ||
+                    candidate.imageMdata.longitudeE7 != imageMdata.longitudeE7) {
+                continue;
+            }
+            byte[] hash = contentHash(fileName);
+            if (hash != null && Arrays.equals(hash, contentHash(candidate.pictureMdata.srcFileName))) {
+                numDuplicates++;
+                return candidate.pictureMdata;
+            }
+        }
+        return null;
+    }
+
+    // stored records a picture that was stored so later copies of it are found.  Only the thread that
+    // stores the pictures may call it.
+    void stored(PictureMdata pictureMdata, long size, long headerHash, ImageMdata imageMdata) {
+        long key = key(size, headerHash);
+        ArrayList<Stored> candidates = stored.get(key);
+        if (candidates == null) {
+            candidates = new ArrayList<>(1);
+            stored.put(key, candidates);
+        }
+        candidates.add(new Stored(pictureMdata, size, imageMdata));
+    }
+
+    // knownContentHash gives the content hash of a file found in the MdataCache, so the file is not read
+    // again if it has to be compared.  It may be called from several threads.
+    void knownContentHash(String fileName, final byte[] contentHash) {
+        FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return contentHash;
+            }
+        });
+        task.run();
+        contentHashes.putIfAbsent(fileName, task);
+    }
+
+    // putContentHashes adds the content hashes made this run to the entries the cache will save.  It is
+    // called by the thread that owns the cache once the ingest is done.
+    void putContentHashes(MdataCache cache) {
+        for (Map.Entry<String, FutureTask<byte[]>> e : contentHashes.entrySet()) {
+            // a hash that a stopped ingest never finished is left out
+            if (!e.getValue().isDone()) continue;
+            byte[] hash = contentHash(e.getKey());
+            if (hash != null) cache.setContentHash(e.getKey(), hash);
+        }
+    }
+
+    // getReport describes the duplicates that were found.
+    String getReport() {
+        return numDuplicates + " duplicate pictures found, " + numContentHashes + " files compared by content";
+    }
+
+    // contentHash returns the SHA-256 hash of the whole file, making it the first time it is asked for,
+    // or null if the file could not be read.
+    private byte[] contentHash(final String fileName) {
+        FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return hashFile(fileName);
+            }
+        });
+        FutureTask<byte[]> existing = contentHashes.putIfAbsent(fileName, task);
+        if (existing == null) {
+            task.run();
+            existing = task;
+        }
+        try {
+            return existing.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private byte[] hashFile(String fileName) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        synchronized (this) {
+            numContentHashes++;
+        }
+        if (archives != null && archives.isEntry(fileName)) {
+            return digest.digest(archives.readAll(fileName));
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+}
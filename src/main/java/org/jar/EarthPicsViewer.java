@@ -30,8 +30,9 @@ package org.jar;
  */
 
 import de.micromata.opengis.kml.v_2_2_0.*;
-import org.KdTree.KdTree;
-import org.KdTree.KdTreeEx;
+import org.KdTree.IntKdTree;
+import org.KdTree.PolygonRegion;
+import org.KdTree.RegionFilter;
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.Imaging;
 import org.apache.commons.imaging.common.ImageMetadata;
@@ -40,11 +41,14 @@ import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
 import org.apache.commons.imaging.formats.tiff.TiffField;
 import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
 import org.apache.commons.imaging.formats.tiff.constants.GpsTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.TiffDirectoryType;
 import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.apache.commons.imaging.formats.tiff.taginfos.TagInfoAscii;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
@@ -53,7 +57,11 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
+import java.util.List;
+import java.util.TimeZone;
 
 public class EarthPicsViewer {
 
@@ -61,15 +69,88 @@ public class EarthPicsViewer {
 
     final static int cores = Runtime.getRuntime().availableProcessors();
 
+    // number of threads used to read the picture metadata.  Set with the -t command line option.
+    static int ingestThreads = cores;
+
+    // number of asynchronous file header reads kept in flight while reading the picture metadata or 0 to
+    // read each file on its ingest thread.  Set with the -q command line option.
+    static int asyncQueueDepth = 0;
+
+    // if true, files last modified before the Earliest Time, less a day, are skipped without being read.
+    // Set with the --mtimeFilter option.
+    static boolean useModifiedTimeFilter = false;
+
+    // if true, copies of the same picture in different folders are mapped once, with the other paths listed
+    // in its balloon.  Set with the --dedup option.
+    static boolean findDuplicates = false;
+
+    // the files that could not be read are listed in this file in the KML directory
+    static final String READ_ERRORS_FILE_NAME = "read-errors.txt";
+
+    // if true, the ingest continues from the checkpoint left in the KML directory by an earlier run with
+    // the same inputs rather than starting over.  Set with the --resume option.
+    static boolean resumeIngest = false;
+
+    // if true, the placemark balloons show thumbnails written to the thumbs directory rather than the
+    // pictures themselves.  Turned off with the --noThumbs option.
+    static boolean makeThumbnails = true;
+
+    // if true, picture metadata is cached in the output directory.  Turned off with the --noCache option.
+    static boolean useMdataCache = true;
+
+    // number of levels of subdirectories of the picture directory that are searched for pictures.
+    // Set with the -r command line option.
+    static int scanRecursions = 0;
+
+    // if true, the KML is written as one file per top level cluster and only the clusters that changed
+    // since the last run are rebuilt.  Set with the -i command line option.
+    static boolean incremental = false;
+
+    // location history file used to locate pictures without GPS data by their time, or null.  Set with
+    // the --track option.  trackGapMinutes, set with --trackGap, is the most time between a picture and
+    // the track fixes used to locate it.
+    static String trackFileName = null;
+    static int trackGapMinutes = 30;
+
+    // the time zone that the pictures without a UTC offset in their metadata were taken in, or null for
+    // the default time zone of the machine.  Picture times are local times while the track is in UTC, so
+    // this is needed to locate pictures taken away from home.  Set with the --timeZone option.
+    static TimeZone pictureTimeZone = null;
+
+    // boxes of {south, west, north, east} in degrees.  Only the pictures inside an include box, or anywhere
+    // if there are none, and inside no exclude box are mapped.  Added with the --include and --exclude options.
+    static ArrayList<double[]> includeBoxes = new ArrayList<>();
+    static ArrayList<double[]> excludeBoxes = new ArrayList<>();
+
+    // KML files of polygons, such as countries or parks, that the pictures are limited to or kept out of in
+    // the same way as the boxes.  Added with the --includeArea and --excludeArea options.
+    static ArrayList<String> includeAreaFiles = new ArrayList<>();
+    static ArrayList<String> excludeAreaFiles = new ArrayList<>();
+
     static InputForm inputForm = null;
 
     private static class FilterParameter {
+        private static final long MIN_LATITUDE_E7 = -900000000L;
+        private static final long MAX_LATITUDE_E7 = 900000000L;
+        private static final long MIN_LONGITUDE_E7 = -1800000000L;
+        private static final long MAX_LONGITUDE_E7 = 1800000000L;
+
         private ArrayList<long[][]> includeRegions;
         private ArrayList<long[][]> excludeRegions;
 
+        // polygons of latitude and longitude and the regions of time and place they are limited to
+        private ArrayList<PolygonRegion> includePolygons;
+        private ArrayList<long[][]> includePolygonRegions;
+        private ArrayList<PolygonRegion> excludePolygons;
+        private ArrayList<long[][]> excludePolygonRegions;
+
         FilterParameter() {
             includeRegions = new ArrayList<>();
             excludeRegions = new ArrayList<>();
+            includePolygons = new ArrayList<>();
+            includePolygonRegions = new ArrayList<>();
+            excludePolygons = new ArrayList<>();
+            excludePolygonRegions = new ArrayList<>();
         }
 
         public void addIncludeRegion(final long maxLat, final long maxLon, final long maxTime,
@@ -103,95 +184,262 @@ public class EarthPicsViewer {
         public int numIncludeRegions() {
             return includeRegions.size();
         }
+
+        // addIncludeBox adds include regions for a box of {south, west, north, east} in degrees between two
+        // times.  The edges of the box are in it and a box whose west is east of its east crosses 180 degrees.
+        public void addIncludeBox(final double[] box, final long time1, final long time2) {
+            for (long[] latLon : boxToE7(box)) {
+                addIncludeRegion(latLon[0], latLon[1], time1, latLon[2], latLon[3], time2);
+            }
+        }
+
+        // addExcludeBox adds exclude regions for a box of {south, west, north, east} in degrees at any time.
+        public void addExcludeBox(final double[] box) {
+            for (long[] latLon : boxToE7(box)) {
+                addExcludeRegion(latLon[0], latLon[1], Long.MAX_VALUE, latLon[2], latLon[3], Long.MIN_VALUE);
+            }
+        }
+
+        // boxToE7 returns the {maxLat, maxLon, minLat, minLon} bounds of a box, split in two if it crosses
+        // 180 degrees.  The max bounds are one past the north and east edges since a region leaves them out.
+        private static ArrayList<long[]> boxToE7(final double[] box) {
+            long south = (long) (box[0] * 1.0E7);
+            long west = (long) (box[1] * 1.0E7);
+            long north = (long) (box[2] * 1.0E7) + 1;
+            long east = (long) (box[3] * 1.0E7) + 1;
+            ArrayList<long[]> bounds = new ArrayList<>();
+            if (west < east) {
+                bounds.add(new long[]{north, east, south, west});
+            } else {
+                bounds.add(new long[]{north, MAX_LONGITUDE_E7 + 1, south, west});
+                bounds.add(new long[]{north, east, south, MIN_LONGITUDE_E7});
+            }
+            return bounds;
+        }
+
+        // addIncludePolygon adds an include region of the pictures inside a polygon and between two times.
+        public void addIncludePolygon(final PolygonRegion polygon, final long time1, final long time2) {
+            includePolygons.add(polygon);
+            includePolygonRegions.add(new long[][]{{Long.MAX_VALUE, Long.MAX_VALUE, time1},
+                    {Long.MIN_VALUE, Long.MIN_VALUE, time2}});
+        }
+
+        // addExcludePolygon adds an exclude region of the pictures inside a polygon at any time.
+        public void addExcludePolygon(final PolygonRegion polygon) {
+            excludePolygons.add(polygon);
+            excludePolygonRegions.add(new long[][]{{Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE},
+                    {Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE}});
+        }
+
+        // toRegionFilter returns a RegionFilter that tests all of the regions in one walk of a KdTree.
+        public RegionFilter toRegionFilter() {
+            RegionFilter filter = new RegionFilter();
+            for (long[][] region : includeRegions) filter.addInclude(region[0], region[1]);
+            for (long[][] region : excludeRegions) filter.addExclude(region[0], region[1]);
+            for (int i = 0; i < includePolygons.size(); i++) {
+                long[][] region = includePolygonRegions.get(i);
+                filter.addInclude(includePolygons.get(i), region[0], region[1]);
+            }
+            for (int i = 0; i < excludePolygons.size(); i++) {
+                long[][] region = excludePolygonRegions.get(i);
+                filter.addExclude(excludePolygons.get(i), region[0], region[1]);
+            }
+            return filter;
+        }
+
+        // constrainsLocation returns true if any region leaves out some latitudes or longitudes, so the
+        // regions can't be answered from the times alone.
+        public boolean constrainsLocation() {
+            if (!includePolygons.isEmpty() || !excludePolygons.isEmpty()) return true;
+            ArrayList<long[][]> regions = new ArrayList<>(includeRegions);
+            regions.addAll(excludeRegions);
+            for (long[][] region : regions) {
+                if (Math.min(region[0][0], region[1][0]) > MIN_LATITUDE_E7 ||
+                        Math.max(region[0][0], region[1][0]) < MAX_LATITUDE_E7 ||
+                        Math.min(region[0][1], region[1][1]) > MIN_LONGITUDE_E7 ||
+                        Math.max(region[0][1], region[1][1]) < MAX_LONGITUDE_E7) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
-    // The PicturesMdata class reads in and holds the metadata for all jpeg files.  It also provides the
+    // The PicturesMdata class reads in and holds the metadata for all picture files.  It also provides the
     // container for all the instances.
     public static class PicturesMdata {
 
-        Locations picLocations = new Locations();
+        // the time and location of each picture.  Index i in picLocations is picture i in pictureMdataList.
+        ColumnarLocations picLocations = new ColumnarLocations();
 
-        //The PictureMdata class reads in and hold the metadata for one jpeg file.
+        //The PictureMdata class holds the file names for one picture file.  Its time and location are in
+        // picLocations at the same index.
         public class PictureMdata {
             String srcFileName;
             String dstFileName;
-            Locations.Location location;
+            ArrayList<String> alternates; // other copies of the same picture or null if there are none
 
-            private PictureMdata(String srcFileName, String dstFileName, JpegImageMetadata jpegMetadata)
-                    throws ImageReadException, ParseException {
+            private PictureMdata(String srcFileName, String dstFileName) {
                 this.srcFileName = srcFileName;
                 this.dstFileName = dstFileName;
-                location = picLocations.add();
-                // parse time and add it to location data
-                String origDate = null;
-                if (jpegMetadata.findEXIFValueWithExactMatch(
-                        ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL)!=null) {
-                    origDate = jpegMetadata.findEXIFValueWithExactMatch(
-                            ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL).getStringValue();
-                } else {
-                    throw new ImageReadException("Date Read Error");
-                }
-                DateFormat df = new SimpleDateFormat("yyyy:MM:dd hh:mm:ss");
-                Timestamp ts = new Timestamp(((java.util.Date) df.parse(origDate)).getTime());
-                location.setTimestampMs(ts);
-                // parse location and add it to the location data.
-                final TiffField gpsLatitudeRefField = jpegMetadata.findEXIFValueWithExactMatch(
-                        GpsTagConstants.GPS_TAG_GPS_LATITUDE_REF);
-                final TiffField gpsLatitudeField = jpegMetadata.findEXIFValueWithExactMatch(
-                        GpsTagConstants.GPS_TAG_GPS_LATITUDE);
-                final TiffField gpsLongitudeRefField = jpegMetadata.findEXIFValueWithExactMatch(
-                        GpsTagConstants.GPS_TAG_GPS_LONGITUDE_REF);
-                final TiffField gpsLongitudeField = jpegMetadata.findEXIFValueWithExactMatch(
-                        GpsTagConstants.GPS_TAG_GPS_LONGITUDE);
-                if (gpsLatitudeRefField != null && gpsLatitudeField != null &&
-                        gpsLongitudeRefField != null &&
-                        gpsLongitudeField != null) {
-                    // all of these values are strings.
-                    final String gpsLatitudeRef = (String) gpsLatitudeRefField.getValue();
-                    final RationalNumber gpsLatitude[] = (RationalNumber[]) (gpsLatitudeField.getValue());
-                    final String gpsLongitudeRef = (String) gpsLongitudeRefField.getValue();
-                    final RationalNumber gpsLongitude[] = (RationalNumber[]) gpsLongitudeField.getValue();
-
-                    Double dLongitude = gpsLongitude[0].doubleValue() + gpsLongitude[1].doubleValue() / 60.0 +
-                            gpsLongitude[2].doubleValue() / 3600.0;
-                    if (gpsLongitudeRef.equals("W")) {
-                        dLongitude = -dLongitude;
-                    }
-                    Double dLatitude = gpsLatitude[0].doubleValue() + gpsLatitude[1].doubleValue() / 60.0 +
-                            gpsLatitude[2].doubleValue() / 3600.0;
-                    if (gpsLatitudeRef.equals("S")) {
-                        dLatitude = -dLatitude;
-                    }
-                    location.setLatitude(dLatitude);
-                    location.setLongitude(dLongitude);
-                } else {
-                    throw new ImageReadException("GPS Read Error");
-                }
+                this.alternates = null;
+            }
+
+            // addAlternate records another path of the same picture
+            void addAlternate(String srcFileName) {
+                if (alternates == null) alternates = new ArrayList<>(1);
+                alternates.add(srcFileName);
             }
         }
 
         ArrayList<PictureMdata> pictureMdataList;
 
+        // pictures that have a time but no location.  They are kept here until they are located from a
+        // track and are not part of get() or size().
+        ArrayList<PictureMdata> unlocatedList = new ArrayList<>();
+        ColumnarLocations unlocatedLocations = new ColumnarLocations();
+        // the UTC offset of each unlocated picture's time, or ImageMdata.NO_OFFSET, for the track
+        int[] unlocatedOffsets = new int[16];
+
         public PicturesMdata() {
             pictureMdataList = new ArrayList();
         }
 
-        public PictureMdata add(String srcFileName, String dstFilename)
+        // readMdata reads the time and location from one picture file.  It returns null if the file is not
+        // a picture format that can be read and an ImageMdata without a location if the file has no GPS
+        // data.  It does not touch any PicturesMdata state so it may be called from several threads at
+        // once.  The format is chosen by the file signature and the XMP sidecar, if any, is merged in by
+        // MdataExtractors.
+        public static ImageMdata readMdata(String srcFileName)
+                throws IOException, ImageReadException, ParseException {
+            return MdataExtractors.read(srcFileName);
+        }
+
+        // readMdataWithImaging reads the time and location from one jpeg file with commons-imaging.
+        public static ImageMdata readMdataWithImaging(String srcFileName)
                 throws IOException, ImageReadException, ParseException {
-            PictureMdata pm = null;
             final ImageMetadata metadata = Imaging.getMetadata(new File(srcFileName));
-            if (metadata instanceof JpegImageMetadata) {
-                JpegImageMetadata jpegMetadata = (JpegImageMetadata) metadata;
-                pm = new PictureMdata(srcFileName, dstFilename, jpegMetadata);
+            if (!(metadata instanceof JpegImageMetadata)) {
+                return null;
+            }
+            JpegImageMetadata jpegMetadata = (JpegImageMetadata) metadata;
+            // parse time
+            String origDate = null;
+            if (jpegMetadata.findEXIFValueWithExactMatch(
+                    ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL)!=null) {
+                origDate = jpegMetadata.findEXIFValueWithExactMatch(
+                        ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL).getStringValue();
+            } else {
+                throw new ImageReadException("Date Read Error");
+            }
+            long timestampMs = ExifDate.parse(origDate);
+            // parse location
+            final TiffField gpsLatitudeRefField = jpegMetadata.findEXIFValueWithExactMatch(
+                    GpsTagConstants.GPS_TAG_GPS_LATITUDE_REF);
+            final TiffField gpsLatitudeField = jpegMetadata.findEXIFValueWithExactMatch(
+                    GpsTagConstants.GPS_TAG_GPS_LATITUDE);
+            final TiffField gpsLongitudeRefField = jpegMetadata.findEXIFValueWithExactMatch(
+                    GpsTagConstants.GPS_TAG_GPS_LONGITUDE_REF);
+            final TiffField gpsLongitudeField = jpegMetadata.findEXIFValueWithExactMatch(
+                    GpsTagConstants.GPS_TAG_GPS_LONGITUDE);
+            if (gpsLatitudeRefField != null && gpsLatitudeField != null &&
+                    gpsLongitudeRefField != null &&
+                    gpsLongitudeField != null) {
+                // all of these values are strings.
+                final String gpsLatitudeRef = (String) gpsLatitudeRefField.getValue();
+                final RationalNumber gpsLatitude[] = (RationalNumber[]) (gpsLatitudeField.getValue());
+                final String gpsLongitudeRef = (String) gpsLongitudeRefField.getValue();
+                final RationalNumber gpsLongitude[] = (RationalNumber[]) gpsLongitudeField.getValue();
+
+                Double dLongitude = gpsLongitude[0].doubleValue() + gpsLongitude[1].doubleValue() / 60.0 +
+                        gpsLongitude[2].doubleValue() / 3600.0;
+                if (gpsLongitudeRef.equals("W")) {
+                    dLongitude = -dLongitude;
+                }
+                Double dLatitude = gpsLatitude[0].doubleValue() + gpsLatitude[1].doubleValue() / 60.0 +
+                        gpsLatitude[2].doubleValue() / 3600.0;
+                if (gpsLatitudeRef.equals("S")) {
+                    dLatitude = -dLatitude;
+                }
+                return new ImageMdata(timestampMs, (long)(dLatitude * 1.0E7), (long)(dLongitude * 1.0E7));
+            } else {
+                // a picture without a location may be located from a track, which needs its UTC offset
+                ImageMdata imageMdata = new ImageMdata(timestampMs);
+                TiffField offsetField = jpegMetadata.findEXIFValueWithExactMatch(OFFSET_TIME_ORIGINAL);
+                if (offsetField != null) {
+                    imageMdata.utcOffsetMinutes = ExifDate.parseOffset(offsetField.getStringValue());
+                }
+                return imageMdata;
             }
+        }
+
+        // this version of commons-imaging has no constant for the EXIF 2.31 OffsetTimeOriginal tag
+        private static final TagInfoAscii OFFSET_TIME_ORIGINAL = new TagInfoAscii("OffsetTimeOriginal", 0x9011, 7,
+                TiffDirectoryType.EXIF_DIRECTORY_EXIF_IFD);
+
+        public PictureMdata add(String srcFileName, String dstFilename)
+                throws IOException, ImageReadException, ParseException {
+            ImageMdata imageMdata = readMdata(srcFileName);
+            if (imageMdata != null && !imageMdata.hasLocation) {
+                throw new ImageReadException("GPS Read Error");
+            }
+            return add(srcFileName, dstFilename, imageMdata);
+        }
+
+        // add stores metadata that has already been read.  Files that were not pictures, i.e. the
+        // imageMdata is null, are not stored.  Pictures without a location are put in the unlocated list.
+        public PictureMdata add(String srcFileName, String dstFilename, ImageMdata imageMdata) {
+            if (imageMdata == null) return null;
+            PictureMdata pm = new PictureMdata(srcFileName, dstFilename);
+            if (!imageMdata.hasLocation) {
+                if (unlocatedList.size() == unlocatedOffsets.length) {
+                    unlocatedOffsets = Arrays.copyOf(unlocatedOffsets, 2 * unlocatedOffsets.length);
+                }
+                unlocatedOffsets[unlocatedList.size()] = imageMdata.utcOffsetMinutes;
+                unlocatedList.add(pm);
+                unlocatedLocations.add(imageMdata.timestampMs, 0, 0);
+                return pm;
+            }
+            picLocations.add(imageMdata.timestampMs, imageMdata.latitudeE7, imageMdata.longitudeE7);
             pictureMdataList.add(pm);
             return pm;
         }
 
+        // returns the number of pictures waiting to be located
+        public int numUnlocated() {
+            return unlocatedList.size();
+        }
+
+        // locateFromTrack moves the unlocated pictures that the geotagger can locate into the list of
+        // pictures and returns the source file names of the ones it can't.  The unlocated list is empty
+        // afterwards.
+        public ArrayList<String> locateFromTrack(TimeGeotagger geotagger) {
+            BitSet located = geotagger.locate(unlocatedLocations, unlocatedOffsets);
+            ArrayList<String> notLocated = new ArrayList<>();
+            for (int i = 0; i < unlocatedList.size(); i++) {
+                if (located.get(i)) {
+                    picLocations.add(unlocatedLocations.getTimestampMs(i), unlocatedLocations.getLatitudeE7(i),
+                            unlocatedLocations.getLongitudeE7(i));
+                    pictureMdataList.add(unlocatedList.get(i));
+                } else {
+                    notLocated.add(unlocatedList.get(i).srcFileName);
+                }
+            }
+            unlocatedList = new ArrayList<>();
+            unlocatedLocations = new ColumnarLocations();
+            unlocatedOffsets = new int[16];
+            return notLocated;
+        }
+
         public PictureMdata get(int i) {
             return pictureMdataList.get(i);
         }
 
+        // returns the time and location of all pictures indexed the same as get()
+        public ColumnarLocations getLocations() {
+            return picLocations;
+        }
+
         public int size() {
             return pictureMdataList.size();
         }
@@ -269,16 +517,11 @@ public class EarthPicsViewer {
 
     public static ArrayList<String> listFilesForFolder(final File folder, int recursions) {
         ArrayList<String> fn = new ArrayList<>();
-        for (final File fileEntry : folder.listFiles()) {
-            if (fileEntry.isDirectory()) {
-                if (recursions > 0) fn.addAll(listFilesForFolder(fileEntry, recursions - 1));
-            } else {
-                String ffn = fileEntry.getPath();
-                if (ffn.endsWith(".jpg") || ffn.endsWith(".JPG")) {
-                    if (runTest) System.out.println(ffn);
-                    fn.add(ffn);
-                }
-            }
+        DirectoryScanner scanner = new DirectoryScanner(folder, recursions, 1024).start();
+        while (scanner.hasNext()) {
+            String ffn = scanner.next();
+            if (runTest) System.out.println(ffn);
+            fn.add(ffn);
         }
         return fn;
     }
@@ -294,6 +537,9 @@ public class EarthPicsViewer {
         static PicturesMdata picturesMdata = null;
         static String outputFolderName = null;
         static HashSet<String> iconList = null;
+        static ThumbnailWriter thumbnails = null; // thumbnails for the balloons or null to show the pictures
+        static Document styleDoc = null; // the document the styles in docStyles were added to
+        static HashSet<String> docStyles = null;
         ArrayList<LocHier> childLocHier = null;
         DBSCAN_Clusters.Cluster cluster = null;
         long[] window = new long[2];
@@ -311,12 +557,19 @@ public class EarthPicsViewer {
                 System.out.println("Class not initialized correctly");
                 return;
             }
+            initRoot(locIdx);
+            buildLocHier();
+        }
+
+        // initRoot sets up the top node for the locations without building the levels below it.
+        void initRoot (ArrayList<Integer> locIdx) {
             DBSCAN_Clusters clusters = new DBSCAN_Clusters(2);
             cluster = clusters.getNewCluster();
+            ColumnarLocations locations = picturesMdata.getLocations();
             for (Integer idx : locIdx){
                 cluster.add(new long[]{
-                        picturesMdata.get(idx).location.getLatitudeE7(),
-                        picturesMdata.get(idx).location.getLongitudeE7(),
+                        locations.getLatitudeE7(idx),
+                        locations.getLongitudeE7(idx),
                 },idx);
             }
             // calculate the window for the top node
@@ -327,50 +580,66 @@ public class EarthPicsViewer {
                 window[1] =  window[0];
             else
                 window[0] = window[1];
-            buildLocHier();
         }
 
-        private void buildLocHier () {
+        // newChild creates the node one level below a node with parentWindow for a cluster of that
+        // node's locations.  If build is true the levels below the new node are built too.
+        static LocHier newChild(DBSCAN_Clusters.Cluster c, long[] parentWindow, boolean build) {
+            LocHier lh = new LocHier();
+            // create a copy of window and create the lower level.
+            lh.window[0] = parentWindow[0]/windowDivisor + 1;
+            lh.window[1] = parentWindow[1]/windowDivisor + 1;
+            lh.cluster = c;
+            if (build) lh.buildLocHier();
+            return lh;
+        }
+
+        // hasChildren returns true if buildLocHier() will split this node's locations into a lower level.
+        boolean hasChildren() {
+            return cluster.size() > childLimit && window[0] > windowLimit;
+        }
+
+        void buildLocHier () {
 
             ArrayList<Integer> locIdx = cluster.clusterIdxs();
 
-            long[] latLonTime = new long[2];
-            if (locIdx.size() > childLimit && window[0] > windowLimit) {
-                // build a KdTree from the input data
-                KdTreeEx<Integer> fKdTree = new KdTreeEx<Integer>((int)locIdx.size(), 2);
-                fKdTree.setNumThreads(cores);
-                for (Integer idx : locIdx){
-                    // feed the kdTree
-                    latLonTime[0] = picturesMdata.get(idx).location.getLatitudeE7();
-                    latLonTime[1] = picturesMdata.get(idx).location.getLongitudeE7();
-                    if (0 > fKdTree.add(latLonTime, idx)) {
-                        System.out.println("fKdTree data input error at " + idx);
-                    }
-                }
-                fKdTree.buildTree();
-
-                // create a DBSCAN_Clusters object and override the getPoint fuction to get access to the location data.
-                DBSCAN_Clusters clusters = new DBSCAN_Clusters(2);
-                // get the search range to about cluster distance window.  If window = null, then
-                // get the window from the bounds. Otherwise divide the passed in one by windowDevisor
-                // make the window a fraction of the upper level or top level lltbounds
-                clusters.buildCluster(fKdTree, window);
-                for (DBSCAN_Clusters.Cluster c : clusters.clusters){
+            if (hasChildren()) {
+                for (DBSCAN_Clusters.Cluster c : findClusters(locIdx, window)){
                     // create a lower level
                     // create a place to put the nodes for the next hier level down
                     if (childLocHier == null) childLocHier = new ArrayList<LocHier>();
-                    LocHier lh = new LocHier();
-                    // create a copy of window and create the lower level.
-                    lh.window[0] = window[0]/windowDivisor + 1;
-                    lh.window[1] = window[1]/windowDivisor + 1;
-                    lh.cluster = c;
-                    childLocHier.add(lh);
-                    lh.buildLocHier();
+                    childLocHier.add(newChild(c, window, true));
                 }
             } else {
             }
         }
 
+        // findClusters groups the locations into the DBSCAN clusters for a search window.
+        static ArrayList<DBSCAN_Clusters.Cluster> findClusters(List<Integer> locIdx, long[] window) {
+            long[] latLonTime = new long[2];
+            // build a KdTree from the input data
+            IntKdTree fKdTree = new IntKdTree((int)locIdx.size(), 2);
+            fKdTree.setNumThreads(cores);
+            ColumnarLocations locations = picturesMdata.getLocations();
+            for (Integer idx : locIdx){
+                // feed the kdTree
+                locations.getLatLonTime(idx, latLonTime);
+                if (0 > fKdTree.add(latLonTime, idx)) {
+                    System.out.println("fKdTree data input error at " + idx);
+                }
+            }
+            fKdTree.buildTree();
+            fKdTree.shutdown();
+
+            // create a DBSCAN_Clusters object and override the getPoint fuction to get access to the location data.
+            DBSCAN_Clusters clusters = new DBSCAN_Clusters(2);
+            // get the search range to about cluster distance window.  If window = null, then
+            // get the window from the bounds. Otherwise divide the passed in one by windowDevisor
+            // make the window a fraction of the upper level or top level lltbounds
+            clusters.buildCluster(fKdTree, window);
+            return clusters.clusters;
+        }
+
         protected void writeoutKML(Document doc, int depth, int cnt) {
 
             if (cluster == null) {
@@ -380,23 +649,11 @@ public class EarthPicsViewer {
             String folderName = "lev" + depth + "num" + cnt;
             final Folder folder = doc.createAndAddFolder();
             folder.withName(folderName).withOpen(childLocHier == null); // close unless bottom level
-            // for the region used for LOD, calculate center of the bounding box of the cluster
+            folder.withRegion(lodRegion(folderName + "Rgn", depth, childLocHier != null));
             double[][] cbounds = cluster.getBoundsDouble();
-            double[][] lcbounds = new double[2][2];
             double longitude = (cbounds[1][1] + cbounds[0][1]) / 2.0d;
             double latitude = (cbounds[1][0] + cbounds[0][0]) / 2.0d;
-            // and then calculate a region that is the size of the search window
-            lcbounds[0][0] = latitude + window[0] * 10E-7;
-            lcbounds[1][0] = latitude - window[0] * 10E-7;
-            lcbounds[0][1] = longitude + window[1] * 10E-7;
-            lcbounds[1][1] = longitude - window[1] * 10E-7;
-            // if this is the top node in the tree make LOD max be infinite
-            long lodmin = depth == 0 ? 0 : 50;
-            // if this is a leaf node  make LOD min be infinite
-            long lodmax = childLocHier == null ? -1 : 500;
-            final Region region = createRegion(folder, folderName+"Rgn", lcbounds, lodmax, lodmin);
-            folder.withRegion(region);
-            // if top level, use the just calculated center region for lookat point
+            // if top level, use the center of the cluster for lookat point
             if (depth == 0) {
                 final LookAt lookAt = doc.createAndSetLookAt().withLongitude(longitude).withLatitude(latitude).
                         withAltitude(0).withRange(12000000);
@@ -422,22 +679,105 @@ public class EarthPicsViewer {
                 for (Integer idx : cluster.clusterIdxs()) {
                     String styleURL = "photo";
                     createStyle(doc, styleURL);
-                    longitude = picturesMdata.get(idx).location.getLongitude();
-                    latitude  = picturesMdata.get(idx).location.getLatitude();
+                    longitude = picturesMdata.getLocations().getLongitude(idx);
+                    latitude  = picturesMdata.getLocations().getLatitude(idx);
                     String fn = new File(picturesMdata.get(idx).srcFileName).getName();
-                    String timeString = dateFormat.format(picturesMdata.get(idx).location.getTimestampMsTs());
-                    String picLink = "<center><img src=\"" +
-                            picturesMdata.get(idx).dstFileName + "\" width=500<br></center>" +
-                            "<center><big>" + fn + "</big></center>";
+                    String timeString = dateFormat.format(picturesMdata.getLocations().getTimestampMsTs(idx));
+                    String dstFileName = picturesMdata.get(idx).dstFileName;
+                    String thumbHref = thumbnails == null ? null : thumbnails.getHref(idx);
+                    String picLink;
+                    if (thumbHref != null) {
+                        // the thumbnail links to the full size picture
+                        picLink = "<center><a href=\"" + dstFileName + "\"><img src=\"" + thumbHref +
+                                "\"></a><br></center>" + "<center><big>" + fn + "</big></center>";
+                    } else {
+                        picLink = "<center><img src=\"" + dstFileName + "\" width=500<br></center>" +
+                                "<center><big>" + fn + "</big></center>";
+                    }
+                    ArrayList<String> alternates = picturesMdata.get(idx).alternates;
+                    if (alternates != null) {
+                        // the other copies of the picture that were found
+                        picLink += "<center>Also in:";
+                        for (String alternate : alternates) {
+                            picLink += "<br>" + alternate;
+                        }
+                        picLink += "</center>";
+                    }
                     createPlacemark(doc, folder, longitude, latitude,timeString,
                             null, picLink, styleURL);
                 }
             }
         }
 
+        // lodRegion returns the region used for LOD of this node's folder, which is the size of the search
+        // window around the center of the bounding box of the cluster.
+        Region lodRegion(String regionName, int depth, boolean hasChildren) {
+            double[][] cbounds = cluster.getBoundsDouble();
+            double[][] lcbounds = new double[2][2];
+            double longitude = (cbounds[1][1] + cbounds[0][1]) / 2.0d;
+            double latitude = (cbounds[1][0] + cbounds[0][0]) / 2.0d;
+            lcbounds[0][0] = latitude + window[0] * 10E-7;
+            lcbounds[1][0] = latitude - window[0] * 10E-7;
+            lcbounds[0][1] = longitude + window[1] * 10E-7;
+            lcbounds[1][1] = longitude - window[1] * 10E-7;
+            // if this is the top node in the tree make LOD max be infinite
+            long lodmin = depth == 0 ? 0 : 50;
+            // if this is a leaf node  make LOD min be infinite
+            long lodmax = hasChildren ? 500 : -1;
+            return createRegion(null, regionName, lcbounds, lodmax, lodmin);
+        }
+
+        /*
+         * <p>
+         * The {@code writeoutKMLLinks} method writes the top node like writeoutKML does, but instead of
+         * writing the level below into the same document it adds a NetworkLink to a separate KML file for
+         * each child.  The linked file is loaded when the child's region becomes active.
+         * </p>
+         *
+         * @param doc - the top level document
+         * @param children - the nodes one level below this one
+         * @param ids - number used in the folder name of each child
+         * @param hrefs - file name of the KML file of each child relative to the top level file
+         */
+        void writeoutKMLLinks(Document doc, List<LocHier> children, List<Integer> ids, List<String> hrefs) {
+            String folderName = "lev0num0";
+            final Folder folder = doc.createAndAddFolder();
+            folder.withName(folderName).withOpen(false);
+            folder.withRegion(lodRegion(folderName + "Rgn", 0, true));
+            double[][] cbounds = cluster.getBoundsDouble();
+            double longitude = (cbounds[1][1] + cbounds[0][1]) / 2.0d;
+            double latitude = (cbounds[1][0] + cbounds[0][0]) / 2.0d;
+            doc.createAndSetLookAt().withLongitude(longitude).withLatitude(latitude).
+                    withAltitude(0).withRange(12000000);
+            for (int i = 0; i < children.size(); i++) {
+                LocHier locHier = children.get(i);
+                String styleURL = null;
+                if (locHier.cluster.size() <= 400)
+                    styleURL = "number_" + locHier.cluster.size();
+                else
+                    styleURL = "symbol_blank";
+                createStyle(doc, styleURL);
+                cbounds = locHier.cluster.getBoundsDouble();
+                longitude = (cbounds[1][1] + cbounds[0][1]) / 2.0d;
+                latitude = (cbounds[1][0] + cbounds[0][0]) / 2.0d;
+                createPlacemark(doc, folder, longitude, latitude,
+                        null, null, null, styleURL);
+                String childName = "lev1num" + ids.get(i);
+                folder.createAndAddNetworkLink().withName(childName)
+                        .withRegion(locHier.lodRegion(childName + "Lnk", 1, locHier.hasChildren()))
+                        .createAndSetLink().withHref(hrefs.get(i)).withViewRefreshMode(ViewRefreshMode.ON_REGION);
+            }
+        }
+
         private static void createStyle(Document doc, String styleURL){
-            if (iconList.contains(styleURL)) return;  // already have that icon
-            iconList.add(styleURL); // mark it as used
+            // styles are added once per document.  A document is written out completely before the next one
+            // is started so only the styles of the current document need to be remembered.
+            if (doc != styleDoc) {
+                styleDoc = doc;
+                docStyles = new HashSet<>();
+            }
+            iconList.add(styleURL); // mark the icon as used
+            if (!docStyles.add(styleURL)) return;  // already have that icon
             Style style = doc.createAndAddStyle().withId(styleURL);
             Icon icon = style.createAndSetIconStyle().withScale(1).createAndSetIcon();
             icon.withHref("icons" + File.separator + styleURL + ".png");
@@ -515,12 +855,13 @@ public class EarthPicsViewer {
                 buildKMLfile(inputs);
             }
         };
-        if (args != null && args.length > 0) {
+        ArrayList<String> positional = parseOptions(args);
+        if (positional.size() > 0) {
             //if (false) {
             // if there are cmd line args, use those and call buildKML file directly
             String[] inputs = new String[6];
             for(int i = 0; i < 6; i++){
-                inputs[i] = i < args.length ? args[i] : "";
+                inputs[i] = i < positional.size() ? positional.get(i) : "";
             }
             buildKMLfile(inputs);
             System.exit(0);
@@ -530,6 +871,109 @@ public class EarthPicsViewer {
         }
     }
 
+    // parseOptions sets the options given on the command line and returns the remaining arguments,
+    // which are the same inputs that the GUI asks for and in the same order.
+    private static ArrayList<String> parseOptions(String[] args) {
+        ArrayList<String> positional = new ArrayList<>();
+        if (args == null) return positional;
+        for (int i = 0; i < args.length; i++) {
+            if ( args[i].equals("-t") || args[i].equals("--ingestThreads") ) {
+                ingestThreads = Integer.parseInt(args[++i]);
+                continue;
+            }
+            if ( args[i].equals("-q") || args[i].equals("--queueDepth") ) {
+                asyncQueueDepth = Integer.parseInt(args[++i]);
+                continue;
+            }
+            if ( args[i].equals("-r") || args[i].equals("--recursions") ) {
+                scanRecursions = Integer.parseInt(args[++i]);
+                continue;
+            }
+            if ( args[i].equals("-i") || args[i].equals("--incremental") ) {
+                incremental = true;
+                continue;
+            }
+            if ( args[i].equals("--track") ) {
+                trackFileName = args[++i];
+                continue;
+            }
+            if ( args[i].equals("--trackGap") ) {
+                trackGapMinutes = Integer.parseInt(args[++i]);
+                continue;
+            }
+            if ( args[i].equals("--timeZone") ) {
+                pictureTimeZone = parseTimeZone(args[++i]);
+                continue;
+            }
+            if ( args[i].equals("--mtimeFilter") ) {
+                useModifiedTimeFilter = true;
+                continue;
+            }
+            if ( args[i].equals("--dedup") ) {
+                findDuplicates = true;
+                continue;
+            }
+            if ( args[i].equals("--resume") ) {
+                resumeIngest = true;
+                continue;
+            }
+            if ( args[i].equals("--include") ) {
+                includeBoxes.add(parseBox(args[++i]));
+                continue;
+            }
+            if ( args[i].equals("--exclude") ) {
+                excludeBoxes.add(parseBox(args[++i]));
+                continue;
+            }
+            if ( args[i].equals("--includeArea") ) {
+                includeAreaFiles.add(args[++i]);
+                continue;
+            }
+            if ( args[i].equals("--excludeArea") ) {
+                excludeAreaFiles.add(args[++i]);
+                continue;
+            }
+            if ( args[i].equals("--noThumbs") ) {
+                makeThumbnails = false;
+                continue;
+            }
+            if ( args[i].equals("--noCache") ) {
+                useMdataCache = false;
+                continue;
+            }
+            positional.add(args[i]);
+        }
+        return positional;
+    }
+
+    // parseBox reads a box given as south,west,north,east in degrees.
+    private static double[] parseBox(String arg) {
+        String[] parts = arg.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("A box is south,west,north,east in degrees, not " + arg);
+        }
+        double[] box = new double[4];
+        for (int i = 0; i < 4; i++) {
+            box[i] = Double.parseDouble(parts[i].trim());
+        }
+        if (box[0] > box[2] || Math.abs(box[0]) > 90 || Math.abs(box[2]) > 90 || Math.abs(box[1]) > 180 ||
+                Math.abs(box[3]) > 180) {
+            throw new IllegalArgumentException("Not a box of south,west,north,east in degrees: " + arg);
+        }
+        return box;
+    }
+
+    // parseTimeZone reads a time zone given as an ID such as Europe/Paris or as an offset such as +02:00.
+    private static TimeZone parseTimeZone(String arg) {
+        String id = arg.startsWith("+") || arg.startsWith("-") ? "GMT" + arg : arg;
+        TimeZone zone = TimeZone.getTimeZone(id);
+        // getTimeZone returns GMT for any ID it does not know
+        if (zone.getID().equals("GMT") && !id.equals("GMT") && !id.equals("UTC")) {
+            throw new IllegalArgumentException("Not a time zone ID or +HH:MM offset: " + arg);
+        }
+        return zone;
+    }
+
     private static void buildKMLfile(String[] inputs) {
 
         if (inputs[0] == null || inputs[1].equals("")) {
@@ -554,8 +998,6 @@ public class EarthPicsViewer {
         if(inputs[2] != null && !inputs[2].equals(""))
             docName = inputs[2];
 
-        ArrayList<String> fnl = listFilesForFolder(inputDir, 0);
-
         if (inputs[1] == null || inputs[1].equals("")) {
             inputForm.messageAppendLn("Output directory must be specified");
             System.out.println("Output directory must be specified");
@@ -627,125 +1069,370 @@ public class EarthPicsViewer {
             return;
         }
 
+        // read the track that pictures without GPS data are located from
+        TimeGeotagger geotagger = null;
+        if (trackFileName != null) {
+            inputForm.messageAppendLn("Reading location track " + trackFileName);
+            ColumnarLocations track = LocationHistoryReader.getLocations(new File(trackFileName));
+            if (track == null) {
+                inputForm.messageAppendLn("Failed to read location track " + trackFileName);
+                return;
+            }
+            geotagger = new TimeGeotagger(track, trackGapMinutes * 60L * 1000L);
+            geotagger.setPictureTimeZone(pictureTimeZone);
+        }
+
+        // read the polygons of the areas before the pictures so a bad file stops the run early
+        ArrayList<PolygonRegion> includeAreas = new ArrayList<>();
+        ArrayList<PolygonRegion> excludeAreas = new ArrayList<>();
+        for (int a = 0; a < includeAreaFiles.size() + excludeAreaFiles.size(); a++) {
+            boolean include = a < includeAreaFiles.size();
+            String areaFileName = include ? includeAreaFiles.get(a) : excludeAreaFiles.get(a - includeAreaFiles.size());
+            ArrayList<PolygonRegion> polygons = KmlPolygonReader.getPolygons(new File(areaFileName));
+            if (polygons == null) {
+                inputForm.messageAppendLn("Failed to read the polygons of " + areaFileName);
+                return;
+            }
+            int numEdges = 0;
+            for (PolygonRegion polygon : polygons) numEdges += polygon.numEdges();
+            inputForm.messageAppendLn(polygons.size() + " polygons of " + numEdges + " edges read from " +
+                    areaFileName);
+            (include ? includeAreas : excludeAreas).addAll(polygons);
+        }
+
         // now create a pictureMdata record for each file
-        inputForm.messageAppendLn("Reading metadata from jpeg files");
-        for (String fn : fnl) {
+        inputForm.messageAppendLn("Reading metadata from picture files");
+        MdataIngest ingest = new MdataIngest(ingestThreads);
+        ingest.setKeepUnlocated(geotagger != null);
+        ingest.setAsyncDepth(asyncQueueDepth);
+        // pictures outside the time range are dropped as they are read
+        ingest.setTimeRange(new TimeRange(afterTime.getTime(), beforeTime.getTime()));
+        ingest.setModifiedTimeFilter(useModifiedTimeFilter);
+        // the scanner lists the picture files while the ingest reads them.  Pictures in ZIP and TAR
+        // archives are listed as entries of the archive.
+        DirectoryScanner scanner = new DirectoryScanner(inputDir, scanRecursions, 1024).start();
+        ArchiveSource archives = new ArchiveSource(scanner);
+        try {
+            ingest.setArchiveSource(archives);
+            DuplicateDetector duplicates = null;
+            if (findDuplicates) {
+                duplicates = new DuplicateDetector(archives);
+                ingest.setDuplicateDetector(duplicates);
+            }
+            MdataCache mdataCache = null;
+            if (useMdataCache) {
+                mdataCache = MdataCache.load(new File(outputDir, MdataCache.CACHE_FILE_NAME));
+                ingest.setCache(mdataCache);
+            }
+            // files that can't be read are listed and skipped rather than stopping the run
+            final ArrayList<String> readErrors = new ArrayList<>();
+            MdataIngest.ErrorHandler errorHandler = new MdataIngest.ErrorHandler() {
+                @Override
+                public boolean readError(String fn, Exception e) {
+                    inputForm.messageAppendLn("Read Error on file " + fn);
+                    inputForm.messageAppendLn(e.getMessage());
+                    System.out.println("Read Error on file " + fn);
+                    System.out.println(e.getMessage());
+                    readErrors.add(fn + " : " + e.getMessage());
+                    return true;
+                }
+            };
+            // the outcome of every file is checkpointed so an interrupted run can be resumed
+            String dstFolderName = inputs[5].equals("Yes") ? "jpegs" : null;
+            // the settings hold every option that changes which pictures are kept or how they are located
+            String ingestSettings = fullInputFolderName + "|" + scanRecursions + "|" + inputs[3] + "|" + inputs[4] +
+                    "|" + inputs[5] + "|" + (geotagger != null) + "|" + findDuplicates + "|" + useModifiedTimeFilter +
+                    "|" + (geotagger == null ? "" : trackGapMinutes + "|" +
+                    (pictureTimeZone == null ? "" : pictureTimeZone.getID()));
+            IngestCheckpoint checkpoint = null;
             try {
-                if (inputs[5].equals("Yes")) {
-                    File tf = new File(fn);
-                    String nfn = "jpegs" + File.separator + tf.getName();
-                    picturesMdata.add(fn, nfn);
+                checkpoint = IngestCheckpoint.open(outputDir, ingestSettings, resumeIngest);
+            } catch (IOException e) {
+                inputForm.messageAppendLn("Checkpoint failed, continuing without it: " + e.getMessage());
+                System.out.println("Checkpoint failed, continuing without it: " + e.getMessage());
+            }
+            if (checkpoint != null && resumeIngest) {
+                try {
+                    int numResumed = checkpoint.replay(dstFolderName, picturesMdata, duplicates, mdataCache,
+                            errorHandler);
+                    inputForm.messageAppendLn(numResumed + " files resumed from the checkpoint");
+                    System.out.println(numResumed + " files resumed from the checkpoint");
+                    if (checkpoint.numChanged > 0) {
+                        inputForm.messageAppendLn(checkpoint.numChanged + " files changed since the checkpoint");
+                        System.out.println(checkpoint.numChanged + " files changed since the checkpoint");
+                    }
+                } catch (IOException e) {
+                    // some of the checkpoint may already be in picturesMdata so the run can't go on
+                    checkpoint.close();
+                    scanner.stop();
+                    inputForm.messageAppendLn("Failed to resume from the checkpoint: " + e.getMessage());
+                    System.out.println("Failed to resume from the checkpoint: " + e.getMessage());
+                    return;
+                }
+            }
+            if (checkpoint != null) ingest.setCheckpoint(checkpoint);
+            boolean ingested;
+            try {
+                ingested = ingest.run(archives, dstFolderName, picturesMdata, errorHandler);
+            } finally {
+                // stop the scan if the ingest stopped early
+                scanner.stop();
+                if (checkpoint != null) checkpoint.close();
+            }
+            if (checkpoint != null && ingested) {
+                // there is nothing left to resume
+                checkpoint.complete();
+            }
+            if (checkpoint != null && checkpoint.getFailure() != null) {
+                inputForm.messageAppendLn("Checkpoint stopped: " + checkpoint.getFailure());
+                System.out.println("Checkpoint stopped: " + checkpoint.getFailure());
+            }
+            File errorFile = new File(outputDir, READ_ERRORS_FILE_NAME);
+            try {
+                if (readErrors.isEmpty()) {
+                    Files.deleteIfExists(errorFile.toPath());
                 } else {
-                    picturesMdata.add(fn, fn);
+                    Files.write(errorFile.toPath(), readErrors, StandardCharsets.UTF_8);
+                    inputForm.messageAppendLn(readErrors.size() + " files could not be read, listed in " + errorFile);
+                    System.out.println(readErrors.size() + " files could not be read, listed in " + errorFile);
                 }
+            } catch (IOException e) {
+                inputForm.messageAppendLn("Failed to write " + errorFile + ": " + e.getMessage());
             }
-            catch(ParseException | IOException | ImageReadException e) {
-                inputForm.messageAppendLn("Read Error on file " + fn);
-                inputForm.messageAppendLn(e.getMessage());
-                System.out.println("Read Error on file " + fn);
-                System.out.println(e.getMessage());
-                if (!(e instanceof ImageReadException)){
-                    e.printStackTrace();
-                    return;
+            for (String failure : scanner.getFailures()) {
+                inputForm.messageAppendLn("Scan Error on " + failure);
+            }
+            for (String failure : archives.getFailures()) {
+                inputForm.messageAppendLn("Archive Error on " + failure);
+                System.out.println("Archive Error on " + failure);
+            }
+            if (archives.numArchives > 0) {
+                String listed = archives.numEntries + " pictures listed from " + archives.numArchives + " archives";
+                inputForm.messageAppendLn(listed);
+                System.out.println(listed);
+            }
+            if (ingest.numOutOfRange + ingest.numSkippedByModifiedTime > 0) {
+                String skipped = (ingest.numOutOfRange + ingest.numSkippedByModifiedTime) +
+                        " pictures outside the time range, " + ingest.numSkippedByModifiedTime +
+                        " of them skipped by last modified time";
+                inputForm.messageAppendLn(skipped);
+                System.out.println(skipped);
+            }
+            if (duplicates != null) {
+                inputForm.messageAppendLn(duplicates.getReport());
+                System.out.println(duplicates.getReport());
+            }
+            if (ingest.getAsyncReport() != null) {
+                inputForm.messageAppendLn(ingest.getAsyncReport());
+                System.out.println(ingest.getAsyncReport());
+            }
+            if (mdataCache != null) {
+                int numFiles = scanner.getCount() - archives.numArchives + archives.numEntries;
+                inputForm.messageAppendLn(mdataCache.getHits() + " of " + numFiles +
+                        " files found in the metadata cache");
+                if (duplicates != null) duplicates.putContentHashes(mdataCache);
+                try {
+                    mdataCache.save();
+                } catch (IOException e) {
+                    inputForm.messageAppendLn("Failed to save the metadata cache: " + e.getMessage());
+                    System.out.println("Failed to save the metadata cache: " + e.getMessage());
                 }
             }
-        }
+            if (!ingested) return;
+
+            // locate the pictures without GPS data from the track
+            if (geotagger != null) {
+                int numUnlocated = picturesMdata.numUnlocated();
+                ArrayList<String> notLocated = picturesMdata.locateFromTrack(geotagger);
+                for (String fn : notLocated) {
+                    inputForm.messageAppendLn("No track location for file " + fn);
+                    System.out.println("No track location for file " + fn);
+                }
+                inputForm.messageAppendLn((numUnlocated - notLocated.size()) + " of " + numUnlocated +
+                        " pictures without GPS data located from the track");
+            }
 
-        // create a KdTree and filter the data to the region.
-        inputForm.messageAppendLn("Filtering jpeg files");
-        KdTree<Integer> kdTree = new KdTree<Integer>((int) picturesMdata.size(), 3);
-        long[] latLonTime = new long[3];
-        kdTree.setNumThreads(cores);
-        for (int i = 0; i < picturesMdata.size(); i++) {
-            latLonTime[0] = picturesMdata.get(i).location.getLatitudeE7();
-            latLonTime[1] = picturesMdata.get(i).location.getLongitudeE7();
-            latLonTime[2] = picturesMdata.get(i).location.getTimeStampLong();
-            if (0 > kdTree.add(latLonTime, i)) {
-                System.out.println("KdTree data input error at " + i);
-            }
-        }
-        kdTree.buildTree();
-
-        // this will be used for region filtering in future enhancements
-        FilterParameter fp = new FilterParameter();
-        fp.addIncludeRegion(Long.MAX_VALUE, Long.MAX_VALUE, afterTime.getTime(),
-                Long.MIN_VALUE, Long.MIN_VALUE, beforeTime.getTime() );
-
-        ArrayList<Integer> fclusterIdxs = new ArrayList<>();
-        {  // temporary data structures used for the input filter
-            // collect include region points in a has set to eliminate point
-            // in overlapping regions
-            HashSet<Integer> hashIdx = new HashSet<>();
-            // get the list of indices for all of the filtered locations
-            for (int i = 0; i < fp.numIncludeRegions(); i++) {
-                long[][] includeFilter = fp.getIncludeRegion(i);
-                hashIdx.addAll(kdTree.searchTree(includeFilter[0], includeFilter[1]));
-            }
-            ArrayList<Integer> exIdxs = new ArrayList<>();
-            for (int i = 0; i < fp.numExcludeRegions(); i++) {
-                long[][] excludeFilter = fp.getExcludeRegion(i);
-                exIdxs.addAll(kdTree.searchTree(excludeFilter[0], excludeFilter[1]));
-                hashIdx.removeAll(exIdxs);
-            }
-            fclusterIdxs.addAll(hashIdx);
-        }
-        if (fclusterIdxs.size() == 0) {
-            inputForm.messageAppendLn("No locations left to processes.");
-            System.out.println("No locations left to processes.");
-            return;
-        }
-        kdTree = null;  // don't need this tree anymore so let it be garbage collected
+            // filter the data to the regions.  If the regions only constrain the time a TimeIndex answers
+            // them, otherwise a KdTree of latitude, longitude and time does.
+            inputForm.messageAppendLn("Filtering jpeg files");
 
-        // create the location hierarchy
-        inputForm.messageAppendLn("Creating KML file");
-        LocHier locHier = new LocHier(picturesMdata, fullOutputFolderName);
-        locHier.buildLocHier(fclusterIdxs);
-        // create the KML file from the location hierarchy
-        locHier.writeoutKML(doc, 0,0);
+            FilterParameter fp = new FilterParameter();
+            if (includeBoxes.isEmpty() && includeAreas.isEmpty()) {
+                fp.addIncludeRegion(Long.MAX_VALUE, Long.MAX_VALUE, afterTime.getTime(),
+                        Long.MIN_VALUE, Long.MIN_VALUE, beforeTime.getTime() );
+            }
+            for (double[] box : includeBoxes) {
+                fp.addIncludeBox(box, afterTime.getTime(), beforeTime.getTime());
+            }
+            for (double[] box : excludeBoxes) {
+                fp.addExcludeBox(box);
+            }
+            for (PolygonRegion polygon : includeAreas) {
+                fp.addIncludePolygon(polygon, afterTime.getTime(), beforeTime.getTime());
+            }
+            for (PolygonRegion polygon : excludeAreas) {
+                fp.addExcludePolygon(polygon);
+            }
 
-        //marshals to console
-        //kml.marshal();
-        //marshals into file
-        boolean marshal = false;
-        try {
-            marshal = kml.marshal(new File(fullOutputFolderName,docName + ".kml"));
-        } catch (FileNotFoundException e) {
-            //e.getMessage();
-        }
-        if (!marshal) {
-            inputForm.messageAppendLn("KML file save failed.");
-            return;
-        }
+            ArrayList<Integer> fclusterIdxs = new ArrayList<>();
+            {  // temporary data structures used for the input filter
+                // the pictures in any include region and no exclude region.  A BitSet eliminates the points
+                // in overlapping regions and gives them in index order.
+                BitSet filtered = new BitSet(picturesMdata.size());
+                if (!fp.constrainsLocation()) {
+                    TimeIndex timeIndex = new TimeIndex(picturesMdata.getLocations());
+                    for (int i = 0; i < fp.numIncludeRegions(); i++) {
+                        long[][] includeFilter = fp.getIncludeRegion(i);
+                        timeIndex.search(includeFilter[0][2], includeFilter[1][2], filtered, true);
+                    }
+                    for (int i = 0; i < fp.numExcludeRegions(); i++) {
+                        long[][] excludeFilter = fp.getExcludeRegion(i);
+                        timeIndex.search(excludeFilter[0][2], excludeFilter[1][2], filtered, false);
+                    }
+                } else {
+                    IntKdTree kdTree = new IntKdTree((int) picturesMdata.size(), 3);
+                    long[] latLonTime = new long[3];
+                    kdTree.setNumThreads(cores);
+                    for (int i = 0; i < picturesMdata.size(); i++) {
+                        picturesMdata.getLocations().getLatLonTime(i, latLonTime);
+                        if (0 > kdTree.add(latLonTime, i)) {
+                            System.out.println("KdTree data input error at " + i);
+                        }
+                    }
+                    kdTree.buildTree();
+                    kdTree.shutdown();
+                    // one walk of the tree tests all of the regions
+                    fp.toRegionFilter().search(kdTree, filtered);
+                }
+                for (int i = filtered.nextSetBit(0); i >= 0; i = filtered.nextSetBit(i + 1)) {
+                    fclusterIdxs.add(i);
+                }
+            }
+            if (fclusterIdxs.size() == 0) {
+                inputForm.messageAppendLn("No locations left to processes.");
+                System.out.println("No locations left to processes.");
+                return;
+            }
 
-        inputForm.messageAppendLn("Copying icon files");
-        try {
-            locHier.copyIcons(fullOutputFolderName);
-        } catch (IOException e) {
-            //e.printStackTrace();
-            inputForm.messageAppendLn("Icon Copy Error : " + e.getMessage());
-            inputForm.messageAppendLn("Check for missing Icons directory");
-            return;
-        }
+            // make the thumbnails shown in the placemark balloons
+            ThumbnailWriter thumbnails = null;
+            if (makeThumbnails) {
+                inputForm.messageAppendLn("Making thumbnails");
+                thumbnails = new ThumbnailWriter(outputDir, picturesMdata, ingestThreads, archives);
+                try {
+                    for (String error : thumbnails.write(fclusterIdxs)) {
+                        inputForm.messageAppendLn("Thumbnail Error on " + error);
+                        System.out.println("Thumbnail Error on " + error);
+                    }
+                } catch (IOException e) {
+                    inputForm.messageAppendLn("Thumbnails failed: " + e.getMessage());
+                    System.out.println("Thumbnails failed: " + e.getMessage());
+                    return;
+                }
+                inputForm.messageAppendLn(thumbnails.getReport());
+                System.out.println(thumbnails.getReport());
+            }
 
-        // copy the jpeg files if required
-        if (inputs[5].equals("Yes")) {
-            inputForm.messageAppendLn("Copying jpeg files");
-            for (int i = 0;  i < picturesMdata.size(); i++){
-                Path destPath = new File(fullOutputFolderName + File.separator +
-                        picturesMdata.get(i).dstFileName).toPath();
-                Path srcPath = new File(picturesMdata.get(i).srcFileName).toPath();
+            // create the location hierarchy
+            inputForm.messageAppendLn("Creating KML file");
+            LocHier locHier = new LocHier(picturesMdata, fullOutputFolderName);
+            LocHier.thumbnails = thumbnails;
+            ArrayList<Integer> copyIdxs = null; // pictures that need to be copied or null for all of them
+            if (incremental) {
+                // everything but the pictures that decides what goes in the KML files
+                String settings = fullInputFolderName + "|" + scanRecursions + "|" + inputs[3] + "|" +
+                        inputs[4] + "|" + inputs[5] + "|" + findDuplicates;
+                for (double[] box : includeBoxes) settings += "|+" + Arrays.toString(box);
+                for (double[] box : excludeBoxes) settings += "|-" + Arrays.toString(box);
+                for (int a = 0; a < includeAreaFiles.size() + excludeAreaFiles.size(); a++) {
+                    boolean include = a < includeAreaFiles.size();
+                    File areaFile = new File(include ? includeAreaFiles.get(a) :
+                            excludeAreaFiles.get(a - includeAreaFiles.size()));
+                    settings += (include ? "|+" : "|-") + areaFile.getAbsolutePath() + "|" + areaFile.length() + "|" +
+                            areaFile.lastModified();
+                }
+                if (trackFileName != null) {
+                    // pictures located from the track move if the track changes
+                    File trackFile = new File(trackFileName);
+                    settings += "|" + trackFile.getAbsolutePath() + "|" + trackFile.length() + "|" +
+                            trackFile.lastModified() + "|" + trackGapMinutes + "|" +
+                            (pictureTimeZone == null ? "" : pictureTimeZone.getID());
+                }
+                IncrementalKml incrementalKml = new IncrementalKml(outputDir, docName, settings);
+                incrementalKml.setArchiveSource(archives);
                 try {
-                    Files.copy(srcPath, destPath, StandardCopyOption.REPLACE_EXISTING);
+                    copyIdxs = incrementalKml.write(locHier, picturesMdata, fclusterIdxs);
                 } catch (IOException e) {
-                    //e.printStackTrace();
-                    inputForm.messageAppendLn("Failed to copy " + srcPath.toString() + "->" + destPath.toString() );
+                    inputForm.messageAppendLn("KML file save failed: " + e.getMessage());
+                    System.out.println("KML file save failed: " + e.getMessage());
                     return;
                 }
-                //System.out.println(srcPath.toString() + "->" + destPath.toString() );
+                String changes = incrementalKml.numAdded + " added, " + incrementalKml.numRemoved + " removed, " +
+                        incrementalKml.numModified + " modified, " + incrementalKml.numClustersWritten + " of " +
+                        incrementalKml.numClusters + " cluster files written";
+                inputForm.messageAppendLn(changes);
+                System.out.println(changes);
+            } else {
+                locHier.buildLocHier(fclusterIdxs);
+                // create the KML file from the location hierarchy
+                locHier.writeoutKML(doc, 0,0);
+
+                //marshals to console
+                //kml.marshal();
+                //marshals into file
+                boolean marshal = false;
+                try {
+                    marshal = kml.marshal(new File(fullOutputFolderName,docName + ".kml"));
+                } catch (FileNotFoundException e) {
+                    //e.getMessage();
+                }
+                if (!marshal) {
+                    inputForm.messageAppendLn("KML file save failed.");
+                    return;
+                }
+            }
+
+            inputForm.messageAppendLn("Copying icon files");
+            try {
+                locHier.copyIcons(fullOutputFolderName);
+            } catch (IOException e) {
+                //e.printStackTrace();
+                inputForm.messageAppendLn("Icon Copy Error : " + e.getMessage());
+                inputForm.messageAppendLn("Check for missing Icons directory");
+                return;
+            }
+
+            // copy the jpeg files if required
+            if (inputs[5].equals("Yes")) {
+                inputForm.messageAppendLn("Copying jpeg files");
+                int numCopies = copyIdxs == null ? picturesMdata.size() : copyIdxs.size();
+                for (int n = 0;  n < numCopies; n++){
+                    int i = copyIdxs == null ? n : copyIdxs.get(n);
+                    Path destPath = new File(fullOutputFolderName + File.separator +
+                            picturesMdata.get(i).dstFileName).toPath();
+                    String srcFileName = picturesMdata.get(i).srcFileName;
+                    Path srcPath = new File(srcFileName).toPath();
+                    try {
+                        if (archives.isEntry(srcFileName)) {
+                            // a picture in an archive is extracted as it is copied
+                            Files.write(destPath, archives.readAll(srcFileName));
+                        } else {
+                            Files.copy(srcPath, destPath, StandardCopyOption.REPLACE_EXISTING);
+                        }
+                    } catch (IOException e) {
+                        //e.printStackTrace();
+                        inputForm.messageAppendLn("Failed to copy " + srcPath.toString() + "->" + destPath.toString() );
+                        return;
+                    }
+                    //System.out.println(srcPath.toString() + "->" + destPath.toString() );
+                }
             }
+            inputForm.messageAppendLn(fclusterIdxs.size() + " images processed.");
+            System.out.println(fclusterIdxs.size() + " images processed.");
+        } finally {
+            // the archives are kept open for the reads of the ingest, thumbnails and copies
+            archives.close();
         }
-        inputForm.messageAppendLn(fclusterIdxs.size() + " images processed.");
-        System.out.println(fclusterIdxs.size() + " images processed.");
     }
 
 }
@@ -0,0 +1,266 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * <p>
+ * ExifDate converts an EXIF date, which has the fixed layout "yyyy:MM:dd HH:mm:ss" in local time, to
+ * ms since the epoch.  It reads the digits in place, either from a String or straight out of the
+ * buffer holding the EXIF data, and does the calendar arithmetic itself so no objects are created for
+ * a good date.  Nothing is shared but the time zone, which is only read, so it may be used from several
+ * threads at once.
+ * </p>
+ * <p>
+ * Like a lenient Calendar, a month or day out of range rolls over into the next field.  Dates are
+ * treated as proleptic Gregorian so dates before 1582 differ from what a GregorianCalendar gives.
+ * </p>
+ * <p>
+ * An EXIF date has no time zone, so it is taken to be in the default time zone of the machine.  That gives
+ * the picture the time shown on the camera's clock, which is what the time range and the KML show, but
+ * not the true instant unless the picture was taken in that zone.  Where the true instant matters, as when
+ * a picture is matched with a location track, the picture's own UTC offset from the EXIF OffsetTime fields
+ * is used if it has one, see parseOffset() and localMs().
+ * </p>
+ */
+final class ExifDate {
+
+    static final int LENGTH = 19; // length of "yyyy:MM:dd HH:mm:ss"
+
+    // positions of the separators in the layout
+    private static final int[] SEPARATOR_POSITIONS = {4, 7, 10, 13, 16};
+    private static final char[] SEPARATORS = {':', ':', ' ', ':', ':'};
+
+    private static final long MS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+    // the time zone the pictures are assumed to be taken in.  The same one SimpleDateFormat uses.
+    private static final TimeZone timeZone = TimeZone.getDefault();
+
+    private ExifDate() {}
+
+    /*
+     * <p>
+     * The {@code parse} method converts an EXIF date held in a String.  Characters after the date
+     * are ignored.
+     * </p>
+     *
+     * @param date - the date
+     * @returns ms since the epoch
+     * @throws ParseException if the date does not have the EXIF layout
+     */
+    static long parse(CharSequence date) throws ParseException {
+        if (date.length() < LENGTH) {
+            throw new ParseException("Unparseable date: \"" + date + "\"", date.length());
+        }
+        for (int i = 0; i < SEPARATOR_POSITIONS.length; i++) {
+            if (date.charAt(SEPARATOR_POSITIONS[i]) != SEPARATORS[i]) {
+                throw new ParseException("Unparseable date: \"" + date + "\"", SEPARATOR_POSITIONS[i]);
+            }
+        }
+        int year = 0;
+        for (int i = 0; i < 4; i++) year = 10 * year + digit(date.charAt(i), i);
+        return toEpochMs(year,
+                10 * digit(date.charAt(5), 5) + digit(date.charAt(6), 6),
+                10 * digit(date.charAt(8), 8) + digit(date.charAt(9), 9),
+                10 * digit(date.charAt(11), 11) + digit(date.charAt(12), 12),
+                10 * digit(date.charAt(14), 14) + digit(date.charAt(15), 15),
+                10 * digit(date.charAt(17), 17) + digit(date.charAt(18), 18));
+    }
+
+    /*
+     * <p>
+     * The {@code parse} method converts an EXIF date held as ASCII bytes in a buffer.  Bytes after the
+     * date are ignored.
+     * </p>
+     *
+     * @param buffer - buffer holding the date
+     * @param start - position of the first character of the date
+     * @param length - number of bytes available for the date
+     * @returns ms since the epoch
+     * @throws ParseException if the date does not have the EXIF layout
+     */
+    static long parse(ByteBuffer buffer, int start, int length) throws ParseException {
+        if (length < LENGTH) {
+            throw new ParseException("Unparseable date: too short", length);
+        }
+        for (int i = 0; i < SEPARATOR_POSITIONS.length; i++) {
+            if (buffer.get(start + SEPARATOR_POSITIONS[i]) != SEPARATORS[i]) {
+                throw new ParseException("Unparseable date: separator", SEPARATOR_POSITIONS[i]);
+            }
+        }
+        int year = 0;
+        for (int i = 0; i < 4; i++) year = 10 * year + digit(buffer, start, i);
+        return toEpochMs(year,
+                10 * digit(buffer, start, 5) + digit(buffer, start, 6),
+                10 * digit(buffer, start, 8) + digit(buffer, start, 9),
+                10 * digit(buffer, start, 11) + digit(buffer, start, 12),
+                10 * digit(buffer, start, 14) + digit(buffer, start, 15),
+                10 * digit(buffer, start, 17) + digit(buffer, start, 18));
+    }
+
+    private static int digit(char c, int position) throws ParseException {
+        if (c < '0' || c > '9') {
+            throw new ParseException("Unparseable date: digit expected", position);
+        }
+        return c - '0';
+    }
+
+    private static int digit(ByteBuffer buffer, int start, int position) throws ParseException {
+        return digit((char) (buffer.get(start + position) & 0xFF), position);
+    }
+
+    /*
+     * <p>
+     * The {@code toEpochMs} method converts local date and time fields to ms since the epoch.
+     * </p>
+     */
+    static long toEpochMs(int year, int month, int day, int hour, int minute, int second) {
+        // roll an out of range month into the year, then let the day and time overflow into the days.
+        long y = year + Math.floorDiv(month - 1, 12);
+        int m = Math.floorMod(month - 1, 12) + 1;
+        long days = daysFromCivil(y, m, 1) + day - 1;
+        long localMs = days * MS_PER_DAY + hour * 3600000L + minute * 60000L + second * 1000L;
+        return toUtcMs(localMs, timeZone);
+    }
+
+    /*
+     * <p>
+     * The {@code toUtcMs} method converts a local time in a time zone to ms since the epoch.
+     * </p>
+     *
+     * @param localMs - the local date and time as ms since 1970-01-01T00:00 in that zone
+     * @param zone - the time zone
+     */
+    static long toUtcMs(long localMs, TimeZone zone) {
+        // the offset depends on the instant, which is not known until the offset is.  Guess with the
+        // offset at the standard time instant and correct it if the guess lands on the other side of a
+        // daylight saving change.  Times in the spring gap come out as standard time like a Calendar.
+        int offset = zone.getOffset(localMs - zone.getRawOffset());
+        long utcMs = localMs - offset;
+        int checkOffset = zone.getOffset(utcMs);
+        if (checkOffset != offset) {
+            utcMs = localMs - checkOffset;
+        }
+        return utcMs;
+    }
+
+    // localMs returns the local date and time of a time from parse(), as ms since 1970-01-01T00:00 local,
+    // which undoes the default time zone parse() assumed.
+    static long localMs(long timestampMs) {
+        return timestampMs + timeZone.getOffset(timestampMs);
+    }
+
+    /*
+     * <p>
+     * The {@code parseOffset} method reads an EXIF OffsetTime value, "+HH:MM" or "-HH:MM".  Cameras that
+     * don't know their time zone leave it blank, so anything else is taken as no offset.
+     * </p>
+     *
+     * @param offset - the OffsetTime value
+     * @returns the offset from UTC in minutes or ImageMdata.NO_OFFSET
+     */
+    static int parseOffset(CharSequence offset) {
+        if (offset == null || offset.length() < 6 || offset.charAt(3) != ':') return ImageMdata.NO_OFFSET;
+        char sign = offset.charAt(0);
+        if (sign != '+' && sign != '-') return ImageMdata.NO_OFFSET;
+        for (int i = 1; i < 6; i++) {
+            char c = offset.charAt(i);
+            if (i != 3 && (c < '0' || c > '9')) return ImageMdata.NO_OFFSET;
+        }
+        int minutes = ((offset.charAt(1) - '0') * 10 + offset.charAt(2) - '0') * 60 +
+                (offset.charAt(4) - '0') * 10 + offset.charAt(5) - '0';
+        if (minutes > 18 * 60) return ImageMdata.NO_OFFSET;
+        return sign == '-' ? -minutes : minutes;
+    }
+
+    // daysFromCivil returns the number of days from 1970-01-01 to a proleptic Gregorian date.
+    static long daysFromCivil(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    // this main() function checks ExifDate against SimpleDateFormat and times both.  It is not necessary.
+    public static void main(String[] args) throws ParseException {
+        final int numDates = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int numRuns = 5;
+
+        // make random dates from 1990 to 2030 including ones around daylight saving changes
+        Random random = new Random(1);
+        String[] dates = new String[numDates];
+        for (int i = 0; i < numDates; i++) {
+            dates[i] = String.format("%04d:%02d:%02d %02d:%02d:%02d", 1990 + random.nextInt(40),
+                    1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24),
+                    random.nextInt(60), random.nextInt(60));
+        }
+
+        // check against SimpleDateFormat with a 24 hour clock
+        DateFormat df24 = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
+        DateFormat df12 = new SimpleDateFormat("yyyy:MM:dd hh:mm:ss");
+        int mismatches = 0, mismatches12 = 0;
+        for (String date : dates) {
+            long t = parse(date);
+            if (t != df24.parse(date).getTime()) {
+                if (mismatches++ < 10) System.out.println("Mismatch on " + date);
+            }
+            if (t != df12.parse(date).getTime()) mismatches12++;
+        }
+        System.out.println(numDates + " dates, " + mismatches + " differ from HH parsing, " +
+                mismatches12 + " differ from the old hh parsing (hour 12 read as 0)");
+
+        // time the old path, a new SimpleDateFormat per picture and a Timestamp, against ExifDate
+        long sum = 0;
+        for (int run = 0; run < numRuns; run++) {
+            long oldTime = System.nanoTime();
+            for (String date : dates) {
+                DateFormat df = new SimpleDateFormat("yyyy:MM:dd hh:mm:ss");
+                sum += new java.sql.Timestamp(df.parse(date).getTime()).getTime();
+            }
+            oldTime = System.nanoTime() - oldTime;
+            long newTime = System.nanoTime();
+            for (String date : dates) {
+                sum += parse(date);
+            }
+            newTime = System.nanoTime() - newTime;
+            System.out.printf("Run %d: SimpleDateFormat %.1f ns/date, ExifDate %.1f ns/date%n", run,
+                    (double) oldTime / numDates, (double) newTime / numDates);
+        }
+        System.out.println("checksum " + sum);
+    }
+}
@@ -0,0 +1,69 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * <p>
+ * ImageMdata holds the few metadata fields EarthPicsViewer uses from one picture file: when the picture
+ * was taken and where.  The metadata readers fill one of these in, possibly on a worker thread, and the
+ * thread that owns the PicturesMdata list stores it later.
+ * </p>
+ */
+class ImageMdata {
+    // returned by the metadata readers, and compared by reference, for a picture taken outside the TimeRange
+    static final ImageMdata OUT_OF_RANGE = new ImageMdata(Long.MIN_VALUE);
+
+    long timestampMs;  // time the picture was taken in ms since the epoch
+    long latitudeE7;   // latitude in degrees * 10^7
+    long longitudeE7;  // longitude in degrees * 10^7
+    boolean hasLocation; // false if the picture had no GPS location.  The latitude and longitude are then 0.
+    // the offset from UTC in minutes of the local time the picture was taken at, from the EXIF OffsetTime
+    // fields or the time zone of an XMP date, or NO_OFFSET.  timestampMs is always the local time taken as
+    // a time in the default time zone.  The offset is only used to locate a picture from a track, so it is
+    // only read and kept for pictures without a location.
+    int utcOffsetMinutes = NO_OFFSET;
+
+    static final int NO_OFFSET = Integer.MIN_VALUE;
+
+    ImageMdata(long timestampMs, long latitudeE7, long longitudeE7) {
+        this.timestampMs = timestampMs;
+        this.latitudeE7 = latitudeE7;
+        this.longitudeE7 = longitudeE7;
+        this.hasLocation = true;
+    }
+
+    // this constructor is for a picture with a time but no location
+    ImageMdata(long timestampMs) {
+        this.timestampMs = timestampMs;
+        this.latitudeE7 = 0;
+        this.longitudeE7 = 0;
+        this.hasLocation = false;
+    }
+}
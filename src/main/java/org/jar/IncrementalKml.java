@@ -0,0 +1,395 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import org.jar.EarthPicsViewer.LocHier;
+import org.jar.EarthPicsViewer.PicturesMdata;
+import org.jar.EarthPicsViewer.PicturesMdata.PictureMdata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * IncrementalKml writes the KML output so that a later run only has to redo the parts of it that changed.
+ * Each cluster one level below the top node is written to its own KML file that the top level file links
+ * to, and a manifest records which picture files are in each of those clusters.  On the next run the
+ * pictures are compared with the manifest by path, size, last modified time and the paths of their other
+ * copies, if duplicates are looked for.  Only the clusters that lost a picture, or that an added or
+ * modified picture lands within a search window of, are clustered again and have their files rewritten.
+ * The other cluster files are left as they are.
+ * </p>
+ * <p>
+ * This gives the same clusters as a full rebuild because the clusters are more than a search window
+ * apart, so the pictures in untouched clusters can not join any of the others.  The top level search
+ * window depends on the bounds of all of the pictures, so if it changes, or the settings of the run
+ * change, everything is rebuilt.
+ * </p>
+ * <p>
+ * The manifest is a binary file with this layout, all in DataOutputStream format:
+ * <pre>
+ *   int    MAGIC
+ *   short  VERSION
+ *   UTF    settings
+ *   long   top level window latitude, long top level window longitude
+ *   int    next cluster id
+ *   int    number of clusters
+ *   per cluster:
+ *     int    cluster id
+ *     int    number of files
+ *     per file: UTF path, long size, long last modified time in ms, UTF alternate paths
+ * </pre>
+ * </p>
+ */
+class IncrementalKml {
+
+    private static final int MAGIC = 0x4550564D; // "EPVM"
+    private static final short VERSION = 2;
+
+    // A FileEntry identifies the version of a picture file that was used.
+    private static class FileEntry {
+        final String path;
+        final long size;
+        final long lastModified;
+        final String alternates; // the other copies of the picture, one per line, shown in its balloon
+
+        FileEntry(String path, long size, long lastModified, String alternates) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.alternates = alternates;
+        }
+
+        // read the size and last modified time of a file and its sidecar, or of an archive entry.  A file
+        // that can't be read gets -1 for both.
+        static FileEntry stat(PictureMdata pictureMdata, ArchiveSource archives) {
+            String path = pictureMdata.srcFileName;
+            StringBuilder alternates = new StringBuilder();
+            if (pictureMdata.alternates != null) {
+                for (String alternate : pictureMdata.alternates) alternates.append(alternate).append('\n');
+            }
+            try {
+                long[] version = archives != null && archives.isEntry(path) ? archives.version(path) :
+                        XmpSidecar.fileVersion(path);
+                return new FileEntry(path, version[0], version[1], alternates.toString());
+            } catch (IOException e) {
+                return new FileEntry(path, -1, -1, alternates.toString());
+            }
+        }
+
+        boolean sameVersion(FileEntry other) {
+            return size == other.size && lastModified == other.lastModified && alternates.equals(other.alternates);
+        }
+    }
+
+    // The Manifest class holds what was written by one run.
+    private static class Manifest {
+        String settings;
+        long[] rootWindow = new long[2];
+        int nextId = 0;
+        TreeMap<Integer, ArrayList<FileEntry>> clusters = new TreeMap<>();
+
+        // load returns null if there is no usable manifest.
+        static Manifest load(File file) {
+            if (!file.exists()) return null;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                    System.out.println("Ignoring manifest " + file + " with unknown format");
+                    return null;
+                }
+                Manifest manifest = new Manifest();
+                manifest.settings = in.readUTF();
+                manifest.rootWindow[0] = in.readLong();
+                manifest.rootWindow[1] = in.readLong();
+                manifest.nextId = in.readInt();
+                int numClusters = in.readInt();
+                for (int i = 0; i < numClusters; i++) {
+                    int id = in.readInt();
+                    int numFiles = in.readInt();
+                    ArrayList<FileEntry> files = new ArrayList<>(numFiles);
+                    for (int j = 0; j < numFiles; j++) {
+                        files.add(new FileEntry(in.readUTF(), in.readLong(), in.readLong(), in.readUTF()));
+                    }
+                    manifest.clusters.put(id, files);
+                }
+                return manifest;
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable manifest " + file + " : " + e.getMessage());
+                return null;
+            }
+        }
+
+        // save writes to a temporary file first so an interrupted save does not leave a broken manifest.
+        void save(File file) throws IOException {
+            File tmpFile = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                out.writeUTF(settings);
+                out.writeLong(rootWindow[0]);
+                out.writeLong(rootWindow[1]);
+                out.writeInt(nextId);
+                out.writeInt(clusters.size());
+                for (Map.Entry<Integer, ArrayList<FileEntry>> cluster : clusters.entrySet()) {
+                    out.writeInt(cluster.getKey());
+                    out.writeInt(cluster.getValue().size());
+                    for (FileEntry f : cluster.getValue()) {
+                        out.writeUTF(f.path);
+                        out.writeLong(f.size);
+                        out.writeLong(f.lastModified);
+                        out.writeUTF(f.alternates);
+                    }
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private final File outputDir;
+    private final String docName;
+    private final String settings;
+    private ArchiveSource archives; // the source of pictures that are archive entries or null
+
+    // what the last call to write() did
+    int numAdded;
+    int numRemoved;
+    int numModified;
+    int numClusters;
+    int numClustersWritten;
+
+    /*
+     * <p>
+     * The {@code IncrementalKml} constructor.
+     * </p>
+     *
+     * @param outputDir - directory the KML files and the manifest are written to
+     * @param docName - name of the KML document, which is also the name of the top level file
+     * @param settings - the inputs of the run other than the pictures.  If they are not the same as the
+     *                 ones in the manifest everything is rebuilt.
+     */
+    IncrementalKml(File outputDir, String docName, String settings) {
+        this.outputDir = outputDir;
+        this.docName = docName;
+        this.settings = settings;
+        this.archives = null;
+    }
+
+    // setArchiveSource sets the ArchiveSource that gives the version of pictures that are archive entries.
+    void setArchiveSource(ArchiveSource archives) {
+        this.archives = archives;
+    }
+
+    private File manifestFile() {
+        return new File(outputDir, docName + ".manifest");
+    }
+
+    private String clusterFileName(int id) {
+        return docName + ".c" + id + ".kml";
+    }
+
+    /*
+     * <p>
+     * The {@code write} method brings the KML files up to date with the pictures.
+     * </p>
+     *
+     * @param root - the top node of the location hierarchy, not yet initialized
+     * @param picturesMdata - metadata of all pictures
+     * @param locIdx - indices of the pictures that go in the KML files
+     * @returns the indices of the pictures that were added or modified since the last run, which is all of
+     *          them if there was no usable manifest.
+     */
+    ArrayList<Integer> write(LocHier root, PicturesMdata picturesMdata, ArrayList<Integer> locIdx)
+            throws IOException {
+        root.initRoot(locIdx);
+
+        // identify the current version of each picture
+        HashMap<String, Integer> currentIdx = new HashMap<>();
+        HashMap<String, FileEntry> current = new HashMap<>();
+        for (Integer idx : locIdx) {
+            String path = picturesMdata.get(idx).srcFileName;
+            currentIdx.put(path, idx);
+            current.put(path, FileEntry.stat(picturesMdata.get(idx), archives));
+        }
+
+        // the previous manifest tells which cluster files exist.  It is only used for the update if the
+        // run settings are the same.
+        Manifest previous = Manifest.load(manifestFile());
+        Manifest old = previous != null && previous.settings.equals(settings) ? previous : null;
+
+        // find the added, removed and modified pictures
+        ArrayList<Integer> changedIdx = new ArrayList<>();
+        numAdded = numRemoved = numModified = 0;
+        if (old == null) {
+            changedIdx.addAll(locIdx);
+            numAdded = locIdx.size();
+        } else {
+            HashMap<String, FileEntry> oldFiles = new HashMap<>();
+            for (ArrayList<FileEntry> files : old.clusters.values()) {
+                for (FileEntry f : files) oldFiles.put(f.path, f);
+            }
+            for (Integer idx : locIdx) {
+                String path = picturesMdata.get(idx).srcFileName;
+                FileEntry oldFile = oldFiles.remove(path);
+                if (oldFile == null) {
+                    numAdded++;
+                    changedIdx.add(idx);
+                } else if (!oldFile.sameVersion(current.get(path))) {
+                    numModified++;
+                    changedIdx.add(idx);
+                }
+            }
+            numRemoved = oldFiles.size();
+        }
+
+        Manifest manifest = new Manifest();
+        manifest.settings = settings;
+        manifest.rootWindow[0] = root.window[0];
+        manifest.rootWindow[1] = root.window[1];
+        TreeMap<Integer, LocHier> children = new TreeMap<>();
+        ArrayList<Integer> writeIds = new ArrayList<>();
+
+        if (!root.hasChildren()) {
+            // too few pictures for a lower level so everything goes in the top level file.
+            root.buildLocHier();
+            Kml kml = new Kml();
+            Document doc = kml.createAndSetDocument().withName(docName).withOpen(true);
+            root.writeoutKML(doc, 0, 0);
+            marshal(kml, docName + ".kml");
+        } else {
+            boolean full = old == null ||
+                    old.rootWindow[0] != root.window[0] || old.rootWindow[1] != root.window[1];
+            ArrayList<Integer> reclusterIdx = new ArrayList<>();
+            if (full) {
+                reclusterIdx.addAll(locIdx);
+            } else {
+                manifest.nextId = old.nextId;
+                // keep the clusters that did not lose a picture and that no changed picture is close to
+                for (Map.Entry<Integer, ArrayList<FileEntry>> cluster : old.clusters.entrySet()) {
+                    DBSCAN_Clusters.Cluster c = new DBSCAN_Clusters(2).getNewCluster();
+                    boolean affected = false;
+                    for (FileEntry f : cluster.getValue()) {
+                        FileEntry currentFile = current.get(f.path);
+                        if (currentFile == null || !currentFile.sameVersion(f)) {
+                            affected = true; // removed or modified
+                            continue;
+                        }
+                        int idx = currentIdx.get(f.path);
+                        c.add(new long[]{picturesMdata.getLocations().getLatitudeE7(idx),
+                                picturesMdata.getLocations().getLongitudeE7(idx)}, idx);
+                    }
+                    if (!affected) affected = isNear(c, changedIdx, picturesMdata, root.window);
+                    if (affected) {
+                        reclusterIdx.addAll(c.clusterIdxs());
+                    } else {
+                        children.put(cluster.getKey(), LocHier.newChild(c, root.window, false));
+                    }
+                }
+                reclusterIdx.addAll(changedIdx);
+            }
+            if (reclusterIdx.size() > 0) {
+                for (DBSCAN_Clusters.Cluster c : LocHier.findClusters(reclusterIdx, root.window)) {
+                    int id = manifest.nextId++;
+                    children.put(id, LocHier.newChild(c, root.window, true));
+                    writeIds.add(id);
+                }
+            }
+
+            // write the files of the new clusters and then the top level file that links to all of them.
+            for (Integer id : writeIds) {
+                Kml kml = new Kml();
+                Document doc = kml.createAndSetDocument().withName(docName + " lev1num" + id);
+                children.get(id).writeoutKML(doc, 1, id);
+                marshal(kml, clusterFileName(id));
+            }
+            ArrayList<String> hrefs = new ArrayList<>();
+            for (Integer id : children.keySet()) {
+                hrefs.add(clusterFileName(id));
+                ArrayList<FileEntry> files = new ArrayList<>();
+                for (Integer idx : children.get(id).cluster.clusterIdxs()) {
+                    files.add(current.get(picturesMdata.get(idx).srcFileName));
+                }
+                manifest.clusters.put(id, files);
+            }
+            Kml kml = new Kml();
+            Document doc = kml.createAndSetDocument().withName(docName).withOpen(true);
+            root.writeoutKMLLinks(doc, new ArrayList<>(children.values()), new ArrayList<>(children.keySet()), hrefs);
+            marshal(kml, docName + ".kml");
+        }
+        manifest.save(manifestFile());
+
+        // remove the files of clusters that no longer exist
+        if (previous != null) {
+            for (Integer id : previous.clusters.keySet()) {
+                if (!children.containsKey(id)) {
+                    Files.deleteIfExists(new File(outputDir, clusterFileName(id)).toPath());
+                }
+            }
+        }
+        numClusters = children.size();
+        numClustersWritten = writeIds.size();
+        return changedIdx;
+    }
+
+    // isNear returns true if any of the pictures is within a search window of the cluster's bounding box.
+    private static boolean isNear(DBSCAN_Clusters.Cluster c, ArrayList<Integer> idxs, PicturesMdata picturesMdata,
+                                  long[] window) {
+        long[][] bounds = c.getBoundsLong();
+        ColumnarLocations locations = picturesMdata.getLocations();
+        for (Integer idx : idxs) {
+            long latitude = locations.getLatitudeE7(idx);
+            long longitude = locations.getLongitudeE7(idx);
+            if (latitude >= bounds[1][0] - window[0] && latitude < bounds[0][0] + window[0] &&
+                    longitude >= bounds[1][1] - window[1] && longitude < bounds[0][1] + window[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void marshal(Kml kml, String fileName) throws IOException {
+        if (!kml.marshal(new File(outputDir, fileName))) {
+            throw new IOException("KML file save failed: " + fileName);
+        }
+    }
+}
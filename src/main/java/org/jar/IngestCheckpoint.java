@@ -0,0 +1,495 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.apache.commons.imaging.ImageReadException;
+import org.jar.EarthPicsViewer.PicturesMdata;
+import org.jar.EarthPicsViewer.PicturesMdata.PictureMdata;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * IngestCheckpoint records the outcome of every file the MdataIngest stores, as it is stored, so that a
+ * run that stopped part way through a large library can be resumed without reading the files that were
+ * already done.  The records are appended to a file in the KML directory in blocks.  A block is written
+ * and forced to the disk every BLOCK_RECORDS records or BLOCK_MS milliseconds, and each block ends with
+ * a CRC so a block that was only partly written when the run stopped is found and dropped on resume.
+ * At most the last block's worth of files are read again.  Once every file has been ingested the
+ * checkpoint is deleted, as there is nothing left to resume.
+ * </p>
+ * <p>
+ * On resume the recorded pictures are added to the PicturesMdata in the order they were stored, the
+ * recorded read errors are reported again, and the files that were recorded are left out of the ingest.
+ * Each record holds the size and last modified time of its file, as XmpSidecar.fileVersion() gives them,
+ * and a file that has changed or gone since it was recorded is read again rather than replayed.  For an
+ * archive entry these are the archive's, since its entries are not listed until the ingest reaches it.
+ * A checkpoint made with different run settings, or with a record that can't be decoded, is not resumed
+ * from.  The checkpoint file has this layout, all in DataOutputStream format:
+ * <pre>
+ *   int    MAGIC
+ *   short  VERSION
+ *   UTF    settings
+ *   per block:
+ *     int    BLOCK_MAGIC
+ *     int    length of the records in bytes
+ *     records, each a byte status, UTF path, long size and long last modified time, then
+ *       STATUS_STORED:    long timestampMs, long latitudeE7, long longitudeE7, boolean hasLocation,
+ *                         int UTC offset in minutes, long header hash, long picture size
+ *       STATUS_DUPLICATE: UTF path of the picture it is a copy of
+ *       STATUS_ERROR:     UTF error message
+ *       STATUS_SKIPPED:   nothing
+ *     long   CRC32 of the records
+ * </pre>
+ * </p>
+ */
+class IngestCheckpoint {
+
+    static final String CHECKPOINT_FILE_NAME = "ingest.checkpoint";
+    static final int BLOCK_RECORDS = 1000; // records per block
+    static final long BLOCK_MS = 5000;     // longest time a record waits to be written
+
+    private static final int MAGIC = 0x45505649; // "EPVI"
+    private static final short VERSION = 3;
+    private static final int BLOCK_MAGIC = 0x424C4B20; // "BLK "
+
+    private static final byte STATUS_STORED = 0;    // the picture was stored
+    private static final byte STATUS_DUPLICATE = 1; // the picture was a copy of one already stored
+    private static final byte STATUS_ERROR = 2;     // the file could not be read
+    private static final byte STATUS_SKIPPED = 3;   // the file had no metadata or was outside the time range
+
+    private final File file;
+    private final HashSet<String> done;   // files recorded in the checkpoint that was resumed from
+    private byte[] resumedRecords;        // the records of the resumed checkpoint until they are replayed
+    private FileChannel channel;          // the checkpoint file, open for appending, or null after close()
+    private final ByteArrayOutputStream block;
+    private final DataOutputStream blockOut;
+    private int blockRecords;
+    private long blockStartMs;
+    private String failure;               // why checkpointing stopped or null
+    private final HashMap<String, long[]> archiveVersions; // versions of the archives of the recorded entries
+    int numResumed;                       // files in the checkpoint that was resumed from
+    int numChanged;                       // recorded files that changed since and are read again
+
+    private IngestCheckpoint(File file) {
+        this.file = file;
+        this.done = new HashSet<>();
+        this.resumedRecords = new byte[0];
+        this.channel = null;
+        this.block = new ByteArrayOutputStream();
+        this.blockOut = new DataOutputStream(block);
+        this.blockRecords = 0;
+        this.blockStartMs = 0;
+        this.failure = null;
+        this.archiveVersions = new HashMap<>();
+        this.numResumed = 0;
+        this.numChanged = 0;
+    }
+
+    // one record of the checkpoint file as it is read back
+    private static class Record {
+        byte status;
+        String srcFileName;
+        long size;
+        long lastModified;
+        long timestampMs;
+        long latitudeE7;
+        long longitudeE7;
+        boolean hasLocation;
+        int utcOffsetMinutes;
+        long headerHash;
+        long pictureSize;
+        String text; // the original of a duplicate or the message of an error
+    }
+
+    /*
+     * <p>
+     * The {@code open} method starts a checkpoint, or continues the existing one if resume is true and
+     * the existing one was made with the same settings.  Otherwise the existing one is replaced.
+     * </p>
+     *
+     * @param outputDir - the KML directory the checkpoint file is in
+     * @param settings - the inputs of the run that decide which files are read and how
+     * @param resume - true to continue from the existing checkpoint
+     * @returns the checkpoint
+     */
+    static IngestCheckpoint open(File outputDir, String settings, boolean resume) throws IOException {
+        IngestCheckpoint checkpoint = new IngestCheckpoint(new File(outputDir, CHECKPOINT_FILE_NAME));
+        long validLength = resume ? checkpoint.load(settings) : 0;
+        if (validLength > 0) {
+            checkpoint.channel = FileChannel.open(checkpoint.file.toPath(), StandardOpenOption.WRITE);
+            // drop a block that was only partly written
+            checkpoint.channel.truncate(validLength);
+            checkpoint.channel.position(validLength);
+        } else {
+            checkpoint.channel = FileChannel.open(checkpoint.file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            write(checkpoint.channel, ByteBuffer.wrap(header(settings)));
+            checkpoint.channel.force(false);
+        }
+        return checkpoint;
+    }
+
+    // header returns the start of the checkpoint file
+    private static byte[] header(String settings) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(settings);
+        return header.toByteArray();
+    }
+
+    // load reads the blocks of the existing checkpoint and returns the length of the file up to the end of
+    // the last whole block, or 0 if there is no usable checkpoint.
+    private long load(String settings) {
+        if (!file.isFile()) return 0;
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        long validLength;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                System.out.println("Ignoring checkpoint " + file + " with unknown format");
+                return 0;
+            }
+            if (!in.readUTF().equals(settings)) {
+                System.out.println("Ignoring checkpoint " + file + " made with other settings");
+                return 0;
+            }
+            validLength = header(settings).length;
+            while (true) {
+                byte[] bytes;
+                try {
+                    if (in.readInt() != BLOCK_MAGIC) break;
+                    int length = in.readInt();
+                    if (length < 0 || length > 1 << 30) break;
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    if (in.readLong() != crc.getValue()) break;
+                } catch (EOFException e) {
+                    break;
+                }
+                records.write(bytes);
+                validLength += 4 + 4 + bytes.length + 8;
+            }
+            // decode every record now so a checkpoint that can't be replayed is found before any of it is
+            DataInputStream recordsIn = new DataInputStream(new ByteArrayInputStream(records.toByteArray()));
+            Record record = new Record();
+            while (recordsIn.available() > 0) {
+                readRecord(recordsIn, record);
+            }
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable checkpoint " + file + " : " + e.getMessage());
+            return 0;
+        }
+        resumedRecords = records.toByteArray();
+        return validLength;
+    }
+
+    // readRecord reads the next record into record.
+    private static void readRecord(DataInputStream in, Record record) throws IOException {
+        record.status = in.readByte();
+        record.srcFileName = in.readUTF();
+        record.size = in.readLong();
+        record.lastModified = in.readLong();
+        switch (record.status) {
+            case STATUS_STORED:
+                record.timestampMs = in.readLong();
+                record.latitudeE7 = in.readLong();
+                record.longitudeE7 = in.readLong();
+                record.hasLocation = in.readBoolean();
+                record.utcOffsetMinutes = in.readInt();
+                record.headerHash = in.readLong();
+                record.pictureSize = in.readLong();
+                break;
+            case STATUS_DUPLICATE:
+            case STATUS_ERROR:
+                record.text = in.readUTF();
+                break;
+            case STATUS_SKIPPED:
+                break;
+            default:
+                throw new IOException("bad checkpoint record status " + record.status);
+        }
+    }
+
+    // fileVersion returns the size and last modified time of a file, or of the archive of an archive
+    // entry, or null if the file can't be read.  An archive is looked at once for all of its entries.
+    private long[] fileVersion(String srcFileName) {
+        int split = srcFileName.indexOf(ArchiveSource.SEPARATOR);
+        if (split < 0) return readVersion(srcFileName);
+        String archiveName = srcFileName.substring(0, split);
+        if (!archiveVersions.containsKey(archiveName)) archiveVersions.put(archiveName, readVersion(archiveName));
+        return archiveVersions.get(archiveName);
+    }
+
+    // readVersion returns XmpSidecar.fileVersion() of a file or null if the file can't be read.
+    private static long[] readVersion(String fileName) {
+        try {
+            return XmpSidecar.fileVersion(fileName);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code replay} method adds the pictures recorded in the checkpoint that was resumed from to
+     * picturesMdata and reports its read errors, as MdataIngest would have done when it read them.  The
+     * files that changed since they were recorded, and copies of them, are left for the ingest to read.
+     * </p>
+     *
+     * @param dstFolderName - as for MdataIngest.run()
+     * @param picturesMdata - where the pictures are stored
+     * @param duplicates - the DuplicateDetector of the ingest or null
+     * @param cache - the metadata cache of the ingest or null.  Its entries for the recorded files are kept.
+     * @param errorHandler - is told about the recorded read errors.  Its return value is ignored.
+     * @returns the number of files that were replayed
+     */
+    int replay(String dstFolderName, PicturesMdata picturesMdata, DuplicateDetector duplicates,
+               MdataCache cache, MdataIngest.ErrorHandler errorHandler) throws IOException {
+        HashMap<String, PictureMdata> stored = new HashMap<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(resumedRecords));
+        Record record = new Record();
+        while (in.available() > 0) {
+            readRecord(in, record);
+            String srcFileName = record.srcFileName;
+            long[] version = fileVersion(srcFileName);
+            if (version == null || version[0] != record.size || version[1] != record.lastModified) {
+                numChanged++;
+                continue;
+            }
+            PictureMdata original = null;
+            if (record.status == STATUS_DUPLICATE) {
+                // a copy of a picture that is read again is read again too
+                original = stored.get(record.text);
+                if (original == null) continue;
+            }
+            done.add(srcFileName);
+            if (cache != null) cache.keep(srcFileName);
+            switch (record.status) {
+                case STATUS_STORED:
+                    ImageMdata imageMdata = record.hasLocation ?
+                            new ImageMdata(record.timestampMs, record.latitudeE7, record.longitudeE7) :
+                            new ImageMdata(record.timestampMs);
+                    imageMdata.utcOffsetMinutes = record.utcOffsetMinutes;
+                    String dstFileName = srcFileName;
+                    if (dstFolderName != null) {
+                        dstFileName = dstFolderName + File.separator + new File(srcFileName).getName();
+                    }
+                    PictureMdata pictureMdata = picturesMdata.add(srcFileName, dstFileName, imageMdata);
+                    stored.put(srcFileName, pictureMdata);
+                    if (duplicates != null && record.headerHash != 0) {
+                        duplicates.stored(pictureMdata, record.pictureSize, record.headerHash, imageMdata);
+                    }
+                    break;
+                case STATUS_DUPLICATE:
+                    original.addAlternate(srcFileName);
+                    if (duplicates != null) duplicates.numDuplicates++;
+                    break;
+                case STATUS_ERROR:
+                    errorHandler.readError(srcFileName, new ImageReadException(record.text));
+                    break;
+                default:
+                    break;
+            }
+        }
+        resumedRecords = null;
+        numResumed = done.size();
+        return numResumed;
+    }
+
+    // remaining returns the files that are not recorded in the checkpoint that was resumed from.
+    Iterator<String> remaining(final Iterator<String> srcFileNames) {
+        if (done.isEmpty()) return srcFileNames;
+        return new Iterator<String>() {
+            private String next = null;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && srcFileNames.hasNext()) {
+                    String fileName = srcFileNames.next();
+                    if (!done.contains(fileName)) next = fileName;
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                String fileName = next;
+                next = null;
+                return fileName;
+            }
+        };
+    }
+
+    // writeStart writes the status, path and version that start every record.  The version is looked up
+    // if the ingest did not have it.  A file that can't be read gets a version no file has, so it is read
+    // again on resume.
+    private void writeStart(byte status, String srcFileName, long[] version) throws IOException {
+        if (version == null) version = fileVersion(srcFileName);
+        blockOut.writeByte(status);
+        blockOut.writeUTF(srcFileName);
+        blockOut.writeLong(version == null ? -1 : version[0]);
+        blockOut.writeLong(version == null ? -1 : version[1]);
+    }
+
+    // stored records a picture that was stored, with what the DuplicateDetector needs to find its copies.
+    // Here and below version is XmpSidecar.fileVersion() of the file if the ingest has it, otherwise null.
+    void stored(String srcFileName, long[] version, ImageMdata imageMdata, long headerHash, long pictureSize) {
+        try {
+            writeStart(STATUS_STORED, srcFileName, version);
+            blockOut.writeLong(imageMdata.timestampMs);
+            blockOut.writeLong(imageMdata.latitudeE7);
+            blockOut.writeLong(imageMdata.longitudeE7);
+            blockOut.writeBoolean(imageMdata.hasLocation);
+            blockOut.writeInt(imageMdata.utcOffsetMinutes);
+            blockOut.writeLong(headerHash);
+            blockOut.writeLong(pictureSize);
+        } catch (IOException e) {
+            // writes to a ByteArrayOutputStream don't fail
+        }
+        recorded();
+    }
+
+    // duplicate records a picture that was added as an alternate path of an original.
+    void duplicate(String srcFileName, long[] version, String originalFileName) {
+        try {
+            writeStart(STATUS_DUPLICATE, srcFileName, version);
+            blockOut.writeUTF(originalFileName);
+        } catch (IOException e) {
+            // writes to a ByteArrayOutputStream don't fail
+        }
+        recorded();
+    }
+
+    // error records a file that could not be read.
+    void error(String srcFileName, long[] version, String message) {
+        try {
+            writeStart(STATUS_ERROR, srcFileName, version);
+            blockOut.writeUTF(message == null ? "" : message);
+        } catch (IOException e) {
+            // writes to a ByteArrayOutputStream don't fail
+        }
+        recorded();
+    }
+
+    // skipped records a file that has no metadata or is outside the time range.
+    void skipped(String srcFileName, long[] version) {
+        try {
+            writeStart(STATUS_SKIPPED, srcFileName, version);
+        } catch (IOException e) {
+            // writes to a ByteArrayOutputStream don't fail
+        }
+        recorded();
+    }
+
+    // recorded writes the block if it is full or old enough.
+    private void recorded() {
+        if (blockRecords++ == 0) blockStartMs = System.currentTimeMillis();
+        if (blockRecords >= BLOCK_RECORDS || System.currentTimeMillis() - blockStartMs >= BLOCK_MS) {
+            writeBlock();
+        }
+    }
+
+    // writeBlock appends the records since the last block to the file and forces them to the disk.  If
+    // that fails checkpointing stops but the ingest goes on.
+    private void writeBlock() {
+        if (blockRecords == 0) return;
+        byte[] records = block.toByteArray();
+        block.reset();
+        blockRecords = 0;
+        if (channel == null) return;
+        CRC32 crc = new CRC32();
+        crc.update(records);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + records.length + 8);
+        buffer.putInt(BLOCK_MAGIC).putInt(records.length).put(records).putLong(crc.getValue());
+        buffer.flip();
+        try {
+            write(channel, buffer);
+            channel.force(false);
+        } catch (IOException e) {
+            failure = e.getMessage();
+            close();
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // getFailure returns why checkpointing stopped or null if it did not.
+    String getFailure() {
+        return failure;
+    }
+
+    // complete deletes the checkpoint once every file has been ingested.
+    void complete() {
+        close();
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            System.out.println("Failed to delete checkpoint " + file + " : " + e.getMessage());
+        }
+    }
+
+    // close writes the last block and closes the file.
+    void close() {
+        if (channel == null) return;
+        writeBlock();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+}
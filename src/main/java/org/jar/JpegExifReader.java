@@ -0,0 +1,547 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import org.apache.commons.imaging.ImageReadException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * JpegExifReader is a purpose built reader for the few EXIF fields EarthPicsViewer uses.  Rather than
+ * parsing the whole file it walks the JPEG marker segments from the start of the file up to the APP1
+ * segment holding the EXIF data, reads only that segment, and decodes only the IFD0, Exif IFD and GPS
+ * IFD entries for DateTimeOriginal and the GPS latitude and longitude.  For a typical photo that is a
+ * few KB of I/O no matter how large the file is.
+ * </p>
+ * <p>
+ * Anything the reader does not understand throws an UnsupportedException so the caller can fall back
+ * to the commons-imaging reader.
+ * </p>
+ */
+class JpegExifReader {
+
+    // The UnsupportedException is thrown when the fast path can't read the file.
+    static class UnsupportedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    // JPEG markers
+    private static final int M_SOI  = 0xD8;
+    private static final int M_EOI  = 0xD9;
+    private static final int M_SOS  = 0xDA;
+    private static final int M_APP1 = 0xE1;
+
+    // TIFF tags
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_OFFSET_TIME = 0x9010;
+    private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    // TIFF field types used here
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+
+    /*
+     * <p>
+     * The {@code read} method reads the time and location from one jpeg file.
+     * </p>
+     *
+     * @param fileName - name of the jpeg file
+     * @param range - pictures taken outside this range are returned as ImageMdata.OUT_OF_RANGE
+     * @returns the metadata, without a location if the file has no GPS data
+     * @throws ImageReadException if the file has EXIF data but not the date
+     * @throws UnsupportedException if the fast path could not read the EXIF data
+     */
+    static ImageMdata read(String fileName, TimeRange range) throws IOException, ImageReadException,
+            ParseException, UnsupportedException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            return parseTiff(findExif(channel), range);
+        }
+    }
+
+    // read reads the time and location from one jpeg file whatever the time.
+    static ImageMdata read(String fileName) throws IOException, ImageReadException, ParseException,
+            UnsupportedException {
+        return read(fileName, TimeRange.ALL);
+    }
+
+    /*
+     * <p>
+     * The {@code readTiff} method reads the time and location from a TIFF based file such as a .tif or a
+     * DNG raw file.  The whole file is the TIFF structure so it is mapped rather than read, and only the
+     * pages holding the IFDs that are looked at are actually read.
+     * </p>
+     *
+     * @param fileName - name of the TIFF file
+     * @param range - pictures taken outside this range are returned as ImageMdata.OUT_OF_RANGE
+     * @returns the metadata, without a location if the file has no GPS data
+     * @throws ImageReadException if the file has no date
+     * @throws UnsupportedException if the TIFF structure could not be read
+     */
+    static ImageMdata readTiff(String fileName, TimeRange range) throws IOException, ImageReadException,
+            ParseException, UnsupportedException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new UnsupportedException("TIFF file too large to map");
+            }
+            return parseTiff(tiffOrder(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)), range, true);
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code findExif} method steps through the marker segments at the start of a jpeg file and
+     * returns the TIFF structure from the APP1 EXIF segment.  Only the segment headers and the APP1
+     * segment itself are read.
+     * </p>
+     *
+     * @param channel - channel to the jpeg file
+     * @returns a ByteBuffer holding the TIFF header and IFDs with the byte order set
+     */
+    static ByteBuffer findExif(FileChannel channel) throws IOException, UnsupportedException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        long position = 0;
+        readFully(channel, header, position, 2);
+        if ((header.get(0) & 0xFF) != 0xFF || (header.get(1) & 0xFF) != M_SOI) {
+            throw new UnsupportedException("Not a jpeg file");
+        }
+        position += 2;
+        while (true) {
+            readFully(channel, header, position, 4);
+            if ((header.get(0) & 0xFF) != 0xFF) {
+                throw new UnsupportedException("Bad jpeg marker");
+            }
+            int marker = header.get(1) & 0xFF;
+            if (marker == 0xFF) { // fill byte, step over it
+                position++;
+                continue;
+            }
+            if (marker == M_SOS || marker == M_EOI) {
+                throw new UnsupportedException("No EXIF segment found");
+            }
+            int length = header.getShort(2) & 0xFFFF;
+            if (length < 2) {
+                throw new UnsupportedException("Bad jpeg segment length");
+            }
+            if (marker == M_APP1 && length >= 8 + 6) {
+                ByteBuffer segment = ByteBuffer.allocate(length - 2);
+                readFully(channel, segment, position + 4, length - 2);
+                if (segment.get(0) == 'E' && segment.get(1) == 'x' && segment.get(2) == 'i' &&
+                        segment.get(3) == 'f' && segment.get(4) == 0 && segment.get(5) == 0) {
+                    segment.position(6);
+                    return tiffOrder(segment.slice());
+                }
+            }
+            position += 2 + length;
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code findExif} method finds the TIFF structure from the APP1 EXIF segment in the first bytes
+     * of a jpeg file that have already been read.
+     * </p>
+     *
+     * @param head - buffer holding the start of the jpeg file from position 0 to its limit
+     * @returns a ByteBuffer holding the TIFF header and IFDs with the byte order set
+     * @throws UnsupportedException if the EXIF segment is not entirely in head
+     */
+    static ByteBuffer findExif(ByteBuffer head) throws UnsupportedException {
+        if (head.limit() < 2 || (head.get(0) & 0xFF) != 0xFF || (head.get(1) & 0xFF) != M_SOI) {
+            throw new UnsupportedException("Not a jpeg file");
+        }
+        int position = 2;
+        while (true) {
+            if (position + 4 > head.limit()) {
+                throw new UnsupportedException("EXIF segment not in header");
+            }
+            if ((head.get(position) & 0xFF) != 0xFF) {
+                throw new UnsupportedException("Bad jpeg marker");
+            }
+            int marker = head.get(position + 1) & 0xFF;
+            if (marker == 0xFF) { // fill byte, step over it
+                position++;
+                continue;
+            }
+            if (marker == M_SOS || marker == M_EOI) {
+                throw new UnsupportedException("No EXIF segment found");
+            }
+            int length = head.getShort(position + 2) & 0xFFFF;
+            if (length < 2) {
+                throw new UnsupportedException("Bad jpeg segment length");
+            }
+            if (marker == M_APP1 && length >= 8 + 6) {
+                if (position + 2 + length > head.limit()) {
+                    throw new UnsupportedException("EXIF segment not in header");
+                }
+                int s = position + 4;
+                if (head.get(s) == 'E' && head.get(s + 1) == 'x' && head.get(s + 2) == 'i' &&
+                        head.get(s + 3) == 'f' && head.get(s + 4) == 0 && head.get(s + 5) == 0) {
+                    ByteBuffer tiff = head.duplicate();
+                    tiff.limit(position + 2 + length);
+                    tiff.position(s + 6);
+                    return tiffOrder(tiff.slice());
+                }
+            }
+            position += 2 + length;
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code parseTiffHead} method reads the time and location from the first bytes of a TIFF based
+     * file that have already been read.
+     * </p>
+     *
+     * @param head - buffer holding the start of the TIFF file from position 0 to its limit
+     * @param range - pictures taken outside this range are returned as ImageMdata.OUT_OF_RANGE
+     * @returns the metadata, without a location if the file has no GPS data
+     * @throws UnsupportedException if any IFD that is needed is not entirely in head
+     */
+    static ImageMdata parseTiffHead(ByteBuffer head, TimeRange range) throws ImageReadException,
+            ParseException, UnsupportedException {
+        return parseTiff(tiffOrder(head.duplicate()), range, true);
+    }
+
+    // readFully reads length bytes at position into the start of buffer
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException, UnsupportedException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new UnsupportedException("Unexpected end of file");
+            }
+        }
+    }
+
+    // tiffOrder sets the byte order of a buffer holding a TIFF structure from its header.
+    private static ByteBuffer tiffOrder(ByteBuffer tiff) throws UnsupportedException {
+        if (tiff.limit() < 8) {
+            throw new UnsupportedException("EXIF segment too short");
+        }
+        if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (tiff.get(0) == 'M' && tiff.get(1) == 'M') {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            throw new UnsupportedException("Bad TIFF byte order");
+        }
+        if (tiff.getShort(2) != 42) {
+            throw new UnsupportedException("Bad TIFF magic number");
+        }
+        return tiff;
+    }
+
+    /*
+     * <p>
+     * The {@code parseTiff} method decodes DateTimeOriginal and the GPS location from a TIFF structure.
+     * The date is decoded first and the GPS IFD is not looked at for a picture outside the time range.
+     * </p>
+     *
+     * @param tiff - buffer holding the TIFF structure with position 0 at the TIFF header
+     * @param range - pictures taken outside this range are returned as ImageMdata.OUT_OF_RANGE
+     * @returns the metadata
+     */
+    static ImageMdata parseTiff(ByteBuffer tiff, TimeRange range) throws ImageReadException, ParseException,
+            UnsupportedException {
+        return parseTiff(tiff, range, false);
+    }
+
+    // parseTiff with useDateTime true takes the IFD0 DateTime when there is no DateTimeOriginal, as
+    // plain TIFF and DNG exports often carry only that.  A jpeg without DateTimeOriginal is still an error.
+    private static ImageMdata parseTiff(ByteBuffer tiff, TimeRange range, boolean useDateTime)
+            throws ImageReadException, ParseException, UnsupportedException {
+        // find the Exif sub IFD in IFD0
+        int ifd0 = offset(tiff, tiff.getInt(4), 2);
+        int exifIfd = findEntry(tiff, ifd0, TAG_EXIF_IFD);
+
+        // parse time
+        int exif = exifIfd < 0 ? -1 : subIfd(tiff, exifIfd);
+        int dateEntry = exif < 0 ? -1 : findEntry(tiff, exif, TAG_DATE_TIME_ORIGINAL);
+        int offsetTag = TAG_OFFSET_TIME_ORIGINAL;
+        if (dateEntry < 0 && useDateTime) {
+            dateEntry = findEntry(tiff, ifd0, TAG_DATE_TIME);
+            offsetTag = TAG_OFFSET_TIME;
+        }
+        if (dateEntry < 0) {
+            throw new ImageReadException("Date Read Error");
+        }
+        long timestampMs = getDate(tiff, dateEntry);
+        if (!range.contains(timestampMs)) {
+            return ImageMdata.OUT_OF_RANGE;
+        }
+
+        // parse location
+        int gpsIfd = findEntry(tiff, ifd0, TAG_GPS_IFD);
+        int gpsLatitudeRef = -1, gpsLatitude = -1, gpsLongitudeRef = -1, gpsLongitude = -1;
+        if (gpsIfd >= 0) {
+            int gps = subIfd(tiff, gpsIfd);
+            gpsLatitudeRef = findEntry(tiff, gps, TAG_GPS_LATITUDE_REF);
+            gpsLatitude = findEntry(tiff, gps, TAG_GPS_LATITUDE);
+            gpsLongitudeRef = findEntry(tiff, gps, TAG_GPS_LONGITUDE_REF);
+            gpsLongitude = findEntry(tiff, gps, TAG_GPS_LONGITUDE);
+        }
+        if (gpsLatitudeRef < 0 || gpsLatitude < 0 || gpsLongitudeRef < 0 || gpsLongitude < 0) {
+            // a picture without a location may be located from a track, which needs its UTC offset
+            ImageMdata imageMdata = new ImageMdata(timestampMs);
+            int offsetEntry = exif < 0 ? -1 : findEntry(tiff, exif, offsetTag);
+            if (offsetEntry >= 0 && (tiff.getShort(offsetEntry + 2) & 0xFFFF) == TYPE_ASCII) {
+                imageMdata.utcOffsetMinutes = ExifDate.parseOffset(getAscii(tiff, offsetEntry));
+            }
+            return imageMdata;
+        }
+        double dLongitude = getDegrees(tiff, gpsLongitude);
+        if (getAscii(tiff, gpsLongitudeRef).equals("W")) {
+            dLongitude = -dLongitude;
+        }
+        double dLatitude = getDegrees(tiff, gpsLatitude);
+        if (getAscii(tiff, gpsLatitudeRef).equals("S")) {
+            dLatitude = -dLatitude;
+        }
+        return new ImageMdata(timestampMs, (long)(dLatitude * 1.0E7), (long)(dLongitude * 1.0E7));
+    }
+
+    /*
+     * <p>
+     * The {@code readThumbnail} method reads the jpeg thumbnail that a camera stores in IFD1 of the EXIF
+     * data, without decoding the picture itself.  It works for jpeg files and TIFF based files.
+     * </p>
+     *
+     * @param fileName - name of the picture file
+     * @returns a ByteBuffer holding the whole thumbnail jpeg file or null if the picture has none
+     * @throws UnsupportedException if the file is not a jpeg or TIFF file or its EXIF data can't be read
+     */
+    static ByteBuffer readThumbnail(String fileName) throws IOException, UnsupportedException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(2);
+            readFully(channel, header, 0, 2);
+            if (header.get(0) == header.get(1) && (header.get(0) == 'I' || header.get(0) == 'M')) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new UnsupportedException("TIFF file too large to map");
+                }
+                return findThumbnail(tiffOrder(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)));
+            }
+            return findThumbnail(findExif(channel));
+        }
+    }
+
+    // readThumbnail returns the IFD1 thumbnail of a jpeg or TIFF based picture that is already in memory,
+    // such as an archive entry, or null if it has none.
+    static ByteBuffer readThumbnail(ByteBuffer file) throws UnsupportedException {
+        if (file.limit() >= 2 && file.get(0) == file.get(1) && (file.get(0) == 'I' || file.get(0) == 'M')) {
+            return findThumbnail(tiffOrder(file.duplicate()));
+        }
+        return findThumbnail(findExif(file));
+    }
+
+    // findThumbnail returns the jpeg thumbnail pointed to by IFD1 of a TIFF structure or null if none.
+    static ByteBuffer findThumbnail(ByteBuffer tiff) throws UnsupportedException {
+        int ifd0 = offset(tiff, tiff.getInt(4) & 0xFFFFFFFFL, 2);
+        int count = tiff.getShort(ifd0) & 0xFFFF;
+        int next = offset(tiff, ifd0 + 2 + 12L * count, 4);
+        long ifd1Offset = tiff.getInt(next) & 0xFFFFFFFFL;
+        if (ifd1Offset == 0) return null;
+        int ifd1 = offset(tiff, ifd1Offset, 2);
+        int startEntry = findEntry(tiff, ifd1, TAG_JPEG_INTERCHANGE_FORMAT);
+        int lengthEntry = findEntry(tiff, ifd1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+        if (startEntry < 0 || lengthEntry < 0) return null;
+        long length = getUnsigned(tiff, lengthEntry);
+        if (length < 4 || length > Integer.MAX_VALUE) return null;
+        int start = offset(tiff, getUnsigned(tiff, startEntry), (int) length);
+        if ((tiff.get(start) & 0xFF) != 0xFF || (tiff.get(start + 1) & 0xFF) != M_SOI) return null;
+        ByteBuffer thumbnail = tiff.duplicate();
+        thumbnail.limit(start + (int) length);
+        thumbnail.position(start);
+        return thumbnail.slice();
+    }
+
+    // getUnsigned returns the value of a SHORT or LONG entry
+    private static long getUnsigned(ByteBuffer tiff, int entry) throws UnsupportedException {
+        int type = tiff.getShort(entry + 2) & 0xFFFF;
+        if (type == TYPE_SHORT) return tiff.getShort(entry + 8) & 0xFFFF;
+        if (type == TYPE_LONG) return tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+        throw new UnsupportedException("TIFF entry is not SHORT or LONG");
+    }
+
+    // offset checks that length bytes at offset are inside the TIFF structure and returns the offset.
+    private static int offset(ByteBuffer tiff, long offset, int length) throws UnsupportedException {
+        if (offset < 0 || offset + length > tiff.limit()) {
+            throw new UnsupportedException("TIFF offset out of range");
+        }
+        return (int) offset;
+    }
+
+    // findEntry returns the position of the 12 byte entry for tag in the IFD at ifd or -1 if not found.
+    private static int findEntry(ByteBuffer tiff, int ifd, int tag) throws UnsupportedException {
+        int count = tiff.getShort(ifd) & 0xFFFF;
+        offset(tiff, ifd + 2, 12 * count);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + 12 * i;
+            if ((tiff.getShort(entry) & 0xFFFF) == tag) return entry;
+        }
+        return -1;
+    }
+
+    // subIfd returns the position of the IFD that a pointer entry points to.
+    private static int subIfd(ByteBuffer tiff, int entry) throws UnsupportedException {
+        return offset(tiff, tiff.getInt(entry + 8) & 0xFFFFFFFFL, 2);
+    }
+
+    // valueOffset returns the position of the value of an entry, which is either inside the entry when
+    // it fits in 4 bytes or at the offset stored in the entry.
+    private static int valueOffset(ByteBuffer tiff, int entry, int size) throws UnsupportedException {
+        if (size <= 4) return entry + 8;
+        return offset(tiff, tiff.getInt(entry + 8) & 0xFFFFFFFFL, size);
+    }
+
+    // getAscii returns an ASCII entry as a String without the trailing nulls
+    private static String getAscii(ByteBuffer tiff, int entry) throws UnsupportedException {
+        if ((tiff.getShort(entry + 2) & 0xFFFF) != TYPE_ASCII) {
+            throw new UnsupportedException("TIFF entry is not ASCII");
+        }
+        long count = tiff.getInt(entry + 4) & 0xFFFFFFFFL;
+        int start = valueOffset(tiff, entry, (int) Math.min(count, Integer.MAX_VALUE));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            byte b = tiff.get(start + i);
+            if (b == 0) break;
+            sb.append((char) (b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    // getDate returns an ASCII date entry as ms since the epoch.  It is parsed in place in the buffer.
+    private static long getDate(ByteBuffer tiff, int entry) throws UnsupportedException, ParseException {
+        if ((tiff.getShort(entry + 2) & 0xFFFF) != TYPE_ASCII) {
+            throw new UnsupportedException("TIFF entry is not ASCII");
+        }
+        int count = (int) Math.min(tiff.getInt(entry + 4) & 0xFFFFFFFFL, Integer.MAX_VALUE);
+        return ExifDate.parse(tiff, valueOffset(tiff, entry, count), count);
+    }
+
+    // getDegrees returns a GPS degrees, minutes, seconds entry as decimal degrees.
+    private static double getDegrees(ByteBuffer tiff, int entry) throws UnsupportedException {
+        if ((tiff.getShort(entry + 2) & 0xFFFF) != TYPE_RATIONAL || tiff.getInt(entry + 4) < 3) {
+            throw new UnsupportedException("GPS coordinate is not 3 rationals");
+        }
+        int start = valueOffset(tiff, entry, 24);
+        double[] dms = new double[3];
+        for (int i = 0; i < 3; i++) {
+            long numerator = tiff.getInt(start + 8 * i) & 0xFFFFFFFFL;
+            long denominator = tiff.getInt(start + 8 * i + 4) & 0xFFFFFFFFL;
+            dms[i] = (double) numerator / (double) denominator;
+        }
+        return dms[0] + dms[1] / 60.0 + dms[2] / 3600.0;
+    }
+
+    // this main() function compares the fast reader with the commons-imaging reader on all of the jpeg
+    // files in a directory and prints the time each took.  It is not necessary.
+    public static void main(String[] args) throws Exception {
+        ArrayList<String> fnl = EarthPicsViewer.listFilesForFolder(new File(args[0]), 0);
+
+        long fastTime = System.currentTimeMillis();
+        ArrayList<Object> fastResults = new ArrayList<>();
+        for (String fn : fnl) {
+            try {
+                fastResults.add(read(fn));
+            } catch (Exception e) {
+                fastResults.add(e);
+            }
+        }
+        fastTime = System.currentTimeMillis() - fastTime;
+
+        long imagingTime = System.currentTimeMillis();
+        ArrayList<Object> imagingResults = new ArrayList<>();
+        for (String fn : fnl) {
+            try {
+                imagingResults.add(EarthPicsViewer.PicturesMdata.readMdataWithImaging(fn));
+            } catch (Exception e) {
+                imagingResults.add(e);
+            }
+        }
+        imagingTime = System.currentTimeMillis() - imagingTime;
+
+        int mismatches = 0;
+        int unsupported = 0;
+        for (int i = 0; i < fnl.size(); i++) {
+            Object f = fastResults.get(i);
+            Object m = imagingResults.get(i);
+            if (f instanceof UnsupportedException) {
+                unsupported++;
+                continue;
+            }
+            boolean match;
+            if (f instanceof ImageMdata && m instanceof ImageMdata) {
+                ImageMdata fm = (ImageMdata) f;
+                ImageMdata mm = (ImageMdata) m;
+                match = fm.timestampMs == mm.timestampMs && fm.latitudeE7 == mm.latitudeE7 &&
+                        fm.longitudeE7 == mm.longitudeE7 && fm.hasLocation == mm.hasLocation;
+            } else {
+                match = f instanceof Exception && m instanceof Exception &&
+                        ((Exception) f).getMessage().equals(((Exception) m).getMessage());
+            }
+            if (!match) {
+                mismatches++;
+                System.out.println("Mismatch on " + fnl.get(i) + " : " + f + " != " + m);
+            }
+        }
+        System.out.println(fnl.size() + " files, " + unsupported + " not supported by the fast reader, " +
+                mismatches + " mismatches");
+        System.out.printf("fast reader time = %.3f  commons-imaging time = %.3f\n",
+                fastTime / 1000., imagingTime / 1000.);
+    }
+}
@@ -0,0 +1,135 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import de.micromata.opengis.kml.v_2_2_0.Boundary;
+import de.micromata.opengis.kml.v_2_2_0.Container;
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Geometry;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.MultiGeometry;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Polygon;
+import org.KdTree.PolygonRegion;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * KmlPolygonReader reads the polygons of a KML or KMZ file, such as the outline of a country, a park or
+ * the land around a home drawn in Google Earth and saved with "Save Place As...", into PolygonRegions
+ * of latitude and longitude in units of 1e-7 degrees.  Every Polygon of every Placemark in the file,
+ * including those in Folders and MultiGeometries, is one polygon and its inner boundaries are holes.
+ * ie.
+ *         ArrayList<PolygonRegion> parks = KmlPolygonReader.getPolygons(new File("parks.kml"));
+ *         if (parks == null) System.exit(1);
+ * </p>
+ */
+class KmlPolygonReader {
+
+    /*
+     * <p>
+     * The {@code getPolygons} method reads the polygons of a file.  It prints a message and returns null
+     * if the file can't be read or has no polygons.
+     * </p>
+     *
+     * @param file - the KML or KMZ file
+     * @returns the polygons or null
+     */
+    static ArrayList<PolygonRegion> getPolygons(File file) {
+        ArrayList<PolygonRegion> polygons = new ArrayList<>();
+        try {
+            Kml[] kmls;
+            if (file.getName().toLowerCase().endsWith(".kmz")) {
+                kmls = Kml.unmarshalFromKmz(file);
+            } else {
+                kmls = new Kml[]{Kml.unmarshal(file)};
+            }
+            for (Kml kml : kmls) {
+                if (kml == null) throw new IOException("not a KML file");
+                addFeature(polygons, kml.getFeature());
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("KML file " + file.toString() + " read error: " + e.getMessage());
+            return null;
+        }
+        if (polygons.isEmpty()) {
+            System.out.println("KML file " + file.toString() + " has no polygons");
+            return null;
+        }
+        return polygons;
+    }
+
+    // addFeature adds the polygons of a feature and the features it contains
+    private static void addFeature(ArrayList<PolygonRegion> polygons, Feature feature) {
+        if (feature instanceof Placemark) {
+            addGeometry(polygons, ((Placemark) feature).getGeometry());
+        } else if (feature instanceof Document) {
+            for (Feature f : ((Document) feature).getFeature()) addFeature(polygons, f);
+        } else if (feature instanceof Folder) {
+            for (Feature f : ((Folder) feature).getFeature()) addFeature(polygons, f);
+        } else if (feature instanceof Container) {
+            System.out.println("Skipped a KML " + feature.getClass().getSimpleName());
+        }
+    }
+
+    private static void addGeometry(ArrayList<PolygonRegion> polygons, Geometry geometry) {
+        if (geometry instanceof Polygon) {
+            Polygon polygon = (Polygon) geometry;
+            ArrayList<long[][]> rings = new ArrayList<>();
+            if (polygon.getOuterBoundaryIs() == null) return;
+            rings.add(toRing(polygon.getOuterBoundaryIs()));
+            for (Boundary hole : polygon.getInnerBoundaryIs()) {
+                rings.add(toRing(hole));
+            }
+            polygons.add(new PolygonRegion(rings));
+        } else if (geometry instanceof MultiGeometry) {
+            for (Geometry g : ((MultiGeometry) geometry).getGeometry()) addGeometry(polygons, g);
+        }
+    }
+
+    // toRing returns the {latitudeE7, longitudeE7} vertices of a boundary
+    private static long[][] toRing(Boundary boundary) {
+        List<Coordinate> coordinates = boundary.getLinearRing() == null ? new ArrayList<Coordinate>() :
+                boundary.getLinearRing().getCoordinates();
+        long[][] ring = new long[coordinates.size()][];
+        for (int i = 0; i < ring.length; i++) {
+            Coordinate c = coordinates.get(i);
+            ring[i] = new long[]{(long) (c.getLatitude() * 1.0E7), (long) (c.getLongitude() * 1.0E7)};
+        }
+        return ring;
+    }
+}
@@ -0,0 +1,416 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * LocationHistoryReader reads the "Location History.json" file that Google delivers with a person's
+ * location data into a ColumnarLocations.  The file can be several GB so it is not turned into objects.
+ * It is read a block at a time and scanned byte by byte: the entries of the top level "locations" array
+ * are decoded field by field straight into the location columns and everything else is skipped without
+ * being stored.  The memory used beyond the columns themselves is the read block.
+ * ie.
+ *         ColumnarLocations locations = LocationHistoryReader.getLocations(
+ *             new File("/Users/john/Desktop/gis", "Location History.json"));
+ *         if (locations == null) System.exit(1);
+ * </p>
+ * <p>
+ * The time of an entry is taken from "timestampMs", a string or number of ms since the epoch, or from
+ * "timestamp", an ISO-8601 time such as "2019-06-01T17:02:33.123Z" used by newer exports.  Entries
+ * without a time, latitudeE7 or longitudeE7 are counted as skipped.
+ * </p>
+ */
+class LocationHistoryReader {
+
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    // field names, as bytes so keys can be compared without making Strings
+    private static final byte[] KEY_LOCATIONS = "locations".getBytes();
+    private static final byte[] KEY_TIMESTAMP_MS = "timestampMs".getBytes();
+    private static final byte[] KEY_TIMESTAMP = "timestamp".getBytes();
+    private static final byte[] KEY_LATITUDE_E7 = "latitudeE7".getBytes();
+    private static final byte[] KEY_LONGITUDE_E7 = "longitudeE7".getBytes();
+
+    private final InputStream in;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int blockPos = 0;
+    private int blockLength = 0;
+    private long bytesRead = 0;
+
+    // the last string read.  Reused for every string so reading one does not allocate.
+    private byte[] string = new byte[64];
+    private int stringLength = 0;
+
+    // counts from read()
+    long numRecords = 0;
+    long numSkipped = 0;
+
+    LocationHistoryReader(InputStream in) {
+        this.in = in;
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /*
+     * <p>
+     * The {@code getLocations} method reads a location history file.  It prints a message and returns
+     * null if the file can't be read.
+     * </p>
+     *
+     * @param file - the location history file
+     * @returns the locations or null
+     */
+    static ColumnarLocations getLocations(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            ColumnarLocations locations = new ColumnarLocations();
+            new LocationHistoryReader(in).read(locations);
+            locations.trimToSize();
+            return locations;
+        } catch (IOException e) {
+            System.out.println("Json file " + file.toString() + " read error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code read} method reads the whole stream and adds every entry of the "locations" array to
+     * locations.
+     * </p>
+     *
+     * @param locations - where the locations are added
+     * @returns the number of locations added
+     * @throws IOException on a read error or if the stream is not a JSON object
+     */
+    long read(ColumnarLocations locations) throws IOException {
+        expect('{');
+        if (peek() == '}') return numRecords;
+        do {
+            readString();
+            expect(':');
+            if (stringEquals(KEY_LOCATIONS) && peek() == '[') {
+                readLocations(locations);
+            } else {
+                skipValue();
+            }
+        } while (nextSeparator('}'));
+        return numRecords;
+    }
+
+    // readLocations reads the array of location objects.
+    private void readLocations(ColumnarLocations locations) throws IOException {
+        expect('[');
+        if (peek() == ']') {
+            next();
+            return;
+        }
+        do {
+            if (peek() != '{') {
+                skipValue();
+                numSkipped++;
+                continue;
+            }
+            next();
+            long timestampMs = 0, latitudeE7 = 0, longitudeE7 = 0;
+            boolean hasTime = false, hasLatitude = false, hasLongitude = false;
+            if (peek() != '}') {
+                do {
+                    readString();
+                    expect(':');
+                    if (stringEquals(KEY_LATITUDE_E7) && isNumberNext()) {
+                        latitudeE7 = readLong();
+                        hasLatitude = true;
+                    } else if (stringEquals(KEY_LONGITUDE_E7) && isNumberNext()) {
+                        longitudeE7 = readLong();
+                        hasLongitude = true;
+                    } else if (stringEquals(KEY_TIMESTAMP_MS)) {
+                        if (isNumberNext()) {
+                            timestampMs = readLong();
+                            hasTime = true;
+                        } else if (peek() == '"') {
+                            readString();
+                            hasTime = parseDigits();
+                            timestampMs = hasTime ? parsedValue : 0;
+                        } else {
+                            skipValue();
+                        }
+                    } else if (stringEquals(KEY_TIMESTAMP) && !hasTime && peek() == '"') {
+                        readString();
+                        hasTime = parseIsoTime();
+                        timestampMs = hasTime ? parsedValue : 0;
+                    } else {
+                        skipValue();
+                    }
+                } while (nextSeparator('}'));
+            } else {
+                next();
+            }
+            if (hasTime && hasLatitude && hasLongitude) {
+                locations.add(timestampMs, latitudeE7, longitudeE7);
+                numRecords++;
+            } else {
+                numSkipped++;
+            }
+        } while (nextSeparator(']'));
+    }
+
+    /* byte level input */
+
+    private boolean fill() throws IOException {
+        blockLength = in.read(block, 0, block.length);
+        blockPos = 0;
+        if (blockLength <= 0) {
+            blockLength = 0;
+            return false;
+        }
+        bytesRead += blockLength;
+        return true;
+    }
+
+    // next returns the next byte, which may be white space.
+    private int next() throws IOException {
+        if (blockPos == blockLength && !fill()) throw new EOFException("unexpected end of JSON");
+        return block[blockPos++] & 0xFF;
+    }
+
+    // peek returns the next byte that is not white space without consuming it.
+    private int peek() throws IOException {
+        while (true) {
+            if (blockPos == blockLength && !fill()) throw new EOFException("unexpected end of JSON");
+            int b = block[blockPos] & 0xFF;
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') return b;
+            blockPos++;
+        }
+    }
+
+    private void expect(char c) throws IOException {
+        int b = peek();
+        if (b != c) throw new IOException("JSON '" + c + "' expected at byte " + position() + " found '" + (char) b + "'");
+        blockPos++;
+    }
+
+    private long position() {
+        return bytesRead - blockLength + blockPos;
+    }
+
+    // nextSeparator consumes a ',' and returns true or consumes the closing character and returns false.
+    private boolean nextSeparator(char close) throws IOException {
+        int b = peek();
+        blockPos++;
+        if (b == ',') return true;
+        if (b == close) return false;
+        throw new IOException("JSON ',' or '" + close + "' expected at byte " + position());
+    }
+
+    private boolean isNumberNext() throws IOException {
+        int b = peek();
+        return b == '-' || (b >= '0' && b <= '9');
+    }
+
+    // readString reads a string into string[].  Escapes are kept as the escaped character, and \\u
+    // escapes as '?', which is enough for comparing keys and reading times.
+    private void readString() throws IOException {
+        expect('"');
+        stringLength = 0;
+        while (true) {
+            int b = next();
+            if (b == '"') return;
+            if (b == '\\') {
+                b = next();
+                if (b == 'u') {
+                    for (int i = 0; i < 4; i++) next();
+                    b = '?';
+                }
+            }
+            if (stringLength == string.length) {
+                byte[] larger = new byte[2 * string.length];
+                System.arraycopy(string, 0, larger, 0, stringLength);
+                string = larger;
+            }
+            string[stringLength++] = (byte) b;
+        }
+    }
+
+    private boolean stringEquals(byte[] key) {
+        if (stringLength != key.length) return false;
+        for (int i = 0; i < stringLength; i++) {
+            if (string[i] != key[i]) return false;
+        }
+        return true;
+    }
+
+    // readLong reads a number and returns its integer part.
+    private long readLong() throws IOException {
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            blockPos++;
+        }
+        long value = 0;
+        while (true) {
+            if (blockPos == blockLength && !fill()) break;
+            int b = block[blockPos] & 0xFF;
+            if (b < '0' || b > '9') break;
+            value = 10 * value + (b - '0');
+            blockPos++;
+        }
+        // skip a fraction or exponent
+        while (true) {
+            if (blockPos == blockLength && !fill()) break;
+            int b = block[blockPos] & 0xFF;
+            if (b != '.' && b != 'e' && b != 'E' && b != '+' && b != '-' && (b < '0' || b > '9')) break;
+            blockPos++;
+        }
+        return negative ? -value : value;
+    }
+
+    // skipValue skips any JSON value including nested objects and arrays.
+    private void skipValue() throws IOException {
+        int b = peek();
+        if (b == '"') {
+            readString();
+            return;
+        }
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                b = peek();
+                if (b == '"') {
+                    readString();
+                    continue;
+                }
+                blockPos++;
+                if (b == '{' || b == '[') depth++;
+                else if (b == '}' || b == ']') depth--;
+            } while (depth > 0);
+            return;
+        }
+        // a number, true, false or null
+        while (true) {
+            if (blockPos == blockLength && !fill()) return;
+            b = block[blockPos] & 0xFF;
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') return;
+            blockPos++;
+        }
+    }
+
+    /* time parsing from string[] */
+
+    private long parsedValue;
+
+    // parseDigits parses string[] as a signed integer into parsedValue.
+    private boolean parseDigits() {
+        if (stringLength == 0) return false;
+        int i = string[0] == '-' ? 1 : 0;
+        if (i == stringLength) return false;
+        long value = 0;
+        for (; i < stringLength; i++) {
+            int d = string[i] - '0';
+            if (d < 0 || d > 9) return false;
+            value = 10 * value + d;
+        }
+        parsedValue = string[0] == '-' ? -value : value;
+        return true;
+    }
+
+    // parseIsoTime parses string[] as yyyy-MM-ddTHH:mm:ss[.fraction](Z|+HH:mm|-HH:mm) into parsedValue.
+    private boolean parseIsoTime() {
+        if (stringLength < 20 || string[4] != '-' || string[7] != '-' || string[10] != 'T' ||
+                string[13] != ':' || string[16] != ':') return false;
+        int year = digits(0, 4), month = digits(5, 2), day = digits(8, 2);
+        int hour = digits(11, 2), minute = digits(14, 2), second = digits(17, 2);
+        if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) return false;
+        int i = 19;
+        int ms = 0;
+        if (string[i] == '.') {
+            int scale = 100;
+            for (i++; i < stringLength && string[i] >= '0' && string[i] <= '9'; i++) {
+                ms += (string[i] - '0') * scale;
+                scale /= 10;
+            }
+        }
+        if (i >= stringLength) return false;
+        long offsetMs = 0;
+        if (string[i] == '+' || string[i] == '-') {
+            if (i + 6 > stringLength || string[i + 3] != ':') return false;
+            int offsetHour = digits(i + 1, 2), offsetMinute = digits(i + 4, 2);
+            if (offsetHour < 0 || offsetMinute < 0) return false;
+            offsetMs = (offsetHour * 60L + offsetMinute) * 60000L;
+            if (string[i] == '-') offsetMs = -offsetMs;
+        } else if (string[i] != 'Z') {
+            return false;
+        }
+        long days = ExifDate.daysFromCivil(year, month, day);
+        parsedValue = ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + ms - offsetMs;
+        return true;
+    }
+
+    // digits returns the value of count digits at start of string[] or -1 if they are not all digits.
+    private int digits(int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int d = string[i] - '0';
+            if (d < 0 || d > 9) return -1;
+            value = 10 * value + d;
+        }
+        return value;
+    }
+
+    // this main() function reads a location history file and prints how fast it was read.  It is not
+    // necessary.
+    public static void main(String[] args) throws IOException {
+        File file = new File(args[0]);
+        Runtime runtime = Runtime.getRuntime();
+        long startTime = System.currentTimeMillis();
+        ColumnarLocations locations = new ColumnarLocations();
+        LocationHistoryReader reader;
+        try (InputStream in = new FileInputStream(file)) {
+            reader = new LocationHistoryReader(in);
+            reader.read(locations);
+        }
+        double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        System.out.println(reader.numRecords + " locations read, " + reader.numSkipped + " skipped");
+        System.out.printf("%.3f s, %.0f records/s, %.1f MB/s%n", seconds, reader.numRecords / seconds,
+                reader.getBytesRead() / seconds / 1.0e6);
+        System.out.println("heap used " + (runtime.totalMemory() - runtime.freeMemory()) / 1000000 + " MB");
+        if (locations.size() > 0) {
+            System.out.println("first " + locations.getTimestampMsTs(0) + " " + locations.getLatitude(0) +
+                    ", " + locations.getLongitude(0));
+        }
+    }
+}
@@ -44,6 +44,10 @@ import java.util.ArrayList;
  *             new File("/Users/john/Desktop/gis", "Location History.json"));
  *         if (locations == null) System.exit(1);
  * </p>
+ * <p>
+ * GSON turns the whole file into objects, which takes far more memory than the file.  For large files
+ * use LocationHistoryReader, which streams the file into a ColumnarLocations.
+ * </p>
  *
  * @author John A Robinson
  */
@@ -0,0 +1,276 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * MdataCache is an on-disk cache of the metadata read from picture files so that a run over a picture
+ * directory that has not changed since the last run does not have to parse any files.  Each entry is
+ * keyed by the path of the file and is only used if the size and last modified time of the file still
+ * match the ones recorded when the entry was made.
+ * </p>
+ * <p>
+ * The cache file is a compact binary file with this layout, all in DataOutputStream format:
+ * <pre>
+ *   int    MAGIC
+ *   short  VERSION
+ *   int    number of entries
+ *   per entry:
+ *     UTF    path
+ *     long   size
+ *     long   last modified time in ms
+ *     long   header hash used to find duplicate pictures or 0 if it was not made
+ *     byte   length of the content hash, 0 if it was not made, then the SHA-256 content hash
+ *     byte   status: STATUS_OK, STATUS_NO_MDATA, STATUS_READ_ERROR or STATUS_NO_LOCATION
+ *     STATUS_OK:          int latitudeE7, int longitudeE7, long timestampMs
+ *     STATUS_NO_LOCATION: long timestampMs, int UTC offset in minutes or ImageMdata.NO_OFFSET
+ *     STATUS_READ_ERROR: UTF error message
+ * </pre>
+ * </p>
+ */
+class MdataCache {
+
+    static final String CACHE_FILE_NAME = "mdata.cache";
+
+    private static final int MAGIC = 0x45505643; // "EPVC"
+    private static final short VERSION = 5;
+
+    private static final byte STATUS_OK = 0;         // the metadata was read
+    private static final byte STATUS_NO_MDATA = 1;   // the file has no jpeg metadata
+    private static final byte STATUS_READ_ERROR = 2; // the file could not be read, e.g. no date
+    private static final byte STATUS_NO_LOCATION = 3; // the file has a date but no GPS data
+
+    // The Entry class holds what was learned about one file.
+    static class Entry {
+        final long size;
+        final long lastModified;
+        final ImageMdata imageMdata; // null if the file has no metadata or could not be read
+        final String error;          // the read error message or null
+        final long headerHash;       // see DuplicateDetector.headerHash() or 0 if it was not made
+        final byte[] contentHash;    // the DuplicateDetector content hash of the whole file or null
+
+        Entry(long size, long lastModified, ImageMdata imageMdata, String error, long headerHash) {
+            this(size, lastModified, imageMdata, error, headerHash, null);
+        }
+
+        Entry(long size, long lastModified, ImageMdata imageMdata, String error, long headerHash,
+              byte[] contentHash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.imageMdata = imageMdata;
+            this.error = error;
+            this.headerHash = headerHash;
+            this.contentHash = contentHash;
+        }
+    }
+
+    private final File file;
+    private final HashMap<String, Entry> oldEntries; // entries loaded from the cache file.  Read only.
+    private final LinkedHashMap<String, Entry> newEntries; // entries that will be saved
+    private int hits;
+
+    private MdataCache(File file) {
+        this.file = file;
+        this.oldEntries = new HashMap<>();
+        this.newEntries = new LinkedHashMap<>();
+        this.hits = 0;
+    }
+
+    /*
+     * <p>
+     * The {@code load} method reads a cache file.  A missing, unreadable or out of date cache file
+     * gives an empty cache.
+     * </p>
+     *
+     * @param file - the cache file
+     * @returns the cache
+     */
+    static MdataCache load(File file) {
+        MdataCache cache = new MdataCache(file);
+        if (!file.exists()) return cache;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                System.out.println("Ignoring metadata cache " + file + " with unknown format");
+                return cache;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                cache.oldEntries.put(path, readEntry(in));
+            }
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable metadata cache " + file + " : " + e.getMessage());
+            cache.oldEntries.clear();
+        }
+        return cache;
+    }
+
+    // readEntry reads the part of an entry after the path.
+    static Entry readEntry(DataInputStream in) throws IOException {
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        long headerHash = in.readLong();
+        byte[] contentHash = null;
+        int contentHashLength = in.readUnsignedByte();
+        if (contentHashLength > 0) {
+            contentHash = new byte[contentHashLength];
+            in.readFully(contentHash);
+        }
+        byte status = in.readByte();
+        switch (status) {
+            case STATUS_OK:
+                long latitudeE7 = in.readInt();
+                long longitudeE7 = in.readInt();
+                long timestampMs = in.readLong();
+                return new Entry(size, lastModified, new ImageMdata(timestampMs, latitudeE7, longitudeE7), null,
+                        headerHash, contentHash);
+            case STATUS_NO_LOCATION:
+                ImageMdata imageMdata = new ImageMdata(in.readLong());
+                imageMdata.utcOffsetMinutes = in.readInt();
+                return new Entry(size, lastModified, imageMdata, null, headerHash, contentHash);
+            case STATUS_NO_MDATA:
+                return new Entry(size, lastModified, null, null, headerHash, contentHash);
+            case STATUS_READ_ERROR:
+                return new Entry(size, lastModified, null, in.readUTF(), headerHash, contentHash);
+            default:
+                throw new EOFException("bad entry status " + status);
+        }
+    }
+
+    // writeEntry writes the part of an entry after the path.
+    static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeLong(entry.size);
+        out.writeLong(entry.lastModified);
+        out.writeLong(entry.headerHash);
+        if (entry.contentHash == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(entry.contentHash.length);
+            out.write(entry.contentHash);
+        }
+        if (entry.imageMdata != null && !entry.imageMdata.hasLocation) {
+            out.writeByte(STATUS_NO_LOCATION);
+            out.writeLong(entry.imageMdata.timestampMs);
+            out.writeInt(entry.imageMdata.utcOffsetMinutes);
+        } else if (entry.imageMdata != null) {
+            out.writeByte(STATUS_OK);
+            out.writeInt((int) entry.imageMdata.latitudeE7);
+            out.writeInt((int) entry.imageMdata.longitudeE7);
+            out.writeLong(entry.imageMdata.timestampMs);
+        } else if (entry.error == null) {
+            out.writeByte(STATUS_NO_MDATA);
+        } else {
+            out.writeByte(STATUS_READ_ERROR);
+            out.writeUTF(entry.error);
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code lookup} method returns the cached entry for a file if the file has not changed since
+     * the entry was made.  It only reads the entries loaded from the cache file so it may be called from
+     * several threads at once.
+     * </p>
+     *
+     * @param path - path of the file
+     * @param size - current size of the file
+     * @param lastModified - current last modified time of the file
+     * @returns the entry or null if there is no usable entry
+     */
+    Entry lookup(String path, long size, long lastModified) {
+        Entry entry = oldEntries.get(path);
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) return null;
+        return entry;
+    }
+
+    // put records an entry to be saved and counts it as a hit if it came from the cache.  Only the thread
+    // that owns the cache may call it.
+    void put(String path, Entry entry, boolean hit) {
+        newEntries.put(path, entry);
+        if (hit) hits++;
+    }
+
+    // keep saves the entry loaded from the cache file for a file that is not looked up this run, such as
+    // one whose metadata came from an IngestCheckpoint.  Only the thread that owns the cache may call it.
+    void keep(String path) {
+        Entry entry = oldEntries.get(path);
+        if (entry != null) newEntries.put(path, entry);
+    }
+
+    // setContentHash adds the content hash of a file to the entry that will be saved for it, if it has one
+    // and it has no content hash yet.  Only the thread that owns the cache may call it.
+    void setContentHash(String path, byte[] contentHash) {
+        Entry entry = newEntries.get(path);
+        if (entry == null || entry.contentHash != null) return;
+        newEntries.put(path, new Entry(entry.size, entry.lastModified, entry.imageMdata, entry.error,
+                entry.headerHash, contentHash));
+    }
+
+    // returns the number of entries that were used from the cache file
+    int getHits() {
+        return hits;
+    }
+
+    /*
+     * <p>
+     * The {@code save} method writes the entries that were put since the cache was loaded, which drops
+     * the files that were not seen this run.  The file is written to a temporary file first and then
+     * moved into place so an interrupted save does not leave a broken cache behind.
+     * </p>
+     */
+    void save() throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(newEntries.size());
+            for (Map.Entry<String, Entry> e : newEntries.entrySet()) {
+                out.writeUTF(e.getKey());
+                writeEntry(out, e.getValue());
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,91 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.apache.commons.imaging.ImageReadException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * <p>
+ * An MdataExtractor reads the time and location from one picture file format.  The extractor for a file
+ * is chosen by the first bytes of the file, its signature, rather than by its name, so a file with a
+ * missing or wrong extension is still read by the right extractor.  Extractors are registered with
+ * MdataExtractors and are called from the MdataIngest worker threads so they must not keep any state
+ * between calls.
+ * </p>
+ */
+interface MdataExtractor {
+
+    /*
+     * <p>
+     * The {@code accepts} method checks the signature at the start of a file.
+     * </p>
+     *
+     * @param header - the first bytes of the file.  The limit is the number of bytes that were read,
+     *               which may be less than MdataExtractors.HEADER_SIZE for a short file.
+     * @returns true if this extractor reads files that start with these bytes
+     */
+    boolean accepts(ByteBuffer header);
+
+    /*
+     * <p>
+     * The {@code read} method reads the time and location from a file this extractor accepted.
+     * </p>
+     *
+     * @param fileName - name of the picture file
+     * @param range - an extractor that decodes the date before the location may return
+     *              ImageMdata.OUT_OF_RANGE for a picture taken outside this range.  Others may ignore it
+     *              since the result is checked against the range afterwards.
+     * @returns the metadata, without a location if the file has no GPS data, or null if the file has no
+     *          metadata this extractor can read
+     * @throws ImageReadException if the file has metadata but not the date
+     */
+    ImageMdata read(String fileName, TimeRange range) throws IOException, ImageReadException, ParseException;
+
+    /*
+     * <p>
+     * The {@code read} method reads the time and location from a file this extractor accepted when the
+     * start of the file has already been read, as it is by the asynchronous ingest.  An extractor that
+     * can decode from those bytes avoids reading the file again.  The default reads the file.
+     * </p>
+     *
+     * @param fileName - name of the picture file
+     * @param head - the start of the file from position 0 to its limit
+     * @param range - as for read(fileName, range)
+     * @returns the metadata as for read(fileName, range)
+     */
+    default ImageMdata read(String fileName, ByteBuffer head, TimeRange range) throws IOException,
+            ImageReadException, ParseException {
+        return read(fileName, range);
+    }
+}
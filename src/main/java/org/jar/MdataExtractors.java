@@ -0,0 +1,223 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.apache.commons.imaging.ImageReadException;
+import org.jar.EarthPicsViewer.PicturesMdata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>
+ * MdataExtractors holds the registered MdataExtractor implementations and reads the metadata of a
+ * picture file with the one whose signature matches the start of the file.  JPEG and TIFF based files,
+ * which include DNG and most other raw formats, are registered here.  Other formats can be added with
+ * register().  After the picture itself has been read, the values in its XMP sidecar, if it has one,
+ * are merged in, so a single pass over a directory covers a mixed library of pictures.
+ * </p>
+ */
+final class MdataExtractors {
+
+    static final int HEADER_SIZE = 16; // number of bytes of the file given to MdataExtractor.accepts()
+
+    private static final CopyOnWriteArrayList<MdataExtractor> extractors = new CopyOnWriteArrayList<>();
+
+    static {
+        register(new JpegExtractor());
+        register(new TiffExtractor());
+    }
+
+    private MdataExtractors() {
+    }
+
+    // register adds an extractor.  Extractors are tried in the order they were registered.
+    static void register(MdataExtractor extractor) {
+        extractors.add(extractor);
+    }
+
+    /*
+     * <p>
+     * The {@code read} method reads the time and location from one picture file.  It does not touch any
+     * shared state so it may be called from several threads at once.
+     * </p>
+     *
+     * @param fileName - name of the picture file
+     * @returns the metadata, without a location if the file has no GPS data, or null if the file is not
+     *          a picture format that any extractor reads and has no sidecar with a time
+     * @throws ImageReadException if the picture has metadata but not the date and no sidecar supplies it
+     */
+    static ImageMdata read(String fileName) throws IOException, ImageReadException, ParseException {
+        return read(fileName, null, TimeRange.ALL);
+    }
+
+    /*
+     * <p>
+     * The {@code read} method reads the time and location from one picture file taken in a time range,
+     * possibly with its first bytes already read.
+     * </p>
+     *
+     * @param fileName - name of the picture file
+     * @param head - the start of the file from position 0 to its limit or null to read it here
+     * @param range - pictures taken outside this range are returned as ImageMdata.OUT_OF_RANGE
+     * @returns the metadata as for read(fileName) or ImageMdata.OUT_OF_RANGE
+     */
+    static ImageMdata read(String fileName, ByteBuffer head, TimeRange range) throws IOException,
+            ImageReadException, ParseException {
+        ImageMdata imageMdata = null;
+        ImageReadException error = null;
+        // the date in a sidecar replaces the one in the picture, so the picture's date can't be used to
+        // drop it early.
+        Path sidecar = XmpSidecar.find(fileName);
+        TimeRange extractorRange = sidecar == null ? range : TimeRange.ALL;
+        MdataExtractor extractor = head == null ? select(fileName) : select(head);
+        if (extractor != null) {
+            try {
+                imageMdata = head == null ? extractor.read(fileName, extractorRange) :
+                        extractor.read(fileName, head, extractorRange);
+            } catch (ImageReadException e) {
+                error = e;
+            }
+        }
+        if (imageMdata == ImageMdata.OUT_OF_RANGE) return imageMdata;
+        if (sidecar != null) {
+            ImageMdata merged = XmpSidecar.read(sidecar, imageMdata);
+            if (merged != null) return range.contains(merged.timestampMs) ? merged : ImageMdata.OUT_OF_RANGE;
+        }
+        if (error != null) throw error;
+        if (extractor == null && hasPictureExtension(fileName)) {
+            throw new ImageReadException("Unrecognized file signature for a picture file name");
+        }
+        if (imageMdata != null && !range.contains(imageMdata.timestampMs)) return ImageMdata.OUT_OF_RANGE;
+        return imageMdata;
+    }
+
+    // hasPictureExtension returns true if the file name has an extension that the registered extractors
+    // read, so a file that is named as a picture but isn't one is reported rather than quietly skipped.
+    private static boolean hasPictureExtension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) return false;
+        String ext = fileName.substring(dot + 1);
+        return ext.equalsIgnoreCase("jpg") || ext.equalsIgnoreCase("jpeg") ||
+                ext.equalsIgnoreCase("tif") || ext.equalsIgnoreCase("tiff") || ext.equalsIgnoreCase("dng");
+    }
+
+    // select returns the extractor that accepts the signature of a file or null if there is none.
+    static MdataExtractor select(String fileName) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+        }
+        header.flip();
+        return select(header);
+    }
+
+    // select returns the extractor that accepts the signature at the start of head or null if there is none.
+    static MdataExtractor select(ByteBuffer head) {
+        ByteBuffer header = head.duplicate();
+        header.position(0);
+        header.limit(Math.min(head.limit(), HEADER_SIZE));
+        for (MdataExtractor extractor : extractors) {
+            if (extractor.accepts(header.duplicate())) return extractor;
+        }
+        return null;
+    }
+
+    // The JpegExtractor reads jpeg files with the JpegExifReader and falls back to commons-imaging for
+    // any file it can't handle.
+    static class JpegExtractor implements MdataExtractor {
+        @Override
+        public boolean accepts(ByteBuffer header) {
+            return header.limit() >= 3 && (header.get(0) & 0xFF) == 0xFF && (header.get(1) & 0xFF) == 0xD8 &&
+                    (header.get(2) & 0xFF) == 0xFF;
+        }
+
+        @Override
+        public ImageMdata read(String fileName, TimeRange range) throws IOException, ImageReadException,
+                ParseException {
+            try {
+                return JpegExifReader.read(fileName, range);
+            } catch (JpegExifReader.UnsupportedException e) {
+                return PicturesMdata.readMdataWithImaging(fileName);
+            }
+        }
+
+        // decode from the bytes already read if the EXIF segment is in them, otherwise read the file
+        @Override
+        public ImageMdata read(String fileName, ByteBuffer head, TimeRange range) throws IOException,
+                ImageReadException, ParseException {
+            try {
+                return JpegExifReader.parseTiff(JpegExifReader.findExif(head), range);
+            } catch (JpegExifReader.UnsupportedException e) {
+                return read(fileName, range);
+            }
+        }
+    }
+
+    // The TiffExtractor reads files that are TIFF structures, "II*\0" or "MM\0*", which includes .tif,
+    // DNG and the TIFF based raw formats such as NEF, CR2, ARW and PEF.
+    static class TiffExtractor implements MdataExtractor {
+        @Override
+        public boolean accepts(ByteBuffer header) {
+            if (header.limit() < 4) return false;
+            return (header.get(0) == 'I' && header.get(1) == 'I' && header.get(2) == 42 && header.get(3) == 0) ||
+                    (header.get(0) == 'M' && header.get(1) == 'M' && header.get(2) == 0 && header.get(3) == 42);
+        }
+
+        @Override
+        public ImageMdata read(String fileName, TimeRange range) throws IOException, ImageReadException,
+                ParseException {
+            try {
+                return JpegExifReader.readTiff(fileName, range);
+            } catch (JpegExifReader.UnsupportedException e) {
+                throw new ImageReadException("TIFF Read Error: " + e.getMessage());
+            }
+        }
+
+        // the IFDs are often at the start of the file but may be anywhere, so read the file if they are
+        // not in the bytes already read.
+        @Override
+        public ImageMdata read(String fileName, ByteBuffer head, TimeRange range) throws IOException,
+                ImageReadException, ParseException {
+            try {
+                return JpegExifReader.parseTiffHead(head, range);
+            } catch (JpegExifReader.UnsupportedException e) {
+                return read(fileName, range);
+            }
+        }
+    }
+}
@@ -0,0 +1,587 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import org.apache.commons.imaging.ImageReadException;
+import org.jar.EarthPicsViewer.PicturesMdata;
+import org.jar.EarthPicsViewer.PicturesMdata.PictureMdata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+
+/**
+ * <p>
+ * MdataIngest reads the metadata of a list of picture files with a pool of worker threads and stores
+ * the results in a PicturesMdata object.  Reading the metadata is the slow part so it is spread across
+ * the workers, but the results are stored by the calling thread in the same order as the file list so
+ * the PicturesMdata indices do not depend on thread timing.  No more than a fixed number of files are
+ * in flight at once, which bounds the memory held by results waiting to be stored.
+ * </p>
+ * <p>
+ * If an MdataCache is given, a worker first checks the cache for a file that has the same size and
+ * last modified time as the cached entry and only parses the file if there is no such entry.  The size
+ * and time include the XMP sidecar of the picture so editing only the sidecar is also seen.
+ * </p>
+ * <p>
+ * With setTimeRange() a picture's date is decoded first and a picture taken outside the range is dropped
+ * then, so only the pictures that will be mapped have their location read and are stored.
+ * </p>
+ * <p>
+ * With setAsyncDepth() the files are not read by the workers.  Instead an AsyncHeaderReader keeps many
+ * reads of the start of the files in flight at once and the workers only decode the bytes it read,
+ * which suits disks where the time to reach a file is much larger than the time to read it.
+ * </p>
+ * <p>
+ * With setArchiveSource() the file list may include entries of ZIP and TAR archives.  A worker reads
+ * the first bytes of an entry with ArchiveSource.readHead() and decodes them like the start of a file.
+ * </p>
+ * <p>
+ * With setDuplicateDetector() the workers also hash the header of each picture and a picture that is a
+ * copy of one already stored is added to that one's alternate paths instead of being stored again.
+ * </p>
+ * <p>
+ * With setCheckpoint() the outcome of each file is recorded in an IngestCheckpoint as it is stored, and
+ * the files the checkpoint already holds are left out, so a run that stopped part way can be resumed.
+ * </p>
+ */
+class MdataIngest {
+
+    /* An ErrorHandler is told about each file that could not be read.  It is called by the thread
+     * that called run() and in file list order.
+     */
+    interface ErrorHandler {
+        // return true to skip the file and continue or false to stop the ingest.
+        boolean readError(String srcFileName, Exception e);
+    }
+
+    // The Result class holds the outcome of reading one file on a worker thread.
+    private static class Result {
+        String srcFileName;
+        ImageMdata imageMdata;
+        Exception error;
+        long size;
+        long lastModified;
+        boolean cacheHit;
+        MdataCache.Entry cacheEntry;    // the cache entry for the file or null
+        boolean skippedByModifiedTime; // true if the file was ruled out by its last modified time
+        long headerHash;  // DuplicateDetector.headerHash() of the file or 0 if it was not made
+        long pictureSize; // size of the picture file without its sidecar, set when headerHash is
+    }
+
+    private final int numThreads;  // number of worker threads reading metadata
+    private final int maxInFlight; // maximum number of files submitted but not yet stored
+    private MdataCache cache;      // cache of previously read metadata or null
+    private boolean keepUnlocated; // if true pictures without GPS data are stored to be located later
+    private int asyncDepth;        // if > 0 file headers are read asynchronously with this many reads in flight
+    private String asyncReport;    // the AsyncHeaderReader report from the last asynchronous run or null
+    private TimeRange timeRange;   // pictures taken outside this range are dropped
+    private boolean modifiedTimeFilter; // if true files are ruled out by last modified time before being read
+    private ArchiveSource archives; // the source of archive entries in the file list or null
+    private DuplicateDetector duplicates; // finds copies of pictures already stored or null
+    private IngestCheckpoint checkpoint; // where the outcome of each file is recorded or null
+    int numOutOfRange;             // pictures read and dropped because of their time
+    int numSkippedByModifiedTime;  // files not read because of their last modified time
+
+    /*
+     * <p>
+     * The {@code MdataIngest} constructor.
+     * </p>
+     *
+     * @param numThreads - number of worker threads.  Values less than 1 are treated as 1.
+     */
+    MdataIngest(int numThreads) {
+        this.numThreads = numThreads < 1 ? 1 : numThreads;
+        this.maxInFlight = 4 * this.numThreads;
+        this.cache = null;
+        this.keepUnlocated = false;
+        this.asyncDepth = 0;
+        this.asyncReport = null;
+        this.timeRange = TimeRange.ALL;
+        this.modifiedTimeFilter = false;
+        this.archives = null;
+        this.duplicates = null;
+        this.checkpoint = null;
+    }
+
+    // setCache sets the cache that is checked before a file is read and is updated with what was read.
+    void setCache(MdataCache cache) {
+        this.cache = cache;
+    }
+
+    // setKeepUnlocated sets whether pictures that have a time but no GPS location are stored in the
+    // PicturesMdata unlocated list or passed to the ErrorHandler as a "GPS Read Error".
+    void setKeepUnlocated(boolean keepUnlocated) {
+        this.keepUnlocated = keepUnlocated;
+    }
+
+    // setTimeRange sets the range of times of the pictures that are stored.  The date of a picture is
+    // decoded before anything else and a picture outside the range is dropped without reading its location.
+    void setTimeRange(TimeRange timeRange) {
+        this.timeRange = timeRange;
+    }
+
+    // setModifiedTimeFilter sets whether a file whose last modified time is too early to hold a picture
+    // in the time range is skipped without being read.  See TimeRange.excludesModifiedTime().
+    void setModifiedTimeFilter(boolean modifiedTimeFilter) {
+        this.modifiedTimeFilter = modifiedTimeFilter;
+    }
+
+    // setArchiveSource sets the ArchiveSource that lists the archive entries among the files given to run().
+    void setArchiveSource(ArchiveSource archives) {
+        this.archives = archives;
+    }
+
+    // setDuplicateDetector sets the DuplicateDetector used to store each picture only once however many
+    // copies of it there are.
+    void setDuplicateDetector(DuplicateDetector duplicates) {
+        this.duplicates = duplicates;
+    }
+
+    // setCheckpoint sets the IngestCheckpoint that the outcome of each file is recorded in.  The files
+    // recorded in the checkpoint it was resumed from are not read.
+    void setCheckpoint(IngestCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    // setAsyncDepth sets the number of asynchronous header reads kept in flight.  0, the default, reads
+    // each file on its worker thread instead.
+    void setAsyncDepth(int asyncDepth) {
+        this.asyncDepth = asyncDepth < 0 ? 0 : asyncDepth;
+    }
+
+    // getAsyncReport returns the IOPS and MB/s of the last asynchronous run or null if there was none.
+    String getAsyncReport() {
+        return asyncReport;
+    }
+
+    /*
+     * <p>
+     * The {@code run} method reads the metadata of every file and adds it to picturesMdata.
+     * </p>
+     *
+     * @param srcFileNames - the files to be read
+     * @param dstFolderName - folder, relative to the KML file, the pictures will be copied to or null if
+     *                      the KML file will link to the source files.
+     * @param picturesMdata - where the metadata is stored
+     * @param errorHandler - handler for files that could not be read
+     * @returns true if all files were processed or false if the errorHandler stopped the ingest.
+     */
+    boolean run(Iterator<String> srcFileNames, final String dstFolderName,
+                final PicturesMdata picturesMdata, final ErrorHandler errorHandler) {
+        if (checkpoint != null) {
+            srcFileNames = checkpoint.remaining(srcFileNames);
+        }
+        if (asyncDepth > 0) {
+            return runAsync(srcFileNames, dstFolderName, picturesMdata, errorHandler);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final ArrayDeque<Future<Result>> inFlight = new ArrayDeque<>();
+        boolean ok = true;
+        try {
+            while (ok && srcFileNames.hasNext()) {
+                // wait for the oldest file to finish before submitting more than maxInFlight files.
+                if (inFlight.size() >= maxInFlight) {
+                    ok = store(inFlight.poll(), dstFolderName, picturesMdata, errorHandler);
+                }
+                inFlight.add(executor.submit(readWithThread(srcFileNames.next())));
+            }
+            while (ok && !inFlight.isEmpty()) {
+                ok = store(inFlight.poll(), dstFolderName, picturesMdata, errorHandler);
+            }
+        } finally {
+            // if the ingest was stopped, drop whatever is still in flight.
+            for (Future<Result> future : inFlight) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+        return ok;
+    }
+
+    // wait for one result and store it or pass its error to the errorHandler.
+    private boolean store(final Future<Result> future, final String dstFolderName,
+                                 final PicturesMdata picturesMdata, final ErrorHandler errorHandler) {
+        final Result result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("metadata read interrupted: " + e.getMessage(), e);
+        } catch (ExecutionException e) {
+            // the workers turn every exception into result.error, so only an Error such as an
+            // OutOfMemoryError gets here and it is passed on as it is
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException("metadata read future exception: " + cause.getMessage(), cause);
+        }
+        if (result.imageMdata == ImageMdata.OUT_OF_RANGE) {
+            // keep what the cache already knew about the file, but a picture that was dropped after
+            // decoding only its date is not cached.
+            if (cache != null && result.cacheEntry != null) {
+                cache.put(result.srcFileName, result.cacheEntry, result.cacheHit);
+            }
+            if (result.skippedByModifiedTime) numSkippedByModifiedTime++;
+            else numOutOfRange++;
+            if (checkpoint != null) checkpoint.skipped(result.srcFileName, version(result));
+            return true;
+        }
+        // remember the outcome unless it is an i/o error which may not happen next time.
+        if (cache != null && result.lastModified != 0 &&
+                (result.error == null || result.error instanceof ImageReadException)) {
+            String error = result.error == null ? null : result.error.getMessage();
+            cache.put(result.srcFileName,
+                    new MdataCache.Entry(result.size, result.lastModified, result.imageMdata, error,
+                            result.headerHash),
+                    result.cacheHit);
+        }
+        if (result.error != null) {
+            // an i/o error is not recorded so the file is read again on resume
+            if (checkpoint != null && result.error instanceof ImageReadException) {
+                checkpoint.error(result.srcFileName, version(result), result.error.getMessage());
+            }
+            return errorHandler.readError(result.srcFileName, result.error);
+        }
+        if (result.imageMdata != null && !result.imageMdata.hasLocation && !keepUnlocated) {
+            if (checkpoint != null) checkpoint.error(result.srcFileName, version(result), "GPS Read Error");
+            return errorHandler.readError(result.srcFileName, new ImageReadException("GPS Read Error"));
+        }
+        String dstFileName = result.srcFileName;
+        if (dstFolderName != null) {
+            dstFileName = dstFolderName + File.separator + new File(result.srcFileName).getName();
+        }
+        if (duplicates != null && result.headerHash != 0 && result.imageMdata != null) {
+            PictureMdata original = duplicates.findOriginal(result.srcFileName, result.pictureSize,
+                    result.headerHash, result.imageMdata);
+            if (original != null) {
+                original.addAlternate(result.srcFileName);
+                if (checkpoint != null) {
+                    checkpoint.duplicate(result.srcFileName, version(result), original.srcFileName);
+                }
+                return true;
+            }
+        }
+        PictureMdata pictureMdata = picturesMdata.add(result.srcFileName, dstFileName, result.imageMdata);
+        if (duplicates != null && result.headerHash != 0 && pictureMdata != null) {
+            duplicates.stored(pictureMdata, result.pictureSize, result.headerHash, result.imageMdata);
+        }
+        if (checkpoint != null) {
+            if (pictureMdata == null) {
+                checkpoint.skipped(result.srcFileName, version(result));
+            } else {
+                checkpoint.stored(result.srcFileName, version(result), result.imageMdata, result.headerHash,
+                        result.pictureSize);
+            }
+        }
+        return true;
+    }
+
+    /*
+     * <p>
+     * The {@code runAsync} method is run() with the start of each file read by an AsyncHeaderReader.
+     * The files are taken in batches of asyncDepth.  The reads of a batch are issued in inode order,
+     * which on most file systems is close to the order of the files on the disk, and the decoding of
+     * each header is done on the worker threads as soon as its read completes.  While one batch is
+     * being read the previous one is stored, in file list order as in run().
+     * </p>
+     */
+    private boolean runAsync(final Iterator<String> srcFileNames, final String dstFolderName,
+                             final PicturesMdata picturesMdata, final ErrorHandler errorHandler) {
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final AsyncHeaderReader reader = new AsyncHeaderReader(asyncDepth);
+        ArrayList<Future<Result>> previous = new ArrayList<>();
+        boolean ok = true;
+        try {
+            while (ok && srcFileNames.hasNext()) {
+                ArrayList<Future<Result>> batch = issueBatch(srcFileNames, reader, executor);
+                ok = storeAll(previous, dstFolderName, picturesMdata, errorHandler);
+                previous = batch;
+            }
+            if (ok) {
+                ok = storeAll(previous, dstFolderName, picturesMdata, errorHandler);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ok = false;
+        } finally {
+            for (Future<Result> future : previous) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+            reader.shutdown();
+            asyncReport = reader.getReport();
+        }
+        return ok;
+    }
+
+    // store a batch of results in order.  Returns false if the errorHandler stopped the ingest.
+    private boolean storeAll(final ArrayList<Future<Result>> batch, final String dstFolderName,
+                             final PicturesMdata picturesMdata, final ErrorHandler errorHandler) {
+        for (Future<Result> future : batch) {
+            if (!store(future, dstFolderName, picturesMdata, errorHandler)) return false;
+        }
+        return true;
+    }
+
+    // issueBatch takes up to asyncDepth files, checks the cache and starts the header reads of the rest
+    // in inode order.  The returned futures are in file list order.
+    private ArrayList<Future<Result>> issueBatch(final Iterator<String> srcFileNames,
+                                                 final AsyncHeaderReader reader,
+                                                 final ExecutorService executor) throws InterruptedException {
+        final ArrayList<Future<Result>> futures = new ArrayList<>(asyncDepth);
+        final ArrayList<Result> pending = new ArrayList<>(asyncDepth);
+        final ArrayList<Integer> pendingIdx = new ArrayList<>(asyncDepth);
+        final ArrayList<Long> inodes = new ArrayList<>(asyncDepth);
+        while (futures.size() < asyncDepth && srcFileNames.hasNext()) {
+            Result result = new Result();
+            result.srcFileName = srcFileNames.next();
+            futures.add(CompletableFuture.completedFuture(result));
+            try {
+                if (lookUp(result)) {
+                    seen(result);
+                    continue;
+                }
+                if (archives != null && archives.isEntry(result.srcFileName)) {
+                    // archive entries are read by the workers from the archive that is kept open
+                    final Result entryResult = result;
+                    futures.set(futures.size() - 1, executor.submit(new Callable<Result>() {
+                        @Override
+                        public Result call() {
+                            return readEntry(entryResult);
+                        }
+                    }));
+                    continue;
+                }
+                // the scanner has just read this file's attributes so this does not go to the disk.
+                inodes.add(inode(result.srcFileName));
+            } catch (IOException e) {
+                result.error = e;
+                continue;
+            }
+            pendingIdx.add(futures.size() - 1);
+            pending.add(result);
+        }
+        Integer[] order = new Integer[pending.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(inodes.get(a), inodes.get(b));
+            }
+        });
+        final TimeRange range = timeRange;
+        for (Integer i : order) {
+            final Result result = pending.get(i);
+            futures.set(pendingIdx.get(i), reader.read(result.srcFileName).handleAsync(
+                    new BiFunction<ByteBuffer, Throwable, Result>() {
+                        @Override
+                        public Result apply(ByteBuffer head, Throwable e) {
+                            try {
+                                ByteBuffer bytes = head;
+                                if (e != null) {
+                                    // i/o errors are retried with an ordinary read, which reports them.  The
+                                    // header hash is made from the bytes that are decoded, as readWithThread does.
+                                    bytes = duplicates != null ? readHead(result.srcFileName) : null;
+                                }
+                                if (duplicates != null) result.headerHash = DuplicateDetector.headerHash(bytes);
+                                result.imageMdata = MdataExtractors.read(result.srcFileName, bytes, range);
+                                seen(result);
+                            } catch (IOException | ImageReadException | ParseException ex) {
+                                result.error = ex;
+                            } catch (RuntimeException ex) {
+                                result.error = readFailure(ex);
+                            }
+                            return result;
+                        }
+                    }, executor));
+        }
+        return futures;
+    }
+
+    // inode returns the inode number of a file or 0 where the file system has none, which leaves the
+    // reads in file list order.
+    private static long inode(String fileName) throws IOException {
+        try {
+            Object ino = Files.getAttribute(Paths.get(fileName), "unix:ino");
+            return ino instanceof Number ? ((Number) ino).longValue() : 0;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    // returns a Callable that reads the metadata of one file.
+    private Callable<Result> readWithThread(final String srcFileName) {
+        return new Callable<Result>() {
+            @Override
+            public Result call() {
+                Result result = new Result();
+                result.srcFileName = srcFileName;
+                try {
+                    if (lookUp(result)) {
+                        seen(result);
+                        return result;
+                    }
+                    if (archives != null && archives.isEntry(srcFileName)) {
+                        return readEntry(result);
+                    }
+                    if (duplicates != null) {
+                        // the header hash is made from the same bytes the metadata is decoded from
+                        ByteBuffer head = readHead(srcFileName);
+                        result.headerHash = DuplicateDetector.headerHash(head);
+                        result.imageMdata = MdataExtractors.read(srcFileName, head, timeRange);
+                        seen(result);
+                    } else {
+                        result.imageMdata = MdataExtractors.read(srcFileName, null, timeRange);
+                    }
+                } catch (IOException | ImageReadException | ParseException e) {
+                    result.error = e;
+                } catch (RuntimeException e) {
+                    result.error = readFailure(e);
+                }
+                return result;
+            }
+        };
+    }
+
+    // readEntry decodes the metadata of an archive entry from the start of the entry.  An entry whose
+    // metadata is not in those bytes can't be read again from a file so, like a file with bad metadata,
+    // it is reported as an ImageReadException and the ingest goes on.
+    private Result readEntry(Result result) {
+        try {
+            ByteBuffer head = archives.readHead(result.srcFileName);
+            if (duplicates != null) result.headerHash = DuplicateDetector.headerHash(head);
+            result.imageMdata = MdataExtractors.read(result.srcFileName, head, timeRange);
+            seen(result);
+        } catch (IOException e) {
+            result.error = new ImageReadException("Archive Entry Read Error: " + e.getMessage());
+        } catch (ImageReadException | ParseException e) {
+            result.error = e;
+        } catch (RuntimeException e) {
+            result.error = readFailure(e);
+        }
+        return result;
+    }
+
+    // readFailure turns an exception the metadata readers threw on a malformed file, such as an
+    // ArrayIndexOutOfBoundsException from commons-imaging, into an ImageReadException so the file is
+    // reported, cached and checkpointed like any other bad file rather than stopping the run.
+    private static ImageReadException readFailure(RuntimeException e) {
+        return new ImageReadException("Metadata Read Error: " + e, e);
+    }
+
+    // readHead reads the first AsyncHeaderReader.HEADER_BYTES of a file, or all of a smaller file.
+    private static ByteBuffer readHead(String fileName) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(AsyncHeaderReader.HEADER_BYTES);
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            while (head.hasRemaining() && channel.read(head) >= 0) {
+            }
+        }
+        head.flip();
+        return head;
+    }
+
+    // seen passes a picture that was read, or found in the cache, to the DuplicateDetector so the
+    // content hashes of possible copies are made on the worker threads.
+    private void seen(Result result) throws IOException {
+        if (duplicates == null || result.headerHash == 0 || result.error != null || result.imageMdata == null ||
+                result.imageMdata == ImageMdata.OUT_OF_RANGE) {
+            return;
+        }
+        result.pictureSize = archives != null && archives.isEntry(result.srcFileName) ?
+                archives.version(result.srcFileName)[0] : Files.size(Paths.get(result.srcFileName));
+        duplicates.seen(result.srcFileName, result.pictureSize, result.headerHash);
+    }
+
+    // version returns the version of a file that lookUp() found, for the checkpoint, or null if there is
+    // none.  An archive entry is checkpointed with the version of its archive, which the checkpoint has.
+    private long[] version(Result result) {
+        if (result.lastModified == 0 || (archives != null && archives.isEntry(result.srcFileName))) return null;
+        return new long[] {result.size, result.lastModified};
+    }
+
+    /*
+     * <p>
+     * The {@code lookUp} method does what can be done for a file without reading it, which is finding its
+     * version for the cache and the checkpoint, the cache lookup and the time checks.
+     * </p>
+     *
+     * @param result - the result for the file, which is filled in as far as the lookup goes
+     * @returns true if the result is complete and the file does not need to be read
+     */
+    private boolean lookUp(Result result) throws IOException {
+        if (cache == null && !modifiedTimeFilter && checkpoint == null) return false;
+        long[] version = archives != null && archives.isEntry(result.srcFileName) ?
+                archives.version(result.srcFileName) : XmpSidecar.fileVersion(result.srcFileName);
+        result.size = version[0];
+        result.lastModified = version[1];
+        MdataCache.Entry entry = null;
+        if (cache != null) {
+            entry = cache.lookup(result.srcFileName, result.size, result.lastModified);
+        }
+        result.cacheEntry = entry;
+        if (modifiedTimeFilter && timeRange.excludesModifiedTime(version[1])) {
+            result.imageMdata = ImageMdata.OUT_OF_RANGE;
+            result.skippedByModifiedTime = true;
+            return true;
+        }
+        if (entry == null) return false;
+        // an entry made without looking for duplicates has no header hash, so the file is read again
+        if (duplicates != null && entry.headerHash == 0 && entry.imageMdata != null) return false;
+        result.cacheHit = true;
+        result.headerHash = entry.headerHash;
+        if (duplicates != null && entry.contentHash != null) {
+            duplicates.knownContentHash(result.srcFileName, entry.contentHash);
+        }
+        if (entry.imageMdata != null && !timeRange.contains(entry.imageMdata.timestampMs)) {
+            result.imageMdata = ImageMdata.OUT_OF_RANGE;
+        } else {
+            result.imageMdata = entry.imageMdata;
+            if (entry.error != null) result.error = new ImageReadException(entry.error);
+        }
+        return true;
+    }
+}
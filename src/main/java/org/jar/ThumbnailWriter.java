@@ -0,0 +1,273 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.jar.EarthPicsViewer.PicturesMdata;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * ThumbnailWriter makes the small pictures shown in the placemark balloons so Google Earth does not
+ * have to load a full size picture to show a preview.  The thumbnails are written to a thumbs
+ * directory next to the KML file by a pool of threads.  Most cameras store a jpeg thumbnail in IFD1
+ * of the EXIF data and that is copied out as it is without decoding anything.  A picture without one
+ * is decoded at a reduced resolution, using every n'th pixel, and scaled to THUMB_WIDTH pixels wide.
+ * </p>
+ * <p>
+ * The thumbnail file name is made from the picture's path so it is the same on every run, and a
+ * thumbnail that is newer than its picture is left alone.
+ * </p>
+ * <p>
+ * A picture in a ZIP or TAR archive is read from the archive into memory and its thumbnail is made
+ * from those bytes in the same way.
+ * </p>
+ */
+class ThumbnailWriter {
+
+    static final String THUMBS_DIR = "thumbs";
+    static final int THUMB_WIDTH = 500; // width of thumbnails scaled from the picture
+
+    private static final int UP_TO_DATE = 0;
+    private static final int EMBEDDED = 1;
+    private static final int SCALED = 2;
+
+    private final File thumbsDir;
+    private final PicturesMdata picturesMdata;
+    private final int numThreads;
+    private final ArchiveSource archives; // the source of pictures that are archive entries or null
+    private final BitSet written; // pictures that have a thumbnail
+    int numUpToDate;
+    int numEmbedded;
+    int numScaled;
+    int numFailed;
+
+    /*
+     * <p>
+     * The {@code ThumbnailWriter} constructor.
+     * </p>
+     *
+     * @param outputDir - directory the KML file is written to
+     * @param picturesMdata - the pictures
+     * @param numThreads - number of threads making thumbnails.  Values less than 1 are treated as 1.
+     * @param archives - the ArchiveSource the pictures that are archive entries came from or null
+     */
+    ThumbnailWriter(File outputDir, PicturesMdata picturesMdata, int numThreads, ArchiveSource archives) {
+        this.thumbsDir = new File(outputDir, THUMBS_DIR);
+        this.picturesMdata = picturesMdata;
+        this.numThreads = numThreads < 1 ? 1 : numThreads;
+        this.archives = archives;
+        this.written = new BitSet();
+    }
+
+    /*
+     * <p>
+     * The {@code write} method makes the thumbnails of some of the pictures.
+     * </p>
+     *
+     * @param idxs - indices of the pictures in picturesMdata
+     * @returns a message for each picture that no thumbnail could be made for.  Their balloons show the
+     *          picture itself.
+     */
+    List<String> write(List<Integer> idxs) throws IOException {
+        ArrayList<String> errors = new ArrayList<>();
+        if (!thumbsDir.isDirectory() && !thumbsDir.mkdirs()) {
+            throw new IOException("Failed to create thumbnail directory " + thumbsDir);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            ArrayList<Future<Integer>> futures = new ArrayList<>(idxs.size());
+            for (final Integer idx : idxs) {
+                final String srcFileName = picturesMdata.get(idx).srcFileName;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return makeThumbnail(srcFileName, new File(thumbsDir, thumbnailName(srcFileName)));
+                    }
+                }));
+            }
+            for (int i = 0; i < idxs.size(); i++) {
+                int idx = idxs.get(i);
+                try {
+                    int how = futures.get(i).get();
+                    if (how == UP_TO_DATE) numUpToDate++;
+                    else if (how == EMBEDDED) numEmbedded++;
+                    else numScaled++;
+                    written.set(idx);
+                } catch (ExecutionException e) {
+                    numFailed++;
+                    errors.add(picturesMdata.get(idx).srcFileName + " : " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Thumbnails interrupted");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return errors;
+    }
+
+    // getHref returns the thumbnail of a picture relative to the KML file or null if it has none.
+    String getHref(int idx) {
+        if (!written.get(idx)) return null;
+        return THUMBS_DIR + "/" + thumbnailName(picturesMdata.get(idx).srcFileName);
+    }
+
+    // getReport describes the thumbnails that were made.
+    String getReport() {
+        return (numEmbedded + numScaled + numUpToDate) + " thumbnails: " + numEmbedded + " from EXIF, " +
+                numScaled + " scaled, " + numUpToDate + " up to date, " + numFailed + " failed";
+    }
+
+    // thumbnailName returns the file name of the thumbnail of a picture.  The picture's name is kept so
+    // the thumbnails are easy to recognize and a hash of its whole path keeps pictures with the same name
+    // in different directories apart.
+    static String thumbnailName(String srcFileName) {
+        String path = new File(srcFileName).getAbsolutePath();
+        long hash = 0xcbf29ce484222325L; // 64 bit FNV-1a
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        String name = new File(srcFileName).getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        return name + "_" + Long.toHexString(hash) + ".jpg";
+    }
+
+    // makeThumbnail writes the thumbnail of one picture and returns how it was made.
+    private int makeThumbnail(String srcFileName, File thumbFile) throws IOException {
+        File srcFile = new File(srcFileName);
+        boolean isEntry = archives != null && archives.isEntry(srcFileName);
+        long lastModified = isEntry ? archives.version(srcFileName)[1] : srcFile.lastModified();
+        if (thumbFile.isFile() && thumbFile.lastModified() >= lastModified) {
+            return UP_TO_DATE;
+        }
+        File tmpFile = new File(thumbFile.getPath() + ".tmp");
+        // a failed write leaves no partial .tmp file behind in the output directory
+        boolean moved = false;
+        try {
+            int how;
+            byte[] entryBytes = isEntry ? archives.readAll(srcFileName) : null;
+            ByteBuffer embedded = null;
+            try {
+                embedded = isEntry ? JpegExifReader.readThumbnail(ByteBuffer.wrap(entryBytes)) :
+                        JpegExifReader.readThumbnail(srcFileName);
+            } catch (JpegExifReader.UnsupportedException e) {
+                // not a format with EXIF data that can be read here, so scale it
+            }
+            if (embedded != null) {
+                try (FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    while (embedded.hasRemaining()) {
+                        out.write(embedded);
+                    }
+                }
+                how = EMBEDDED;
+            } else {
+                BufferedImage image = isEntry ? readReduced(new ByteArrayInputStream(entryBytes)) :
+                        readReduced(srcFile);
+                if (image == null) {
+                    throw new IOException("No image reader for this file");
+                }
+                if (!ImageIO.write(scale(image), "jpg", tmpFile)) {
+                    throw new IOException("No jpeg image writer");
+                }
+                how = SCALED;
+            }
+            Files.move(tmpFile.toPath(), thumbFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+            return how;
+        } finally {
+            if (!moved) tmpFile.delete();
+        }
+    }
+
+    // readReduced decodes a picture, from a File or an InputStream, using only every n'th pixel in each
+    // direction, with n chosen so the result is still at least twice THUMB_WIDTH wide.  That skips most of
+    // the work of decoding a large picture and leaves enough pixels for a smooth scale.
+    private static BufferedImage readReduced(Object input) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            if (in == null) return null;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int step = Math.max(1, reader.getWidth(0) / (2 * THUMB_WIDTH));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // scale returns an RGB copy of an image that is no more than THUMB_WIDTH wide.
+    private static BufferedImage scale(BufferedImage image) {
+        int width = Math.min(THUMB_WIDTH, image.getWidth());
+        int height = Math.max(1, (int) ((long) image.getHeight() * width / image.getWidth()));
+        BufferedImage thumb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumb.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return thumb;
+    }
+}
@@ -0,0 +1,290 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * <p>
+ * TimeGeotagger finds where a picture without GPS data was taken from a location track, such as a
+ * Location History file, by the time the picture was taken.  The track is copied into time sorted
+ * primitive arrays once.  A picture is placed by finding the fixes just before and just after it and
+ * interpolating between them, or at the nearer fix if the picture is past the end of the track.  A
+ * picture is left unlocated if the fixes it would use are more than maxGapMs away from it.
+ * </p>
+ * <p>
+ * The pictures are located with a binary search of the track each, or, if the pictures are already in
+ * time order, with a single merge of the two lists, which takes O(n + m) for n pictures and m fixes.
+ * </p>
+ * <p>
+ * The track is in UTC but picture times are local times that were read as times in the default time
+ * zone, see ExifDate.  A picture that recorded its UTC offset is moved to UTC with that offset.  Any
+ * other picture is assumed to be taken in the picture time zone, which is the default time zone unless
+ * setPictureTimeZone() gives another one.
+ * </p>
+ */
+class TimeGeotagger {
+
+    private final long[] times;  // times of the fixes in increasing order
+    private final int[] latitudeE7;
+    private final int[] longitudeE7;
+    private final long maxGapMs;
+    private TimeZone pictureTimeZone = null; // null for the default time zone
+
+    /*
+     * <p>
+     * The {@code TimeGeotagger} constructor builds the time index of the track.
+     * </p>
+     *
+     * @param track - the location fixes in any order
+     * @param maxGapMs - the most time between a picture and a fix used to locate it
+     */
+    TimeGeotagger(ColumnarLocations track, long maxGapMs) {
+        int n = track.size();
+        this.maxGapMs = maxGapMs;
+        times = new long[n];
+        latitudeE7 = new int[n];
+        longitudeE7 = new int[n];
+        int[] order = sortedOrder(track);
+        for (int i = 0; i < n; i++) {
+            int j = order == null ? i : order[i];
+            times[i] = track.getTimestampMs(j);
+            latitudeE7[i] = (int) track.getLatitudeE7(j);
+            longitudeE7[i] = (int) track.getLongitudeE7(j);
+        }
+    }
+
+    int size() {
+        return times.length;
+    }
+
+    // setPictureTimeZone sets the time zone pictures without a UTC offset were taken in, or null for the
+    // default time zone.
+    void setPictureTimeZone(TimeZone zone) {
+        pictureTimeZone = zone;
+    }
+
+    // trackTime returns the UTC time of a picture from its timestamp and its UTC offset in minutes, or
+    // ImageMdata.NO_OFFSET if it has none.
+    long trackTime(long timestampMs, int utcOffsetMinutes) {
+        if (utcOffsetMinutes != ImageMdata.NO_OFFSET) {
+            return ExifDate.localMs(timestampMs) - utcOffsetMinutes * 60000L;
+        }
+        if (pictureTimeZone == null) return timestampMs;
+        return ExifDate.toUtcMs(ExifDate.localMs(timestampMs), pictureTimeZone);
+    }
+
+    // sortedOrder returns the indices of the track in time order or null if it already is in time order.
+    // Exports are usually in order, either oldest or newest first, so those are checked for first.
+    private static int[] sortedOrder(ColumnarLocations track) {
+        int n = track.size();
+        boolean ascending = true, descending = true;
+        for (int i = 1; i < n && (ascending || descending); i++) {
+            long d = track.getTimestampMs(i) - track.getTimestampMs(i - 1);
+            if (d < 0) ascending = false;
+            if (d > 0) descending = false;
+        }
+        if (ascending) return null;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = descending ? n - 1 - i : i;
+        if (!descending) {
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i++) keys[i] = track.getTimestampMs(i);
+            mergeSort(order, new int[n], keys, 0, n);
+        }
+        return order;
+    }
+
+    // mergeSort sorts order[lo, hi) by keys[order[i]].  It is stable so fixes with the same time keep
+    // their order.
+    private static void mergeSort(int[] order, int[] tmp, long[] keys, int lo, int hi) {
+        if (hi - lo < 2) return;
+        int mid = (lo + hi) >>> 1;
+        mergeSort(order, tmp, keys, lo, mid);
+        mergeSort(order, tmp, keys, mid, hi);
+        if (keys[order[mid - 1]] <= keys[order[mid]]) return;
+        System.arraycopy(order, lo, tmp, lo, hi - lo);
+        int i = lo, j = mid;
+        for (int k = lo; k < hi; k++) {
+            if (j >= hi || (i < mid && keys[tmp[i]] <= keys[tmp[j]])) order[k] = tmp[i++];
+            else order[k] = tmp[j++];
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code locate} method sets the latitude and longitude of the pictures from the track.
+     * </p>
+     *
+     * @param pictures - the pictures.  Only the times are read.  The latitude and longitude of the
+     *                 pictures that are located are set.
+     * @returns the set of indices of the pictures that were located
+     */
+    BitSet locate(ColumnarLocations pictures) {
+        return locate(pictures, null);
+    }
+
+    /*
+     * <p>
+     * This {@code locate} method sets the latitude and longitude of the pictures from the track, using
+     * the UTC offsets the pictures recorded.
+     * </p>
+     *
+     * @param pictures - the pictures.  Only the times are read.  The latitude and longitude of the
+     *                 pictures that are located are set.
+     * @param utcOffsetMinutes - the UTC offset of each picture or ImageMdata.NO_OFFSET, or null if none
+     *                         of the pictures has one
+     * @returns the set of indices of the pictures that were located
+     */
+    BitSet locate(ColumnarLocations pictures, int[] utcOffsetMinutes) {
+        BitSet located = new BitSet(pictures.size());
+        if (times.length == 0) return located;
+        long[] pictureTimes = new long[pictures.size()];
+        for (int i = 0; i < pictureTimes.length; i++) {
+            pictureTimes[i] = trackTime(pictures.getTimestampMs(i),
+                    utcOffsetMinutes == null ? ImageMdata.NO_OFFSET : utcOffsetMinutes[i]);
+        }
+        boolean sorted = true;
+        for (int i = 1; i < pictureTimes.length && sorted; i++) {
+            sorted = pictureTimes[i - 1] <= pictureTimes[i];
+        }
+        int after = 0; // index of the first fix at or after the current picture in the merge
+        for (int i = 0; i < pictureTimes.length; i++) {
+            long time = pictureTimes[i];
+            if (sorted) {
+                while (after < times.length && times[after] < time) after++;
+            } else {
+                after = firstAtOrAfter(time);
+            }
+            if (locate(time, after, pictures, i)) located.set(i);
+        }
+        return located;
+    }
+
+    // firstAtOrAfter returns the index of the first fix at or after time or times.length if there is none.
+    int firstAtOrAfter(long time) {
+        int lo = 0, hi = times.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // locate places picture i from the fixes around it.  after is the first fix at or after its time.
+    private boolean locate(long time, int after, ColumnarLocations pictures, int i) {
+        int before = after - 1;
+        boolean useBefore = before >= 0 && time - times[before] <= maxGapMs;
+        boolean useAfter = after < times.length && times[after] - time <= maxGapMs;
+        if (useAfter && times[after] == time) {
+            useBefore = false; // exact match
+        }
+        if (useBefore && useAfter) {
+            double f = (double) (time - times[before]) / (double) (times[after] - times[before]);
+            long lat0 = latitudeE7[before], lat1 = latitudeE7[after];
+            long lon0 = longitudeE7[before], lon1 = longitudeE7[after];
+            // go the short way across the 180 degree meridian
+            if (lon1 - lon0 > 1800000000L) lon1 -= 3600000000L;
+            else if (lon0 - lon1 > 1800000000L) lon1 += 3600000000L;
+            long longitude = lon0 + Math.round(f * (lon1 - lon0));
+            if (longitude > 1800000000L) longitude -= 3600000000L;
+            else if (longitude < -1800000000L) longitude += 3600000000L;
+            pictures.setLatitudeE7(i, lat0 + Math.round(f * (lat1 - lat0)));
+            pictures.setLongitudeE7(i, longitude);
+            return true;
+        }
+        int fix;
+        if (useBefore) fix = before;
+        else if (useAfter) fix = after;
+        else return false;
+        pictures.setLatitudeE7(i, latitudeE7[fix]);
+        pictures.setLongitudeE7(i, longitudeE7[fix]);
+        return true;
+    }
+
+    // this main() function times locating pictures in time order and in random order against a track
+    // and checks that both give the same answer.  It is not necessary.
+    public static void main(String[] args) {
+        final int numFixes = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        final int numPictures = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        final long start = 1262304000000L; // 2010
+        Random random = new Random(1);
+
+        // a track with a fix about every 30 s, newest first like older Location History exports
+        ColumnarLocations track = new ColumnarLocations(numFixes);
+        for (int i = numFixes - 1; i >= 0; i--) {
+            track.add(start + 30000L * i + random.nextInt(10000),
+                    random.nextInt(1800000000) - 900000000, random.nextInt(2000000000) - 1000000000);
+        }
+        long buildTime = System.currentTimeMillis();
+        TimeGeotagger geotagger = new TimeGeotagger(track, 10L * 60L * 1000L);
+        buildTime = System.currentTimeMillis() - buildTime;
+
+        ColumnarLocations sortedPictures = new ColumnarLocations(numPictures);
+        ColumnarLocations randomPictures = new ColumnarLocations(numPictures);
+        long span = 30000L * numFixes;
+        long[] pictureTimes = new long[numPictures];
+        for (int i = 0; i < numPictures; i++) pictureTimes[i] = start + (long) (random.nextDouble() * span);
+        for (int i = 0; i < numPictures; i++) randomPictures.add(pictureTimes[i], 0, 0);
+        java.util.Arrays.sort(pictureTimes);
+        for (int i = 0; i < numPictures; i++) sortedPictures.add(pictureTimes[i], 0, 0);
+
+        long sortedTime = System.currentTimeMillis();
+        BitSet sortedLocated = geotagger.locate(sortedPictures);
+        sortedTime = System.currentTimeMillis() - sortedTime;
+        long randomTime = System.currentTimeMillis();
+        BitSet randomLocated = geotagger.locate(randomPictures);
+        randomTime = System.currentTimeMillis() - randomTime;
+
+        // the random order pictures are checked by looking each one up in the sorted ones
+        int mismatches = 0;
+        for (int i = 0; i < numPictures; i++) {
+            long time = randomPictures.getTimestampMs(i);
+            int lo = 0, hi = numPictures - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (sortedPictures.getTimestampMs(mid) < time) lo = mid + 1;
+                else hi = mid;
+            }
+            if (randomLocated.get(i) != sortedLocated.get(lo) ||
+                    randomPictures.getLatitudeE7(i) != sortedPictures.getLatitudeE7(lo) ||
+                    randomPictures.getLongitudeE7(i) != sortedPictures.getLongitudeE7(lo)) {
+                mismatches++;
+            }
+        }
+        System.out.println(numFixes + " fixes, " + numPictures + " pictures, " + sortedLocated.cardinality() +
+                " located, " + mismatches + " mismatches");
+        System.out.println("index build time = " + buildTime / 1000.0 + "  merge join time = " +
+                sortedTime / 1000.0 + "  binary search time = " + randomTime / 1000.0);
+    }
+}
@@ -0,0 +1,210 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import org.KdTree.KdTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>
+ * TimeIndex answers queries for the pictures taken in a window of time.  It holds the picture times
+ * sorted in a long array with the picture indices in an int array beside it, so a query is two binary
+ * searches for the ends of the window and the pictures between them are the answer.  That is much less
+ * work than a search of a KdTree over time and location when only the time is constrained, and building
+ * it is one sort rather than a tree build.
+ * </p>
+ * <p>
+ * The sort is an Arrays.parallelSort of longs that each hold a time, less the earliest time, in their
+ * high bits and the picture index in their low bits, so sorting the longs sorts the indices by time with
+ * no objects.  Only if the times span too many years to leave room for the index bits are the indices
+ * sorted as Integers.
+ * </p>
+ */
+class TimeIndex {
+
+    private final long[] times; // picture times in ascending order
+    private final int[] idxs;   // the index of the picture with each time
+
+    /*
+     * <p>
+     * The {@code TimeIndex} constructor.
+     * </p>
+     *
+     * @param locations - the times, indexed by picture
+     */
+    TimeIndex(final ColumnarLocations locations) {
+        int n = locations.size();
+        times = new long[n];
+        idxs = new int[n];
+        if (n == 0) return;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            minTime = Math.min(minTime, locations.getTimestampMs(i));
+            maxTime = Math.max(maxTime, locations.getTimestampMs(i));
+        }
+        int idxBits = 64 - Long.numberOfLeadingZeros(n - 1);
+        long span = maxTime - minTime;
+        if (span >= 0 && (span >>> (63 - idxBits)) == 0) {
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = ((locations.getTimestampMs(i) - minTime) << idxBits) | i;
+            }
+            Arrays.parallelSort(keys);
+            long idxMask = (1L << idxBits) - 1;
+            for (int i = 0; i < n; i++) {
+                idxs[i] = (int) (keys[i] & idxMask);
+                times[i] = (keys[i] >>> idxBits) + minTime;
+            }
+        } else {
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            Arrays.parallelSort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int c = Long.compare(locations.getTimestampMs(a), locations.getTimestampMs(b));
+                    return c != 0 ? c : Integer.compare(a, b);
+                }
+            });
+            for (int i = 0; i < n; i++) {
+                idxs[i] = order[i];
+                times[i] = locations.getTimestampMs(order[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    /*
+     * <p>
+     * The {@code search} method finds the pictures taken in a window of time, from the earlier end up to
+     * but not including the later one.  The ends may be given in either order.  Both are as for
+     * KdTree.searchTree(), so the two answer a region alike.
+     * </p>
+     *
+     * @param time1 - one end of the window in ms since the epoch
+     * @param time2 - the other end of the window
+     * @returns the indices of the pictures in time order
+     */
+    List<Integer> search(long time1, long time2) {
+        int start = lowerBound(Math.min(time1, time2));
+        int end = lowerBound(Math.max(time1, time2));
+        ArrayList<Integer> found = new ArrayList<>(Math.max(0, end - start));
+        for (int i = start; i < end; i++) {
+            found.add(idxs[i]);
+        }
+        return found;
+    }
+
+    // search sets or, if set is false, clears the bits of the pictures taken in a window of time.
+    void search(long time1, long time2, BitSet bits, boolean set) {
+        int start = lowerBound(Math.min(time1, time2));
+        int end = lowerBound(Math.max(time1, time2));
+        for (int i = start; i < end; i++) {
+            bits.set(idxs[i], set);
+        }
+    }
+
+    // lowerBound returns the position of the first time >= time
+    private int lowerBound(long time) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // this main() function compares the build and query times of a TimeIndex and a KdTree on random
+    // pictures and checks that they find the same ones.  It is not necessary.
+    public static void main(String[] args) {
+        int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        Random random = new Random(1);
+        long now = System.currentTimeMillis();
+        long tenYears = 10L * 365 * 24 * 3600 * 1000;
+        ColumnarLocations locations = new ColumnarLocations(numPoints);
+        for (int i = 0; i < numPoints; i++) {
+            locations.add(now - (long) (random.nextDouble() * tenYears), random.nextInt(1800000000) - 900000000,
+                    random.nextInt(2000000000) - 1000000000);
+        }
+
+        long start = System.nanoTime();
+        TimeIndex timeIndex = new TimeIndex(locations);
+        long timeIndexBuild = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        KdTree<Integer> kdTree = new KdTree<Integer>(numPoints, 3);
+        kdTree.setNumThreads(Runtime.getRuntime().availableProcessors());
+        long[] latLonTime = new long[3];
+        for (int i = 0; i < numPoints; i++) {
+            locations.getLatLonTime(i, latLonTime);
+            kdTree.add(latLonTime, i);
+        }
+        kdTree.buildTree();
+        long kdTreeBuild = System.nanoTime() - start;
+
+        long timeIndexQuery = 0;
+        long kdTreeQuery = 0;
+        for (int q = 0; q < numQueries; q++) {
+            long t1 = now - (long) (random.nextDouble() * tenYears);
+            long t2 = t1 + (long) (random.nextDouble() * tenYears / 10);
+            start = System.nanoTime();
+            List<Integer> fromIndex = timeIndex.search(t1, t2);
+            timeIndexQuery += System.nanoTime() - start;
+            start = System.nanoTime();
+            List<Integer> fromTree = kdTree.searchTree(new long[]{Long.MAX_VALUE, Long.MAX_VALUE, t2},
+                    new long[]{Long.MIN_VALUE, Long.MIN_VALUE, t1});
+            kdTreeQuery += System.nanoTime() - start;
+            Integer[] a = fromIndex.toArray(new Integer[0]);
+            Integer[] b = fromTree.toArray(new Integer[0]);
+            Arrays.sort(a);
+            Arrays.sort(b);
+            if (!Arrays.equals(a, b)) {
+                System.out.println("Query " + q + " found " + a.length + " in the TimeIndex but " + b.length +
+                        " in the KdTree");
+            }
+        }
+        System.out.printf("%d points: TimeIndex build %.1f ms, %d queries %.1f ms; KdTree build %.1f ms, " +
+                        "%d queries %.1f ms%n", numPoints, timeIndexBuild / 1.0e6, numQueries, timeIndexQuery / 1.0e6,
+                kdTreeBuild / 1.0e6, numQueries, kdTreeQuery / 1.0e6);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,72 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * <p>
+ * TimeRange is the Earliest Time to Latest Time range of the pictures to be mapped, inclusive at both
+ * ends, in ms since the epoch.  It is passed down to the metadata readers so that a picture taken
+ * outside the range is dropped as soon as its date has been decoded, without reading its location or
+ * storing it.
+ * </p>
+ * <p>
+ * It can also rule a file out from its last modified time alone.  A file is written after the picture
+ * in it was taken, and copying a file keeps or advances its time, so a file last modified before the
+ * start of the range can't hold a picture taken in the range.  EXIF times are local times with no time
+ * zone while file times are not, so a day of slack is allowed.  Cameras with a wrong clock or tools that
+ * set file times break this, which is why that check is optional.
+ * </p>
+ */
+final class TimeRange {
+
+    // a range that every picture is in
+    static final TimeRange ALL = new TimeRange(Long.MIN_VALUE, Long.MAX_VALUE);
+
+    static final long MODIFIED_TIME_SLACK_MS = 24L * 60L * 60L * 1000L;
+
+    final long earliestMs;
+    final long latestMs;
+
+    TimeRange(long earliestMs, long latestMs) {
+        this.earliestMs = earliestMs;
+        this.latestMs = latestMs;
+    }
+
+    // contains returns true if a picture taken at timestampMs is in the range.
+    boolean contains(long timestampMs) {
+        return timestampMs >= earliestMs && timestampMs <= latestMs;
+    }
+
+    // excludesModifiedTime returns true if a file last modified at lastModifiedMs can't hold a picture
+    // taken in the range.
+    boolean excludesModifiedTime(long lastModifiedMs) {
+        return earliestMs != Long.MIN_VALUE && lastModifiedMs < earliestMs - MODIFIED_TIME_SLACK_MS;
+    }
+}
@@ -0,0 +1,282 @@
+package org.jar;
+/*
+ * Copyright (c) 2019, John A. Robinson
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * XmpSidecar reads the time and location from the .xmp sidecar file that photo editors and raw
+ * converters write next to a picture.  The sidecar for pic.dng is pic.xmp or pic.dng.xmp, with the
+ * extension in either case.  Values in the sidecar take the place of the ones embedded in the picture
+ * since the sidecar holds the user's corrections, and a picture format that has no MdataExtractor can
+ * still be mapped if its sidecar has a time and a location.
+ * </p>
+ * <p>
+ * Sidecars are small so the whole file is read and only the few properties used here are looked for,
+ * as either attributes or elements of the rdf:Description.  No XML parser is involved.
+ * </p>
+ * <p>
+ * The DirectoryScanner records the sidecar names of each directory it lists, so finding the sidecar of a
+ * picture in a scanned directory is a lookup in that set rather than a probe of the file system for each
+ * of the four names.
+ * </p>
+ */
+final class XmpSidecar {
+
+    private static final String[] DATE_PROPERTIES = {"exif:DateTimeOriginal", "xmp:CreateDate",
+            "photoshop:DateCreated"};
+    private static final String LATITUDE_PROPERTY = "exif:GPSLatitude";
+    private static final String LONGITUDE_PROPERTY = "exif:GPSLongitude";
+
+    // the names of the sidecars in each directory listed by a DirectoryScanner
+    private static final ConcurrentHashMap<String, Set<String>> scannedDirectories = new ConcurrentHashMap<>();
+
+    private XmpSidecar() {
+    }
+
+    // addDirectory records the names of the sidecars in a directory, replacing any from an earlier scan.
+    static void addDirectory(String directory, Set<String> sidecarNames) {
+        scannedDirectories.put(directory, sidecarNames);
+    }
+
+    // isSidecar returns true if the file name ends in .xmp in any case.
+    static boolean isSidecar(String fileName) {
+        return fileName.length() > 4 && fileName.regionMatches(true, fileName.length() - 4, ".xmp", 0, 4);
+    }
+
+    /*
+     * <p>
+     * The {@code find} method looks for the sidecar of a picture file.  The file system is only probed for
+     * a picture in a directory that no DirectoryScanner has listed.  A picture in an archive has no sidecar.
+     * </p>
+     *
+     * @param fileName - name of the picture file
+     * @returns the path of the sidecar or null if there is none
+     */
+    static Path find(String fileName) {
+        if (fileName.contains(ArchiveSource.SEPARATOR)) return null;
+        int slash = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'));
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > slash ? fileName.substring(0, dot) : fileName;
+        String[] candidates = {base + ".xmp", base + ".XMP", fileName + ".xmp", fileName + ".XMP"};
+        Set<String> sidecarNames = scannedDirectories.get(slash < 0 ? "" : fileName.substring(0, slash));
+        if (sidecarNames != null) {
+            for (String candidate : candidates) {
+                if (sidecarNames.contains(candidate.substring(slash + 1))) return Paths.get(candidate);
+            }
+            return null;
+        }
+        for (String candidate : candidates) {
+            Path path = Paths.get(candidate);
+            if (Files.isRegularFile(path)) return path;
+        }
+        return null;
+    }
+
+    /*
+     * <p>
+     * The {@code read} method reads the time and location from a sidecar.
+     * </p>
+     *
+     * @param sidecar - path of the sidecar file
+     * @param embedded - metadata read from the picture itself or null if it had none.  Whatever the
+     *                 sidecar does not have is taken from here.
+     * @returns the merged metadata or null if neither has a time
+     */
+    static ImageMdata read(Path sidecar, ImageMdata embedded) throws IOException, ParseException {
+        String xmp = new String(Files.readAllBytes(sidecar), StandardCharsets.UTF_8);
+
+        long timestampMs = 0;
+        int utcOffsetMinutes = ImageMdata.NO_OFFSET;
+        boolean hasTime = false;
+        for (String property : DATE_PROPERTIES) {
+            String date = getProperty(xmp, property);
+            if (date != null) {
+                timestampMs = parseDate(date);
+                utcOffsetMinutes = parseOffset(date);
+                hasTime = true;
+                break;
+            }
+        }
+        if (!hasTime) {
+            if (embedded == null) return null;
+            timestampMs = embedded.timestampMs;
+            utcOffsetMinutes = embedded.utcOffsetMinutes;
+        }
+
+        String latitude = getProperty(xmp, LATITUDE_PROPERTY);
+        String longitude = getProperty(xmp, LONGITUDE_PROPERTY);
+        if (latitude != null && longitude != null) {
+            return new ImageMdata(timestampMs, (long)(parseCoordinate(latitude, 'S') * 1.0E7),
+                    (long)(parseCoordinate(longitude, 'W') * 1.0E7));
+        }
+        if (embedded != null && embedded.hasLocation) {
+            return new ImageMdata(timestampMs, embedded.latitudeE7, embedded.longitudeE7);
+        }
+        ImageMdata imageMdata = new ImageMdata(timestampMs);
+        imageMdata.utcOffsetMinutes = utcOffsetMinutes;
+        return imageMdata;
+    }
+
+    // fileVersion returns the size and last modified time of a picture file combined with those of its
+    // sidecar, so that a change to either one is seen as a new version of the picture.
+    static long[] fileVersion(String fileName) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(Paths.get(fileName), BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Path sidecar = find(fileName);
+        if (sidecar != null) {
+            attributes = Files.readAttributes(sidecar, BasicFileAttributes.class);
+            size += attributes.size();
+            lastModified = Math.max(lastModified, attributes.lastModifiedTime().toMillis());
+        }
+        return new long[] {size, lastModified};
+    }
+
+    // getProperty returns the value of a property written as name="value" or <name>value</name> or null.
+    static String getProperty(String xmp, String name) {
+        int from = 0;
+        while (true) {
+            int i = xmp.indexOf(name, from);
+            if (i < 0) return null;
+            from = i + name.length();
+            if (i > 0 && xmp.charAt(i - 1) == '<') {
+                // element form.  Skip elements whose names only start with this one.
+                if (from >= xmp.length()) return null;
+                char next = xmp.charAt(from);
+                if (next != '>' && next != '/' && !Character.isWhitespace(next)) continue;
+                int start = xmp.indexOf('>', from);
+                if (start < 0) return null;
+                if (xmp.charAt(start - 1) == '/') continue; // empty element
+                int end = xmp.indexOf('<', start + 1);
+                if (end < 0) return null;
+                return xmp.substring(start + 1, end).trim();
+            }
+            // attribute form.  Skip names that only start with this one, such as exif:GPSLatitudeRef.
+            int j = from;
+            while (j < xmp.length() && Character.isWhitespace(xmp.charAt(j))) j++;
+            if (j >= xmp.length() || xmp.charAt(j) != '=') continue;
+            j++;
+            while (j < xmp.length() && Character.isWhitespace(xmp.charAt(j))) j++;
+            if (j >= xmp.length()) return null;
+            char quote = xmp.charAt(j);
+            if (quote != '"' && quote != '\'') continue;
+            int end = xmp.indexOf(quote, j + 1);
+            if (end < 0) return null;
+            return xmp.substring(j + 1, end).trim();
+        }
+    }
+
+    /*
+     * <p>
+     * The {@code parseDate} method parses an XMP date, yyyy-MM-ddTHH:mm:ss with optional fractional
+     * seconds and time zone, or just yyyy-MM-dd.  Like an EXIF date it is taken as the local time in the
+     * default time zone.  The time zone designator is left to parseOffset() so that pictures from the same
+     * camera get the same time whether it came from the picture or the sidecar.
+     * </p>
+     *
+     * @param date - the XMP date
+     * @returns ms since the epoch
+     */
+    static long parseDate(String date) throws ParseException {
+        int[] fields = new int[6];
+        int[] lengths = {4, 2, 2, 2, 2, 2};
+        char[] separators = {'-', '-', 'T', ':', ':'};
+        int p = 0;
+        for (int f = 0; f < fields.length; f++) {
+            if (f > 0) {
+                if (p >= date.length()) {
+                    if (f < 3) throw new ParseException("Unparseable XMP date: \"" + date + "\"", p);
+                    break;
+                }
+                if (date.charAt(p) != separators[f - 1] && !(f == 3 && date.charAt(p) == ' ')) {
+                    throw new ParseException("Unparseable XMP date: \"" + date + "\"", p);
+                }
+                p++;
+            }
+            for (int k = 0; k < lengths[f]; k++, p++) {
+                char c = p < date.length() ? date.charAt(p) : 0;
+                if (c < '0' || c > '9') {
+                    throw new ParseException("Unparseable XMP date: \"" + date + "\"", p);
+                }
+                fields[f] = fields[f] * 10 + (c - '0');
+            }
+            // an hour and minute without seconds is allowed
+            if (f == 4 && (p >= date.length() || date.charAt(p) != ':')) break;
+        }
+        return ExifDate.toEpochMs(fields[0], fields[1], fields[2], fields[3], fields[4], fields[5]);
+    }
+
+    // parseOffset returns the time zone designator of an XMP date, "Z" or "+HH:MM" or "-HH:MM" after the
+    // time, as minutes from UTC, or ImageMdata.NO_OFFSET if it has none.
+    static int parseOffset(String date) {
+        for (int i = 11; i < date.length(); i++) {
+            char c = date.charAt(i);
+            if (c == 'Z') return 0;
+            if (c == '+' || c == '-') return ExifDate.parseOffset(date.substring(i));
+        }
+        return ImageMdata.NO_OFFSET;
+    }
+
+    /*
+     * <p>
+     * The {@code parseCoordinate} method parses an XMP GPS coordinate, "DDD,MM.mmk" or "DDD,MM,SSk" where
+     * k is N, S, E or W.  A plain signed decimal number is also accepted.
+     * </p>
+     *
+     * @param coordinate - the XMP coordinate
+     * @param negative - the direction letter that makes the coordinate negative
+     * @returns decimal degrees
+     */
+    static double parseCoordinate(String coordinate, char negative) throws ParseException {
+        try {
+            char last = coordinate.isEmpty() ? 0 : Character.toUpperCase(coordinate.charAt(coordinate.length() - 1));
+            if (last < 'A' || last > 'Z') {
+                return Double.parseDouble(coordinate);
+            }
+            String[] parts = coordinate.substring(0, coordinate.length() - 1).split(",");
+            double degrees = Double.parseDouble(parts[0]);
+            if (parts.length > 1) degrees += Double.parseDouble(parts[1]) / 60.0;
+            if (parts.length > 2) degrees += Double.parseDouble(parts[2]) / 3600.0;
+            return last == negative ? -degrees : degrees;
+        } catch (NumberFormatException e) {
+            throw new ParseException("Unparseable XMP coordinate: \"" + coordinate + "\"", 0);
+        }
+    }
+}